@@ -0,0 +1,57 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import net.boreeas.irc.plugins.Plugin;
+
+/**
+ * A plugin that does nothing, used to register listeners and commands.
+ *
+ * @author Boreeas
+ */
+class BenchmarkPlugin implements Plugin {
+
+    private final String name;
+
+    BenchmarkPlugin(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void onEnable(IrcBot bot) {
+    }
+
+    @Override
+    public void onDisable() {
+    }
+
+    @Override
+    public void save() {
+    }
+
+    @Override
+    public String getPluginName() {
+        return name;
+    }
+
+    @Override
+    public String getCommandPrefix() {
+        return name.toLowerCase();
+    }
+
+    @Override
+    public String getDescription() {
+        return "Benchmark stub";
+    }
+
+    @Override
+    public String getVersion() {
+        return "1.0";
+    }
+
+    @Override
+    public String reloadTarget() {
+        return name + ".jar";
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import net.boreeas.irc.events.*;
+import net.boreeas.irc.events.EventListener;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inbound dispatch: turning split lines into events and fanning them out to
+ * the registered listeners.
+ *
+ * @author Boreeas
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    @Param({"1", "10", "50"})
+    public int listeners;
+
+    @Param({"false", "true"})
+    public boolean pooled;
+
+    private EventPump pump;
+    private String[][] lines;
+    private MessageReceivedEvent message;
+    private int index;
+
+    @Setup
+    public void setUp(final Blackhole hole) {
+
+        pump = new EventPump();
+
+        for (int i = 0; i < listeners; i++) {
+            pump.addEventListener(new BenchmarkPlugin("Plugin" + i), new EventListener() {
+                @Override
+                public void onMessageReceived(MessageReceivedEvent evt) {
+                    hole.consume(evt.user().nick());
+                    hole.consume(evt.message());
+                }
+
+                @Override
+                public void onUserJoinedChannel(UserJoinedChannelEvent evt) {
+                    hole.consume(evt.getChannel());
+                }
+            });
+        }
+
+        lines = new String[Lines.MIX.length][];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = IrcBot.splitArgs(Lines.MIX[i]);
+        }
+
+        message = new MessageReceivedEvent(new User("alice!~alice@host-1.example.org"),
+                                           "#chat", "hello world");
+    }
+
+    /**
+     * Event extraction and dispatch for the realistic line mix.
+     */
+    @Benchmark
+    public void checkAndFireEvents() {
+        index = (index + 1) % lines.length;
+        EventExtractor.checkAndFireEvents(lines[index], pump,
+                                          pooled ? EventPool.forCurrentThread() : null);
+    }
+
+    /**
+     * Fan-out of a single, already extracted event.
+     */
+    @Benchmark
+    public void fanOut() {
+        pump.onMessageReceived(message);
+    }
+}
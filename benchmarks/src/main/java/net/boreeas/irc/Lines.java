@@ -0,0 +1,39 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+/**
+ * A mix of inbound lines as seen on a busy network, after the leading colon
+ * has been removed. Roughly weighted like real traffic: mostly channel
+ * messages, then joins, parts and quits, and the occasional mode change,
+ * notice or numeric.
+ *
+ * @author Boreeas
+ */
+final class Lines {
+
+    static final String[] MIX = {
+        "alice!~alice@host-1.example.org PRIVMSG #chat :hey, did anyone see the release notes?",
+        "bob!bob@192.0.2.14 PRIVMSG #chat :yes, looks good",
+        "carol!~c@user/carol PRIVMSG #dev :!help",
+        "dave!dave@gateway/web/irccloud.com/x-abc PRIVMSG #chat :lol",
+        "erin!~erin@host-7.example.net PRIVMSG #dev :the build is green again, merging now",
+        "frank!f@203.0.113.9 PRIVMSG #chat :ACTION waves",
+        "grace!~grace@host-3.example.org PRIVMSG #chat :https://example.org/some/long/link?with=params&and=more",
+        "heidi!heidi@user/heidi PRIVMSG #dev :anyone around to review a pr?",
+        "ivan!~ivan@198.51.100.2 JOIN #chat",
+        "judy!judy@host-9.example.com PART #dev :Leaving",
+        "mallory!~m@203.0.113.77 QUIT :Ping timeout: 240 seconds",
+        "oscar!o@user/oscar NICK oscar_away",
+        "ChanServ!ChanServ@services. MODE #chat +o alice",
+        "peggy!~p@host-2.example.org MODE #chat +bb *!*@203.0.113.77 *!*@198.51.100.66",
+        "NickServ!NickServ@services. NOTICE bot :This nickname is registered.",
+        "PING irc.example.org",
+        "irc.example.org 353 bot = #chat @alice +bob carol dave erin frank",
+        "irc.example.org 372 bot :- Welcome to the example network",
+    };
+
+    private Lines() {
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups done for every message or command: channel preferences, command
+ * recognition and the command table.
+ *
+ * @author Boreeas
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LookupBenchmark {
+
+    private Preferences preferences;
+    private CommandHandler commandHandler;
+    private CommandParser commandParser;
+    private User sender;
+    private String[] args;
+    private int executed;
+
+    @Setup
+    public void setUp() throws IOException {
+
+        File dir = Files.createTempDirectory("ircbot-bench").toFile();
+        dir.deleteOnExit();
+
+        preferences = new Preferences(new File(dir, "preferences").getPath());
+        preferences.setString("#configured", Preferences.CHANNEL_CMD_PREFIX, "$");
+
+        commandParser = new CommandParser(preferences);
+        commandHandler = new CommandHandler();
+
+        for (int p = 0; p < 10; p++) {
+            BenchmarkPlugin plugin = new BenchmarkPlugin("Plugin" + p);
+
+            for (int c = 0; c < 20; c++) {
+                final String trigger = "cmd" + c;
+                commandHandler.registerCommand(plugin, new Command(null) {
+                    @Override
+                    public String getTrigger() {
+                        return trigger;
+                    }
+
+                    @Override
+                    public void execute(User sender, String target, String[] args) {
+                        executed++;
+                    }
+
+                    @Override
+                    public String help() {
+                        return "";
+                    }
+                });
+            }
+        }
+
+        sender = new User("alice!~alice@host-1.example.org");
+        args = new String[]{"some", "args"};
+    }
+
+    @Benchmark
+    public String preferenceConfiguredChannel() {
+        return preferences.getString("#Configured", Preferences.CHANNEL_CMD_PREFIX);
+    }
+
+    @Benchmark
+    public String preferenceDefault() {
+        return preferences.getString("#unknown", Preferences.CHANNEL_CMD_PREFIX);
+    }
+
+    @Benchmark
+    public CommandLine parseChatter() {
+        return commandParser.parse("#Configured", "hey, did anyone see the release notes?");
+    }
+
+    @Benchmark
+    public CommandLine parseCommand() {
+        return commandParser.parse("#Configured", "$plugin5 cmd7 \"quoted arg\" more args");
+    }
+
+    @Benchmark
+    public boolean callCommand() throws IOException {
+        return commandHandler.callCommand("Plugin5", "CMD7", sender, "#chat", args);
+    }
+
+    @Benchmark
+    public boolean callUnknownCommand() throws IOException {
+        return commandHandler.callCommand("Plugin5", "nope", sender, "#chat", args);
+    }
+}
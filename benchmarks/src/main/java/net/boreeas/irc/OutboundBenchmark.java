@@ -0,0 +1,52 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound formatting of mode changes.
+ *
+ * @author Boreeas
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OutboundBenchmark {
+
+    @Param({"4", "50"})
+    public int changes;
+
+    private ModeChangeBuilder mcb;
+
+    @Setup
+    public void setUp() {
+
+        mcb = new ModeChangeBuilder();
+
+        for (int i = 0; i < changes; i++) {
+            if (i % 2 == 0) {
+                mcb.addMode('b', "*!*@host-" + i + ".example.org");
+            } else {
+                mcb.removeMode('o', "nick" + i);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<String> formatDefault() {
+        return mcb.format();
+    }
+
+    @Benchmark
+    public List<String> formatServerLimits() {
+        return mcb.format(6, 490);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inbound parsing: splitting lines into arguments and parsing hostmasks.
+ *
+ * @author Boreeas
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParsingBenchmark {
+
+    private int index;
+
+    @Benchmark
+    public String[] splitArgs() {
+        index = (index + 1) % Lines.MIX.length;
+        return IrcBot.splitArgs(Lines.MIX[index]);
+    }
+
+    @Benchmark
+    public void parseHostmask(Blackhole hole) {
+        hole.consume(new User("alice!~alice@host-1.example.org"));
+        hole.consume(new User("dave!dave@gateway/web/irccloud.com/x-abc"));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import net.boreeas.irc.metrics.MetricsRegistry;
+import net.boreeas.irc.triggers.TriggerRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Scanning a message for the keywords of many plugins: once through the
+ * trigger registry, against each plugin checking its own keywords.
+ *
+ * @author Boreeas
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TriggerBenchmark {
+
+    private static final int PLUGINS = 10;
+    private static final int KEYWORDS = 20;
+
+    private TriggerRegistry registry;
+    private List<String> keywords;
+    private List<Pattern> patterns;
+    private String[] messages;
+    private int next;
+
+    @Setup
+    public void setUp() {
+
+        registry = new TriggerRegistry(new MetricsRegistry());
+        keywords = new ArrayList<>();
+        patterns = new ArrayList<>();
+
+        for (int p = 0; p < PLUGINS; p++) {
+            BenchmarkPlugin plugin = new BenchmarkPlugin("Plugin" + p);
+
+            for (int k = 0; k < KEYWORDS; k++) {
+                String keyword = "word" + p + "x" + k;
+                registry.addKeyword(plugin, null, keyword);
+                keywords.add(keyword);
+            }
+
+            Pattern pattern = Pattern.compile("!cmd" + p + "\\s+(\\S+)");
+            registry.addPattern(plugin, null, pattern);
+            patterns.add(pattern);
+        }
+
+        List<String> found = new ArrayList<>();
+        for (String line: Lines.MIX) {
+            int text = line.indexOf(" :");
+            if (line.contains(" PRIVMSG ") && text != -1) {
+                found.add(line.substring(text + 2));
+            }
+        }
+        messages = found.toArray(new String[0]);
+
+        // Warm up the compiled automaton
+        registry.match("#chat", messages[0]);
+    }
+
+    private String message() {
+        next = (next + 1) % messages.length;
+        return messages[next];
+    }
+
+    @Benchmark
+    public int registry() {
+        return registry.match("#chat", message()).size();
+    }
+
+    @Benchmark
+    public int perPlugin() {
+
+        String message = message().toLowerCase();
+        int matched = 0;
+
+        for (String keyword: keywords) {
+            if (message.contains(keyword)) {
+                matched++;
+            }
+        }
+
+        for (Pattern pattern: patterns) {
+            if (pattern.matcher(message).find()) {
+                matched++;
+            }
+        }
+
+        return matched;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import net.boreeas.irc.metrics.Counter;
+import net.boreeas.irc.metrics.Gauge;
+import net.boreeas.irc.metrics.MetricsRegistry;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache of account lookups for users whose account isn't kept up
+ * to date by {@link AccountTracker}, so that a user who runs several
+ * privileged commands in a row is only looked up once.
+ * <p/>
+ * Every entry belongs to the <code>user@host</code> the account was looked up
+ * for, and is dropped when the nick shows up with a different one, so that a
+ * client that takes over a nick doesn't inherit the account. Entries expire
+ * after a fixed time, since logouts go unnoticed without account-notify.
+ * Eviction is a segmented LRU: new entries go
+ * into a probation segment and are promoted to the protected segment on
+ * their first hit, so that users who are looked up once don't push out
+ * those who use the bot regularly.
+ *
+ * @author Boreeas
+ */
+public class AccountCache {
+
+    private final int capacity;
+    private final int protectedCapacity;
+    private final long ttl;
+
+    private final Map<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    /**
+     * @param metrics  The registry for the hit, miss and eviction metrics
+     * @param capacity The maximum number of entries
+     * @param ttl      The time after which an entry expires, in seconds
+     */
+    public AccountCache(MetricsRegistry metrics, int capacity, long ttl) {
+
+        this.capacity = Math.max(1, capacity);
+        this.protectedCapacity = this.capacity * 4 / 5;
+        this.ttl = TimeUnit.SECONDS.toNanos(ttl);
+
+        this.hits = metrics.counter("account_cache_hits_total");
+        this.misses = metrics.counter("account_cache_misses_total");
+        this.evictions = metrics.counter("account_cache_evictions_total");
+
+        metrics.gauge("account_cache_size", new Gauge() {
+            @Override
+            public long value() {
+                return size();
+            }
+        });
+    }
+
+    /**
+     * Returns the cached account of a user.
+     * @param nick     The nick of the user
+     * @param userHost The <code>user@host</code> of the user
+     * @return The account, {@link AccountTracker#NOT_LOGGED_IN}, or
+     *         <code>null</code> if it isn't cached for this user@host
+     */
+    public String get(String nick, String userHost) {
+        return get(nick, userHost, System.nanoTime());
+    }
+
+    synchronized String get(String nick, String userHost, long now) {
+
+        String key = nick.toLowerCase();
+        Entry entry = protectedSegment.get(key);
+        boolean probationary = false;
+
+        if (entry == null) {
+            entry = probation.get(key);
+            probationary = entry != null;
+        }
+
+        if (entry == null || entry.expires - now <= 0 || !entry.userHost.equalsIgnoreCase(userHost)) {
+            if (entry != null) {
+                invalidate(key);
+            }
+
+            misses.inc();
+            return null;
+        }
+
+        if (probationary) {
+            probation.remove(key);
+            promote(key, entry);
+        }
+
+        hits.inc();
+        return entry.account;
+    }
+
+    /**
+     * Caches the account of a user.
+     * @param nick     The nick of the user
+     * @param userHost The <code>user@host</code> of the user
+     * @param account  The account, or {@link AccountTracker#NOT_LOGGED_IN}
+     */
+    public void put(String nick, String userHost, String account) {
+        put(nick, userHost, account, System.nanoTime());
+    }
+
+    synchronized void put(String nick, String userHost, String account, long now) {
+
+        String key = nick.toLowerCase();
+        Entry entry = new Entry(userHost, account, now + ttl);
+
+        if (protectedSegment.containsKey(key)) {
+            protectedSegment.put(key, entry);
+            return;
+        }
+
+        probation.put(key, entry);
+
+        while (probation.size() + protectedSegment.size() > capacity) {
+            evictEldest(probation.isEmpty() ? protectedSegment : probation);
+        }
+    }
+
+    /**
+     * Removes the account of a user, e.g. because the nick changed hands.
+     * @param nick The nick of the user
+     */
+    public synchronized void invalidate(String nick) {
+
+        String key = nick.toLowerCase();
+        probation.remove(key);
+        protectedSegment.remove(key);
+    }
+
+    public synchronized void clear() {
+        probation.clear();
+        protectedSegment.clear();
+    }
+
+    public synchronized int size() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    private void promote(String key, Entry entry) {
+
+        protectedSegment.put(key, entry);
+
+        // Demote the least recently used protected entry, giving it another chance
+        if (protectedSegment.size() > protectedCapacity) {
+            Iterator<Map.Entry<String, Entry>> eldest = protectedSegment.entrySet().iterator();
+            Map.Entry<String, Entry> demoted = eldest.next();
+            eldest.remove();
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    private void evictEldest(Map<String, Entry> segment) {
+
+        Iterator<Entry> eldest = segment.values().iterator();
+        eldest.next();
+        eldest.remove();
+        evictions.inc();
+    }
+
+    private static class Entry {
+
+        private final String userHost;
+        private final String account;
+        private final long expires;
+
+        Entry(String userHost, String account, long expires) {
+            this.userHost = userHost;
+            this.account = account;
+            this.expires = expires;
+        }
+    }
+}
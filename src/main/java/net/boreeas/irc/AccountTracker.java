@@ -0,0 +1,651 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import net.boreeas.irc.events.ChannelModeChangeEvent;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.*;
+
+/**
+ * Keeps track of the accounts, away states and channel prefixes of the users
+ * that share a channel with the bot, from the lines the server sends anyway.
+ * <p/>
+ * With the IRCv3 capabilities <code>extended-join</code>,
+ * <code>account-notify</code> and <code>account-tag</code>, the server tells
+ * the bot the account of every user that joins, every login and logout, and
+ * the account behind every message, so the account of a user in a shared
+ * channel is always known without asking. With <code>multi-prefix</code>,
+ * NAMES replies contain all prefixes of a user, not only the highest one.
+ * <p/>
+ * Without account-notify, accounts can't be kept up to date and go into an
+ * {@link AccountCache} instead, which is invalidated when the user changes
+ * nick, quits or leaves the last shared channel. Accounts of users outside of
+ * the bot's channels are not kept at all: the bot would not notice when
+ * their nick changes hands.
+ *
+ * @author Boreeas
+ */
+public class AccountTracker {
+
+    private static final Log logger = LogFactory.getLog("Accounts");
+
+    /**
+     * The account name of users that are not logged in.
+     */
+    public static final String NOT_LOGGED_IN = "0";
+
+    private static final String DEFAULT_PREFIX = "(ov)@+";
+    // Symbols that are stripped from NAMES entries even if PREFIX lacks them
+    private static final String COMMON_SYMBOLS = "~&@%+";
+
+    private final IrcBot bot;
+    private final AccountCache cache;
+
+    // nick -> account or NOT_LOGGED_IN, only for users in a shared channel
+    private final Map<String, String> accounts = new HashMap<>();
+    private final Set<String> away = new HashSet<>();
+    // nick -> nick!user@host, only for users in a shared channel
+    private final Map<String, User> hosts = new HashMap<>();
+    // channel -> nick -> prefix symbols, highest first
+    private final Map<String, Map<String, String>> channels = new HashMap<>();
+
+    private boolean accountNotify;
+
+    AccountTracker(IrcBot bot, AccountCache cache) {
+        this.bot = bot;
+        this.cache = cache;
+    }
+
+    /**
+     * Forgets everything, e.g. after reconnecting.
+     */
+    synchronized void clear() {
+        accounts.clear();
+        away.clear();
+        hosts.clear();
+        channels.clear();
+        cache.clear();
+        accountNotify = false;
+    }
+
+    /**
+     * Sets whether the server notifies the bot of logins and logouts. Only
+     * then are accounts kept for users in shared channels.
+     * @param enabled <code>true</code> if account-notify was acknowledged
+     */
+    synchronized void setAccountNotify(boolean enabled) {
+        accountNotify = enabled;
+    }
+
+    /**
+     * Returns the account of a user, if it is known.
+     * @param nick The nick of the user
+     * @return The account, {@link #NOT_LOGGED_IN}, or <code>null</code> if
+     *         the account has to be looked up
+     */
+    public synchronized String getAccount(String nick) {
+
+        String key = nick.toLowerCase();
+        String account = accounts.get(key);
+        User user = hosts.get(key);
+
+        return account == null && user != null ? cached(key, user) : account;
+    }
+
+    /**
+     * Returns the account of a user, if it is known. An account cached for
+     * a different <code>user@host</code> under the same nick is not returned.
+     * @param user The user, as seen in the prefix of a message
+     * @return The account, {@link #NOT_LOGGED_IN}, or <code>null</code> if
+     *         the account has to be looked up
+     */
+    public synchronized String getAccount(User user) {
+
+        String key = user.nick().toLowerCase();
+        String account = accounts.get(key);
+
+        return account == null ? cached(key, user) : account;
+    }
+
+    private String cached(String nick, User user) {
+        return isInAnyChannel(nick) ? cache.get(nick, userHost(user)) : null;
+    }
+
+    private static String userHost(User user) {
+        return user.user() + "@" + user.host();
+    }
+
+    /**
+     * Returns the user and host of a user in a shared channel, as seen when
+     * the user joined or in a NAMES or WHO reply.
+     * @param nick The nick of the user
+     * @return The user, or <code>null</code> if the host is not known
+     */
+    public synchronized User getUser(String nick) {
+        return hosts.get(nick.toLowerCase());
+    }
+
+    /**
+     * Returns whether a user in a shared channel is marked as away. Only
+     * accurate if away-notify is enabled.
+     * @param nick The nick of the user
+     * @return <code>true</code> if the user is away
+     */
+    public synchronized boolean isAway(String nick) {
+        return away.contains(nick.toLowerCase());
+    }
+
+    /**
+     * Returns the access level of a user in a channel the bot is in.
+     * @param nick    The nick of the user
+     * @param channel The channel
+     * @return The highest access level of the user, or <code>null</code> if
+     *         the bot is not in the channel
+     */
+    public synchronized ChannelAccessLevel getChannelAccess(String nick, String channel) {
+
+        Map<String, String> users = channels.get(channel.toLowerCase());
+
+        if (users == null) {
+            return null;
+        }
+
+        String symbols = users.get(nick.toLowerCase());
+        return symbols == null || symbols.isEmpty() ? ChannelAccessLevel.NONE : level(symbols.charAt(0));
+    }
+
+    private static ChannelAccessLevel level(char symbol) {
+
+        switch (symbol) {
+            case '~':
+                return ChannelAccessLevel.FOUNDER;
+            case '&':
+                return ChannelAccessLevel.ADMIN;
+            case '@':
+                return ChannelAccessLevel.OP;
+            case '%':
+                return ChannelAccessLevel.HOP;
+            case '+':
+                return ChannelAccessLevel.VOICE;
+            default:
+                return ChannelAccessLevel.NONE;
+        }
+    }
+
+    /**
+     * Stores the result of an account lookup, if the user is in a shared
+     * channel. It is kept up to date if account-notify is enabled, otherwise
+     * it is cached for the user's <code>user@host</code>.
+     * @param user    The user
+     * @param account The account, or {@link #NOT_LOGGED_IN}
+     */
+    synchronized void remember(User user, String account) {
+
+        if (account != null) {
+            store(user.nick().toLowerCase(), user, account);
+        }
+    }
+
+    /**
+     * Handles the <code>account</code> tag of a message.
+     * @param mask    The <code>nick!user@host</code> of the sender
+     * @param account The account, or <code>null</code> if the message had
+     *                no account tag
+     */
+    synchronized void tagged(String mask, String account) {
+
+        User user = user(mask);
+        if (user != null) {
+            store(user.nick().toLowerCase(), user, account == null ? NOT_LOGGED_IN : account);
+        }
+    }
+
+    /**
+     * @param user The user, or <code>null</code> to use the known host
+     */
+    private void store(String nick, User user, String account) {
+
+        if (!isInAnyChannel(nick)) {
+            return;
+        }
+
+        if (accountNotify) {
+            accounts.put(nick, account);
+            return;
+        }
+
+        User known = user == null ? hosts.get(nick) : user;
+        if (known != null) {
+            cache.put(nick, userHost(known), account);
+        }
+    }
+
+    /**
+     * Updates the state from a received line.
+     * @param parts The line, as split by IrcBot.splitArgs
+     */
+    synchronized void update(String[] parts) {
+
+        if (parts.length < 2) {
+            return;
+        }
+
+        switch (parts[1]) {
+            case "JOIN":
+                join(parts);
+                break;
+            case "PART":
+                if (parts.length > 2) {
+                    leave(nick(parts[0]), parts[2]);
+                }
+                break;
+            case "KICK":
+                if (parts.length > 3) {
+                    leave(parts[3].toLowerCase(), parts[2]);
+                }
+                break;
+            case "QUIT":
+                quit(nick(parts[0]));
+                break;
+            case "NICK":
+                if (parts.length > 2) {
+                    rename(nick(parts[0]), parts[2].toLowerCase());
+                }
+                break;
+            case "ACCOUNT":
+                if (parts.length > 2) {
+                    account(nick(parts[0]), parts[2]);
+                }
+                break;
+            case "AWAY":
+                if (parts.length > 2) {
+                    away.add(nick(parts[0]));
+                } else {
+                    away.remove(nick(parts[0]));
+                }
+                break;
+            case "MODE":
+                if (parts.length > 3) {
+                    mode(parts[2], parts[3], Arrays.copyOfRange(parts, 4, parts.length));
+                }
+                break;
+            case "353":
+                if (parts.length > 5) {
+                    names(parts[4], parts[5]);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Handles a WHO reply for a channel the bot is in.
+     * @param channel The channel the reply belongs to
+     * @param nick    The nick of the user
+     * @param user    The user name
+     * @param host    The host
+     * @param flags   The WHO flags: H or G for here or gone, * for IRC
+     *                operators, then the prefix symbols
+     * @param account The account, or "0" if not logged in
+     */
+    synchronized void who(String channel, String nick, String user, String host, String flags, String account) {
+
+        Map<String, String> users = channels.get(channel.toLowerCase());
+
+        if (users == null) {
+            return;
+        }
+
+        String key = nick.toLowerCase();
+        users.put(key, sorted(symbols(flags)));
+        hosts.put(key, new User(nick, user, host));
+
+        if (flags.startsWith("G")) {
+            away.add(key);
+        } else {
+            away.remove(key);
+        }
+
+        store(key, new User(nick, user, host), account);
+    }
+
+    private void join(String[] parts) {
+
+        if (parts.length < 3) {
+            return;
+        }
+
+        String nick = nick(parts[0]);
+        String channel = parts[2].toLowerCase();
+
+        if (nick.equalsIgnoreCase(bot.nick())) {
+            channels.put(channel, new HashMap<String, String>());
+        }
+
+        Map<String, String> users = channels.get(channel);
+
+        if (users == null) {
+            return;
+        }
+
+        users.put(nick, "");
+        away.remove(nick);
+        host(parts[0]);
+
+        // extended-join: JOIN #channel account :realname
+        if (parts.length > 4) {
+            account(nick, parts[3]);
+        }
+    }
+
+    private void leave(String nick, String channel) {
+
+        if (nick.equalsIgnoreCase(bot.nick())) {
+
+            Map<String, String> users = channels.remove(channel.toLowerCase());
+
+            if (users != null) {
+                for (String user: users.keySet()) {
+                    forgetIfGone(user);
+                }
+            }
+            return;
+        }
+
+        Map<String, String> users = channels.get(channel.toLowerCase());
+
+        if (users != null) {
+            users.remove(nick);
+            forgetIfGone(nick);
+        }
+    }
+
+    private void quit(String nick) {
+
+        for (Map<String, String> users: channels.values()) {
+            users.remove(nick);
+        }
+
+        accounts.remove(nick);
+        away.remove(nick);
+        hosts.remove(nick);
+        cache.invalidate(nick);
+    }
+
+    private void rename(String oldNick, String newNick) {
+
+        for (Map<String, String> users: channels.values()) {
+            String symbols = users.remove(oldNick);
+            if (symbols != null) {
+                users.put(newNick, symbols);
+            }
+        }
+
+        String account = accounts.remove(oldNick);
+        if (account != null) {
+            accounts.put(newNick, account);
+        }
+
+        if (away.remove(oldNick)) {
+            away.add(newNick);
+        }
+
+        User user = hosts.remove(oldNick);
+        if (user != null) {
+            hosts.put(newNick, new User(newNick, user.user(), user.host()));
+        }
+
+        // The new nick may have belonged to someone else
+        cache.invalidate(oldNick);
+        cache.invalidate(newNick);
+    }
+
+    private void account(String nick, String account) {
+
+        String value = account.equals("*") ? NOT_LOGGED_IN : account;
+        store(nick, null, value);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Account of " + nick + " is " + value);
+        }
+    }
+
+    private void mode(String channel, String modes, String[] params) {
+
+        Map<String, String> users = channels.get(channel.toLowerCase());
+
+        if (users == null) {
+            return;
+        }
+
+        String[] prefix = prefix();
+        Set<Character> withParams = modesWithParams(prefix[0]);
+        Set<Character> whenSet = withParamsWhenSet();
+        boolean adding = true;
+        int param = 0;
+
+        for (int i = 0; i < modes.length(); i++) {
+
+            char mode = modes.charAt(i);
+
+            if (mode == '+' || mode == '-') {
+                adding = mode == '+';
+                continue;
+            }
+
+            if (!withParams.contains(mode) && !(adding && whenSet.contains(mode))) {
+                continue;
+            }
+
+            if (param >= params.length) {
+                break;
+            }
+
+            String target = params[param++].toLowerCase();
+            int index = prefix[0].indexOf(mode);
+
+            if (index != -1 && users.containsKey(target)) {
+                users.put(target, change(users.get(target), prefix[1].charAt(index), adding, prefix[1]));
+            }
+        }
+    }
+
+    private static String change(String symbols, char symbol, boolean adding, String order) {
+
+        StringBuilder changed = new StringBuilder();
+
+        for (int i = 0; i < order.length(); i++) {
+            char c = order.charAt(i);
+            boolean has = c == symbol ? adding : symbols.indexOf(c) != -1;
+
+            if (has) {
+                changed.append(c);
+            }
+        }
+
+        return changed.toString();
+    }
+
+    private void names(String channel, String names) {
+
+        Map<String, String> users = channels.get(channel.toLowerCase());
+
+        if (users == null) {
+            return;
+        }
+
+        String symbols = prefix()[1] + COMMON_SYMBOLS;
+
+        for (String entry: names.split(" ")) {
+
+            int start = 0;
+            while (start < entry.length() && symbols.indexOf(entry.charAt(start)) != -1) {
+                start++;
+            }
+
+            // userhost-in-names: nick!user@host
+            int end = entry.indexOf('!');
+            String nick = entry.substring(start, end == -1 ? entry.length() : end).toLowerCase();
+
+            if (!nick.isEmpty()) {
+                users.put(nick, sorted(entry.substring(0, start)));
+
+                if (end != -1) {
+                    host(entry.substring(start));
+                }
+            }
+        }
+    }
+
+    private String symbols(String flags) {
+
+        String known = prefix()[1] + COMMON_SYMBOLS;
+        StringBuilder symbols = new StringBuilder();
+
+        for (int i = 0; i < flags.length(); i++) {
+            if (known.indexOf(flags.charAt(i)) != -1) {
+                symbols.append(flags.charAt(i));
+            }
+        }
+
+        return symbols.toString();
+    }
+
+    private String sorted(String symbols) {
+
+        if (symbols.length() < 2) {
+            return symbols;
+        }
+
+        String order = prefix()[1] + COMMON_SYMBOLS;
+        StringBuilder sorted = new StringBuilder();
+
+        for (int i = 0; i < order.length(); i++) {
+            char c = order.charAt(i);
+            if (symbols.indexOf(c) != -1 && sorted.indexOf(String.valueOf(c)) == -1) {
+                sorted.append(c);
+            }
+        }
+
+        return sorted.toString();
+    }
+
+    private void forgetIfGone(String nick) {
+
+        if (!isInAnyChannel(nick)) {
+            accounts.remove(nick);
+            away.remove(nick);
+            hosts.remove(nick);
+            cache.invalidate(nick);
+        }
+    }
+
+    private void host(String mask) {
+
+        User user = user(mask);
+
+        if (user != null) {
+            hosts.put(user.nick().toLowerCase(), user);
+        }
+    }
+
+    /**
+     * @return The user, or <code>null</code> if the mask is not a full
+     *         <code>nick!user@host</code>
+     */
+    private static User user(String mask) {
+
+        int bang = mask.indexOf('!');
+        return bang != -1 && mask.indexOf('@', bang) != -1 ? new User(mask) : null;
+    }
+
+    private boolean isInAnyChannel(String nick) {
+
+        for (Map<String, String> users: channels.values()) {
+            if (users.containsKey(nick)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the prefix modes and their symbols, highest first.
+     */
+    private String[] prefix() {
+
+        String prefix = bot.getServerSupport().getString("PREFIX");
+
+        if (prefix == null || !prefix.startsWith("(") || prefix.indexOf(')') == -1) {
+            prefix = DEFAULT_PREFIX;
+        }
+
+        int close = prefix.indexOf(')');
+        return new String[]{prefix.substring(1, close), prefix.substring(close + 1)};
+    }
+
+    /**
+     * Returns the channel modes that always take a parameter: the prefix
+     * modes and the list and key modes of CHANMODES.
+     */
+    private Set<Character> modesWithParams(String prefixModes) {
+
+        Set<Character> modes = new HashSet<>();
+
+        for (char mode: prefixModes.toCharArray()) {
+            modes.add(mode);
+        }
+
+        String[] types = chanModes();
+
+        if (types == null) {
+            modes.addAll(ChannelModeChangeEvent.modesWithParams);
+            modes.remove('l');      // Only takes a parameter when set
+            return modes;
+        }
+
+        for (int type = 0; type < 2 && type < types.length; type++) {
+            for (char mode: types[type].toCharArray()) {
+                modes.add(mode);
+            }
+        }
+
+        return modes;
+    }
+
+    /**
+     * Returns the channel modes that only take a parameter when set.
+     */
+    private Set<Character> withParamsWhenSet() {
+
+        Set<Character> modes = new HashSet<>();
+        String[] types = chanModes();
+
+        if (types == null) {
+            modes.add('l');
+        } else if (types.length > 2) {
+            for (char mode: types[2].toCharArray()) {
+                modes.add(mode);
+            }
+        }
+
+        return modes;
+    }
+
+    private String[] chanModes() {
+
+        String chanModes = bot.getServerSupport().getString("CHANMODES");
+        return chanModes == null ? null : chanModes.split(",", -1);
+    }
+
+    private static String nick(String mask) {
+
+        int end = mask.indexOf('!');
+        return (end == -1 ? mask : mask.substring(0, end)).toLowerCase();
+    }
+}
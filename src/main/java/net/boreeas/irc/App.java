@@ -4,6 +4,7 @@ import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.plist.PropertyListConfiguration;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.log4j.LogManager;
 
 import java.io.File;
 import java.io.FilenameFilter;
@@ -22,6 +23,9 @@ public class App {
 
     public static void main(String[] args) {
 
+        // The log appenders are asynchronous and buffered; flush them on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(LogManager::shutdown, "Log shutdown"));
+
         File file = new File(System.getProperty("user.dir"));
         FilenameFilter botConfigFilter = (dir, name) -> name.startsWith("bot_") && name.endsWith(".plist");
 
@@ -0,0 +1,127 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import org.apache.commons.configuration.Configuration;
+
+import java.util.*;
+
+/**
+ * An immutable snapshot of the bot configuration, so that frequently read
+ * values such as the server address don't go through the configuration file
+ * each time. A new snapshot is taken whenever the file changes.
+ *
+ * @author Boreeas
+ */
+public final class BotConfig {
+
+    private final String host;
+    private final int port;
+    private final String nick;
+    private final String user;
+    private final String realname;
+    private final String pluginDir;
+    private final List<String> channels;
+    private final List<String> plugins;
+    // access list key -> entries, for access_mod, access_admin, access_owner and access_channels
+    private final Map<String, List<String>> access;
+
+    private BotConfig(Configuration config) {
+
+        this.host = config.getString(ConfigKey.HOST.key());
+        this.port = config.getInt(ConfigKey.PORT.key());
+        this.nick = config.getString(ConfigKey.NICK.key());
+        this.user = config.getString(ConfigKey.USER.key());
+        this.realname = config.getString(ConfigKey.REALNAME.key());
+        this.pluginDir = config.getString(ConfigKey.PLUGIN_DIR.key(), ConfigKey.PLUGIN_DIR.defaultValue());
+        this.channels = list(config.getStringArray(ConfigKey.CHANNELS.key()));
+        this.plugins = list(config.getStringArray(ConfigKey.PLUGINS.key()));
+
+        Map<String, List<String>> lists = new TreeMap<>();
+        for (ConfigKey key: new ConfigKey[]{ConfigKey.MODS, ConfigKey.ADMINS, ConfigKey.OWNER}) {
+            lists.put(key.key(), list(config.getStringArray(key.key())));
+        }
+
+        Iterator<String> keys = config.getKeys(ConfigKey.ACCESS_CHANNELS.key());
+        while (keys.hasNext()) {
+            String key = keys.next();
+            lists.put(key, list(config.getStringArray(key)));
+        }
+
+        this.access = Collections.unmodifiableMap(lists);
+    }
+
+    /**
+     * Takes a snapshot of a configuration.
+     * @param config The configuration
+     * @return The snapshot
+     */
+    public static BotConfig of(Configuration config) {
+        return new BotConfig(config);
+    }
+
+    private static List<String> list(String[] values) {
+        return Collections.unmodifiableList(new ArrayList<>(Arrays.asList(values)));
+    }
+
+    public String host() {
+        return host;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public String nick() {
+        return nick;
+    }
+
+    public String user() {
+        return user;
+    }
+
+    public String realname() {
+        return realname;
+    }
+
+    public String pluginDir() {
+        return pluginDir;
+    }
+
+    public List<String> channels() {
+        return channels;
+    }
+
+    public List<String> plugins() {
+        return plugins;
+    }
+
+    /**
+     * Returns the entries of the access lists, including those for single
+     * channels.
+     * @return config key -> entries
+     */
+    public Map<String, List<String>> access() {
+        return access;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+
+        if (!(other instanceof BotConfig)) {
+            return false;
+        }
+
+        BotConfig config = (BotConfig) other;
+        return host.equals(config.host) && port == config.port && nick.equals(config.nick)
+               && user.equals(config.user) && realname.equals(config.realname)
+               && pluginDir.equals(config.pluginDir) && channels.equals(config.channels)
+               && plugins.equals(config.plugins) && access.equals(config.access);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(host, port, nick, channels);
+    }
+}
@@ -25,9 +25,21 @@ public abstract class Command {
     protected boolean require(String nick, BotAccessLevel level)
             throws IOException {
 
+        User user = bot.getAccounts().getUser(nick);
+
+        if (user != null) {
+            return bot.hasAccessLevel(user, null, level);
+        }
+
         return bot.getAccessLevel(nick, true).compareTo(level) >= 0;
     }
 
+    protected boolean require(User user, String chan, BotAccessLevel level)
+            throws IOException {
+
+        return bot.hasAccessLevel(user, chan, level);
+    }
+
     protected boolean require(String nick, String chan,
                               ChannelAccessLevel level) {
 
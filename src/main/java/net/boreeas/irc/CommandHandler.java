@@ -4,13 +4,17 @@
  */
 package net.boreeas.irc;
 
+import net.boreeas.irc.metrics.Histogram;
+import net.boreeas.irc.metrics.MetricsRegistry;
 import net.boreeas.irc.plugins.Plugin;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -19,13 +23,46 @@ import java.util.Map;
 public class CommandHandler {
 
     private static final Log log = LogFactory.getLog("Command");
+    // Plugins may register commands concurrently while they are enabled
     private Map<String, Map<String, Command>> registeredCommands =
-                                              new HashMap<String, Map<String, Command>>();
+                                              new ConcurrentHashMap<String, Map<String, Command>>();
+    private Map<Command, Watched> watched = new ConcurrentHashMap<Command, Watched>();
+    // The plugin that first registered a command under each prefix
+    private Map<String, Plugin> owners = new ConcurrentHashMap<String, Plugin>();
+    // Commands of plugins that are being swapped in, see stage()
+    private Map<Plugin, Map<String, Command>> staged = new ConcurrentHashMap<Plugin, Map<String, Command>>();
+    private final MetricsRegistry metrics;
+    private final Watchdog watchdog;
+
+    public CommandHandler() {
+        this(new MetricsRegistry(), null);
+    }
+
+    /**
+     * Creates a command handler.
+     * @param metrics  The registry the command times are recorded in
+     * @param watchdog The watchdog for slow commands, or <code>null</code>
+     */
+    public CommandHandler(MetricsRegistry metrics, Watchdog watchdog) {
+        this.metrics = metrics;
+        this.watchdog = watchdog;
+    }
 
     public void registerCommand(Plugin plugin, Command command) {
 
         String trigger = command.getTrigger().toLowerCase();
-        getCommandMapForPlugin(plugin).put(trigger, command);
+        Map<String, Command> forStaged = staged.get(plugin);
+
+        if (forStaged != null) {
+            forStaged.put(trigger, command);
+        } else {
+            getCommandMapForPlugin(plugin).put(trigger, command);
+            owners.putIfAbsent(plugin.getCommandPrefix(), plugin);
+        }
+
+        String name = plugin.getCommandPrefix() + " " + trigger;
+        watched.put(command, new Watched(metrics.histogram(MetricsRegistry.tagged("command_time_ns", "command", name)),
+                                         watchdog == null ? null : watchdog.target(plugin, "command " + name)));
     }
 
     public String[] getRegisteredPrefixes() {
@@ -33,6 +70,15 @@ public class CommandHandler {
         return registeredCommands.keySet().toArray(new String[0]);
     }
 
+    /**
+     * Returns whether a plugin registered commands under a prefix.
+     * @param prefix The command prefix of the plugin
+     * @return <code>true</code> if there are commands for the prefix
+     */
+    public boolean hasPrefix(String prefix) {
+        return registeredCommands.containsKey(prefix.toLowerCase());
+    }
+
     public String[] getRegisteredCommands(String prefix) {
 
         Map<String, Command> commands = registeredCommands.get(prefix.toLowerCase());
@@ -67,8 +113,8 @@ public class CommandHandler {
                              registeredCommands.get(plugin.getCommandPrefix());
 
         if (map == null) {
-            map = new HashMap<String, Command>();
-            registeredCommands.put(plugin.getCommandPrefix(), map);
+            registeredCommands.putIfAbsent(plugin.getCommandPrefix(), new ConcurrentHashMap<String, Command>());
+            map = registeredCommands.get(plugin.getCommandPrefix());
         }
 
         return map;
@@ -77,12 +123,123 @@ public class CommandHandler {
     public void unregisterCommand(Plugin plugin, Command command) {
 
         String trigger = command.getTrigger().toLowerCase();
-        getCommandMapForPlugin(plugin).remove(trigger);
+        Map<String, Command> forStaged = staged.get(plugin);
+
+        // Only remove the command itself, never a newer version's command
+        if (forStaged != null) {
+            forStaged.remove(trigger, command);
+        } else {
+            getCommandMapForPlugin(plugin).remove(trigger, command);
+        }
+
+        watched.remove(command);
     }
 
     public void unregisterPlugin(Plugin plugin) {
 
-        registeredCommands.remove(plugin.getCommandPrefix());
+        Map<String, Command> forStaged = staged.remove(plugin);
+
+        if (forStaged != null) {
+            watched.keySet().removeAll(forStaged.values());
+            return;
+        }
+
+        Plugin owner = owners.get(plugin.getCommandPrefix());
+
+        if (owner != null && owner != plugin) {
+            return;     // The prefix has been taken over, e.g. by a new version
+        }
+
+        owners.remove(plugin.getCommandPrefix());
+        Map<String, Command> commands = registeredCommands.remove(plugin.getCommandPrefix());
+
+        if (commands != null) {
+            watched.keySet().removeAll(commands.values());
+        }
+    }
+
+    /**
+     * Returns all registered commands whose class was defined by a class
+     * loader, including staged ones.
+     * @param loader The class loader
+     * @return The commands
+     */
+    public List<Command> commandsLoadedBy(ClassLoader loader) {
+
+        List<Command> found = new ArrayList<Command>();
+
+        for (Command command: watched.keySet()) {
+            if (command.getClass().getClassLoader() == loader) {
+                found.add(command);
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Returns whether a plugin may use its command prefix without taking it
+     * from a plugin other than the one it replaces.
+     * @param plugin   The plugin
+     * @param replaces The plugin it replaces, or <code>null</code>
+     * @return <code>true</code> if the prefix is free or owned by
+     *         <code>replaces</code>
+     */
+    public boolean isPrefixAvailable(Plugin plugin, Plugin replaces) {
+
+        Plugin owner = owners.get(plugin.getCommandPrefix());
+        return owner == null || owner == plugin || owner == replaces;
+    }
+
+    /**
+     * Holds back the commands a plugin registers until {@link #swap} is
+     * called, so that a new version of a plugin can be enabled while the old
+     * one still handles commands.
+     * @param plugin The new plugin
+     */
+    public void stage(Plugin plugin) {
+        staged.put(plugin, new ConcurrentHashMap<String, Command>());
+    }
+
+    /**
+     * Replaces the commands of a plugin with the staged commands of its
+     * replacement. The command table of the prefix is replaced in one step,
+     * so every command is handled by either the old or the new version.
+     * @param old         The plugin being replaced
+     * @param replacement The staged plugin
+     * @throws IllegalStateException If the replacement's prefix is owned by
+     *                               another plugin
+     */
+    public synchronized void swap(Plugin old, Plugin replacement) {
+
+        if (!isPrefixAvailable(replacement, old)) {
+            throw new IllegalStateException("Command prefix " + replacement.getCommandPrefix()
+                                            + " is owned by " + owners.get(replacement.getCommandPrefix()).getPluginName());
+        }
+
+        Map<String, Command> incoming = staged.remove(replacement);
+
+        if (incoming == null) {
+            incoming = new ConcurrentHashMap<String, Command>();
+        }
+
+        Map<String, Command> previous = registeredCommands.put(replacement.getCommandPrefix(), incoming);
+        owners.put(replacement.getCommandPrefix(), replacement);
+
+        if (!old.getCommandPrefix().equals(replacement.getCommandPrefix())
+            && owners.get(old.getCommandPrefix()) == old) {
+
+            owners.remove(old.getCommandPrefix());
+            Map<String, Command> oldCommands = registeredCommands.remove(old.getCommandPrefix());
+
+            if (oldCommands != null) {
+                watched.keySet().removeAll(oldCommands.values());
+            }
+        }
+
+        if (previous != null) {
+            watched.keySet().removeAll(previous.values());
+        }
     }
 
     public boolean callCommand(String pluginPrefix, String cmd,
@@ -97,6 +254,15 @@ public class CommandHandler {
             Command c = commands.get(cmd.toLowerCase());
 
             if (c != null) {
+
+                Watched w = watched.get(c);
+                Watchdog.Slot slot = watchdog == null || w == null ? null : watchdog.slot();
+                long start = System.nanoTime();
+
+                if (slot != null) {
+                    slot.enter(w.target, start);
+                }
+
                 try {
 
                     c.execute(sender, target, args);
@@ -107,6 +273,17 @@ public class CommandHandler {
                 } catch (NoSuchMethodError err) {
 
                     log.error("Error while executing command '" + pluginPrefix + " " + cmd + "'", err);
+                } finally {
+
+                    long end = System.nanoTime();
+
+                    if (w != null) {
+                        w.time.record(end - start);
+                    }
+
+                    if (slot != null) {
+                        slot.exit(w.target, start, end);
+                    }
                 }
 
                 return true;
@@ -115,4 +292,15 @@ public class CommandHandler {
 
         return false;
     }
+
+    private static class Watched {
+
+        private final Histogram time;
+        private final Watchdog.Target target;
+
+        Watched(Histogram time, Watchdog.Target target) {
+            this.time = time;
+            this.target = target;
+        }
+    }
 }
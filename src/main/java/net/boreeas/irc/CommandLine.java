@@ -0,0 +1,56 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+/**
+ * A message that starts with the command prefix of the channel it was sent
+ * to, split into its parts. For "!core mute #chan 5m" with the prefix "!",
+ * the plugin prefix is "core", the command "mute" and the arguments "#chan"
+ * and "5m".
+ *
+ * @author Boreeas
+ */
+public final class CommandLine {
+
+    private final String prefix;
+    private final String pluginPrefix;
+    private final String command;
+    private final String[] args;
+
+    CommandLine(String prefix, String pluginPrefix, String command, String[] args) {
+        this.prefix = prefix;
+        this.pluginPrefix = pluginPrefix;
+        this.command = command;
+        this.args = args;
+    }
+
+    /**
+     * @return The command prefix of the channel
+     */
+    public String prefix() {
+        return prefix;
+    }
+
+    /**
+     * @return The command prefix of the plugin
+     */
+    public String pluginPrefix() {
+        return pluginPrefix;
+    }
+
+    /**
+     * @return The command, or <code>null</code> if the message only named a
+     *         plugin
+     */
+    public String command() {
+        return command;
+    }
+
+    /**
+     * @return The arguments, possibly empty
+     */
+    public String[] args() {
+        return args;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recognizes commands in messages. The command prefix of each channel is
+ * looked up in the preferences once and then cached until the preferences
+ * change, so a message that isn't a command costs one map lookup and one
+ * comparison.
+ * <p/>
+ * Arguments are separated by spaces. An argument in double quotes may
+ * contain spaces, and <code>\"</code> and <code>\\</code> inside the quotes
+ * stand for a quote and a backslash.
+ *
+ * @author Boreeas
+ */
+public class CommandParser {
+
+    private static final String[] NO_ARGS = new String[0];
+    // Targets to remember prefixes for, there is one per channel and query
+    static final int MAX_TARGETS = 1024;
+
+    private final Preferences preferences;
+    private final Map<String, String> prefixes = new HashMap<>();
+    private int version = -1;
+
+    // Reused for every command
+    private final List<String> tokens = new ArrayList<>();
+    private final StringBuilder token = new StringBuilder();
+
+    public CommandParser(Preferences preferences) {
+        this.preferences = preferences;
+    }
+
+    /**
+     * Returns the command prefix for a channel or query.
+     * @param target The channel or nick
+     * @return The prefix, or the empty string if there is none
+     */
+    public synchronized String prefix(String target) {
+
+        int current = preferences.version();
+        if (current != version) {
+            prefixes.clear();
+            version = current;
+        }
+
+        String prefix = prefixes.get(target);
+
+        if (prefix == null) {
+            if (prefixes.size() >= MAX_TARGETS) {
+                prefixes.clear();
+            }
+
+            prefix = preferences.getString(target, Preferences.CHANNEL_CMD_PREFIX);
+            prefix = prefix == null ? "" : prefix;
+            prefixes.put(target, prefix);
+        }
+
+        return prefix;
+    }
+
+    /**
+     * Parses a message if it is a command.
+     * @param target  The channel or nick the message was sent to
+     * @param message The message
+     * @return The command, or <code>null</code> if the message is not one
+     */
+    public synchronized CommandLine parse(String target, String message) {
+
+        String prefix = prefix(target);
+        int start = prefix.length();
+
+        // "! foo" is not a command
+        if (start == 0 || message.length() <= start || !message.startsWith(prefix) || message.charAt(start) == ' ') {
+            return null;
+        }
+
+        tokens.clear();
+        tokenize(message, start, tokens, token);
+
+        int count = tokens.size();
+        String[] args = count <= 2 ? NO_ARGS : tokens.subList(2, count).toArray(new String[count - 2]);
+
+        return new CommandLine(prefix, tokens.get(0), count > 1 ? tokens.get(1) : null, args);
+    }
+
+    /**
+     * Splits a text into arguments, the way commands are split.
+     * @param text The text
+     * @return The arguments
+     */
+    public static String[] tokenize(String text) {
+
+        List<String> result = new ArrayList<>();
+        tokenize(text, 0, result, new StringBuilder());
+        return result.toArray(new String[result.size()]);
+    }
+
+    private static void tokenize(String text, int start, List<String> into, StringBuilder token) {
+
+        int length = text.length();
+        int i = start;
+
+        while (i < length) {
+
+            while (i < length && text.charAt(i) == ' ') {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+
+            token.setLength(0);
+
+            while (i < length && text.charAt(i) != ' ') {
+                char c = text.charAt(i++);
+
+                if (c != '"') {
+                    token.append(c);
+                    continue;
+                }
+
+                // Quoted, up to the closing quote or the end of the text
+                while (i < length && (c = text.charAt(i++)) != '"') {
+                    if (c == '\\' && i < length && (text.charAt(i) == '"' || text.charAt(i) == '\\')) {
+                        c = text.charAt(i++);
+                    }
+                    token.append(c);
+                }
+            }
+
+            into.add(token.toString());
+        }
+    }
+}
@@ -20,8 +20,34 @@ public enum ConfigKey {
     MODS("access_mod"),
     ADMINS("access_admin"),
     OWNER("access_owner"),
+    ACCESS_CHANNELS("access_channels", ""),
     PLUGIN_DIR("plugin_dir", "plugins"),
-    PLUGINS("plugins");
+    PLUGINS("plugins"),
+    POOL_EVENTS("pool_events", "false"),
+    METRICS_FILE("metrics_file", ""),
+    METRICS_INTERVAL("metrics_interval", "60"),
+    WATCHDOG_BUDGET("watchdog_budget_ms", "1000"),
+    WATCHDOG_MAX_VIOLATIONS("watchdog_max_violations", "0"),
+    WATCHDOG_BUDGETS("watchdog_budgets", ""),
+    PLUGIN_THREADS("plugin_threads", "2"),
+    PLUGIN_QUEUE("plugin_queue", "1000"),
+    PLUGIN_CPU_BUDGET("plugin_cpu_ms_per_minute", "0"),
+    PLUGIN_QUOTAS("plugin_quotas", ""),
+    SASL_MECHANISM("sasl_mechanism", ""),
+    SASL_USER("sasl_user", ""),
+    SASL_PASSWORD("sasl_password", ""),
+    ACCOUNT_CACHE_SIZE("account_cache_size", "1000"),
+    ACCOUNT_CACHE_TTL("account_cache_ttl", "300"),
+    WHOX_SWEEP("whox_sweep", "false"),
+    SEND_QUEUE_BURST("send_queue_burst", "5"),
+    SEND_QUEUE_INTERVAL("send_queue_interval_ms", "2000"),
+    ROUTE_COMMANDS("route_commands", "false"),
+    TLS("tls", "false"),
+    TLS_TRUSTSTORE("tls_truststore", ""),
+    TLS_TRUSTSTORE_PASSWORD("tls_truststore_password", ""),
+    TLS_CLIENT_CERT("tls_client_cert", ""),
+    TLS_CLIENT_CERT_PASSWORD("tls_client_cert_password", ""),
+    CAPTURE_DIR("capture_dir", "");
 
     private String key;
     private String defaultValue;
@@ -0,0 +1,209 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import org.apache.commons.configuration.FileConfiguration;
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.tree.ConfigurationNode;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Collects changes to the configuration and applies them together. The
+ * configuration is changed at once on {@link #commit()}, and the file is
+ * written once afterwards, in the background.
+ * <p/>
+ * List edits treat the list as a set: a value is added only once, and
+ * removing and adding a value in the same transaction leaves the last edit
+ * in effect. Building up a list of thousands of entries this way costs one
+ * pass over the list, not one per entry.
+ *
+ * @author Boreeas
+ */
+public class ConfigTransaction {
+
+    private final FileConfiguration config;
+    private final ConfigWriter writer;
+    private final Map<String, Edit> edits = new LinkedHashMap<>();
+    private boolean committed;
+
+    /**
+     * @param config The configuration to change
+     * @param writer The writer for the configuration file
+     */
+    public ConfigTransaction(FileConfiguration config, ConfigWriter writer) {
+        this.config = config;
+        this.writer = writer;
+    }
+
+    /**
+     * Sets a property, replacing earlier edits of it in this transaction.
+     * @param key   The key
+     * @param value The value, or <code>null</code> to remove the property
+     * @return This transaction
+     */
+    public ConfigTransaction set(String key, Object value) {
+
+        Edit edit = new Edit();
+        edit.replace = true;
+        edit.value = value;
+        edits.put(key, edit);
+
+        return this;
+    }
+
+    /**
+     * Adds a value to a list, if it isn't in the list yet.
+     * @param key   The key of the list
+     * @param value The value
+     * @return This transaction
+     */
+    public ConfigTransaction addToList(String key, Object value) {
+
+        Edit edit = edit(key);
+        edit.removed.remove(value);
+        edit.added.add(value);
+
+        return this;
+    }
+
+    /**
+     * Adds values to a list, skipping those already in the list.
+     * @param key    The key of the list
+     * @param values The values
+     * @return This transaction
+     */
+    public ConfigTransaction addAllToList(String key, Collection<?> values) {
+
+        Edit edit = edit(key);
+        edit.removed.removeAll(values);
+        edit.added.addAll(values);
+
+        return this;
+    }
+
+    /**
+     * Removes a value from a list.
+     * @param key   The key of the list
+     * @param value The value
+     * @return This transaction
+     */
+    public ConfigTransaction removeFromList(String key, Object value) {
+
+        Edit edit = edit(key);
+        edit.added.remove(value);
+        edit.removed.add(value);
+
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return edits.isEmpty();
+    }
+
+    /**
+     * Applies the changes to the configuration and schedules a write of the
+     * file.
+     * @return A future that completes once the changes are on disk
+     * @throws IllegalStateException If the transaction was already committed
+     */
+    public Future<?> commit() {
+
+        if (committed) {
+            throw new IllegalStateException("Transaction already committed");
+        }
+        committed = true;
+
+        if (edits.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        synchronized (config) {
+            boolean autoSave = config.isAutoSave();
+            config.setAutoSave(false);
+
+            try {
+                for (Map.Entry<String, Edit> entry: edits.entrySet()) {
+                    apply(entry.getKey(), entry.getValue());
+                }
+            } finally {
+                config.setAutoSave(autoSave);
+            }
+        }
+
+        return writer.schedule();
+    }
+
+    private void apply(String key, Edit edit) {
+
+        if (edit.replace && edit.added.isEmpty() && edit.removed.isEmpty()) {
+            if (edit.value == null) {
+                config.clearProperty(key);
+            } else {
+                config.setProperty(key, edit.value);
+            }
+            return;
+        }
+
+        Set<Object> list = new LinkedHashSet<>();
+        if (!edit.replace) {
+            list.addAll(config.getList(key));
+        } else if (edit.value instanceof Collection) {
+            list.addAll((Collection<?>) edit.value);
+        } else if (edit.value != null) {
+            list.add(edit.value);
+        }
+
+        list.removeAll(edit.removed);
+        list.addAll(edit.added);
+
+        if (list.isEmpty() && config instanceof HierarchicalConfiguration) {
+            setEmpty((HierarchicalConfiguration) config, key);
+        } else {
+            config.setProperty(key, new ArrayList<>(list));
+        }
+    }
+
+    /**
+     * Setting a property to an empty list removes it, which would make
+     * required lists like access_mod go missing. Keeps the key as
+     * <code>()</code> instead.
+     */
+    private static void setEmpty(HierarchicalConfiguration config, String key) {
+
+        List<ConfigurationNode> nodes = config.getExpressionEngine().query(config.getRootNode(), key);
+
+        if (nodes.isEmpty()) {
+            return;
+        }
+
+        for (ConfigurationNode node: nodes.subList(1, nodes.size())) {
+            node.getParentNode().removeChild(node);
+        }
+
+        nodes.get(0).setValue(new ArrayList<>());
+    }
+
+    private Edit edit(String key) {
+
+        Edit edit = edits.get(key);
+        if (edit == null) {
+            edit = new Edit();
+            edits.put(key, edit);
+        }
+
+        return edit;
+    }
+
+    private static class Edit {
+
+        // Whether the property is set to value before adding and removing
+        private boolean replace;
+        private Object value;
+        private final Set<Object> added = new LinkedHashSet<>();
+        private final Set<Object> removed = new HashSet<>();
+    }
+}
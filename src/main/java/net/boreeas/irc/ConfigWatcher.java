@@ -0,0 +1,114 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the configuration file with a {@link WatchService} and has the bot
+ * reload it when it changes. Editors often write a file in several steps, so
+ * the reload waits until the file was quiet for a moment.
+ *
+ * @author Boreeas
+ */
+public class ConfigWatcher implements Runnable {
+
+    private static final Log logger = LogFactory.getLog("ConfigWatcher");
+
+    // How long the file has to stay unchanged before it is reloaded
+    static final long QUIET_MILLIS = 200;
+
+    private final IrcBot bot;
+    private final Path file;
+    private WatchService watchService;
+    private Thread thread;
+
+    public ConfigWatcher(IrcBot bot, File file) {
+        this.bot = bot;
+        this.file = file.getAbsoluteFile().toPath();
+    }
+
+    /**
+     * Starts watching the file in the background.
+     * @throws IOException If the directory of the file can't be watched
+     */
+    public synchronized void start() throws IOException {
+
+        if (thread != null) {
+            return;
+        }
+
+        watchService = file.getFileSystem().newWatchService();
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                  StandardWatchEventKinds.ENTRY_MODIFY);
+
+        thread = new Thread(this, "Config watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+
+        if (thread == null) {
+            return;
+        }
+
+        try {
+            watchService.close();
+        } catch (IOException ex) {
+            logger.warn("Unable to close watch service", ex);
+        }
+
+        thread = null;
+    }
+
+    @Override
+    public void run() {
+
+        try {
+            while (true) {
+
+                if (!changed(watchService.take())) {
+                    continue;
+                }
+
+                // Wait for the writes to settle
+                WatchKey key;
+                while ((key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed(key);
+                }
+
+                bot.reloadConfig();
+            }
+        } catch (ClosedWatchServiceException ex) {
+            // Stopped
+        } catch (InterruptedException ex) {
+            logger.debug("Config watcher interrupted");
+        }
+    }
+
+    /**
+     * Consumes the events of a key.
+     * @return <code>true</code> if one of them concerns the config file
+     */
+    private boolean changed(WatchKey key) {
+
+        boolean changed = false;
+
+        for (WatchEvent<?> event: key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+
+        key.reset();
+        return changed;
+    }
+}
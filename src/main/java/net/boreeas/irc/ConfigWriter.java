@@ -0,0 +1,190 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import net.boreeas.irc.metrics.Counter;
+import net.boreeas.irc.metrics.Histogram;
+import net.boreeas.irc.metrics.MetricsRegistry;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.FileConfiguration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.*;
+
+/**
+ * Writes a configuration to its file in the background. Writes requested
+ * while one is still queued are folded into it, so a burst of changes is
+ * written once. The file is replaced atomically, so neither a crash nor the
+ * {@link ConfigWatcher} ever sees a partial file.
+ * <p/>
+ * Code that changes the configuration while a write may be running has to
+ * hold the lock of the configuration object.
+ *
+ * @author Boreeas
+ */
+public class ConfigWriter {
+
+    private static final Log logger = LogFactory.getLog("ConfigWriter");
+
+    private final FileConfiguration config;
+    private final ThreadPoolExecutor executor;
+    private final Counter writes;
+    private final Histogram writeTime;
+
+    // The queued write that hasn't started yet, and the last one requested
+    private Future<?> pending;
+    private Future<?> last;
+
+    // SHA-256 of the file content after the last write
+    private volatile byte[] writtenDigest;
+
+    public ConfigWriter(FileConfiguration config, MetricsRegistry metrics) {
+
+        this.config = config;
+        this.writes = metrics.counter("config_writes_total");
+        this.writeTime = metrics.histogram("config_write_time_ns");
+
+        // The thread goes away when there is nothing to write
+        this.executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                               new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Config writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Requests a write of the configuration.
+     * @return A future that completes once the current state of the
+     *         configuration is on disk
+     */
+    public synchronized Future<?> schedule() {
+
+        if (pending == null) {
+            pending = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException, ConfigurationException {
+                    synchronized (ConfigWriter.this) {
+                        pending = null;
+                    }
+
+                    write();
+                    return null;
+                }
+            });
+            last = pending;
+        }
+
+        return pending;
+    }
+
+    /**
+     * Waits until all requested writes are done.
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+
+        Future<?> future;
+        synchronized (this) {
+            future = last;
+        }
+
+        if (future == null) {
+            return;
+        }
+
+        try {
+            future.get();
+        } catch (ExecutionException ex) {
+            // Already logged
+        }
+    }
+
+    /**
+     * Returns whether the file content is what the last write left there.
+     * Changes to the file are then not worth reloading. Compares the
+     * content, as an edit can keep the modification time and length.
+     * @return <code>true</code> if the file was written by this writer
+     */
+    public boolean isOwnWrite() {
+
+        byte[] written = writtenDigest;
+        File file = config.getFile();
+
+        if (written == null || file == null) {
+            return false;
+        }
+
+        try {
+            return MessageDigest.isEqual(written, digest().digest(Files.readAllBytes(file.toPath())));
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the configuration now, on the calling thread.
+     * @throws IOException If the file can't be replaced
+     * @throws ConfigurationException If the configuration can't be saved
+     */
+    void write() throws IOException, ConfigurationException {
+
+        File file = config.getFile();
+
+        if (file == null) {
+            logger.warn("Configuration has no file, not saving");
+            return;
+        }
+
+        long start = System.nanoTime();
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+
+        try {
+            synchronized (config) {
+                MessageDigest digest = digest();
+
+                try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(temp)),
+                                                               digest)) {
+                    config.save(out);
+                }
+
+                // Set before the move, the watcher may look at the file right after it
+                writtenDigest = digest.digest();
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException | ConfigurationException ex) {
+            logger.error("Unable to save config", ex);
+            throw ex;
+        } finally {
+            temp.delete();
+        }
+
+        writes.inc();
+        writeTime.record(System.nanoTime() - start);
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);    // Every JVM must support SHA-256
+        }
+    }
+}
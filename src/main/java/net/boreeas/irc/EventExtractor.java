@@ -5,8 +5,8 @@
 package net.boreeas.irc;
 
 import net.boreeas.irc.events.*;
-import org.apache.commons.lang.ArrayUtils;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -18,26 +18,37 @@ import java.util.Set;
 class EventExtractor {
 
     static void checkAndFireEvents(String[] parts, EventPump eventPump) {
+        checkAndFireEvents(parts, eventPump, null);
+    }
+
+    /**
+     * Fires the events for a received line.
+     * @param parts     The line, as split by IrcBot.splitArgs
+     * @param eventPump The pump to fire the events on
+     * @param pool      The pool to take frequent events from, or
+     *                  <code>null</code> to allocate a new event per line
+     */
+    static void checkAndFireEvents(String[] parts, EventPump eventPump, EventPool pool) {
         if (parts[0].equals("PING")) {
 
-            eventPump.onPingReceived(new PingEvent(parts[1]));
+            extractPing(parts, eventPump, pool);
         } else if (parts.length >= 2) {
 
             if (parts[1].equalsIgnoreCase("JOIN")) {
 
-                extractJoinChannel(parts, eventPump);
+                extractJoinChannel(parts, eventPump, pool);
             } else if (parts[1].equalsIgnoreCase("PART")) {
 
-                extractPartChannel(parts, eventPump);
+                extractPartChannel(parts, eventPump, pool);
             } else if (parts[1].equalsIgnoreCase("PRIVMSG")) {
 
-                extractMessage(parts, eventPump);
+                extractMessage(parts, eventPump, pool);
             } else if (parts[1].equalsIgnoreCase("NOTICE")) {
 
-                extractNotice(parts, eventPump);
+                extractNotice(parts, eventPump, pool);
             } else if (parts[1].equalsIgnoreCase("QUIT")) {
 
-                extractQuit(parts, eventPump);
+                extractQuit(parts, eventPump, pool);
             } else if (parts[1].equalsIgnoreCase("MODE")) {
 
                 extractModeChange(parts, eventPump);
@@ -53,6 +64,24 @@ class EventExtractor {
             } else if (parts[1].equals("353")) {
 
                 extractNames(parts, eventPump);
+            } else if (parts[1].equals("367")) {
+
+                extractListModeEntry(parts, 'b', eventPump);
+            } else if (parts[1].equals("348")) {
+
+                extractListModeEntry(parts, 'e', eventPump);
+            } else if (parts[1].equals("346")) {
+
+                extractListModeEntry(parts, 'I', eventPump);
+            } else if (parts[1].equals("368")) {
+
+                extractListModeEnd(parts, 'b', eventPump);
+            } else if (parts[1].equals("349")) {
+
+                extractListModeEnd(parts, 'e', eventPump);
+            } else if (parts[1].equals("347")) {
+
+                extractListModeEnd(parts, 'I', eventPump);
             } else {
                 eventPump.onUnknownLine(new UnknownLineEvent(parts));
             }
@@ -62,15 +91,26 @@ class EventExtractor {
         }
     }
 
+    private static final String NAMES_PREFIXES = "+@%&~:";
+
     private static void extractNames(String[] parts, EventPump eventPump) {
         String channel = parts[4];
         Set<String> names = new HashSet<>();
         for (String name: parts[5].split(" ")) {
-            char initial = name.charAt(0);
-            if (initial == '+' || initial == '@' || initial == '%' || initial == '&' || initial == '~' || initial == ':') {
-                names.add(name.substring(1).toLowerCase());
-            } else {
-                names.add(name.toLowerCase());
+
+            // multi-prefix sends all prefixes, userhost-in-names the full mask
+            int start = 0;
+            while (start < name.length() && NAMES_PREFIXES.indexOf(name.charAt(start)) != -1) {
+                start++;
+            }
+
+            int end = name.indexOf('!');
+            if (end == -1) {
+                end = name.length();
+            }
+
+            if (start < end) {
+                names.add(name.substring(start, end).toLowerCase());
             }
         }
 
@@ -78,6 +118,26 @@ class EventExtractor {
         eventPump.onNamesReceived(evt);
     }
 
+    private static void extractListModeEntry(String[] parts, char mode, EventPump eventPump) {
+
+        if (parts.length < 5) {
+            eventPump.onUnknownLine(new UnknownLineEvent(parts));
+            return;
+        }
+
+        eventPump.onListModeEntry(new ListModeEntryEvent(parts[3], mode, parts[4]));
+    }
+
+    private static void extractListModeEnd(String[] parts, char mode, EventPump eventPump) {
+
+        if (parts.length < 4) {
+            eventPump.onUnknownLine(new UnknownLineEvent(parts));
+            return;
+        }
+
+        eventPump.onListModeEnd(new ListModeEndEvent(parts[3], mode));
+    }
+
     private static void extractNickChange(String[] parts, EventPump eventPump) {
 
         User user = new User(parts[0]);
@@ -86,19 +146,59 @@ class EventExtractor {
         eventPump.onUserChangedNick(new UserChangedNickEvent(user, newNick));
     }
 
-    private static void extractJoinChannel(String[] parts, EventPump eventPump) {
+    private static void extractPing(String[] parts, EventPump eventPump, EventPool pool) {
+
+        if (pool == null) {
+            eventPump.onPingReceived(new PingEvent(parts[1]));
+            return;
+        }
+
+        PingEvent evt = pool.ping(parts[1]);
+
+        try {
+            eventPump.onPingReceived(evt);
+        } finally {
+            pool.release(evt);
+        }
+    }
+
+    private static void extractJoinChannel(String[] parts, EventPump eventPump, EventPool pool) {
 
-        User user = new User(parts[0]);
         String channel = parts[2];
 
-        eventPump.onUserJoinedChannel(new UserJoinedChannelEvent(user, channel));
+        if (pool == null) {
+            User user = new User(parts[0]);
+            eventPump.onUserJoinedChannel(new UserJoinedChannelEvent(user, channel));
+            return;
+        }
+
+        UserJoinedChannelEvent evt = pool.join(parts[0], channel);
+
+        try {
+            eventPump.onUserJoinedChannel(evt);
+        } finally {
+            pool.release(evt);
+        }
     }
 
-    private static void extractPartChannel(String[] parts, EventPump eventPump) {
+    private static void extractPartChannel(String[] parts, EventPump eventPump, EventPool pool) {
 
-        User user = new User(parts[0]);
         String channel = parts[2];
 
+        if (pool != null) {
+
+            UserLeftChannelEvent evt = pool.part(parts[0], channel, parts.length > 3 ? parts[3] : "");
+
+            try {
+                eventPump.onUserLeftChannel(evt);
+            } finally {
+                pool.release(evt);
+            }
+            return;
+        }
+
+        User user = new User(parts[0]);
+
         UserLeftChannelEvent evt;
 
         if (parts.length > 3) {
@@ -110,41 +210,73 @@ class EventExtractor {
         eventPump.onUserLeftChannel(evt);
     }
 
-    private static void extractMessage(String[] parts, EventPump eventPump) {
+    private static void extractMessage(String[] parts, EventPump eventPump, EventPool pool) {
 
-        User user = new User(parts[0]);
         String target = parts[2];
         String msg = parts[3];
 
-        MessageReceivedEvent evt = new MessageReceivedEvent(user, target, msg);
-        eventPump.onMessageReceived(evt);
+        if (pool == null) {
+            User user = new User(parts[0]);
+            eventPump.onMessageReceived(new MessageReceivedEvent(user, target, msg));
+            return;
+        }
+
+        MessageReceivedEvent evt = pool.message(parts[0], target, msg);
+
+        try {
+            eventPump.onMessageReceived(evt);
+        } finally {
+            pool.release(evt);
+        }
     }
 
-    private static void extractNotice(String[] parts, EventPump eventPump) {
+    private static void extractNotice(String[] parts, EventPump eventPump, EventPool pool) {
 
         if (parts[0].contains("!") && parts[0].contains("@s")) {
 
-            User user = new User(parts[0]);
             String target = parts[2];
             String msg = parts[3];
 
-            MessageReceivedEvent evt =
-                                 new MessageReceivedEvent(user, target, msg);
-            eventPump.onNoticeReceived(evt);
+            if (pool == null) {
+                User user = new User(parts[0]);
+                MessageReceivedEvent evt =
+                                     new MessageReceivedEvent(user, target, msg);
+                eventPump.onNoticeReceived(evt);
+                return;
+            }
+
+            MessageReceivedEvent evt = pool.notice(parts[0], target, msg);
+
+            try {
+                eventPump.onNoticeReceived(evt);
+            } finally {
+                pool.release(evt);
+            }
         } else {
 
             eventPump.onServerNotice(new ServerNoticeEvent(parts[0], parts[3]));
         }
     }
 
-    private static void extractQuit(String[] parts, EventPump eventPump) {
+    private static void extractQuit(String[] parts, EventPump eventPump, EventPool pool) {
 
-        User user = new User(parts[0]);
-        UserQuitNetworkEvent evt =
-                             new UserQuitNetworkEvent(user, parts.length > 2
-                                                            ? parts[2]
-                                                            : "");  // No message
-        eventPump.onUserQuitNetwork(evt);
+        String reason = parts.length > 2
+                        ? parts[2]
+                        : "";  // No message
+
+        if (pool == null) {
+            User user = new User(parts[0]);
+            eventPump.onUserQuitNetwork(new UserQuitNetworkEvent(user, reason));
+            return;
+        }
+
+        UserQuitNetworkEvent evt = pool.quit(parts[0], reason);
+
+        try {
+            eventPump.onUserQuitNetwork(evt);
+        } finally {
+            pool.release(evt);
+        }
     }
 
     private static void extractModeChange(String[] parts, EventPump eventPump) {
@@ -154,16 +286,14 @@ class EventExtractor {
             User user = new User(parts[0]);
             String channel = parts[2];
             String modes = parts[3];
-            String[] modeArgs =
-                     (String[]) ArrayUtils.subarray(parts, 4, parts.length);
+            String[] modeArgs = subarray(parts, 4, parts.length);
 
             ChannelModeChangeEvent evt =
                                    new ChannelModeChangeEvent(user, channel, modes, modeArgs);
             eventPump.onChannelModeChange(evt);
         } else {
 
-            String[] modeArgs =
-                     (String[]) ArrayUtils.subarray(parts, 4, parts.length);
+            String[] modeArgs = subarray(parts, 4, parts.length);
             eventPump.onSelfModeChange(new SelfModeChangeEvent(parts[3], modeArgs));
         }
     }
@@ -175,12 +305,18 @@ class EventExtractor {
                             ? 1     // Cut off last element ("are supported...")
                             : 0);
 
-        String[] supports = (String[]) ArrayUtils.subarray(parts, 3, endIndex);
+        String[] supports = subarray(parts, 3, endIndex);
 
         SupportListReceivedEvent evt = new SupportListReceivedEvent(supports);
         eventPump.onSupportListReceived(evt);
     }
 
+    private static final String[] NO_ARGS = new String[0];
+
+    private static String[] subarray(String[] parts, int start, int end) {
+        return start >= end ? NO_ARGS : Arrays.copyOfRange(parts, start, end);
+    }
+
     private EventExtractor() {
     }
 }
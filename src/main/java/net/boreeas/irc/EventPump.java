@@ -5,13 +5,18 @@
 package net.boreeas.irc;
 
 import net.boreeas.irc.events.*;
+import net.boreeas.irc.events.EventListener;
+import net.boreeas.irc.metrics.Histogram;
+import net.boreeas.irc.metrics.MetricsRegistry;
 import net.boreeas.irc.plugins.Plugin;
+import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.function.BiConsumer;
 
 /**
  *
@@ -19,221 +24,383 @@ import java.util.Set;
  */
 public class EventPump extends EventListener {
 
-    private Map<Plugin, Set<EventListener>> byPlugin =
-                                            new HashMap<Plugin, Set<EventListener>>();
-    private Set<EventListener> eventListeners = new HashSet<EventListener>();
+    /**
+     * The tag under which the time spent in permanent listeners is recorded.
+     */
+    public static final String PERMANENT_TAG = "bot";
 
-    void addEventListener(Plugin plugin, EventListener listener) {
+    private static final Log logger = LogFactory.getLog("EventPump");
 
+    // Registrations are rare, dispatches happen for every line. Every change
+    // publishes a new array, so a dispatch always sees one consistent set.
+    private volatile Registration[] registrations = new Registration[0];
+    // Registrations of plugins that are being swapped in, see stage()
+    private final Map<Plugin, List<Registration>> staged = new HashMap<>();
+    private final MetricsRegistry metrics;
+    private final Watchdog watchdog;
+
+    public EventPump() {
+        this(new MetricsRegistry(), null);
+    }
+
+    /**
+     * Creates an event pump.
+     * @param metrics  The registry the listener times are recorded in
+     * @param watchdog The watchdog for slow listeners, or <code>null</code>
+     */
+    public EventPump(MetricsRegistry metrics, Watchdog watchdog) {
+        this.metrics = metrics;
+        this.watchdog = watchdog;
+    }
 
-        LogFactory.getLog("EventPump").debug("Adding event listeners: " + plugin.getPluginName() + " " + listener);
-        eventListeners.add(listener);
+    synchronized void addEventListener(Plugin plugin, EventListener listener) {
 
-        Set<EventListener> forPlugin = byPlugin.get(plugin);
-        if (forPlugin == null) {
-            forPlugin = new HashSet<>();
-            byPlugin.put(plugin, forPlugin);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Adding event listeners: " + plugin.getPluginName() + " " + listener);
         }
 
-        forPlugin.add(listener);
+        Registration registration = new Registration(listener, plugin, listenerTime(plugin.getPluginName()),
+                                                     watchTarget(plugin, listener));
+        List<Registration> forStaged = staged.get(plugin);
+
+        if (forStaged != null) {
+            forStaged.add(registration);
+        } else {
+            add(registration);
+        }
     }
 
     /**
      * Adds an event listener permanently
      * @param listener listener
      */
-    void addPermanentEventListener(EventListener listener) {
-        LogFactory.getLog("EventPump").debug("Adding permanent event listener: " + listener);
-        eventListeners.add(listener);
+    synchronized void addPermanentEventListener(EventListener listener) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Adding permanent event listener: " + listener);
+        }
+        add(new Registration(listener, null, listenerTime(PERMANENT_TAG),
+                             watchTarget(null, listener)));
+    }
+
+    private void add(Registration registration) {
+
+        Registration[] current = registrations;
+        Registration[] updated = new Registration[current.length + 1];
+
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = registration;
+        registrations = updated;
+    }
+
+    synchronized void removeEventListener(EventListener listener) {
+
+        List<Registration> kept = new ArrayList<>();
+
+        for (Registration registration: registrations) {
+            if (registration.listener != listener) {
+                kept.add(registration);
+            }
+        }
+
+        for (List<Registration> forStaged: staged.values()) {
+            for (int i = forStaged.size() - 1; i >= 0; i--) {
+                if (forStaged.get(i).listener == listener) {
+                    forStaged.remove(i);
+                }
+            }
+        }
+
+        registrations = kept.toArray(new Registration[0]);
+    }
+
+    synchronized void removeAllListeners(Plugin plugin) {
+
+        staged.remove(plugin);
+        List<Registration> kept = new ArrayList<>();
+
+        for (Registration registration: registrations) {
+            if (registration.plugin != plugin) {
+                kept.add(registration);
+            }
+        }
+
+        registrations = kept.toArray(new Registration[0]);
+    }
+
+    /**
+     * Holds back the listeners a plugin registers until {@link #swap} is
+     * called, so that a new version of a plugin can be enabled while the old
+     * one still receives events.
+     * @param plugin The new plugin
+     */
+    synchronized void stage(Plugin plugin) {
+        staged.put(plugin, new ArrayList<Registration>());
+    }
+
+    /**
+     * Replaces all listeners of a plugin with the staged listeners of its
+     * replacement in one step: every event is either passed to the old
+     * listeners or to the new ones. The replacement's listeners take the
+     * place of the first listener of the old plugin.
+     * @param old         The plugin being replaced
+     * @param replacement The staged plugin
+     */
+    synchronized void swap(Plugin old, Plugin replacement) {
+
+        List<Registration> incoming = staged.remove(replacement);
+        List<Registration> updated = new ArrayList<>();
+        boolean inserted = false;
+
+        for (Registration registration: registrations) {
+
+            if (registration.plugin != old) {
+                updated.add(registration);
+            } else if (!inserted && incoming != null) {
+                updated.addAll(incoming);
+                inserted = true;
+            }
+        }
+
+        if (!inserted && incoming != null) {
+            updated.addAll(incoming);
+        }
+
+        registrations = updated.toArray(new Registration[0]);
+    }
+
+    /**
+     * Returns all registered listeners whose class was defined by a class
+     * loader, including staged ones.
+     * @param loader The class loader
+     * @return The listeners
+     */
+    public synchronized List<EventListener> listenersLoadedBy(ClassLoader loader) {
+
+        List<EventListener> found = new ArrayList<>();
+
+        for (Registration registration: registrations) {
+            if (registration.listener.getClass().getClassLoader() == loader) {
+                found.add(registration.listener);
+            }
+        }
+
+        for (List<Registration> forStaged: staged.values()) {
+            for (Registration registration: forStaged) {
+                if (registration.listener.getClass().getClassLoader() == loader) {
+                    found.add(registration.listener);
+                }
+            }
+        }
+
+        return found;
     }
 
-    void removeEventListener(EventListener listener) {
-        eventListeners.remove(listener);
+    private Histogram listenerTime(String pluginName) {
+        return metrics.histogram(MetricsRegistry.tagged("listener_time_ns", "plugin", pluginName));
     }
 
-    void removeAllListeners(Plugin plugin) {
+    private Watchdog.Target watchTarget(Plugin plugin, EventListener listener) {
+        return watchdog == null ? null : watchdog.target(plugin, "listener " + listener.getClass().getName());
+    }
+
+    /**
+     * Passes the event to every listener and records the time each listener
+     * took under the name of the plugin that registered it.
+     */
+    private <T> void dispatch(T evt, BiConsumer<EventListener, T> handler) {
+        dispatch(null, evt, handler);
+    }
+
+    /**
+     * Passes the event only to the listeners of one plugin.
+     * @param plugin The plugin, or <code>null</code> for all listeners
+     */
+    private <T> void dispatch(Plugin plugin, T evt, BiConsumer<EventListener, T> handler) {
+
+        Watchdog.Slot slot = watchdog == null ? null : watchdog.slot();
+
+        for (Registration registration: registrations) {
+
+            if (plugin != null && registration.plugin != plugin) {
+                continue;
+            }
 
-        Set<EventListener> forPlugin = byPlugin.get(plugin);
+            long start = System.nanoTime();
 
-        if (forPlugin != null) {
-            eventListeners.removeAll(forPlugin);
-            byPlugin.remove(plugin);
+            if (slot != null) {
+                slot.enter(registration.target, start);
+            }
+
+            try {
+                handler.accept(registration.listener, evt);
+            } finally {
+                long end = System.nanoTime();
+                registration.time.record(end - start);
+
+                if (slot != null) {
+                    slot.exit(registration.target, start, end);
+                }
+            }
         }
     }
 
+    private static class Registration {
+
+        private final EventListener listener;
+        private final Plugin plugin;
+        private final Histogram time;
+        private final Watchdog.Target target;
+
+        Registration(EventListener listener, Plugin plugin, Histogram time, Watchdog.Target target) {
+            this.listener = listener;
+            this.plugin = plugin;
+            this.time = time;
+            this.target = target;
+        }
+    }
     
     @Override
     public void onSelfJoinChannel(SelfJoinChannelEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onSelfJoinChannel(evt);
-        }
+        dispatch(evt, EventListener::onSelfJoinChannel);
     }
 
     @Override
     public void onSelfLeaveChannel(SelfLeaveChannelEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onSelfLeaveChannel(evt);
-        }
+        dispatch(evt, EventListener::onSelfLeaveChannel);
     }
 
     @Override
     public void onSendMessage(SendMessageEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onSendMessage(evt);
-        }
+        dispatch(evt, EventListener::onSendMessage);
     }
 
     @Override
     public void onSendNotice(SendMessageEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onSendNotice(evt);
-        }
+        dispatch(evt, EventListener::onSendNotice);
     }
 
     @Override
     public void onSelfDisconnected(SelfDisconnectedEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onSelfDisconnected(evt);
-        }
+        dispatch(evt, EventListener::onSelfDisconnected);
     }
 
     @Override
     public void onSelfModeChange(SelfModeChangeEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onSelfModeChange(evt);
-        }
+        dispatch(evt, EventListener::onSelfModeChange);
     }
 
     @Override
     public void onSelfChangeChannelMode(SelfChangeChannelModeEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onSelfChangeChannelMode(evt);
-        }
+        dispatch(evt, EventListener::onSelfChangeChannelMode);
     }
 
     @Override
     public void onUserJoinedChannel(UserJoinedChannelEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onUserJoinedChannel(evt);
-        }
+        dispatch(evt, EventListener::onUserJoinedChannel);
     }
 
     @Override
     public void onUserLeftChannel(UserLeftChannelEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onUserLeftChannel(evt);
-        }
+        dispatch(evt, EventListener::onUserLeftChannel);
     }
 
     @Override
     public void onMessageReceived(MessageReceivedEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onMessageReceived(evt);
-        }
+        dispatch(evt, EventListener::onMessageReceived);
     }
 
     @Override
     public void onNoticeReceived(MessageReceivedEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onNoticeReceived(evt);
-        }
+        dispatch(evt, EventListener::onNoticeReceived);
     }
 
     @Override
     public void onUserQuitNetwork(UserQuitNetworkEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onUserQuitNetwork(evt);
-        }
+        dispatch(evt, EventListener::onUserQuitNetwork);
     }
 
     @Override
     public void onChannelModeChange(ChannelModeChangeEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onChannelModeChange(evt);
-        }
+        dispatch(evt, EventListener::onChannelModeChange);
     }
 
     @Override
     public void onPingReceived(PingEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onPingReceived(evt);
-        }
+        dispatch(evt, EventListener::onPingReceived);
     }
 
     @Override
     public void onWelcomeReceived(WelcomeReceivedEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onWelcomeReceived(evt);
-        }
+        dispatch(evt, EventListener::onWelcomeReceived);
     }
 
     @Override
     public void onSupportListReceived(SupportListReceivedEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onSupportListReceived(evt);
-        }
+        dispatch(evt, EventListener::onSupportListReceived);
     }
 
     @Override
     public void onConnected(ConnectedEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onConnected(evt);
-        }
+        dispatch(evt, EventListener::onConnected);
     }
 
     @Override
     public void onConnectionInterrupted(ConnectionInterruptedEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onConnectionInterrupted(evt);
-        }
+        dispatch(evt, EventListener::onConnectionInterrupted);
+    }
+
+    @Override
+    public void onConfigChanged(ConfigChangedEvent evt) {
+        dispatch(evt, EventListener::onConfigChanged);
     }
 
     @Override
     public void onCommandTriggered(CommandTriggeredEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onCommandTriggered(evt);
-        }
+        dispatch(evt, EventListener::onCommandTriggered);
+    }
+
+    @Override
+    public void onTriggerMatched(TriggerMatchedEvent evt) {
+        dispatch(evt.plugin(), evt, EventListener::onTriggerMatched);
     }
 
     @Override
     public void onToggleMute(ToggleMuteEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onToggleMute(evt);
-        }
+        dispatch(evt, EventListener::onToggleMute);
     }
 
     @Override
     public void onAccessLevelChange(AccessLevelChangeEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onAccessLevelChange(evt);
-        }
+        dispatch(evt, EventListener::onAccessLevelChange);
     }
 
     @Override
     public void onServerNotice(ServerNoticeEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onServerNotice(evt);
-        }
+        dispatch(evt, EventListener::onServerNotice);
     }
 
     @Override
     public void onUserChangedNick(UserChangedNickEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onUserChangedNick(evt);
-        }
+        dispatch(evt, EventListener::onUserChangedNick);
     }
 
     @Override
     public void onUnknownLine(UnknownLineEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onUnknownLine(evt);
-        }
+        dispatch(evt, EventListener::onUnknownLine);
     }
 
     @Override
     public void onNamesReceived(NamesReceivedEvent evt) {
-        for (EventListener listener: eventListeners) {
-            listener.onNamesReceived(evt);
-        }
+        dispatch(evt, EventListener::onNamesReceived);
+    }
+
+    @Override
+    public void onListModeEntry(ListModeEntryEvent evt) {
+        dispatch(evt, EventListener::onListModeEntry);
+    }
+
+    @Override
+    public void onListModeEnd(ListModeEndEvent evt) {
+        dispatch(evt, EventListener::onListModeEnd);
     }
 }
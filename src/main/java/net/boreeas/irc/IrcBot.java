@@ -4,13 +4,22 @@
  */
 package net.boreeas.irc;
 
+import net.boreeas.irc.acl.AccessList;
 import net.boreeas.irc.events.*;
 import net.boreeas.irc.events.EventListener;
+import net.boreeas.irc.metrics.Counter;
+import net.boreeas.irc.metrics.Histogram;
+import net.boreeas.irc.metrics.MetricsExporter;
+import net.boreeas.irc.metrics.MetricsRegistry;
 import net.boreeas.irc.plugins.Plugin;
 import net.boreeas.irc.plugins.PluginManager;
+import net.boreeas.irc.triggers.Trigger;
+import net.boreeas.irc.triggers.TriggerRegistry;
+import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.ConfigurationUtils;
 import org.apache.commons.configuration.FileConfiguration;
-import org.apache.commons.configuration.reloading.FileChangedReloadingStrategy;
+import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -18,7 +27,14 @@ import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.MatchResult;
 
 /**
  * Represents a connection to an IRC server.
@@ -29,27 +45,75 @@ import java.util.*;
 public final class IrcBot extends Thread {
 
     private static final Log logger = LogFactory.getLog("IRC");
+    // Every line sent and received; see log4j.xml
+    private static final Log rawLogger = LogFactory.getLog("IRC.Raw");
+
+    // Maximum length of a line sent to the server, excluding CR LF
+    private static final int MAX_LINE_LENGTH = 510;
+    // Messages longer than this are split across several lines
+    private static final int MAX_MESSAGE_LENGTH = 400;
+    private static final String CTCP_REQUEST = String.valueOf(CTCP.REQUEST);
+    // How often the bot thread checks for tasks while no lines arrive
+    private static final int TASK_POLL_MILLIS = 100;
 
     private final FileConfiguration config;
-    private boolean interrupted;
+    private final AtomicReference<BotConfig> snapshot;
+    private final ConfigWriter configWriter;
+    private ConfigWatcher configWatcher;
+    private final boolean poolEvents;
+    private volatile boolean interrupted;
+    // Work handed to the bot thread by other threads, see runOnBotThread
+    private final Queue<Runnable> botThreadTasks = new ConcurrentLinkedQueue<>();
 
     private Socket socket;
-    private BufferedReader reader;
+    private TlsConnector tls;
+    private LineReader reader;
     private BufferedWriter writer;
 
     private String currentNick;
 
-    private EventPump eventPump = new EventPump();
-    private CommandHandler commandHandler = new CommandHandler();
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final Counter linesReceived = metrics.counter("lines_received_total");
+    private final Counter linesSent = metrics.counter("lines_sent_total");
+    private final Histogram dispatchTime = metrics.histogram("dispatch_time_ns");
+    private final Histogram sendTime = metrics.histogram("send_time_ns");
+    private final Histogram saslTime = metrics.histogram("sasl_time_ns");
+    private Timer metricsTimer;
+    private volatile TrafficCapture capture;
+
+    private final Watchdog watchdog;
+    private final PluginResources pluginResources;
+
+    private EventPump eventPump;
+    private CommandHandler commandHandler;
+    private final CommandParser commandParser;
+    private final boolean routeCommands;
+    private final TriggerRegistry triggers = new TriggerRegistry(metrics);
     private PluginManager pluginManager;
-    private Map<String, BotAccessLevel> accessLevels =
-            new HashMap<String, BotAccessLevel>();
+    // Replaced as a whole when the configuration is reloaded
+    private volatile AccessList accessList = new AccessList();
 
     private Set<String> muted = new HashSet<String>();
 
     private Preferences preferences;
     private Timer checkConnectionTimer;
     private Map<String, Set<String>> usersInChannel = new HashMap<>();
+    private ServerSupport serverSupport = new ServerSupport();
+    private ListModeTracker listModes = new ListModeTracker(this);
+    private final AccountTracker accounts;
+    private final SendQueue sendQueue;
+    private final WhoxSweep whoxSweep;
+
+    // IRCv3 capabilities the bot asks for, if the server offers them
+    private static final String[] WANTED_CAPABILITIES = {
+        "account-notify", "extended-join", "account-tag", "multi-prefix", "userhost-in-names", "away-notify"
+    };
+    private final Set<String> capabilities = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile boolean accountTag;
+    private volatile String saslAccount;
+
+    // SASL responses are sent in chunks of this many bytes
+    private static final int SASL_CHUNK = 400;
 
     public IrcBot(final FileConfiguration config) {
 
@@ -58,38 +122,74 @@ public final class IrcBot extends Thread {
 
         this.config = config;
         config.setAutoSave(true);
-        config.setReloadingStrategy(new FileChangedReloadingStrategy());
 
-        // Ensure that the config is complete
-        for (ConfigKey key : ConfigKey.values()) {
-            if (key.isRequired() && config.getProperty(key.key()) == null) {
-                throw new RuntimeException("Missing config key " + key + " ("
-                        + key.key() + ")");
-            }
-        }
+        checkRequired(config);
+        this.snapshot = new AtomicReference<>(BotConfig.of(config));
+        this.configWriter = new ConfigWriter(config, metrics);
 
         this.currentNick = config.getString(ConfigKey.NICK.key());
+        this.poolEvents = config.getBoolean(ConfigKey.POOL_EVENTS.key(),
+                Boolean.valueOf(ConfigKey.POOL_EVENTS.defaultValue()));
+        this.watchdog = createWatchdog();
+        this.pluginResources = createPluginResources();
+        this.accounts = new AccountTracker(this, new AccountCache(metrics,
+                config.getInt(ConfigKey.ACCOUNT_CACHE_SIZE.key(), Integer.parseInt(ConfigKey.ACCOUNT_CACHE_SIZE.defaultValue())),
+                config.getLong(ConfigKey.ACCOUNT_CACHE_TTL.key(), Long.parseLong(ConfigKey.ACCOUNT_CACHE_TTL.defaultValue()))));
+        this.sendQueue = new SendQueue(this, metrics,
+                config.getInt(ConfigKey.SEND_QUEUE_BURST.key(), Integer.parseInt(ConfigKey.SEND_QUEUE_BURST.defaultValue())),
+                config.getLong(ConfigKey.SEND_QUEUE_INTERVAL.key(), Long.parseLong(ConfigKey.SEND_QUEUE_INTERVAL.defaultValue())));
+        this.whoxSweep = config.getBoolean(ConfigKey.WHOX_SWEEP.key(), Boolean.valueOf(ConfigKey.WHOX_SWEEP.defaultValue()))
+                         ? new WhoxSweep(this, sendQueue, accounts, metrics) : null;
+        this.eventPump = new EventPump(metrics, watchdog);
+        this.commandHandler = new CommandHandler(metrics, watchdog);
         this.preferences = new Preferences(pluginDataDir() + "/preferences");
         preferences.setBoolean(Preferences.GLOBAL_WHOX, false); // Assume that no whox exists for now
+        this.commandParser = new CommandParser(preferences);
+        this.routeCommands = config.getBoolean(ConfigKey.ROUTE_COMMANDS.key(),
+                Boolean.valueOf(ConfigKey.ROUTE_COMMANDS.defaultValue()));
 
         loadPlugins();
-        loadAccessLevels();
+        this.accessList = loadAccessLevels();
+        startMetricsExport();
+        watchConfig();
+
+        eventPump.addPermanentEventListener(listModes);
 
-        // Redirect uses looking for help
+        // Route commands and redirect users looking for help
         eventPump.addPermanentEventListener(new EventListener() {
             @Override
             public void onMessageReceived(MessageReceivedEvent evt) {
-                String prefix = preferences.getString(evt.target(), Preferences.CHANNEL_CMD_PREFIX);
-                if (evt.message().startsWith(prefix + "help")) {
-                    String msg = "'" + Preferences.CHANNEL_CMD_PREFIX + pluginManager.getPlugin("Core").getCommandPrefix() + " help' for an extensive help";
+                if (!evt.isCancelled()) {
+                    fireTriggers(evt);
+                }
+
+                CommandLine line = commandParser.parse(evt.target(), evt.message());
+                if (line == null) {
+                    return; // Not a command
+                }
+
+                if (line.pluginPrefix().equalsIgnoreCase("help") && !commandHandler.hasPrefix("help")) {
+                    String msg = "'" + line.prefix() + pluginManager.getPlugin("Core").getCommandPrefix() + " help' for an extensive help";
                     try {
                         sendMessage(getReplyTarget(evt.target(), evt.user().nick()), msg);
                     } catch (IOException e) {
                         LogFactory.getLog("IrcBot").error("Failed to send help redirect", e);
                     }
+                } else if (routeCommands && line.command() != null && !evt.isCancelled()
+                           && commandHandler.hasPrefix(line.pluginPrefix())) {
+                    try {
+                        handleCommand(evt.user(), evt.target(), line.pluginPrefix(), line.command(), line.args());
+                    } catch (IOException e) {
+                        logger.error("Failed to run command " + line.pluginPrefix() + " " + line.command(), e);
+                    }
                 }
             }
 
+            @Override
+            public void onSupportListReceived(SupportListReceivedEvent evt) {
+                serverSupport.parse(evt.supports());
+            }
+
             @Override
             public void onNamesReceived(NamesReceivedEvent evt) {
                 usersInChannel.putIfAbsent(evt.channel.toLowerCase(), new HashSet<>());
@@ -122,6 +222,20 @@ public final class IrcBot extends Thread {
         });
     }
 
+    /**
+     * Scans a message for registered triggers and tells the plugins they
+     * belong to.
+     */
+    private void fireTriggers(MessageReceivedEvent evt) {
+
+        Map<Plugin, Map<Trigger, MatchResult>> matched = triggers.match(evt.target(), evt.message());
+
+        for (Map.Entry<Plugin, Map<Trigger, MatchResult>> entry: matched.entrySet()) {
+            eventPump.onTriggerMatched(new TriggerMatchedEvent(entry.getKey(), evt.user(), evt.target(),
+                                                               evt.message(), entry.getValue()));
+        }
+    }
+
     public Set<String> getUsersInChannel(String channel) {
         Set<String> result = usersInChannel.getOrDefault(channel.toLowerCase(), new HashSet<>());
         return Collections.unmodifiableSet(result);
@@ -131,7 +245,7 @@ public final class IrcBot extends Thread {
         return getUsersInChannel(channel).contains(nick.toLowerCase());
     }
 
-    private static String[] splitArgs(String line) {
+    static String[] splitArgs(String line) {
 
         // IRC "last argument follows" indicator for args that contain whitespace
         if (line.contains(" :")) {
@@ -192,9 +306,16 @@ public final class IrcBot extends Thread {
     public void run() {
         while (!interrupted) {
             try {
-                EventExtractor.checkAndFireEvents(splitArgs(readLine()), eventPump);
+                fireEvents(splitArgs(readLine()));
+                runBotThreadTasks();
 
+            } catch (SocketTimeoutException ex) {
+                runBotThreadTasks();    // Nothing received, but there may be tasks
             } catch (IOException ex) {
+                if (interrupted) {
+                    continue;   // Closed by disconnect(), stop unless reconnected since
+                }
+
                 logger.fatal("IOException in main loop", ex);
                 disconnect("IOException: " + ex);
                 eventPump.onConnectionInterrupted(new ConnectionInterruptedEvent(ex));
@@ -206,13 +327,353 @@ public final class IrcBot extends Thread {
             }
         }
 
+        runBotThreadTasks();
         eventPump.onSelfDisconnected(new SelfDisconnectedEvent());
 
+        if (metricsTimer != null) {
+            metricsTimer.cancel();
+        }
+
+        if (configWatcher != null) {
+            configWatcher.stop();
+        }
+
+        try {
+            configWriter.flush();
+        } catch (InterruptedException ex) {
+            logger.warn("Interrupted while saving the configuration");
+        }
+
+        if (watchdog != null) {
+            watchdog.stop();
+        }
+
         logger.info("Unloading plugins");
         pluginManager.disableAllPlugins();
         logger.info("Terminating");
     }
 
+    private void fireEvents(String[] parts) {
+
+        long start = System.nanoTime();
+
+        try {
+            accounts.update(parts);
+
+            if (whoxSweep != null) {
+                whoxSweep.update(parts);
+            }
+
+            if (parts.length > 3 && parts[1].equals("CAP")) {
+                capabilityChanged(parts);
+            }
+
+            EventExtractor.checkAndFireEvents(parts, eventPump,
+                    poolEvents ? EventPool.forCurrentThread() : null);
+
+            if (saslAccount != null && parts.length > 1 && parts[1].equals("001")) {
+                joinConfiguredChannels();
+            }
+        } finally {
+            dispatchTime.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Joins the configured channels right after 001. Only done when the bot
+     * authenticated with SASL, otherwise identifying comes first.
+     */
+    private void joinConfiguredChannels() {
+
+        for (String channel: snapshot.get().channels()) {
+            try {
+                joinChannel(channel);
+            } catch (IOException ex) {
+                logger.error("Unable to join " + channel, ex);
+            }
+        }
+    }
+
+    /**
+     * Ensures that the config is complete.
+     */
+    private static void checkRequired(Configuration config) {
+
+        for (ConfigKey key : ConfigKey.values()) {
+            if (key.isRequired() && config.getProperty(key.key()) == null) {
+                throw new RuntimeException("Missing config key " + key + " ("
+                        + key.key() + ")");
+            }
+        }
+    }
+
+    private void watchConfig() {
+
+        if (config.getFile() == null) {
+            return;
+        }
+
+        configWatcher = new ConfigWatcher(this, config.getFile());
+
+        try {
+            configWatcher.start();
+        } catch (IOException ex) {
+            logger.warn("Unable to watch " + config.getFile() + " for changes", ex);
+            configWatcher = null;
+        }
+    }
+
+    /**
+     * Reloads the configuration file, takes a new snapshot and applies what
+     * changed: access lists are reloaded, and added and removed channels are
+     * joined and left. Server, port and user changes take effect on the next
+     * connect. Called when the file changes.
+     * <p/>
+     * A file that can't be parsed or lacks required keys is ignored.
+     */
+    public void reloadConfig() {
+
+        if (configWriter.isOwnWrite()) {
+            return;
+        }
+
+        FileConfiguration parsed;
+        BotConfig current;
+
+        try {
+            // Parse into a new instance, so that a broken file leaves the current config alone
+            parsed = config.getClass().getDeclaredConstructor().newInstance();
+            parsed.load(config.getFile());
+            checkRequired(parsed);
+            current = BotConfig.of(parsed);
+        } catch (ConfigurationException | ReflectiveOperationException | RuntimeException ex) {
+            logger.error("Unable to reload " + config.getFile() + ", keeping the current configuration", ex);
+            return;
+        }
+
+        synchronized (config) {
+            if (config instanceof HierarchicalConfiguration && parsed instanceof HierarchicalConfiguration) {
+                ((HierarchicalConfiguration) config).setRootNode(((HierarchicalConfiguration) parsed).getRootNode());
+            } else {
+                boolean autoSave = config.isAutoSave();
+                config.setAutoSave(false);
+
+                try {
+                    config.clear();
+                    ConfigurationUtils.copy(parsed, config);
+                } finally {
+                    config.setAutoSave(autoSave);
+                }
+            }
+        }
+
+        BotConfig previous = snapshot.getAndSet(current);
+
+        if (previous.equals(current)) {
+            return;
+        }
+
+        final ConfigChangedEvent evt = new ConfigChangedEvent(previous, current);
+        logger.info("Configuration changed");
+
+        if (evt.accessChanged()) {
+            // Load aside and swap, so that nobody loses their access while loading
+            accessList = loadAccessLevels();
+        }
+
+        runOnBotThread(new Runnable() {
+            @Override
+            public void run() {
+                configChanged(evt);
+            }
+        });
+    }
+
+    private void configChanged(ConfigChangedEvent evt) {
+
+        if (socket != null && !socket.isClosed() && !interrupted) {
+            for (String channel: evt.channelsAdded()) {
+                try {
+                    joinChannel(channel);
+                } catch (IOException ex) {
+                    logger.error("Unable to join " + channel, ex);
+                }
+            }
+
+            for (String channel: evt.channelsRemoved()) {
+                try {
+                    leaveChannel(channel);
+                } catch (IOException ex) {
+                    logger.error("Unable to leave " + channel, ex);
+                }
+            }
+        }
+
+        eventPump.onConfigChanged(evt);
+    }
+
+    /**
+     * Runs a task on the bot thread, in between handling received lines, so
+     * that plugins see events from other threads in order with the rest. Runs
+     * it right away if the bot thread isn't running.
+     * <p/>
+     * The bot thread reads with a short timeout, so it checks for tasks at
+     * least every {@value #TASK_POLL_MILLIS}ms even if no lines arrive.
+     */
+    private void runOnBotThread(Runnable task) {
+
+        if (Thread.currentThread() == this || !isAlive()) {
+            task.run();
+            return;
+        }
+
+        botThreadTasks.add(task);
+    }
+
+    private void runBotThreadTasks() {
+
+        Runnable task;
+        while ((task = botThreadTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                logger.error("Exception in task handed to the bot thread", ex);
+            }
+        }
+    }
+
+    private Watchdog createWatchdog() {
+
+        long budget = config.getLong(ConfigKey.WATCHDOG_BUDGET.key(),
+                Long.parseLong(ConfigKey.WATCHDOG_BUDGET.defaultValue()));
+
+        if (budget <= 0) {
+            return null;
+        }
+
+        Watchdog created = new Watchdog(this, metrics, budget,
+                config.getInt(ConfigKey.WATCHDOG_MAX_VIOLATIONS.key(),
+                        Integer.parseInt(ConfigKey.WATCHDOG_MAX_VIOLATIONS.defaultValue())));
+
+        // watchdog_budgets = { SomePlugin = 5000; };
+        Iterator<String> keys = config.getKeys(ConfigKey.WATCHDOG_BUDGETS.key());
+        while (keys.hasNext()) {
+            String key = keys.next();
+            created.setBudget(key.substring(ConfigKey.WATCHDOG_BUDGETS.key().length() + 1), config.getLong(key));
+        }
+
+        created.start();
+        return created;
+    }
+
+    private PluginResources createPluginResources() {
+
+        PluginResources.Quota defaults = new PluginResources.Quota(
+                config.getInt(ConfigKey.PLUGIN_THREADS.key(), Integer.parseInt(ConfigKey.PLUGIN_THREADS.defaultValue())),
+                config.getInt(ConfigKey.PLUGIN_QUEUE.key(), Integer.parseInt(ConfigKey.PLUGIN_QUEUE.defaultValue())),
+                config.getLong(ConfigKey.PLUGIN_CPU_BUDGET.key(),
+                        Long.parseLong(ConfigKey.PLUGIN_CPU_BUDGET.defaultValue())));
+
+        PluginResources created = new PluginResources(metrics, defaults);
+
+        // plugin_quotas = { SomePlugin = { threads = 4; queue = 100; cpu_ms_per_minute = 500; }; };
+        Set<String> plugins = new HashSet<>();
+        Iterator<String> keys = config.getKeys(ConfigKey.PLUGIN_QUOTAS.key());
+        while (keys.hasNext()) {
+            String key = keys.next().substring(ConfigKey.PLUGIN_QUOTAS.key().length() + 1);
+            plugins.add(key.substring(0, key.lastIndexOf('.')));
+        }
+
+        for (String plugin: plugins) {
+            String prefix = ConfigKey.PLUGIN_QUOTAS.key() + "." + plugin + ".";
+            created.setQuota(plugin, new PluginResources.Quota(
+                    config.getInt(prefix + "threads", defaults.threads()),
+                    config.getInt(prefix + "queue", defaults.queue()),
+                    config.getLong(prefix + "cpu_ms_per_minute", defaults.cpuMillisPerMinute())));
+        }
+
+        return created;
+    }
+
+    private void openCapture() {
+
+        String dir = config.getString(ConfigKey.CAPTURE_DIR.key(), ConfigKey.CAPTURE_DIR.defaultValue());
+
+        if (dir.isEmpty()) {
+            return;
+        }
+
+        closeCapture();
+
+        try {
+            capture = TrafficCapture.inDirectory(new File(dir));
+            logger.info("Capturing traffic to " + capture.file());
+        } catch (IOException ex) {
+            logger.error("Unable to open capture file in " + dir, ex);
+        }
+    }
+
+    private void closeCapture() {
+
+        TrafficCapture current = capture;
+        capture = null;
+
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ex) {
+                logger.warn("Unable to close capture file " + current.file(), ex);
+            }
+        }
+    }
+
+    /**
+     * Prepares the bot to replay captured traffic instead of connecting:
+     * everything it sends is discarded, and blocking lookups see the end of
+     * the stream.
+     */
+    void openReplay() {
+
+        reader = new LineReader(new StringReader(""));
+        writer = new BufferedWriter(new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    /**
+     * Handles a line as if it had been received from the server.
+     * @param line The line, without CR LF
+     */
+    void process(String line) {
+        linesReceived.inc();
+        fireEvents(splitArgs(prepare(line)));
+    }
+
+    private void startMetricsExport() {
+
+        String file = config.getString(ConfigKey.METRICS_FILE.key(), ConfigKey.METRICS_FILE.defaultValue());
+
+        if (file.isEmpty()) {
+            return;
+        }
+
+        long interval = 1000L * config.getInt(ConfigKey.METRICS_INTERVAL.key(),
+                Integer.parseInt(ConfigKey.METRICS_INTERVAL.defaultValue()));
+
+        metricsTimer = new Timer("Metrics export", true);
+        metricsTimer.schedule(new MetricsExporter(metrics, new File(file)), interval, interval);
+    }
+
     /**
      * Opens the connection to the server and sends the USER/NICK command.
      * <p/>
@@ -221,10 +682,13 @@ public final class IrcBot extends Thread {
      */
     public void connect() throws IOException {
 
-        socket = new Socket(server(), port());
+        socket = openSocket();
+        interrupted = false;
+        serverSupport.clear();
+        openCapture();
 
         reader =
-                new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                new LineReader(new InputStreamReader(socket.getInputStream()));
         writer =
                 new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
 
@@ -245,17 +709,284 @@ public final class IrcBot extends Thread {
             }
         }
 
-        // Remember to reset the timeout
-        socket.setSoTimeout(0);
-
         eventPump.onConnected(new ConnectedEvent());
+
+        capabilities.clear();
+        accountTag = false;
+        accounts.clear();
+        sendQueue.clear();
+        saslAccount = null;
+
+        if (whoxSweep != null) {
+            whoxSweep.clear();
+        }
+
+        send("CAP LS 302");
         changeNick(nick());
         send("USER " + username() + " * * :" + description());
+        negotiateCapabilities();
+
+        // Remember to reset the timeout
+        socket.setSoTimeout(TASK_POLL_MILLIS);
 
         checkConnectionTimer = new Timer();
         checkConnectionTimer.schedule(new TimeoutCheck(this), TimeoutCheck.TIMEOUT / 2);
     }
 
+    /**
+     * Opens a plain or, if configured, a TLS connection. The TLS connector is
+     * kept across reconnects so that they can resume the session.
+     */
+    private Socket openSocket() throws IOException {
+
+        if (!config.getBoolean(ConfigKey.TLS.key(), Boolean.valueOf(ConfigKey.TLS.defaultValue()))) {
+            return new Socket(server(), port());
+        }
+
+        if (tls == null) {
+            try {
+                tls = new TlsConnector(TlsConnector.createContext(config), metrics);
+            } catch (GeneralSecurityException ex) {
+                throw new IOException("Unable to set up TLS", ex);
+            }
+        }
+
+        return tls.connect(server(), port());
+    }
+
+    /**
+     * Asks for the capabilities in {@link #WANTED_CAPABILITIES} that the
+     * server offers. Registration is suspended until CAP END is sent.
+     * Servers that don't know CAP ignore it and complete the registration.
+     */
+    private void negotiateCapabilities() throws IOException {
+
+        StringBuilder offered = new StringBuilder();
+
+        try {
+            while (true) {
+
+                String[] parts = splitArgs(readLine());
+
+                if (parts.length > 3 && parts[1].equals("CAP")) {
+
+                    String caps = parts.length > 4 ? parts[parts.length - 1] : "";
+
+                    switch (parts[3]) {
+                        case "LS":
+                            offered.append(' ').append(caps);
+
+                            // CAP * LS * :... means that more lines follow
+                            if (parts.length > 5 && parts[4].equals("*")) {
+                                continue;
+                            }
+
+                            if (!requestCapabilities(offered.toString())) {
+                                send("CAP END");
+                                return;
+                            }
+                            break;
+                        case "ACK":
+                            capabilityChanged(parts);
+                            if (capabilities.contains("sasl")) {
+                                authenticate();
+                            }
+                            send("CAP END");
+                            return;
+                        case "NAK":
+                            logger.warn("Server refused capabilities " + caps);
+                            send("CAP END");
+                            return;
+                        default:
+                            fireEvents(parts);
+                            break;
+                    }
+                } else if (parts.length > 1 && (parts[1].equals("001") || parts[1].equals("421")
+                                                || parts[1].equals("451"))) {
+                    // No CAP support, registration went ahead
+                    fireEvents(parts);
+                    return;
+                } else {
+                    fireEvents(parts);
+                }
+            }
+        } catch (SocketTimeoutException ex) {
+            logger.warn("No reply to capability negotiation, continuing without capabilities");
+            send("CAP END");
+        }
+    }
+
+    /**
+     * Requests the wanted capabilities among the offered ones.
+     * @return <code>false</code> if none of them is offered
+     */
+    private boolean requestCapabilities(String offered) throws IOException {
+
+        Map<String, String> available = new HashMap<>();
+
+        for (String cap: offered.trim().split(" +")) {
+            int value = cap.indexOf('=');
+            available.put(value == -1 ? cap : cap.substring(0, value), value == -1 ? "" : cap.substring(value + 1));
+        }
+
+        StringBuilder request = new StringBuilder();
+
+        for (String cap: WANTED_CAPABILITIES) {
+            if (available.containsKey(cap)) {
+                request.append(request.length() == 0 ? "" : " ").append(cap);
+            }
+        }
+
+        String mechanism = saslMechanism();
+        String mechanisms = available.get("sasl");
+
+        if (!mechanism.isEmpty()) {
+            if (mechanisms == null) {
+                logger.warn("Server does not support SASL, continuing unauthenticated");
+            } else if (!mechanisms.isEmpty() && !Arrays.asList(mechanisms.split(",")).contains(mechanism)) {
+                logger.warn("Server does not support SASL " + mechanism + ", only " + mechanisms);
+            } else {
+                request.append(request.length() == 0 ? "" : " ").append("sasl");
+            }
+        }
+
+        if (request.length() == 0) {
+            return false;
+        }
+
+        send("CAP REQ :" + request);
+        return true;
+    }
+
+    /**
+     * Authenticates with the configured SASL mechanism while registration is
+     * suspended, so that the bot is identified before it receives 001. A
+     * failed authentication is logged and registration continues without it.
+     */
+    private void authenticate() throws IOException {
+
+        String mechanism = saslMechanism();
+        long start = System.nanoTime();
+
+        send("AUTHENTICATE " + mechanism);
+
+        while (true) {
+
+            String[] parts = splitArgs(readLine());
+
+            // Some servers send the challenge with a prefix: ":server AUTHENTICATE +"
+            if (parts[0].equals("AUTHENTICATE") || parts.length > 1 && parts[1].equals("AUTHENTICATE")) {
+                sendSaslResponse(mechanism);
+                continue;
+            }
+
+            switch (parts.length > 1 ? parts[1] : "") {
+                case "900":
+                    // :server 900 nick nick!user@host account :You are now logged in as account
+                    saslAccount = parts.length > 4 ? parts[4] : saslUser();
+                    break;
+                case "903":
+                    saslTime.record(System.nanoTime() - start);
+                    logger.info("Authenticated as " + saslAccount + " using SASL " + mechanism);
+                    return;
+                case "902":
+                case "904":
+                case "905":
+                case "906":
+                case "907":
+                    logger.error("SASL authentication failed: " + parts[parts.length - 1]);
+                    saslAccount = null;
+                    return;
+                case "908":
+                    logger.warn("Server offers SASL mechanisms " + parts[3]);
+                    break;
+                default:
+                    fireEvents(parts);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Answers the server's AUTHENTICATE challenge. PLAIN sends the configured
+     * credentials, EXTERNAL an empty response so that the server uses the
+     * client certificate.
+     */
+    private void sendSaslResponse(String mechanism) throws IOException {
+
+        String response = "";
+
+        if (mechanism.equals("PLAIN")) {
+            String user = saslUser();
+            String password = config.getString(ConfigKey.SASL_PASSWORD.key(), ConfigKey.SASL_PASSWORD.defaultValue());
+            response = Base64.getEncoder().encodeToString((user + '\0' + user + '\0' + password).getBytes("UTF-8"));
+        }
+
+        for (int i = 0; i < response.length(); i += SASL_CHUNK) {
+            write("AUTHENTICATE " + response.substring(i, Math.min(response.length(), i + SASL_CHUNK)));
+        }
+
+        // An empty response, or the end of one that filled the last chunk
+        if (response.length() % SASL_CHUNK == 0) {
+            write("AUTHENTICATE +");
+        }
+    }
+
+    private String saslMechanism() {
+        return config.getString(ConfigKey.SASL_MECHANISM.key(), ConfigKey.SASL_MECHANISM.defaultValue())
+                .trim().toUpperCase();
+    }
+
+    private String saslUser() {
+        String user = config.getString(ConfigKey.SASL_USER.key(), ConfigKey.SASL_USER.defaultValue());
+        return user.isEmpty() ? snapshot.get().nick() : user;
+    }
+
+    /**
+     * Returns the account the bot logged into with SASL during registration.
+     *
+     * @return The account name, or <code>null</code> if the bot is not
+     *         authenticated
+     */
+    public String getSaslAccount() {
+        return saslAccount;
+    }
+
+    /**
+     * Applies CAP ACK and CAP DEL replies.
+     */
+    private void capabilityChanged(String[] parts) {
+
+        boolean adding = parts[3].equals("ACK");
+        boolean removing = parts[3].equals("DEL");
+
+        if (!adding && !removing) {
+            return;
+        }
+
+        for (String cap: parts[parts.length - 1].trim().split(" +")) {
+            if (cap.startsWith("-") || removing) {
+                capabilities.remove(cap.startsWith("-") ? cap.substring(1) : cap);
+            } else {
+                capabilities.add(cap);
+            }
+        }
+
+        accountTag = capabilities.contains("account-tag");
+        accounts.setAccountNotify(capabilities.contains("account-notify"));
+        logger.info("Enabled capabilities: " + capabilities);
+    }
+
+    /**
+     * Returns whether an IRCv3 capability was negotiated with the server.
+     *
+     * @param capability The name of the capability, e.g. "account-notify"
+     * @return <code>true</code> if the capability is enabled
+     */
+    public boolean hasCapability(String capability) {
+        return capabilities.contains(capability);
+    }
+
     public void disconnect() {
         disconnect("");
     }
@@ -268,6 +999,8 @@ public final class IrcBot extends Thread {
      */
     public void disconnect(String reason) {
 
+        interrupted = true;
+
         try {
             send("QUIT :" + reason);
         } catch (IOException ex) {
@@ -281,10 +1014,10 @@ public final class IrcBot extends Thread {
                 logger.fatal("Tried to access non-existant socket", ex);
             }
 
+            closeCapture();
+            sendQueue.stop();
             checkConnectionTimer.cancel();
         }
-
-        interrupted = true;
     }
 
 
@@ -314,9 +1047,7 @@ public final class IrcBot extends Thread {
         eventPump.onSelfModeChange(evt);
 
         if (!evt.isCancelled()) {
-            for (String line : mcb.format()) {
-                send("MODE " + nick() + " " + line);
-            }
+            sendModes(nick(), mcb);
         }
     }
 
@@ -339,13 +1070,20 @@ public final class IrcBot extends Thread {
             eventPump.onSelfChangeChannelMode(evt);
 
             if (!evt.isCancelled()) {
-                for (String line : mcb.format()) {
-                    send("MODE " + target + " " + line);
-                }
+                sendModes(target, mcb);
             }
         }
     }
 
+    private void sendModes(String target, ModeChangeBuilder mcb) throws IOException {
+
+        int budget = MAX_LINE_LENGTH - "MODE ".length() - target.length() - 1;
+
+        for (String line : mcb.format(serverSupport.maxModes(), budget)) {
+            send("MODE " + target + " " + line);
+        }
+    }
+
     /**
      * Sends a command to the server without any additional formatting.
      * Automatically appends carriage return and line feed.
@@ -477,10 +1215,122 @@ public final class IrcBot extends Thread {
         SendMessageEvent evt = new SendMessageEvent(target, message);
         eventPump.onSendNotice(evt);
 
-        if (!evt.isCancelled()) {
-            sendPartial("NOTICE", target, evt.getMessage());
-        } else {
-            logger.info("Send message to target " + target + " cancelled");
+        if (!evt.isCancelled()) {
+            sendPartial("NOTICE", target, evt.getMessage());
+        } else {
+            logger.info("Send message to target " + target + " cancelled");
+        }
+    }
+
+    /**
+     * Sends a message to all specified users and channels. Targets are
+     * combined into as few lines as the server's TARGMAX and the line length
+     * permit. Muted targets are skipped, and the send event is fired for each
+     * target separately.
+     * <p/>
+     *
+     * @param targets The targets of the message
+     * @param message The message to send
+     *                <p/>
+     * @throws java.io.IOException
+     */
+    public void sendMessage(Collection<String> targets, String message) throws IOException {
+        sendToAll(targets, message, false);
+    }
+
+    /**
+     * Sends a notice to all specified users and channels. Targets are
+     * combined into as few lines as the server's TARGMAX and the line length
+     * permit. Muted targets are skipped, and the send event is fired for each
+     * target separately.
+     * <p/>
+     *
+     * @param targets The targets of the notice
+     * @param message The notice to send
+     *                <p/>
+     * @throws java.io.IOException
+     */
+    public void sendNotice(Collection<String> targets, String message) throws IOException {
+        sendToAll(targets, message, true);
+    }
+
+    private void sendToAll(Collection<String> targets, String message,
+                           boolean notice) throws IOException {
+
+        // Listeners may rewrite the message per target, so group the targets
+        // by the message that is actually sent to them
+        Map<String, List<String>> messages = new LinkedHashMap<>();
+        Map<String, List<String>> notices = new LinkedHashMap<>();
+
+        for (String target : targets) {
+
+            if (muted.contains(target.toLowerCase())) {
+                continue;
+            }
+
+            SendMessageEvent evt = new SendMessageEvent(target, message);
+            boolean asNotice = notice
+                    && !preferences.getBoolean(target, Preferences.CHANNEL_PREFER_MSG);
+
+            if (asNotice) {
+                eventPump.onSendNotice(evt);
+            } else {
+                eventPump.onSendMessage(evt);
+            }
+
+            if (evt.isCancelled()) {
+                logger.info("Send message to target " + target + " cancelled");
+                continue;
+            }
+
+            Map<String, List<String>> group = asNotice ? notices : messages;
+            List<String> forMessage = group.get(evt.getMessage());
+
+            if (forMessage == null) {
+                forMessage = new ArrayList<>();
+                group.put(evt.getMessage(), forMessage);
+            }
+
+            forMessage.add(target);
+        }
+
+        for (Map.Entry<String, List<String>> entry : messages.entrySet()) {
+            sendBatched("PRIVMSG", entry.getValue(), entry.getKey());
+        }
+
+        for (Map.Entry<String, List<String>> entry : notices.entrySet()) {
+            sendBatched("NOTICE", entry.getValue(), entry.getKey());
+        }
+    }
+
+    private void sendBatched(String type, List<String> targets, String message) throws IOException {
+
+        int maxTargets = serverSupport.maxTargets(type);
+        // "TYPE targets :message", with the message cut off as in sendPartial
+        int budget = MAX_LINE_LENGTH - type.length() - 3
+                - Math.min(message.length(), MAX_MESSAGE_LENGTH + 1);
+
+        StringBuilder joined = new StringBuilder(Math.max(budget, 16));
+        int count = 0;
+
+        for (String target : targets) {
+
+            if (count > 0 && (count >= maxTargets || joined.length() + 1 + target.length() > budget)) {
+                sendPartial(type, joined.toString(), message);
+                joined.setLength(0);
+                count = 0;
+            }
+
+            if (count > 0) {
+                joined.append(',');
+            }
+
+            joined.append(target);
+            count++;
+        }
+
+        if (count > 0) {
+            sendPartial(type, joined.toString(), message);
         }
     }
 
@@ -492,9 +1342,9 @@ public final class IrcBot extends Thread {
 
     private void sendPartial(String type, String target, String message) throws IOException {
 
-        if (message.length() > 400) {
-            sendRaw(type + " " + target + " :" + message.substring(0, 401));
-            sendPartial(type, target, message.substring(401));
+        if (message.length() > MAX_MESSAGE_LENGTH) {
+            sendRaw(type + " " + target + " :" + message.substring(0, MAX_MESSAGE_LENGTH + 1));
+            sendPartial(type, target, message.substring(MAX_MESSAGE_LENGTH + 1));
         } else {
             sendRaw(type + " " + target + " :" + message);
         }
@@ -502,11 +1352,132 @@ public final class IrcBot extends Thread {
 
     private String readLine() throws IOException {
 
-        String line = reader.readLine().replace("" + (char) 0x01, "");  // Strip CTCP
-        logger.info("[→] " + line);
+        String line = reader.readLine();
+
+        if (line == null) {
+            throw new EOFException("Connection closed by server");
+        }
+
+        TrafficCapture currentCapture = capture;
+        if (currentCapture != null) {
+            currentCapture.record(line);
+        }
+
+        linesReceived.inc();
+        return prepare(line);
+    }
+
+    private String prepare(String line) {
+
+        if (line.indexOf(CTCP.REQUEST) != -1) {
+            line = line.replace(CTCP_REQUEST, "");  // Strip CTCP
+        }
+
+        if (rawLogger.isInfoEnabled()) {
+            rawLogger.info("[→] " + line);
+        }
+
+        String tags = null;
+
+        if (line.startsWith("@")) {
+            int end = line.indexOf(' ');
+            tags = end == -1 ? line.substring(1) : line.substring(1, end);
+            line = end == -1 ? "" : line.substring(end + 1);
+        }
+
+        if (accountTag) {
+            accountTagged(line, tags);
+        }
+
         return removeLeadingColon(line);
     }
 
+    /**
+     * With account-tag, every message from a user carries the user's account,
+     * or no account tag if the user is not logged in.
+     */
+    private void accountTagged(String line, String tags) {
+
+        int bang = line.indexOf('!');
+        int space = line.indexOf(' ');
+
+        if (!line.startsWith(":") || bang == -1 || space != -1 && bang > space) {
+            return;     // Not from a user
+        }
+
+        accounts.tagged(line.substring(1, space == -1 ? line.length() : space),
+                        tags == null ? null : tagValue(tags, "account"));
+    }
+
+    /**
+     * Returns the value of an IRCv3 message tag.
+     * @param tags The tags, without the leading '@'
+     * @param name The name of the tag
+     * @return The unescaped value, or <code>null</code> if the tag is missing
+     */
+    static String tagValue(String tags, String name) {
+
+        for (String tag: tags.split(";")) {
+
+            if (!tag.startsWith(name)) {
+                continue;
+            }
+
+            if (tag.length() == name.length()) {
+                return "";
+            }
+
+            if (tag.charAt(name.length()) != '=') {
+                continue;
+            }
+
+            String value = tag.substring(name.length() + 1);
+
+            if (value.indexOf('\\') == -1) {
+                return value;
+            }
+
+            StringBuilder unescaped = new StringBuilder(value.length());
+
+            for (int i = 0; i < value.length(); i++) {
+
+                char c = value.charAt(i);
+
+                if (c != '\\') {
+                    unescaped.append(c);
+                    continue;
+                }
+
+                if (i + 1 == value.length()) {
+                    break;      // A trailing backslash is dropped
+                }
+
+                char escaped = value.charAt(++i);
+                switch (escaped) {
+                    case ':':
+                        unescaped.append(';');
+                        break;
+                    case 's':
+                        unescaped.append(' ');
+                        break;
+                    case 'r':
+                        unescaped.append('\r');
+                        break;
+                    case 'n':
+                        unescaped.append('\n');
+                        break;
+                    default:
+                        unescaped.append(escaped);
+                        break;
+                }
+            }
+
+            return unescaped.toString();
+        }
+
+        return null;
+    }
+
     /**
      * Sends a command to the server without any additional formatting.
      * Automatically appends carriage return and line feed.
@@ -518,10 +1489,25 @@ public final class IrcBot extends Thread {
      */
     public void send(String command) throws IOException {
 
-        logger.info("[←] " + command);
+        if (rawLogger.isInfoEnabled()) {
+            rawLogger.info("[←] " + command);
+        }
+
+        write(command);
+    }
+
+    /**
+     * Sends a line without logging it, for credentials.
+     */
+    private void write(String command) throws IOException {
+
+        long start = System.nanoTime();
 
         writer.write(command + "\r\n");
         writer.flush();
+
+        sendTime.record(System.nanoTime() - start);
+        linesSent.inc();
     }
 
     private String removeLeadingColon(String string) {
@@ -532,21 +1518,57 @@ public final class IrcBot extends Thread {
     // --- Auth interface ---
 
 
-    private void loadAccessLevels() {
+    /**
+     * Builds the access list from the configuration.
+     */
+    private AccessList loadAccessLevels() {
+        AccessList loaded = new AccessList();
         String[] mods = config.getStringArray(ConfigKey.MODS.key());
         String[] admins = config.getStringArray(ConfigKey.ADMINS.key());
         String[] owner = config.getStringArray(ConfigKey.OWNER.key());
 
-        addAllAccessLevels(mods, BotAccessLevel.MOD);
-        addAllAccessLevels(admins, BotAccessLevel.ADMIN);
-        addAllAccessLevels(owner, BotAccessLevel.OWNER);
+        addAllAccessLevels(loaded, null, mods, BotAccessLevel.MOD);
+        addAllAccessLevels(loaded, null, admins, BotAccessLevel.ADMIN);
+        addAllAccessLevels(loaded, null, owner, BotAccessLevel.OWNER);
+
+        // access_channels = { "#channel" = { access_mod = ("*!*@staff.host"); }; };
+        String prefix = ConfigKey.ACCESS_CHANNELS.key() + ".";
+        Iterator<String> keys = config.getKeys(ConfigKey.ACCESS_CHANNELS.key());
+
+        while (keys.hasNext()) {
+            String key = keys.next();
+            int dot = key.lastIndexOf('.');
+
+            if (dot <= prefix.length()) {
+                continue;
+            }
+
+            String channel = key.substring(prefix.length(), dot);
+            String list = key.substring(dot + 1);
+
+            if (list.equals(ConfigKey.MODS.key())) {
+                addAllAccessLevels(loaded, channel, config.getStringArray(key), BotAccessLevel.MOD);
+            } else if (list.equals(ConfigKey.ADMINS.key())) {
+                addAllAccessLevels(loaded, channel, config.getStringArray(key), BotAccessLevel.ADMIN);
+            } else if (list.equals(ConfigKey.OWNER.key())) {
+                addAllAccessLevels(loaded, channel, config.getStringArray(key), BotAccessLevel.OWNER);
+            } else {
+                logger.warn("Unknown access list " + key);
+            }
+        }
+
+        return loaded;
     }
 
-    private void addAllAccessLevels(String[] names,
+    private void addAllAccessLevels(AccessList list, String channel, String[] names,
                                     BotAccessLevel level) {
         if (names != null) {
             for (String name : names) {
-                accessLevels.put(name.toLowerCase(), level);
+                try {
+                    list.add(channel, name, level);
+                } catch (IllegalArgumentException ex) {
+                    logger.error("Invalid access rule " + name, ex);
+                }
             }
         }
     }
@@ -558,58 +1580,91 @@ public final class IrcBot extends Thread {
             return; // Can't set this level
         }
 
-        BotAccessLevel old = accessLevels.get(accName);
+        Map<String, BotAccessLevel> global = accessList.getRules().get(null);
+        BotAccessLevel old = global == null ? null : global.get(accName.toLowerCase());
 
         // Update cache
         if (level == BotAccessLevel.NORMAL) {
-            accessLevels.remove(accName);
+            accessList.remove(null, accName);
         } else {
-            accessLevels.put(accName, level);
+            accessList.add(null, accName, level);
         }
 
         // Update config file
         // Only needed when a change occurred
         if (old != level) {
-            switch (level) {
-                case ADMIN:
-                    addAccessToConfig(accName, ConfigKey.ADMINS);
-                    break;
-                case MOD:
-                    addAccessToConfig(accName, ConfigKey.MODS);
-                    break;
-                default:
-                    logger.error("Unknown bot access level " + level);
-                    break;  // Do nothing
+            ConfigTransaction transaction = configTransaction();
+            String name = accName.toLowerCase();
+
+            if (old == BotAccessLevel.ADMIN || old == BotAccessLevel.MOD) {
+                transaction.removeFromList(accessKey(null, old), name);
             }
 
-            if (old != null) {
-                switch (old) {
-                    case ADMIN:
-                        removeAccessFromConfig(accName, ConfigKey.ADMINS);
-                        break;
-                    case MOD:
-                        removeAccessFromConfig(accName, ConfigKey.MODS);
-                        break;
-                    default:
-                        break;  // Do nothing
-                }
+            if (level == BotAccessLevel.ADMIN || level == BotAccessLevel.MOD) {
+                transaction.addToList(accessKey(null, level), name);
+            } else if (level != BotAccessLevel.NORMAL) {
+                logger.error("Unknown bot access level " + level);
             }
+
+            transaction.commit();
         }
     }
 
-    private void removeAccessFromConfig(String accName,
-                                        ConfigKey key) {
-        List<Object> names = config.getList(key.key());
-        names.remove(accName);
-        addSingleProperty(key.key(), names);
-    }
+    /**
+     * Sets the access levels of many users at once, e.g. when importing them
+     * from another bot. The rules are compiled once, and the config file is
+     * written once.
+     * <p/>
+     *
+     * @param channel The channel the levels apply in, or <code>null</code>
+     *                for all channels
+     * @param levels  Account, hostmask or address range -> MOD or ADMIN, or
+     *                NORMAL to remove an entry
+     * <p/>
+     * @return A future that completes once the config file is written
+     * @throws IllegalArgumentException If a level can't be granted or a
+     *                                  pattern is not valid. Nothing is
+     *                                  changed then.
+     */
+    public Future<?> importAccessLevels(String channel,
+                                        Map<String, BotAccessLevel> levels) {
+
+        ConfigTransaction transaction = configTransaction();
+        Map<String, BotAccessLevel> rules = new HashMap<>();
+
+        for (Map.Entry<String, BotAccessLevel> entry: levels.entrySet()) {
+
+            BotAccessLevel level = entry.getValue();
+            String name = entry.getKey().toLowerCase();
+
+            if (level != BotAccessLevel.MOD && level != BotAccessLevel.ADMIN && level != BotAccessLevel.NORMAL) {
+                throw new IllegalArgumentException("Can't import level " + level + " for " + name);
+            }
+
+            transaction.removeFromList(accessKey(channel, BotAccessLevel.MOD), name);
+            transaction.removeFromList(accessKey(channel, BotAccessLevel.ADMIN), name);
 
-    private void addAccessToConfig(String accName,
-                                   ConfigKey key) {
+            if (level != BotAccessLevel.NORMAL) {
+                transaction.addToList(accessKey(channel, level), name);
+            }
 
-        if (!config.getList(key.key()).contains(accName.toLowerCase())) {
-            addItemToList(key.key(), accName.toLowerCase());
+            rules.put(name, level == BotAccessLevel.NORMAL ? null : level);
         }
+
+        accessList.update(channel, rules);
+        return transaction.commit();
+    }
+
+    /**
+     * Returns the config key of an access list.
+     */
+    private static String accessKey(String channel, BotAccessLevel level) {
+
+        String list = level == BotAccessLevel.OWNER ? ConfigKey.OWNER.key()
+                      : level == BotAccessLevel.ADMIN ? ConfigKey.ADMINS.key()
+                      : ConfigKey.MODS.key();
+
+        return channel == null ? list : ConfigKey.ACCESS_CHANNELS.key() + "." + channel + "." + list;
     }
 
     /**
@@ -631,18 +1686,97 @@ public final class IrcBot extends Thread {
     public BotAccessLevel getAccessLevel(String name, boolean isNick)
             throws IOException {
 
-        String accountName = isNick
-                ? getAccountName(name)
-                : name;
+        if (!isNick) {
+            return accountLevel(name, null);
+        }
+
+        User user = accounts.getUser(name);
+        BotAccessLevel level = accountLevel(lookupAccount(name, user), null);
+
+        return user == null ? level : AccessList.max(level, accessList.matchHost(user, null));
+    }
+
+    /**
+     * Returns the bot access level of a user in a channel, from the rules for
+     * the channel and the global ones.
+     * <p/>
+     *
+     * @param user    The user to check
+     * @param channel The channel, or <code>null</code> for global rules only
+     *                <p/>
+     * @return The access level of the user
+     * <p/>
+     * @throws java.io.IOException
+     */
+    public BotAccessLevel getAccessLevel(User user, String channel)
+            throws IOException {
+
+        return AccessList.max(accountLevel(lookupAccount(user.nick(), user), channel),
+                              accessList.matchHost(user, channel));
+    }
+
+    /**
+     * Checks whether a user has at least an access level in a channel. The
+     * account of the user is only looked up if no hostmask rule grants the
+     * level and some account rule could.
+     * <p/>
+     *
+     * @param user    The user to check
+     * @param channel The channel, or <code>null</code> for global rules only
+     * @param level   The required level
+     *                <p/>
+     * @return <code>true</code> if the user has the level
+     * <p/>
+     * @throws java.io.IOException
+     */
+    public boolean hasAccessLevel(User user, String channel, BotAccessLevel level)
+            throws IOException {
+
+        BotAccessLevel byHost = accessList.matchHost(user, channel);
+
+        if (level == BotAccessLevel.NOT_REGISTERED || byHost != null && byHost.compareTo(level) >= 0) {
+            return true;
+        }
+
+        if (level.compareTo(BotAccessLevel.NORMAL) > 0 && !accessList.grantsByAccount(level, channel)) {
+            return false;
+        }
+
+        return accountLevel(lookupAccount(user.nick(), user), channel).compareTo(level) >= 0;
+    }
+
+    /**
+     * Returns the account of a user, and looks it up if it isn't known.
+     * @param user The user, or <code>null</code> if only the nick is known;
+     *             lookups are then not remembered
+     */
+    private String lookupAccount(String nick, User user) throws IOException {
+
+        String accountName = user == null ? accounts.getAccount(nick) : accounts.getAccount(user);
+
+        if (accountName == null) {
+            accountName = getAccountName(nick);
+
+            if (user != null) {
+                accounts.remember(user, accountName);
+            }
+        }
+
+        return accountName;
+    }
+
+    private BotAccessLevel accountLevel(String accountName, String channel) {
 
         if (accountName == null || accountName.equals("0")) {
             // Not logged in
             return BotAccessLevel.NOT_REGISTERED;
         }
 
-        BotAccessLevel level = accessLevels.get(accountName.toLowerCase());
-        logger.debug("Checking access level for account " + accountName + "... "
-                + level);
+        BotAccessLevel level = accessList.matchAccount(accountName, channel);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Checking access level for account " + accountName + "... "
+                    + level);
+        }
 
         if (level == null) {
             return BotAccessLevel.NORMAL;
@@ -651,6 +1785,16 @@ public final class IrcBot extends Thread {
         return level;
     }
 
+    /**
+     * Returns the rules that grant bot access levels.
+     * <p/>
+     *
+     * @return The access list
+     */
+    public AccessList getAccessList() {
+        return accessList;
+    }
+
     /**
      * Returns the access level of the user in the specified channel.
      * <p/>
@@ -663,6 +1807,12 @@ public final class IrcBot extends Thread {
     public ChannelAccessLevel getChanAccess(String nick,
                                             String channel) {
 
+        ChannelAccessLevel known = accounts.getChannelAccess(nick, channel);
+
+        if (known != null) {
+            return known;
+        }
+
         try {
             // If we got no ENDOFNAMES after 2 seconds, assume that we missed it
             socket.setSoTimeout(2000);
@@ -701,7 +1851,7 @@ public final class IrcBot extends Thread {
                     case "366":     // End of Names
                         return ChannelAccessLevel.NONE;
                     default:
-                        EventExtractor.checkAndFireEvents(parts, eventPump);
+                        fireEvents(parts);
                         break;
                 }
             }
@@ -712,7 +1862,7 @@ public final class IrcBot extends Thread {
             disconnect("IOException: " + ex);
         } finally {
             try {
-                socket.setSoTimeout(0); // Reset timeout
+                socket.setSoTimeout(TASK_POLL_MILLIS); // Reset timeout
             } catch (SocketException ex) {
                 logger.fatal("Fatal protocol error", ex);
                 disconnect("SocketException: " + ex);
@@ -771,6 +1921,8 @@ public final class IrcBot extends Thread {
             }
         } catch (SocketTimeoutException ex) {
             // ENDOFWHOIS
+        } finally {
+            socket.setSoTimeout(TASK_POLL_MILLIS);
         }
 
         return "0";
@@ -806,11 +1958,13 @@ public final class IrcBot extends Thread {
 
                     return accName;
                 } else {
-                    EventExtractor.checkAndFireEvents(splitArgs(reply), eventPump);
+                    fireEvents(splitArgs(reply));
                 }
             }
         } catch (SocketTimeoutException ex) {
             // End of nickserv listing
+        } finally {
+            socket.setSoTimeout(TASK_POLL_MILLIS);
         }
 
         return "0";
@@ -829,7 +1983,8 @@ public final class IrcBot extends Thread {
                 String reply = removeLeadingColon(readLine());
                 String[] parts = splitArgs(reply);
 
-                if (parts[1].equals("354")) {
+                // Replies to channel sweeps carry a token and more fields
+                if (parts[1].equals("354") && parts.length == 4) {
 
                     String user = parts[3];
 
@@ -837,7 +1992,9 @@ public final class IrcBot extends Thread {
                         user = user.substring(1);
                     }
 
-                    logger.debug("Accountname for " + nick + " is " + user);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Accountname for " + nick + " is " + user);
+                    }
                     return user;
                 } else if (parts[1].equals("315") && parts[3].equals(nick)) {
 
@@ -846,13 +2003,13 @@ public final class IrcBot extends Thread {
                     break;  // End of WHO list
                 } else {
 
-                    EventExtractor.checkAndFireEvents(parts, eventPump);
+                    fireEvents(parts);
                 }
             }
         } catch (SocketTimeoutException ex) {
             // We missed endofwhox
         } finally {
-            socket.setSoTimeout(0); // Reset timeout
+            socket.setSoTimeout(TASK_POLL_MILLIS); // Reset timeout
         }
 
         return "0"; // WHOX "Not registered" response
@@ -866,7 +2023,9 @@ public final class IrcBot extends Thread {
                               String command, String[] args)
             throws IOException {
 
-        logger.debug("Received command " + plugin + " " + command);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Received command " + plugin + " " + command);
+        }
 
         CommandTriggeredEvent evt = new CommandTriggeredEvent(user, command);
         eventPump.onCommandTriggered(evt);
@@ -894,6 +2053,39 @@ public final class IrcBot extends Thread {
         return commandHandler;
     }
 
+    /**
+     * Returns the watchdog for slow listeners and commands
+     * <p/>
+     *
+     * @return The watchdog, or <code>null</code> if it is disabled
+     */
+    public Watchdog getWatchdog() {
+        return watchdog;
+    }
+
+    /**
+     * Returns the executor a plugin should run its background work on. The
+     * executor is subject to the plugin's quota and is shut down when the
+     * plugin is disabled.
+     *
+     * @param plugin The plugin
+     * @return The executor
+     * @throws IllegalStateException If the plugin was disabled already
+     */
+    public ScheduledExecutorService getExecutor(Plugin plugin) {
+        return pluginResources.getExecutor(plugin);
+    }
+
+    /**
+     * Returns the thread, queue and CPU quotas and usage of all plugins
+     * <p/>
+     *
+     * @return The plugin resources
+     */
+    public PluginResources getPluginResources() {
+        return pluginResources;
+    }
+
     /**
      * Returns the plugin manager used by this bot
      * <p/>
@@ -941,18 +2133,114 @@ public final class IrcBot extends Thread {
         eventPump.removeEventListener(listener);
     }
 
+    /**
+     * Unregisters all event listeners of a plugin, and the triggers they
+     * would have been notified of.
+     *
+     * @param plugin The plugin
+     */
     public void unregisterAllEventListeners(Plugin plugin) {
         eventPump.removeAllListeners(plugin);
+        triggers.removeAll(plugin);
+    }
+
+    /**
+     * Holds back the event listeners the plugin registers until
+     * {@link #swapEventListeners(Plugin, Plugin)} is called. Used to hot-swap
+     * plugins.
+     *
+     * @param plugin The new version of a plugin
+     */
+    public void stageEventListeners(Plugin plugin) {
+        eventPump.stage(plugin);
+    }
+
+    /**
+     * Replaces the event listeners of a plugin with the held back listeners
+     * of its new version, in one step.
+     *
+     * @param old         The old version
+     * @param replacement The new version
+     */
+    public void swapEventListeners(Plugin old, Plugin replacement) {
+        eventPump.swap(old, replacement);
+        triggers.removeAll(old);
     }
 
     public EventPump getEventPump() {
         return eventPump;
     }
 
+    /**
+     * Returns the registry for keywords and regular expressions plugins want
+     * to be notified of with a {@link TriggerMatchedEvent}. Triggers are
+     * removed with the event listeners of their plugin.
+     *
+     * @return The trigger registry
+     */
+    public TriggerRegistry getTriggers() {
+        return triggers;
+    }
+
     public Preferences getPreferences() {
         return preferences;
     }
 
+    /**
+     * Returns the tracker for channel list modes, which can be used to
+     * synchronize ban and exception lists.
+     * <p/>
+     *
+     * @return The list mode tracker
+     */
+    public ListModeTracker getListModes() {
+        return listModes;
+    }
+
+    /**
+     * Returns the accounts, away states and channel prefixes of the users
+     * in the bot's channels
+     * <p/>
+     *
+     * @return The account tracker
+     */
+    public AccountTracker getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * Returns the queue for lines that may be delayed to stay within the
+     * server's flood limits, such as bulk queries.
+     * <p/>
+     *
+     * @return The send queue
+     */
+    public SendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    /**
+     * Returns the metrics of this bot: lines received and sent, dispatch and
+     * send latency and the time spent in each plugin's listeners and
+     * commands.
+     * <p/>
+     *
+     * @return The metrics registry
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the features the server advertised in its 005 replies.
+     * <p/>
+     *
+     * @return The server features
+     */
+    public ServerSupport getServerSupport() {
+        return serverSupport;
+    }
+
     /**
      * Determines whether the given string is an IRC channel by checking if the
      * first character is a support channel type by the server.
@@ -987,18 +2275,15 @@ public final class IrcBot extends Thread {
     // --- Configuration access methods ---
 
 
-    private void addSingleProperty(String key, Object value) {
-        config.setProperty(key, value);
-
-        try {
-            config.save();
-        } catch (ConfigurationException ex) {
-            logger.error("Unable to save config", ex);
-        }
-    }
-
-    private void addItemToList(String key, Object value) {
-        addSingleProperty(key, config.getList(key).add(value));
+    /**
+     * Starts a transaction to change the configuration. The file is written
+     * once when the transaction is committed, in the background.
+     * <p/>
+     *
+     * @return The transaction
+     */
+    public ConfigTransaction configTransaction() {
+        return new ConfigTransaction(config, configWriter);
     }
 
     /**
@@ -1008,7 +2293,7 @@ public final class IrcBot extends Thread {
      * @return The server
      */
     public String server() {
-        return config.getString(ConfigKey.HOST.key());
+        return snapshot.get().host();
     }
 
     /**
@@ -1018,7 +2303,7 @@ public final class IrcBot extends Thread {
      * @return The remote port
      */
     public int port() {
-        return config.getInt(ConfigKey.PORT.key());
+        return snapshot.get().port();
     }
 
     /**
@@ -1038,7 +2323,7 @@ public final class IrcBot extends Thread {
      * @return The username
      */
     public String username() {
-        return config.getString(ConfigKey.USER.key());
+        return snapshot.get().user();
     }
 
     /**
@@ -1048,7 +2333,7 @@ public final class IrcBot extends Thread {
      * @return The description of the bot
      */
     public String description() {
-        return config.getString(ConfigKey.REALNAME.key());
+        return snapshot.get().realname();
     }
 
     /**
@@ -1058,8 +2343,7 @@ public final class IrcBot extends Thread {
      * @return The directory
      */
     public String pluginDir() {
-        return config.getString(ConfigKey.PLUGIN_DIR.key(),
-                ConfigKey.PLUGIN_DIR.defaultValue());
+        return snapshot.get().pluginDir();
     }
 
     /**
@@ -1073,8 +2357,31 @@ public final class IrcBot extends Thread {
         return config;
     }
 
+    /**
+     * Returns the snapshot of the configuration taken when it was last
+     * loaded. Cheaper than reading the configuration, and consistent.
+     * <p/>
+     *
+     * @return The configuration snapshot
+     */
+    public BotConfig botConfig() {
+        return snapshot.get();
+    }
+
     public String commandPrefix(String channel) {
-        return preferences.getString(channel, Preferences.CHANNEL_CMD_PREFIX);
+        return commandParser.prefix(channel);
+    }
+
+    /**
+     * Parses a message if it starts with the command prefix of the channel
+     * it was sent to.
+     *
+     * @param target  The channel or nick the message was sent to
+     * @param message The message
+     * @return The command, or <code>null</code> if the message is not one
+     */
+    public CommandLine parseCommand(String target, String message) {
+        return commandParser.parse(target, message);
     }
 
 
@@ -0,0 +1,91 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads lines like {@link java.io.BufferedReader#readLine()}, but keeps a
+ * partially received line when a read times out, so that the socket can be
+ * read with a short timeout without losing data.
+ *
+ * @author Boreeas
+ */
+final class LineReader {
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+    // The line received so far
+    private final StringBuilder line = new StringBuilder(512);
+    // Whether the last line ended with CR, so that a following LF is skipped
+    private boolean skipLf;
+
+    LineReader(Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads a line.
+     * @return The line, without the line terminator, or <code>null</code> at
+     *         the end of the stream
+     * @throws java.net.SocketTimeoutException If the read timed out. The
+     *                                         received part of the line is
+     *                                         kept for the next call.
+     * @throws IOException
+     */
+    String readLine() throws IOException {
+
+        while (true) {
+
+            if (position == limit) {
+                int read = in.read(buffer, 0, buffer.length);
+
+                if (read == -1) {
+                    if (line.length() == 0) {
+                        return null;
+                    }
+                    return take();
+                }
+
+                position = 0;
+                limit = read;
+            }
+
+            if (skipLf) {
+                skipLf = false;
+                if (buffer[position] == '\n') {
+                    position++;
+                    continue;
+                }
+            }
+
+            int start = position;
+
+            while (position < limit) {
+                char c = buffer[position++];
+
+                if (c == '\n' || c == '\r') {
+                    line.append(buffer, start, position - 1 - start);
+                    skipLf = c == '\r';
+                    return take();
+                }
+            }
+
+            line.append(buffer, start, limit - start);
+        }
+    }
+
+    private String take() {
+        String result = line.toString();
+        line.setLength(0);
+        return result;
+    }
+
+    void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import net.boreeas.irc.events.*;
+import net.boreeas.irc.events.EventListener;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Keeps track of channel list modes (bans, ban exceptions and invite
+ * exceptions) and synchronizes them with a desired state.
+ * <p/>
+ * A list is only known after it was requested from the server and received
+ * completely. From then on, it is kept up to date from the MODE lines the bot
+ * sees in that channel.
+ *
+ * @author Boreeas
+ */
+public class ListModeTracker extends EventListener {
+
+    private static final Log logger = LogFactory.getLog("ListModes");
+
+    private final IrcBot bot;
+
+    // channel -> mode -> entries; only contains completely received lists
+    private final Map<String, Map<Character, Set<String>>> lists = new HashMap<>();
+    // Lists that are currently being received
+    private final Map<String, Map<Character, Set<String>>> receiving = new HashMap<>();
+    // Desired states that are waiting for the list to be received
+    private final Map<String, Map<Character, Set<String>>> pending = new HashMap<>();
+
+    ListModeTracker(IrcBot bot) {
+        this.bot = bot;
+    }
+
+    /**
+     * Returns the entries of a list mode in a channel.
+     * @param channel The channel
+     * @param mode    The list mode, e.g. 'b'
+     * @return The entries, or <code>null</code> if the list has not been
+     *         received yet
+     */
+    public synchronized Set<String> getList(String channel, char mode) {
+
+        Set<String> list = get(lists, channel, mode);
+        return list == null ? null : Collections.unmodifiableSet(new LinkedHashSet<>(list));
+    }
+
+    /**
+     * Requests a list mode of a channel from the server.
+     * @param channel The channel
+     * @param mode    The list mode, e.g. 'b'
+     * @throws IOException
+     */
+    public void request(String channel, char mode) throws IOException {
+        bot.send("MODE " + channel + " +" + mode);
+    }
+
+    /**
+     * Changes a list mode of a channel so that it contains exactly the
+     * desired entries. Only the difference to the current list is sent, packed
+     * into as few MODE lines as the server allows. If the current list is not
+     * known yet, it is requested first and the changes are sent once it has
+     * been received.
+     * @param channel The channel
+     * @param mode    The list mode, e.g. 'b'
+     * @param desired The entries the list should contain
+     * @throws IOException
+     */
+    public void sync(String channel, char mode, Collection<String> desired) throws IOException {
+
+        ModeChangeBuilder changes = null;
+        boolean needsRequest = false;
+
+        synchronized (this) {
+
+            Set<String> current = get(lists, channel, mode);
+
+            if (current == null) {
+                needsRequest = get(receiving, channel, mode) == null
+                               && get(pending, channel, mode) == null;
+                getOrCreate(pending, channel, mode).clear();
+                getOrCreate(pending, channel, mode).addAll(desired);
+            } else {
+                changes = diff(current, desired, mode);
+            }
+        }
+
+        if (needsRequest) {
+            request(channel, mode);
+        }
+
+        if (changes != null && !changes.isEmpty()) {
+            logger.debug("Syncing +" + mode + " list of " + channel + ": "
+                         + changes.getChanges().size() + " changes");
+            bot.changeModes(channel, changes);
+        }
+    }
+
+    /**
+     * Computes the changes needed to turn the current list into the desired
+     * one. Removals come first, so that the list does not overflow the
+     * server's limit in between.
+     * @param current The current entries
+     * @param desired The desired entries
+     * @param mode    The list mode
+     * @return The changes
+     */
+    public static ModeChangeBuilder diff(Collection<String> current, Collection<String> desired, char mode) {
+
+        Set<String> currentSet = current instanceof Set ? (Set<String>) current : new HashSet<>(current);
+        Set<String> desiredSet = desired instanceof Set ? (Set<String>) desired : new HashSet<>(desired);
+
+        ModeChangeBuilder mcb = new ModeChangeBuilder();
+
+        for (String entry: current) {
+            if (!desiredSet.contains(entry)) {
+                mcb.removeMode(mode, entry);
+            }
+        }
+
+        for (String entry: desired) {
+            if (!currentSet.contains(entry)) {
+                mcb.addMode(mode, entry);
+            }
+        }
+
+        return mcb;
+    }
+
+    @Override
+    public synchronized void onListModeEntry(ListModeEntryEvent evt) {
+        getOrCreate(receiving, evt.channel(), evt.mode()).add(evt.mask());
+    }
+
+    @Override
+    public void onListModeEnd(ListModeEndEvent evt) {
+
+        Set<String> desired;
+
+        synchronized (this) {
+            Set<String> received = remove(receiving, evt.channel(), evt.mode());
+            getOrCreate(lists, evt.channel(), evt.mode()).clear();
+
+            if (received != null) {
+                getOrCreate(lists, evt.channel(), evt.mode()).addAll(received);
+            }
+
+            desired = remove(pending, evt.channel(), evt.mode());
+        }
+
+        if (desired != null) {
+            try {
+                sync(evt.channel(), evt.mode(), desired);
+            } catch (IOException ex) {
+                logger.error("Unable to sync +" + evt.mode() + " list of " + evt.channel(), ex);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onChannelModeChange(ChannelModeChangeEvent evt) {
+
+        for (ModeChange change: evt.changes()) {
+
+            Set<String> list = get(lists, evt.channel(), change.mode());
+
+            if (list == null) {
+                continue;   // Not tracked
+            }
+
+            if (change.adding()) {
+                list.add(change.param());
+            } else {
+                list.remove(change.param());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onSelfLeaveChannel(SelfLeaveChannelEvent evt) {
+
+        if (!evt.isCancelled()) {
+            lists.remove(evt.channel().toLowerCase());
+            abandon(evt.channel());
+        }
+    }
+
+    /**
+     * Forgets the channel when the bot is kicked, and abandons list requests
+     * the server refused, so that the next sync requests the list again.
+     */
+    @Override
+    public synchronized void onUnknownLine(UnknownLineEvent evt) {
+
+        String[] parts = evt.getParts();
+
+        if (parts.length < 4) {
+            return;
+        }
+
+        switch (parts[1]) {
+            case "KICK":
+                if (parts[3].equalsIgnoreCase(bot.nick())) {
+                    lists.remove(parts[2].toLowerCase());
+                    abandon(parts[2]);
+                }
+                break;
+            case "403":     // ERR_NOSUCHCHANNEL
+            case "442":     // ERR_NOTONCHANNEL
+            case "482":     // ERR_CHANOPRIVSNEEDED
+                abandon(parts[3]);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void abandon(String channel) {
+        receiving.remove(channel.toLowerCase());
+        pending.remove(channel.toLowerCase());
+    }
+
+    private static Set<String> get(Map<String, Map<Character, Set<String>>> map,
+                                   String channel, char mode) {
+
+        Map<Character, Set<String>> forChannel = map.get(channel.toLowerCase());
+        return forChannel == null ? null : forChannel.get(mode);
+    }
+
+    private static Set<String> getOrCreate(Map<String, Map<Character, Set<String>>> map,
+                                           String channel, char mode) {
+
+        Map<Character, Set<String>> forChannel = map.get(channel.toLowerCase());
+
+        if (forChannel == null) {
+            forChannel = new HashMap<>();
+            map.put(channel.toLowerCase(), forChannel);
+        }
+
+        Set<String> list = forChannel.get(mode);
+
+        if (list == null) {
+            list = new LinkedHashSet<>();
+            forChannel.put(mode, list);
+        }
+
+        return list;
+    }
+
+    private static Set<String> remove(Map<String, Map<Character, Set<String>>> map,
+                                      String channel, char mode) {
+
+        Map<Character, Set<String>> forChannel = map.get(channel.toLowerCase());
+
+        if (forChannel == null) {
+            return null;
+        }
+
+        Set<String> removed = forChannel.remove(mode);
+
+        if (forChannel.isEmpty()) {
+            map.remove(channel.toLowerCase());
+        }
+
+        return removed;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Shows the bot's metrics. Not registered by default; plugins can register
+ * it under their own prefix, e.g. <code>core metrics listener</code>.
+ *
+ * @author Boreeas
+ */
+public class MetricsCommand extends Command {
+
+    // Don't flood the requester
+    private static final int MAX_LINES = 20;
+
+    public MetricsCommand(IrcBot bot) {
+        super(bot);
+    }
+
+    @Override
+    public String getTrigger() {
+        return "metrics";
+    }
+
+    @Override
+    public void execute(User sender, String target, String[] args) throws IOException {
+
+        if (!require(sender.nick(), BotAccessLevel.ADMIN)) {
+            bot.sendNotice(sender.nick(), "Access denied.");
+            return;
+        }
+
+        List<String> lines = bot.getMetrics().describe(args.length > 0 ? args[0] : "");
+
+        if (lines.isEmpty()) {
+            bot.sendNotice(sender.nick(), "No matching metrics.");
+            return;
+        }
+
+        for (int i = 0; i < lines.size() && i < MAX_LINES; i++) {
+            bot.sendNotice(sender.nick(), lines.get(i));
+        }
+
+        if (lines.size() > MAX_LINES) {
+            bot.sendNotice(sender.nick(), (lines.size() - MAX_LINES) + " more; narrow the filter to see them.");
+        }
+    }
+
+    @Override
+    public String help() {
+        return "metrics [filter] - Shows the metrics whose name contains the filter, e.g. listener_time_ns";
+    }
+}
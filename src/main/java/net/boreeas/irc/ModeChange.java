@@ -0,0 +1,66 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+/**
+ * A single mode being set or unset, together with its parameter.
+ *
+ * @author Boreeas
+ */
+public final class ModeChange {
+
+    private final boolean adding;
+    private final char mode;
+    private final String param;
+
+    public ModeChange(boolean adding, char mode, String param) {
+        this.adding = adding;
+        this.mode = mode;
+        this.param = param == null ? "" : param;
+    }
+
+    public boolean adding() {
+        return adding;
+    }
+
+    public char mode() {
+        return mode;
+    }
+
+    /**
+     * Returns the parameter of this mode change, or an empty string if the
+     * mode takes no parameter.
+     * @return The parameter
+     */
+    public String param() {
+        return param;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+
+        if (!(other instanceof ModeChange)) {
+            return false;
+        }
+
+        ModeChange change = (ModeChange) other;
+        return change.adding == adding
+               && change.mode == mode
+               && change.param.equals(param);
+    }
+
+    @Override
+    public int hashCode() {
+
+        int hash = adding ? 1 : 0;
+        hash = 37 * hash + mode;
+        hash = 37 * hash + param.hashCode();
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return (adding ? "+" : "-") + mode + (param.isEmpty() ? "" : " " + param);
+    }
+}
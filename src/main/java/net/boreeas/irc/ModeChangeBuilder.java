@@ -5,101 +5,160 @@
 package net.boreeas.irc;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
 /**
+ * Collects mode changes and packs them into as few MODE lines as possible.
+ * Changes are sent in the order they were added. List modes such as +b may
+ * be added several times with different parameters.
  *
  * @author Boreeas
  */
 public class ModeChangeBuilder {
 
-    private Map<Character, String> adding = new HashMap<Character, String>();
-    private Map<Character, String> removing = new HashMap<Character, String>();
+    // Used if the caller does not know the server's limits
+    public static final int DEFAULT_MODES_PER_LINE = 4;
+    public static final int DEFAULT_LINE_LENGTH = 400;
+
+    private final List<ModeChange> changes = new ArrayList<ModeChange>();
 
     public ModeChangeBuilder addMode(char mode, String param) {
-        adding.put(mode, param);
-        return this;
+        return add(new ModeChange(true, mode, param));
     }
 
     public ModeChangeBuilder addMode(char mode) {
-        addMode(mode, "");
-        return this;
+        return addMode(mode, "");
     }
 
     public ModeChangeBuilder removeMode(char mode, String param) {
-        removing.put(mode, param);
-        return this;
+        return add(new ModeChange(false, mode, param));
     }
 
     public ModeChangeBuilder removeMode(char mode) {
-        removing.put(mode, "");
-        return this;
+        return removeMode(mode, "");
     }
 
-    public Map<Character, String> getAdding() {
-        return adding;
+    private ModeChangeBuilder add(ModeChange change) {
+
+        if (!changes.contains(change)) {
+            changes.add(change);
+        }
+
+        return this;
     }
 
-    public Map<Character, String> getRemoving() {
-        return removing;
+    /**
+     * Returns all mode changes in the order they were added.
+     * @return The mode changes
+     */
+    public List<ModeChange> getChanges() {
+        return Collections.unmodifiableList(changes);
     }
 
-    public List<String> format() {
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
 
-        List<String> result =
-                     new ArrayList<String>((adding.size() + removing.size()) / 4 + 1); // 4 modes per lines
+    /**
+     * Returns the modes that are being set. If a list mode is set several
+     * times, only the last parameter is contained in the map; use
+     * {@link #getChanges()} to see all of them.
+     * @return The modes being set, mapped to their parameters
+     */
+    public Map<Character, String> getAdding() {
+        return collect(true);
+    }
 
-        int count = 1;
-        StringBuilder modeBuilder = new StringBuilder("+");
-        StringBuilder paramBuilder = new StringBuilder();
+    /**
+     * Returns the modes that are being unset. If a list mode is unset several
+     * times, only the last parameter is contained in the map; use
+     * {@link #getChanges()} to see all of them.
+     * @return The modes being unset, mapped to their parameters
+     */
+    public Map<Character, String> getRemoving() {
+        return collect(false);
+    }
 
-        for (Entry<Character, String> addingMode: adding.entrySet()) {
+    private Map<Character, String> collect(boolean adding) {
 
-            if (count > 4) {
+        Map<Character, String> result = new LinkedHashMap<Character, String>();
 
-                result.add(modeBuilder.toString().trim() + " " + paramBuilder.toString().trim().replaceAll(" +", " "));
-                count = 1;
-                modeBuilder = new StringBuilder("+");
-                paramBuilder = new StringBuilder();
+        for (ModeChange change: changes) {
+            if (change.adding() == adding) {
+                result.put(change.mode(), change.param());
             }
-
-            modeBuilder.append(addingMode.getKey());
-            paramBuilder.append(addingMode.getValue()).append(" ");
-
-            count++;
         }
 
-        if (count > 4) {
-
-            result.add(modeBuilder.toString().trim() + " " + paramBuilder.toString().trim().replaceAll(" +", " "));
-            count = 1;
-            modeBuilder = new StringBuilder("-");
-            paramBuilder = new StringBuilder();
-        } else {
-            modeBuilder.append("-");
-        }
+        return result;
+    }
 
-        for (Entry<Character, String> removingMode: removing.entrySet()) {
+    /**
+     * Formats the changes using {@link #DEFAULT_MODES_PER_LINE} and
+     * {@link #DEFAULT_LINE_LENGTH}.
+     * @return The formatted mode strings, including parameters
+     */
+    public List<String> format() {
+        return format(DEFAULT_MODES_PER_LINE, DEFAULT_LINE_LENGTH);
+    }
 
-            if (count > 4) {
+    /**
+     * Packs the changes into as few mode strings as possible, without
+     * reordering them. Each string contains at most <code>maxModes</code>
+     * modes and is at most <code>maxLength</code> characters long, unless a
+     * single change on its own already exceeds that length.
+     * @param maxModes  The maximum number of modes per line, as advertised by
+     *                  the server's MODES token
+     * @param maxLength The maximum length of the mode string and its
+     *                  parameters
+     * @return The formatted mode strings, including parameters
+     */
+    public List<String> format(int maxModes, int maxLength) {
+
+        List<String> result = new ArrayList<String>();
+
+        // Sized by the changes, since MODES may be arbitrarily large
+        StringBuilder modes = new StringBuilder(2 * Math.min(maxModes, changes.size()) + 2);
+        StringBuilder params = new StringBuilder();
+        int count = 0;
+        char sign = 0;
+
+        for (ModeChange change: changes) {
+
+            char changeSign = change.adding() ? '+' : '-';
+            int modeLength = changeSign == sign ? 1 : 2;
+            int paramLength = change.param().isEmpty() ? 0 : change.param().length() + 1;
+
+            if (count > 0
+                && (count >= maxModes
+                    || modes.length() + params.length() + modeLength + paramLength > maxLength)) {
+
+                result.add(modes.append(params).toString());
+                modes.setLength(0);
+                params.setLength(0);
+                count = 0;
+                sign = 0;
+            }
 
-                result.add(modeBuilder.toString().trim() + " " + paramBuilder.toString().trim().replaceAll(" +", " "));
-                count = 1;
-                modeBuilder = new StringBuilder("-");
-                paramBuilder = new StringBuilder();
+            if (changeSign != sign) {
+                modes.append(changeSign);
+                sign = changeSign;
             }
 
-            modeBuilder.append(removingMode.getKey());
-            paramBuilder.append(removingMode.getValue()).append(" ");
+            modes.append(change.mode());
+
+            if (paramLength > 0) {
+                params.append(' ').append(change.param());
+            }
 
             count++;
         }
 
-
-        result.add(modeBuilder + " " + paramBuilder);
+        if (count > 0) {
+            result.add(modes.append(params).toString());
+        }
 
         return result;
     }
@@ -0,0 +1,443 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import net.boreeas.irc.metrics.Counter;
+import net.boreeas.irc.metrics.Gauge;
+import net.boreeas.irc.metrics.MetricsRegistry;
+import net.boreeas.irc.plugins.Plugin;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out executors to plugins and keeps them within their quotas.
+ * <p/>
+ * Every plugin gets one scheduled executor, which runs both immediate and
+ * delayed tasks on at most the plugin's number of threads. Tasks are
+ * rejected while the queue is full or while the plugin has used up its CPU
+ * time for the current minute; runs of periodic tasks are skipped instead.
+ * The CPU time and allocated bytes of every task are charged to the plugin.
+ * The executor is shut down when the plugin is disabled, and a disabled
+ * plugin can't get a new one.
+ *
+ * @author Boreeas
+ */
+public class PluginResources {
+
+    private static final Log logger = LogFactory.getLog("PluginResources");
+
+    private static final long WINDOW = TimeUnit.MINUTES.toNanos(1);
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 1000;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final MetricsRegistry metrics;
+    private final Quota defaultQuota;
+    private final Map<String, Quota> quotas = new HashMap<>();
+    private final Map<Plugin, PluginExecutor> executors = new ConcurrentHashMap<>();
+    // Weak, so that released plugins and their class loaders can be collected
+    private final Set<Plugin> released = Collections.newSetFromMap(new WeakHashMap<Plugin, Boolean>());
+
+    /**
+     * Creates the resource manager.
+     * @param metrics      The registry the usage is recorded in
+     * @param defaultQuota The quota of plugins without a quota of their own
+     */
+    public PluginResources(MetricsRegistry metrics, Quota defaultQuota) {
+        this.metrics = metrics;
+        this.defaultQuota = defaultQuota;
+    }
+
+    /**
+     * Sets a different quota for a plugin. Only affects executors that are
+     * created afterwards.
+     * @param pluginName The name of the plugin
+     * @param quota      The quota
+     */
+    public synchronized void setQuota(String pluginName, Quota quota) {
+        quotas.put(pluginName.toLowerCase(), quota);
+    }
+
+    /**
+     * Returns the quota of a plugin.
+     * @param pluginName The name of the plugin
+     * @return The quota
+     */
+    public synchronized Quota getQuota(String pluginName) {
+
+        Quota quota = quotas.get(pluginName.toLowerCase());
+        return quota == null ? defaultQuota : quota;
+    }
+
+    /**
+     * Returns the executor of a plugin, creating it on first use. Plugins
+     * should run all background work on it instead of creating their own
+     * threads or timers.
+     * @param plugin The plugin
+     * @return The executor
+     * @throws IllegalStateException If the executor of the plugin was shut
+     *                               down already
+     */
+    public ScheduledExecutorService getExecutor(Plugin plugin) {
+
+        PluginExecutor executor = executors.get(plugin);
+
+        if (executor == null) {
+            synchronized (this) {
+                executor = executors.get(plugin);
+
+                if (executor == null) {
+                    if (released.contains(plugin)) {
+                        throw new IllegalStateException(plugin.getPluginName() + " was already released");
+                    }
+
+                    executor = new PluginExecutor(plugin, getQuota(plugin.getPluginName()));
+                    executors.put(plugin, executor);
+                    registerGauges(plugin.getPluginName());
+                }
+            }
+        }
+
+        return executor;
+    }
+
+    private void registerGauges(final String pluginName) {
+
+        metrics.gauge(MetricsRegistry.tagged("plugin_threads", "plugin", pluginName), new Gauge() {
+            @Override
+            public long value() {
+                long threads = 0;
+                for (PluginExecutor executor: executors.values()) {
+                    if (executor.pluginName.equals(pluginName)) {
+                        threads += executor.getPoolSize();
+                    }
+                }
+                return threads;
+            }
+        });
+        metrics.gauge(MetricsRegistry.tagged("plugin_queued_tasks", "plugin", pluginName), new Gauge() {
+            @Override
+            public long value() {
+                long queued = 0;
+                for (PluginExecutor executor: executors.values()) {
+                    if (executor.pluginName.equals(pluginName)) {
+                        queued += executor.getQueue().size();
+                    }
+                }
+                return queued;
+            }
+        });
+    }
+
+    /**
+     * Returns the CPU time the tasks of a plugin used so far.
+     * @param plugin The plugin
+     * @return The CPU time in nanoseconds, or 0 if the JVM does not measure it
+     */
+    public long getCpuTime(Plugin plugin) {
+
+        PluginExecutor executor = executors.get(plugin);
+        return executor == null ? 0 : executor.cpuTime.get();
+    }
+
+    /**
+     * Returns the number of bytes the tasks of a plugin allocated so far.
+     * @param plugin The plugin
+     * @return The number of bytes, or 0 if the JVM does not measure it
+     */
+    public long getAllocatedBytes(Plugin plugin) {
+
+        PluginExecutor executor = executors.get(plugin);
+        return executor == null ? 0 : executor.allocated.get();
+    }
+
+    /**
+     * Shuts down the executor of a plugin, interrupting running tasks and
+     * dropping queued ones. The plugin can't get a new executor afterwards.
+     * @param plugin The plugin
+     */
+    public void shutdown(Plugin plugin) {
+
+        PluginExecutor executor;
+
+        synchronized (this) {
+            released.add(plugin);
+            executor = executors.remove(plugin);
+        }
+
+        if (executor == null) {
+            return;
+        }
+
+        List<Runnable> dropped = executor.shutdownNow();
+
+        if (!dropped.isEmpty()) {
+            logger.info("Dropped " + dropped.size() + " pending tasks of " + plugin.getPluginName());
+        }
+
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                logger.warn("Tasks of " + plugin.getPluginName() + " are still running after shutdown");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Shuts down the executors of all plugins.
+     */
+    public void shutdownAll() {
+
+        for (Plugin plugin: executors.keySet()) {
+            shutdown(plugin);
+        }
+    }
+
+    private static long currentThreadCpuTime() {
+
+        if (!THREADS.isCurrentThreadCpuTimeSupported() || !THREADS.isThreadCpuTimeEnabled()) {
+            return 0;
+        }
+
+        return THREADS.getCurrentThreadCpuTime();
+    }
+
+    private static long currentThreadAllocatedBytes() {
+
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return 0;
+        }
+
+        return Math.max(0, threads.getThreadAllocatedBytes(Thread.currentThread().getId()));
+    }
+
+    /**
+     * The resource limits of a plugin.
+     */
+    public static final class Quota {
+
+        private final int threads;
+        private final int queue;
+        private final long cpuMillisPerMinute;
+
+        /**
+         * Creates a quota.
+         * @param threads            The maximum number of threads
+         * @param queue              The maximum number of waiting tasks,
+         *                           including delayed and periodic ones
+         * @param cpuMillisPerMinute The CPU time the plugin's tasks may use
+         *                           per minute, or 0 for no limit
+         */
+        public Quota(int threads, int queue, long cpuMillisPerMinute) {
+
+            if (threads < 1 || queue < 1) {
+                throw new IllegalArgumentException("A quota needs at least one thread and one queue slot");
+            }
+
+            this.threads = threads;
+            this.queue = queue;
+            this.cpuMillisPerMinute = cpuMillisPerMinute;
+        }
+
+        public int threads() {
+            return threads;
+        }
+
+        public int queue() {
+            return queue;
+        }
+
+        public long cpuMillisPerMinute() {
+            return cpuMillisPerMinute;
+        }
+
+        @Override
+        public String toString() {
+            return threads + " threads, " + queue + " queued tasks, "
+                   + (cpuMillisPerMinute > 0 ? cpuMillisPerMinute + "ms CPU per minute" : "unlimited CPU");
+        }
+    }
+
+    /**
+     * The executor of a plugin. Every entry point of a
+     * {@link ScheduledThreadPoolExecutor} ends in one of the schedule methods,
+     * so tasks are admitted and wrapped there.
+     */
+    private final class PluginExecutor extends ScheduledThreadPoolExecutor {
+
+        private final String pluginName;
+        private final Quota quota;
+
+        private final Counter cpuTime;
+        private final Counter allocated;
+        private final Counter rejected;
+        private final Counter skipped;
+
+        private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+        private final AtomicLong windowCpu = new AtomicLong();
+
+        PluginExecutor(Plugin plugin, Quota quota) {
+
+            super(quota.threads(), new PluginThreadFactory(plugin));
+
+            this.pluginName = plugin.getPluginName();
+            this.quota = quota;
+            this.cpuTime = metrics.counter(MetricsRegistry.tagged("plugin_cpu_time_ns_total", "plugin", pluginName));
+            this.allocated = metrics.counter(MetricsRegistry.tagged("plugin_allocated_bytes_total", "plugin", pluginName));
+            this.rejected = metrics.counter(MetricsRegistry.tagged("plugin_tasks_rejected_total", "plugin", pluginName));
+            this.skipped = metrics.counter(MetricsRegistry.tagged("plugin_tasks_skipped_total", "plugin", pluginName));
+
+            setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            allowCoreThreadTimeOut(true);
+            setRemoveOnCancelPolicy(true);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            admit();
+            return super.schedule(account(command, false), delay, unit);
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            admit();
+            return super.schedule(account(callable), delay, unit);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period,
+                                                      TimeUnit unit) {
+            admit();
+            return super.scheduleAtFixedRate(account(command, true), initialDelay, period, unit);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+                                                         TimeUnit unit) {
+            admit();
+            return super.scheduleWithFixedDelay(account(command, true), initialDelay, delay, unit);
+        }
+
+        private void admit() {
+
+            if (isShutdown()) {
+                return;     // Rejected by the executor itself
+            }
+
+            if (getQueue().size() >= quota.queue()) {
+                reject("queue is full (" + quota.queue() + " tasks)");
+            }
+
+            if (overBudget()) {
+                reject("CPU quota of " + quota.cpuMillisPerMinute() + "ms per minute is used up");
+            }
+        }
+
+        private void reject(String reason) {
+            rejected.inc();
+            throw new RejectedExecutionException("Task of " + pluginName + " rejected: " + reason);
+        }
+
+        private boolean overBudget() {
+
+            if (quota.cpuMillisPerMinute() <= 0) {
+                return false;
+            }
+
+            long now = System.nanoTime();
+            long start = windowStart.get();
+
+            if (now - start >= WINDOW && windowStart.compareAndSet(start, now)) {
+                windowCpu.set(0);
+            }
+
+            return windowCpu.get() >= TimeUnit.MILLISECONDS.toNanos(quota.cpuMillisPerMinute());
+        }
+
+        private Runnable account(final Runnable command, final boolean periodic) {
+
+            return new Runnable() {
+                @Override
+                public void run() {
+
+                    if (periodic && overBudget()) {
+                        skipped.inc();
+                        return;
+                    }
+
+                    long cpu = currentThreadCpuTime();
+                    long bytes = currentThreadAllocatedBytes();
+
+                    try {
+                        command.run();
+                    } catch (RuntimeException | Error ex) {
+                        logger.error("Uncaught exception in task of " + pluginName, ex);
+                        throw ex;
+                    } finally {
+                        charge(currentThreadCpuTime() - cpu, currentThreadAllocatedBytes() - bytes);
+                    }
+                }
+            };
+        }
+
+        private <V> Callable<V> account(final Callable<V> callable) {
+
+            return new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+
+                    long cpu = currentThreadCpuTime();
+                    long bytes = currentThreadAllocatedBytes();
+
+                    try {
+                        return callable.call();
+                    } finally {
+                        charge(currentThreadCpuTime() - cpu, currentThreadAllocatedBytes() - bytes);
+                    }
+                }
+            };
+        }
+
+        private void charge(long cpuNanos, long bytes) {
+            cpuTime.add(cpuNanos);
+            allocated.add(bytes);
+            windowCpu.addAndGet(cpuNanos);
+        }
+    }
+
+    private static final class PluginThreadFactory implements ThreadFactory {
+
+        private final String pluginName;
+        private final ClassLoader classLoader;
+        private final AtomicInteger count = new AtomicInteger();
+
+        PluginThreadFactory(Plugin plugin) {
+            this.pluginName = plugin.getPluginName();
+            this.classLoader = plugin.getClass().getClassLoader();
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, pluginName + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setContextClassLoader(classLoader);
+            return thread;
+        }
+    }
+}
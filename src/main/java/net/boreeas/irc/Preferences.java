@@ -10,6 +10,7 @@ import org.apache.commons.logging.LogFactory;
 import java.io.*;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
@@ -48,6 +49,8 @@ public class Preferences {
     private Map<String, Map<String, String>> channelPreferences;
     private Map<String, String> globalDefaults;
     private Map<String, String> channelDefaults;
+    // Changes whenever a preference is set
+    private final AtomicInteger version = new AtomicInteger();
 
     public Preferences(String file) {
 
@@ -180,6 +183,15 @@ public class Preferences {
         }
     }
 
+    /**
+     * Returns a number that changes whenever a preference is set, so that
+     * values read from the preferences can be cached until then.
+     * @return The version of the preferences
+     */
+    public int version() {
+        return version.get();
+    }
+
     /**
      * Returns the string in the global preferences associated with the
      * key. If no value is associated with the key, searches the global defaults
@@ -201,6 +213,7 @@ public class Preferences {
     public void setString(String key, String value) {
 
         globalPreferences.put(key.toLowerCase(), value);
+        version.incrementAndGet();
 
         try {
             saveToFile();
@@ -317,6 +330,7 @@ public class Preferences {
         }
 
         chanPref.put(key.toLowerCase(), value);
+        version.incrementAndGet();
 
         try {
             saveToFile();
@@ -0,0 +1,164 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import net.boreeas.irc.metrics.Counter;
+import net.boreeas.irc.metrics.Gauge;
+import net.boreeas.irc.metrics.MetricsRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends lines that don't need to go out immediately, such as bulk queries,
+ * at a rate the server won't consider flooding. Up to <code>burst</code>
+ * lines are sent at once, after that one line per interval.
+ * <p/>
+ * Lines sent directly with {@link IrcBot#send(String)} bypass the queue.
+ *
+ * @author Boreeas
+ */
+public class SendQueue implements Runnable {
+
+    private static final Log logger = LogFactory.getLog("SendQueue");
+
+    private final IrcBot bot;
+    private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+    private final long interval;
+    private final long window;
+    private final Counter sent;
+
+    // The time up to which the rate limit is used up
+    private long next;
+    private Thread thread;
+
+    /**
+     * @param bot      The bot to send the lines with
+     * @param metrics  The registry for the queue metrics
+     * @param burst    The number of lines that may be sent at once
+     * @param interval The time per line after a burst, in milliseconds
+     */
+    public SendQueue(IrcBot bot, MetricsRegistry metrics, int burst, long interval) {
+
+        this.bot = bot;
+        this.interval = TimeUnit.MILLISECONDS.toNanos(interval);
+        this.window = this.interval * Math.max(0, burst - 1);
+        this.next = System.nanoTime();
+        this.sent = metrics.counter("send_queue_sent_total");
+
+        metrics.gauge("send_queue_length", new Gauge() {
+            @Override
+            public long value() {
+                return lines.size();
+            }
+        });
+    }
+
+    /**
+     * Queues a line for sending.
+     * @param line The line to send
+     */
+    public synchronized void offer(String line) {
+
+        lines.add(line);
+
+        if (thread == null) {
+            thread = new Thread(this, "Send queue");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Drops the queued lines, e.g. after the connection was lost.
+     */
+    public void clear() {
+        lines.clear();
+    }
+
+    /**
+     * Drops the queued lines and stops the thread that sends them, e.g. on
+     * disconnect. Offering a line starts a new one.
+     */
+    public void stop() {
+
+        Thread stopped;
+
+        synchronized (this) {
+            stopped = thread;
+            thread = null;
+            lines.clear();
+        }
+
+        if (stopped == null) {
+            return;
+        }
+
+        stopped.interrupt();
+
+        // The thread itself may disconnect the bot on a send error
+        if (stopped != Thread.currentThread()) {
+            try {
+                stopped.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    synchronized boolean isRunning() {
+        return thread != null && thread.isAlive();
+    }
+
+    public int size() {
+        return lines.size();
+    }
+
+    @Override
+    public void run() {
+
+        try {
+            while (true) {
+
+                String line = lines.take();
+                long wait = delay(System.nanoTime());
+
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+
+                try {
+                    bot.send(line);
+                    sent.inc();
+                } catch (IOException ex) {
+                    logger.warn("Unable to send queued line " + line, ex);
+                }
+            }
+        } catch (InterruptedException ex) {
+            logger.debug("Send queue stopped");
+        }
+    }
+
+    /**
+     * Takes one line from the rate limit and returns how long to wait before
+     * sending it.
+     * @param now The current time, in nanoseconds
+     * @return The time to wait, in nanoseconds
+     */
+    synchronized long delay(long now) {
+
+        if (next - now < 0) {
+            next = now;
+        }
+
+        long wait = next - now - window;
+        next += interval;
+
+        return Math.max(0, wait);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The features the server advertised in its RPL_ISUPPORT (005) replies.
+ * Tokens take the form <code>KEY</code>, <code>KEY=VALUE</code> or
+ * <code>-KEY</code> (which revokes an earlier advertisement).
+ *
+ * @author Boreeas
+ */
+public class ServerSupport {
+
+    private final Map<String, String> tokens = new HashMap<>();
+    private Map<String, Integer> targetLimits = new HashMap<>();
+
+    /**
+     * Adds the tokens of one 005 reply to the known features.
+     * @param supports The tokens, as received in the support list event
+     */
+    public synchronized void parse(String[] supports) {
+
+        for (String token: supports) {
+
+            if (token.isEmpty()) {
+                continue;
+            }
+
+            if (token.charAt(0) == '-') {
+                tokens.remove(token.substring(1).toUpperCase());
+                continue;
+            }
+
+            int split = token.indexOf('=');
+
+            if (split == -1) {
+                tokens.put(token.toUpperCase(), "");
+            } else {
+                tokens.put(token.substring(0, split).toUpperCase(), token.substring(split + 1));
+            }
+        }
+
+        targetLimits = parseTargetLimits();
+    }
+
+    /**
+     * Forgets all features, e.g. before connecting to a new server.
+     */
+    public synchronized void clear() {
+        tokens.clear();
+        targetLimits = new HashMap<>();
+    }
+
+    public synchronized boolean supports(String key) {
+        return tokens.containsKey(key.toUpperCase());
+    }
+
+    /**
+     * Returns the value of the token, an empty string if the token was
+     * advertised without a value, or <code>null</code> if it was not
+     * advertised at all.
+     * @param key The token
+     * @return The value of the token
+     */
+    public synchronized String getString(String key) {
+        return tokens.get(key.toUpperCase());
+    }
+
+    /**
+     * Returns the maximum number of comma-separated targets the server accepts
+     * for the given command, as advertised by TARGMAX (or the older
+     * MAXTARGETS). If the server did not advertise a limit, 1 is returned.
+     * @param command The command, e.g. PRIVMSG
+     * @return The maximum number of targets per line
+     */
+    public synchronized int maxTargets(String command) {
+
+        Integer limit = targetLimits.get(command.toUpperCase());
+        return limit == null ? 1 : limit;
+    }
+
+    /**
+     * Returns the maximum number of parameterized modes per MODE line, as
+     * advertised by the MODES token. Defaults to 3 if the server did not
+     * advertise a limit.
+     * @return The maximum number of modes per line
+     */
+    public synchronized int maxModes() {
+
+        String modes = tokens.get("MODES");
+
+        if (modes == null) {
+            return 3;
+        }
+
+        return modes.isEmpty() ? Integer.MAX_VALUE : parsePositive(modes, 3);
+    }
+
+    private Map<String, Integer> parseTargetLimits() {
+
+        Map<String, Integer> limits = new HashMap<>();
+        String targmax = tokens.get("TARGMAX");
+
+        if (targmax != null) {
+            for (String entry: targmax.split(",")) {
+
+                int split = entry.indexOf(':');
+                if (split == -1) {
+                    continue;
+                }
+
+                String command = entry.substring(0, split).toUpperCase();
+                String value = entry.substring(split + 1);
+
+                // An empty value means that there is no limit
+                limits.put(command, value.isEmpty() ? Integer.MAX_VALUE : parsePositive(value, 1));
+            }
+        } else if (tokens.containsKey("MAXTARGETS")) {
+
+            String value = tokens.get("MAXTARGETS");
+            int limit = value.isEmpty() ? Integer.MAX_VALUE : parsePositive(value, 1);
+
+            limits.put("PRIVMSG", limit);
+            limits.put("NOTICE", limit);
+        }
+
+        return limits;
+    }
+
+    static int parsePositive(String value, int fallback) {
+        try {
+            int parsed = Integer.parseInt(value);
+            return parsed > 0 ? parsed : fallback;
+        } catch (NumberFormatException ex) {
+            return fallback;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + tokens;
+    }
+}
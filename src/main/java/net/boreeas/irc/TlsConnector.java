@@ -0,0 +1,137 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import net.boreeas.irc.metrics.Counter;
+import net.boreeas.irc.metrics.Histogram;
+import net.boreeas.irc.metrics.MetricsRegistry;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.net.ssl.*;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * Opens TLS connections to the server. All connections share one SSL
+ * context, whose client session cache lets a reconnect resume the previous
+ * session instead of doing a full handshake.
+ *
+ * @author Boreeas
+ */
+public class TlsConnector {
+
+    private static final Log logger = LogFactory.getLog("TLS");
+
+    private final SSLContext context;
+    private final Histogram handshakeTime;
+    private final Counter handshakes;
+    private final Counter resumed;
+
+    public TlsConnector(SSLContext context, MetricsRegistry metrics) {
+
+        this.context = context;
+        this.handshakeTime = metrics.histogram("tls_handshake_time_ns");
+        this.handshakes = metrics.counter("tls_handshakes_total");
+        this.resumed = metrics.counter("tls_sessions_resumed_total");
+    }
+
+    /**
+     * Creates an SSL context from the bot configuration. The server is
+     * verified against the configured truststore, or the JRE's default one.
+     * If a client certificate keystore is configured, its key is offered to
+     * the server, e.g. for CertFP or SASL EXTERNAL.
+     *
+     * @param config The bot configuration
+     * @return The SSL context
+     * @throws IOException If a keystore can't be read
+     * @throws GeneralSecurityException If a keystore is invalid
+     */
+    public static SSLContext createContext(Configuration config) throws IOException, GeneralSecurityException {
+
+        KeyManager[] keyManagers = null;
+        TrustManager[] trustManagers = null;
+
+        String truststore = config.getString(ConfigKey.TLS_TRUSTSTORE.key(), ConfigKey.TLS_TRUSTSTORE.defaultValue());
+        if (!truststore.isEmpty()) {
+            TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            factory.init(load(truststore, config.getString(ConfigKey.TLS_TRUSTSTORE_PASSWORD.key(),
+                                                           ConfigKey.TLS_TRUSTSTORE_PASSWORD.defaultValue())));
+            trustManagers = factory.getTrustManagers();
+        }
+
+        String clientCert = config.getString(ConfigKey.TLS_CLIENT_CERT.key(), ConfigKey.TLS_CLIENT_CERT.defaultValue());
+        if (!clientCert.isEmpty()) {
+            String password = config.getString(ConfigKey.TLS_CLIENT_CERT_PASSWORD.key(),
+                                               ConfigKey.TLS_CLIENT_CERT_PASSWORD.defaultValue());
+            KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            factory.init(load(clientCert, password), password.toCharArray());
+            keyManagers = factory.getKeyManagers();
+        }
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers, trustManagers, null);
+        return context;
+    }
+
+    private static KeyStore load(String file, String password) throws IOException, GeneralSecurityException {
+
+        String lower = file.toLowerCase();
+        KeyStore store = KeyStore.getInstance(lower.endsWith(".p12") || lower.endsWith(".pfx") ? "PKCS12" : "JKS");
+
+        try (InputStream in = new FileInputStream(file)) {
+            store.load(in, password.toCharArray());
+        }
+
+        return store;
+    }
+
+    /**
+     * Connects to the server and completes the handshake, verifying that the
+     * certificate matches the host name.
+     *
+     * @param host The host to connect to
+     * @param port The port to connect to
+     * @return The connected socket
+     * @throws IOException If the connection or the handshake fails
+     */
+    public SSLSocket connect(String host, int port) throws IOException {
+
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+
+        SSLParameters parameters = socket.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        socket.setSSLParameters(parameters);
+
+        long start = System.nanoTime();
+        long startMillis = System.currentTimeMillis();
+
+        try {
+            socket.startHandshake();
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+
+        long time = System.nanoTime() - start;
+        handshakeTime.record(time);
+        handshakes.inc();
+
+        // A resumed session keeps the creation time of the original one
+        SSLSession session = socket.getSession();
+        boolean resumption = session.getCreationTime() < startMillis;
+
+        if (resumption) {
+            resumed.inc();
+        }
+
+        logger.info(String.format("%s handshake with %s:%d took %.1f ms (%s)", session.getProtocol(), host, port,
+                                  time / 1e6, resumption ? "resumed" : "full"));
+        return socket;
+    }
+}
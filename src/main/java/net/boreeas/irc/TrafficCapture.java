@@ -0,0 +1,136 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records every line received from the server, with a monotonic timestamp,
+ * into a gzipped capture file that can be fed back through the bot with
+ * {@link TrafficReplay}.
+ * <p/>
+ * A capture file starts with {@link #MAGIC} and a version byte, followed by
+ * one record per line: the nanoseconds since the previous line and the
+ * length of the UTF-8 encoded line, both as unsigned varints, and the line
+ * itself.
+ *
+ * @author Boreeas
+ */
+public class TrafficCapture implements Closeable {
+
+    private static final Log logger = LogFactory.getLog("Capture");
+
+    static final byte[] MAGIC = {'I', 'R', 'C', 'C', 'A', 'P'};
+    static final int VERSION = 1;
+
+    // Flush at least this often, so that a crash loses little traffic
+    private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final File file;
+    private final OutputStream out;
+    private long lastTime = System.nanoTime();
+    private long lastFlush = lastTime;
+    private boolean failed;
+
+    public TrafficCapture(File file) throws IOException {
+        this(file, new FileOutputStream(file));
+    }
+
+    private TrafficCapture(File file, OutputStream raw) throws IOException {
+        this.file = file;
+        this.out = new BufferedOutputStream(new GZIPOutputStream(raw, 8192, true), 65536);
+        out.write(MAGIC);
+        out.write(VERSION);
+    }
+
+    /**
+     * Creates a new capture file in a directory, named after the current
+     * time. Existing captures are never overwritten; a counter is added to
+     * the name if a capture was started in the same millisecond.
+     * @param dir The directory
+     * @return The capture
+     * @throws IOException
+     */
+    public static TrafficCapture inDirectory(File dir) throws IOException {
+
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        String name = "capture-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+
+        for (int i = 0; ; i++) {
+            File file = new File(dir, name + (i == 0 ? "" : "-" + i) + ".irc.gz");
+
+            try {
+                return new TrafficCapture(file, Files.newOutputStream(file.toPath(), StandardOpenOption.CREATE_NEW,
+                                                                      StandardOpenOption.WRITE));
+            } catch (FileAlreadyExistsException ex) {
+                // Try the next name
+            }
+        }
+    }
+
+    public File file() {
+        return file;
+    }
+
+    /**
+     * Records a line. Errors are logged once and disable the capture instead
+     * of interrupting the connection.
+     * @param line The line as received, without CR LF
+     */
+    public synchronized void record(String line) {
+
+        if (failed) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+
+        try {
+            writeVarLong(out, now - lastTime);
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+
+            if (now - lastFlush > FLUSH_INTERVAL) {
+                out.flush();
+                lastFlush = now;
+            }
+        } catch (IOException ex) {
+            failed = true;
+            logger.error("Unable to write to capture file " + file + ", capture stopped", ex);
+        }
+
+        lastTime = now;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        failed = true;
+        out.close();
+    }
+
+    static void writeVarLong(OutputStream out, long value) throws IOException {
+
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write((int) value);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.plist.PropertyListConfiguration;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a file written by {@link TrafficCapture} and feeds it back through a
+ * bot, without connecting anywhere.
+ * <p/>
+ * Run it with a bot configuration and a capture file, and optionally a speed
+ * factor or <code>max</code>:
+ * <pre>
+ * java net.boreeas.irc.TrafficReplay bot_busy.plist capture-20130101-120000.irc.gz 10
+ * </pre>
+ * The bot loads its configured plugins as usual, and everything it sends is
+ * discarded. Plugins may save their data, so replay against a copy of the
+ * bot's directory. Afterwards the throughput and the bot's metrics, including
+ * the time spent in every plugin, are printed.
+ *
+ * @author Boreeas
+ */
+public class TrafficReplay implements Closeable {
+
+    private static final Log logger = LogFactory.getLog("Replay");
+
+    private final DataInputStream in;
+    private long delay;
+
+    public TrafficReplay(File file) throws IOException {
+
+        this.in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 65536)));
+
+        byte[] magic = new byte[TrafficCapture.MAGIC.length];
+
+        try {
+            in.readFully(magic);
+        } catch (EOFException ex) {
+            in.close();
+            throw new IOException("Not a capture file: " + file);
+        }
+
+        if (!Arrays.equals(magic, TrafficCapture.MAGIC)) {
+            in.close();
+            throw new IOException("Not a capture file: " + file);
+        }
+
+        int version = in.read();
+        if (version != TrafficCapture.VERSION) {
+            in.close();
+            throw new IOException("Unsupported capture version " + version + " in " + file);
+        }
+    }
+
+    /**
+     * Reads the next line.
+     * @return The line, or <code>null</code> at the end of the capture
+     * @throws IOException
+     */
+    public String nextLine() throws IOException {
+
+        int first = in.read();
+
+        if (first == -1) {
+            return null;
+        }
+
+        delay = readVarLong(first);
+        byte[] bytes = new byte[(int) readVarLong(in.readUnsignedByte())];
+        in.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the time between the previous line and the line last returned
+     * by {@link #nextLine()}, as it was captured.
+     * @return The delay in nanoseconds
+     */
+    public long delay() {
+        return delay;
+    }
+
+    private long readVarLong(int first) throws IOException {
+
+        long value = first & 0x7F;
+        int shift = 7;
+        int b = first;
+
+        while ((b & 0x80) != 0) {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+
+        return value;
+    }
+
+    /**
+     * Feeds all lines of the capture through the bot.
+     * @param bot   The bot, which must have been prepared with
+     *              {@link IrcBot#openReplay()}
+     * @param speed The speed factor relative to the captured timing, or
+     *              <code>0</code> to replay as fast as possible
+     * @return The number of lines replayed
+     * @throws IOException
+     */
+    public long replay(IrcBot bot, double speed) throws IOException {
+
+        long lines = 0;
+        long capturedTime = 0;
+        long start = System.nanoTime();
+        String line;
+
+        while ((line = nextLine()) != null) {
+
+            if (speed > 0) {
+                capturedTime += delay;
+                long due = start + (long) (capturedTime / speed);
+                long wait;
+
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            try {
+                bot.process(line);
+            } catch (RuntimeException ex) {
+                logger.error("Error while replaying line " + lines + ": " + line, ex);
+            }
+
+            lines++;
+        }
+
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    public static void main(String[] args) throws IOException, ConfigurationException {
+
+        if (args.length < 2) {
+            System.err.println("Usage: TrafficReplay <bot config> <capture file> [speed factor|max]");
+            System.exit(1);
+        }
+
+        double speed = args.length < 3 || args[2].equalsIgnoreCase("max") ? 0 : Double.parseDouble(args[2]);
+
+        IrcBot bot = new IrcBot(new PropertyListConfiguration(new File(args[0])));
+        bot.openReplay();
+
+        long lines;
+        long start = System.nanoTime();
+
+        try (TrafficReplay replay = new TrafficReplay(new File(args[1]))) {
+            lines = replay.replay(bot, speed);
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("Replayed " + lines + " lines in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms ("
+                           + Math.round(lines / (elapsed / 1e9)) + " lines/s)");
+
+        for (String metric: bot.getMetrics().describe("")) {
+            System.out.println(metric);
+        }
+
+        System.exit(0);
+    }
+}
@@ -22,21 +22,20 @@ public class User {
 
     public User(String hostmask) {
 
-        if (!(hostmask.contains("!") && hostmask.contains("@"))) {
+        int bang = hostmask.indexOf('!');
+        int at = bang == -1 ? -1 : hostmask.indexOf('@', bang + 1);
+
+        if (bang == -1 || at == -1) {
             throw new IllegalArgumentException("Not a valid hostmask");
         }
 
-        String[] nickAndRest = hostmask.split("!");
-        String[] userAndHost = nickAndRest[1].split("@");
-
-        this.nick = nickAndRest[0];
+        this.nick = hostmask.substring(0, bang);
 
-        if (userAndHost[0].startsWith("~")) {
-            userAndHost[0] = userAndHost[0].substring(1);
-        }
+        // Strip the ident marker
+        int userStart = hostmask.charAt(bang + 1) == '~' ? bang + 2 : bang + 1;
 
-        this.user = userAndHost[0];
-        this.host = userAndHost[1];
+        this.user = hostmask.substring(Math.min(userStart, at), at);
+        this.host = hostmask.substring(at + 1);
     }
 
     public String nick() {
@@ -0,0 +1,394 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import net.boreeas.irc.metrics.MetricsRegistry;
+import net.boreeas.irc.plugins.Plugin;
+import net.boreeas.irc.plugins.PluginManager;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches listener and command invocations for plugins that exceed their time
+ * budget.
+ * <p/>
+ * The dispatching thread only publishes what it is currently running in a
+ * per-thread {@link Slot}; a monitor thread samples the slots, logs the stack
+ * of invocations that run over budget and counts them as violations. After
+ * too many violations, a plugin is quarantined, i.e. disabled, or unloaded
+ * right after loading if it is still being enabled.
+ *
+ * @author Boreeas
+ */
+public class Watchdog {
+
+    private static final Log logger = LogFactory.getLog("Watchdog");
+
+    // Stack samples logged per overrunning invocation
+    private static final int MAX_SAMPLES = 3;
+    private static final int MAX_STACK_DEPTH = 12;
+
+    private final IrcBot bot;
+    private final MetricsRegistry metrics;
+    private final long defaultBudget;
+    private final int maxViolations;
+    private final Map<String, Long> budgets = new HashMap<>();
+
+    private final List<Slot> slots = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Slot> currentSlot = new ThreadLocal<Slot>() {
+        @Override
+        protected Slot initialValue() {
+            Slot slot = new Slot(Thread.currentThread());
+            slots.add(slot);
+            return slot;
+        }
+    };
+
+    private final Map<Plugin, AtomicInteger> violations = new ConcurrentHashMap<>();
+    private final Queue<Plugin> toQuarantine = new ConcurrentLinkedQueue<>();
+    private volatile Thread monitor;
+
+    /**
+     * Creates a watchdog.
+     * @param bot           The bot whose plugins are quarantined
+     * @param metrics       The registry the violations are counted in
+     * @param budgetMillis  The default time budget per invocation
+     * @param maxViolations The number of violations after which a plugin is
+     *                      quarantined, or 0 to never quarantine
+     */
+    public Watchdog(IrcBot bot, MetricsRegistry metrics, long budgetMillis, int maxViolations) {
+        this.bot = bot;
+        this.metrics = metrics;
+        this.defaultBudget = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.maxViolations = maxViolations;
+    }
+
+    /**
+     * Sets a different budget for a plugin. Only affects listeners and
+     * commands that are registered afterwards.
+     * @param pluginName   The name of the plugin
+     * @param budgetMillis The budget per invocation
+     */
+    public synchronized void setBudget(String pluginName, long budgetMillis) {
+        budgets.put(pluginName.toLowerCase(), TimeUnit.MILLISECONDS.toNanos(budgetMillis));
+    }
+
+    /**
+     * Creates the watch target for a listener or command.
+     * @param plugin      The plugin that owns it, or <code>null</code> for the
+     *                    bot's own listeners, which are never quarantined
+     * @param description What is invoked, used in log messages
+     * @return The target
+     */
+    synchronized Target target(Plugin plugin, String description) {
+
+        Long budget = plugin == null ? null : budgets.get(plugin.getPluginName().toLowerCase());
+        return new Target(plugin, description, budget == null ? defaultBudget : budget);
+    }
+
+    /**
+     * Returns the slot of the current thread, which must be used around every
+     * watched invocation.
+     * @return The slot
+     */
+    Slot slot() {
+        return currentSlot.get();
+    }
+
+    public void start() {
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                monitorLoop();
+            }
+        }, "Watchdog");
+
+        thread.setDaemon(true);
+        monitor = thread;
+        thread.start();
+    }
+
+    public void stop() {
+
+        Thread thread = monitor;
+        monitor = null;
+
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void monitorLoop() {
+
+        long interval = Math.max(10, Math.min(250, TimeUnit.NANOSECONDS.toMillis(minBudget()) / 4));
+
+        while (monitor == Thread.currentThread()) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException ex) {
+                return;
+            }
+
+            check(System.nanoTime());
+            quarantinePending();
+        }
+    }
+
+    private synchronized long minBudget() {
+
+        long min = defaultBudget;
+
+        for (long budget: budgets.values()) {
+            min = Math.min(min, budget);
+        }
+
+        return min;
+    }
+
+    /**
+     * Samples all slots once. Called periodically by the monitor thread.
+     * @param now The current value of {@link System#nanoTime()}
+     */
+    void check(long now) {
+
+        for (Slot slot: slots) {
+
+            Target target = slot.target;
+
+            if (target == null) {
+                if (!slot.thread.isAlive()) {
+                    slots.remove(slot);
+                }
+                continue;
+            }
+
+            long start = slot.start;
+
+            if (slot.target != target) {
+                continue;   // Finished while we were looking
+            }
+
+            long elapsed = now - start;
+
+            if (elapsed <= target.budget) {
+                continue;
+            }
+
+            if (slot.sampledStart != start) {
+                slot.sampledStart = start;
+                slot.samples = 0;
+                slot.sampledAt = 0;
+            }
+
+            if (slot.samples < MAX_SAMPLES && now - slot.sampledAt >= target.budget) {
+
+                slot.samples++;
+                slot.sampledAt = now;
+                logger.warn(target + " has been running for " + TimeUnit.NANOSECONDS.toMillis(elapsed)
+                            + "ms on " + slot.thread.getName() + " (budget "
+                            + TimeUnit.NANOSECONDS.toMillis(target.budget) + "ms)"
+                            + format(slot.thread.getStackTrace()));
+            }
+
+            if (slot.flag(start)) {
+                violation(target);
+            }
+        }
+    }
+
+    private static String format(StackTraceElement[] stack) {
+
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < stack.length && i < MAX_STACK_DEPTH; i++) {
+            builder.append("\n\tat ").append(stack[i]);
+        }
+
+        if (stack.length > MAX_STACK_DEPTH) {
+            builder.append("\n\t... ").append(stack.length - MAX_STACK_DEPTH).append(" more");
+        }
+
+        return builder.toString();
+    }
+
+    private void violation(Target target) {
+
+        String owner = target.plugin == null ? EventPump.PERMANENT_TAG : target.plugin.getPluginName();
+        metrics.counter(MetricsRegistry.tagged("watchdog_violations_total", "plugin", owner)).inc();
+
+        if (maxViolations <= 0 || target.plugin == null) {
+            return;
+        }
+
+        AtomicInteger count = violations.get(target.plugin);
+
+        if (count == null) {
+            violations.putIfAbsent(target.plugin, new AtomicInteger());
+            count = violations.get(target.plugin);
+        }
+
+        if (count.incrementAndGet() >= maxViolations && !toQuarantine.contains(target.plugin)) {
+            // Never quarantine from the dispatching thread
+            toQuarantine.add(target.plugin);
+        }
+    }
+
+    /**
+     * Returns the number of budget violations of a plugin.
+     * @param plugin The plugin
+     * @return The number of violations
+     */
+    public int violations(Plugin plugin) {
+
+        AtomicInteger count = violations.get(plugin);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Drops the violation count of a plugin that was unloaded.
+     * @param plugin The plugin
+     */
+    public void forget(Plugin plugin) {
+        violations.remove(plugin);
+        toQuarantine.remove(plugin);
+    }
+
+    void quarantinePending() {
+
+        Plugin plugin;
+
+        while ((plugin = toQuarantine.poll()) != null) {
+            logger.error("Quarantining plugin " + plugin.getPluginName() + " after " + maxViolations
+                         + " time budget violations");
+            // Start over, so that a plugin that escaped is quarantined again
+            AtomicInteger count = violations.get(plugin);
+            if (count != null) {
+                count.set(0);
+            }
+
+            try {
+                quarantine(plugin);
+            } catch (RuntimeException ex) {
+                logger.error("Unable to quarantine plugin " + plugin.getPluginName(), ex);
+            }
+        }
+    }
+
+    /**
+     * Disables the plugin, or schedules it to be unloaded if it is still
+     * being enabled. Does nothing if it was already unloaded.
+     * @param plugin The plugin
+     */
+    void quarantine(Plugin plugin) {
+
+        PluginManager pluginManager = bot.getPluginManager();
+
+        // Keeps the plugin from finishing its enable in between
+        synchronized (pluginManager) {
+            if (pluginManager.getPlugin(plugin.getPluginName()) == plugin) {
+                pluginManager.disablePlugin(plugin);
+            } else if (!pluginManager.scheduleImmediateUnload(plugin)) {
+                logger.info("Plugin " + plugin.getPluginName() + " was already unloaded");
+            }
+        }
+    }
+
+    /**
+     * A listener or command of a plugin, with its budget.
+     */
+    static final class Target {
+
+        private final Plugin plugin;
+        private final String description;
+        private final long budget;
+
+        private Target(Plugin plugin, String description, long budget) {
+            this.plugin = plugin;
+            this.description = description;
+            this.budget = budget;
+        }
+
+        @Override
+        public String toString() {
+            return (plugin == null ? EventPump.PERMANENT_TAG : plugin.getPluginName()) + ": " + description;
+        }
+    }
+
+    /**
+     * What a thread is currently running. Only the outermost invocation is
+     * published, so time spent in nested dispatches (e.g. a listener that
+     * sends a message) is charged to the plugin that caused it.
+     */
+    final class Slot {
+
+        private final Thread thread;
+        private int depth;
+
+        // Written by the owning thread; start before target
+        private long start;
+        private volatile Target target;
+
+        // Used by the monitor thread
+        private long sampledStart;
+        private long sampledAt;
+        private int samples;
+        // Start of the invocation that was counted as a violation last
+        private long flagged;
+
+        private Slot(Thread thread) {
+            this.thread = thread;
+        }
+
+        void enter(Target invoked, long startNanos) {
+
+            if (depth++ == 0) {
+                start = startNanos;
+                target = invoked;
+            }
+        }
+
+        void exit(Target invoked, long startNanos, long endNanos) {
+
+            boolean outermost = --depth == 0;
+
+            if (outermost) {
+                target = null;
+            }
+
+            // The monitor may already have counted it if it was the outermost invocation
+            if (endNanos - startNanos > invoked.budget && (!outermost || flag(startNanos))) {
+                logger.warn(invoked + " took " + TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos)
+                            + "ms (budget " + TimeUnit.NANOSECONDS.toMillis(invoked.budget) + "ms)");
+                violation(invoked);
+            }
+        }
+
+        /**
+         * Marks the outermost invocation that started at the given time as
+         * counted. Called by both the monitor and the owning thread, so that
+         * whichever comes first counts it.
+         * @return <code>true</code> if it wasn't counted yet
+         */
+        synchronized boolean flag(long startNanos) {
+
+            if (flagged == startNanos) {
+                return false;
+            }
+
+            flagged = startNanos;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import net.boreeas.irc.metrics.Counter;
+import net.boreeas.irc.metrics.Histogram;
+import net.boreeas.irc.metrics.MetricsRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Learns the accounts, hosts and prefixes of all users in a channel when the
+ * bot joins it, with one <code>WHO #channel %tnuhaf,&lt;token&gt;</code>
+ * per channel instead of a lookup per user. The token identifies the
+ * channel a 354 reply belongs to. Requires WHOX support on the server.
+ *
+ * @author Boreeas
+ */
+public class WhoxSweep {
+
+    private static final Log logger = LogFactory.getLog("WhoxSweep");
+
+    // WHOX tokens are at most three digits
+    private static final int MAX_TOKEN = 999;
+
+    private final IrcBot bot;
+    private final SendQueue queue;
+    private final AccountTracker accounts;
+
+    // token -> channel and the time its query was queued
+    private final Map<String, Pending> pending = new HashMap<>();
+    private int lastToken;
+
+    private final Counter sweeps;
+    private final Counter replies;
+    private final Histogram sweepTime;
+
+    public WhoxSweep(IrcBot bot, SendQueue queue, AccountTracker accounts, MetricsRegistry metrics) {
+
+        this.bot = bot;
+        this.queue = queue;
+        this.accounts = accounts;
+        this.sweeps = metrics.counter("whox_sweeps_total");
+        this.replies = metrics.counter("whox_replies_total");
+        this.sweepTime = metrics.histogram("whox_sweep_time_ns");
+    }
+
+    /**
+     * Forgets the sweeps in progress, e.g. after reconnecting.
+     */
+    synchronized void clear() {
+        pending.clear();
+    }
+
+    /**
+     * Updates the state from a received line.
+     * @param parts The line, as split by IrcBot.splitArgs
+     */
+    synchronized void update(String[] parts) {
+
+        if (parts.length < 3) {
+            return;
+        }
+
+        switch (parts[1]) {
+            case "JOIN":
+                if (parts[0].regionMatches(true, 0, bot.nick() + "!", 0, bot.nick().length() + 1)) {
+                    sweep(parts[2]);
+                }
+                break;
+            case "354":
+                // :server 354 me token user host nick flags account
+                if (parts.length > 8) {
+                    Pending channel = pending.get(parts[3]);
+
+                    if (channel != null) {
+                        accounts.who(channel.channel, parts[6], parts[4], parts[5], parts[7], parts[8]);
+                        replies.inc();
+                    }
+                }
+                break;
+            case "315":
+                if (parts.length > 3) {
+                    finished(parts[3]);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void sweep(String channel) {
+
+        if (!bot.getServerSupport().supports("WHOX")) {
+            return;
+        }
+
+        lastToken = lastToken % MAX_TOKEN + 1;
+        String token = String.valueOf(lastToken);
+
+        pending.put(token, new Pending(channel, System.nanoTime()));
+        queue.offer("WHO " + channel + " %tnuhaf," + token);
+        sweeps.inc();
+    }
+
+    private void finished(String channel) {
+
+        for (Map.Entry<String, Pending> entry: pending.entrySet()) {
+            if (entry.getValue().channel.equalsIgnoreCase(channel)) {
+
+                long time = System.nanoTime() - entry.getValue().queued;
+                sweepTime.record(time);
+                pending.remove(entry.getKey());
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Swept " + channel + " in " + time / 1000000 + " ms");
+                }
+                return;
+            }
+        }
+    }
+
+    private static class Pending {
+
+        private final String channel;
+        private final long queued;
+
+        Pending(String channel, long queued) {
+            this.channel = channel;
+            this.queued = queued;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.acl;
+
+import net.boreeas.irc.BotAccessLevel;
+import net.boreeas.irc.User;
+
+import java.util.*;
+
+/**
+ * The rules that grant bot access levels. A rule is either
+ * <ul>
+ * <li>an account name, e.g. <code>boreeas</code>,</li>
+ * <li>a <code>nick!user@host</code> glob, e.g. <code>*!*@staff.example.net</code>,
+ * or</li>
+ * <li>a <code>nick!user@address/bits</code> range, e.g.
+ * <code>*!*@192.168.0.0/16</code>,</li>
+ * </ul>
+ * and applies either everywhere or in one channel only. Host rules are
+ * compiled into one automaton and one address trie, so that a hostmask is
+ * matched against all of them in one pass and without asking the server.
+ * <p/>
+ * The list is safe for concurrent use. Changes recompile the rules and
+ * replace them at once.
+ *
+ * @author Boreeas
+ */
+public class AccessList {
+
+    private final List<Rule> rules = new ArrayList<>();
+    private volatile Compiled compiled = new Compiled(Collections.<Rule>emptyList());
+
+    /**
+     * Adds a rule. An existing rule with the same pattern and scope is
+     * replaced.
+     *
+     * @param channel The channel the rule applies in, or <code>null</code>
+     *                for all channels and private messages
+     * @param pattern The account, hostmask glob or address range
+     * @param level   The access level to grant
+     * @throws IllegalArgumentException If the pattern is not valid
+     */
+    public synchronized void add(String channel, String pattern, BotAccessLevel level) {
+
+        Rule rule = new Rule(channel, pattern, level);
+        rules.remove(rule);
+        rules.add(rule);
+
+        try {
+            compiled = new Compiled(rules);
+        } catch (IllegalArgumentException ex) {
+            rules.remove(rule);
+            throw ex;
+        }
+    }
+
+    /**
+     * Removes a rule.
+     *
+     * @param channel The channel of the rule, or <code>null</code>
+     * @param pattern The pattern of the rule
+     * @return <code>true</code> if there was such a rule
+     */
+    public synchronized boolean remove(String channel, String pattern) {
+
+        if (!rules.remove(new Rule(channel, pattern, null))) {
+            return false;
+        }
+
+        compiled = new Compiled(rules);
+        return true;
+    }
+
+    /**
+     * Adds, replaces and removes many rules of one scope at once. The rules
+     * are compiled once, instead of once per rule.
+     *
+     * @param channel The channel the rules apply in, or <code>null</code>
+     * @param levels  pattern -> level to grant, or <code>null</code> to
+     *                remove the rule
+     * @throws IllegalArgumentException If a pattern is not valid. No rule
+     *                                  is changed then.
+     */
+    public synchronized void update(String channel, Map<String, BotAccessLevel> levels) {
+
+        Set<Rule> updated = new LinkedHashSet<>(rules);
+
+        for (Map.Entry<String, BotAccessLevel> entry: levels.entrySet()) {
+            Rule rule = new Rule(channel, entry.getKey(), entry.getValue());
+            updated.remove(rule);
+
+            if (rule.level != null) {
+                updated.add(rule);
+            }
+        }
+
+        List<Rule> list = new ArrayList<>(updated);
+        compiled = new Compiled(list);
+
+        rules.clear();
+        rules.addAll(list);
+    }
+
+    public synchronized void clear() {
+        rules.clear();
+        compiled = new Compiled(rules);
+    }
+
+    /**
+     * Returns the level an account rule grants to an account.
+     *
+     * @param account The account
+     * @param channel The channel, or <code>null</code> for global rules only
+     * @return The highest level, or <code>null</code> if no rule applies
+     */
+    public BotAccessLevel matchAccount(String account, String channel) {
+        return highest(compiled.accounts.get(account.toLowerCase()), channel);
+    }
+
+    /**
+     * Returns the level the hostmask and address rules grant to a user.
+     *
+     * @param user    The user
+     * @param channel The channel, or <code>null</code> for global rules only
+     * @return The highest level, or <code>null</code> if no rule applies
+     */
+    public BotAccessLevel matchHost(User user, String channel) {
+
+        Compiled current = compiled;
+
+        BotAccessLevel byMask = highest(current.masks.match(user.toString()), channel);
+        BotAccessLevel byRange = null;
+
+        for (Rule rule: current.ranges.match(user.host())) {
+            if (rule.appliesIn(channel) && (byRange == null || rule.level.compareTo(byRange) > 0)
+                && rule.prefix.match(user.nick() + "!" + user.user()).size() > 0) {
+                byRange = rule.level;
+            }
+        }
+
+        return max(byMask, byRange);
+    }
+
+    /**
+     * Returns whether any account rule could grant the level in the channel.
+     * If not, there is no need to look up a user's account to check for it.
+     *
+     * @param level   The level
+     * @param channel The channel, or <code>null</code> for global rules only
+     * @return <code>true</code> if some account rule grants the level
+     */
+    public boolean grantsByAccount(BotAccessLevel level, String channel) {
+
+        for (List<Rule> byAccount: compiled.accounts.values()) {
+            for (Rule rule: byAccount) {
+                if (rule.appliesIn(channel) && rule.level.compareTo(level) >= 0) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the rules, grouped by channel. Global rules have the key
+     * <code>null</code>.
+     *
+     * @return pattern -> level, by channel
+     */
+    public synchronized Map<String, Map<String, BotAccessLevel>> getRules() {
+
+        Map<String, Map<String, BotAccessLevel>> result = new LinkedHashMap<>();
+
+        for (Rule rule: rules) {
+            Map<String, BotAccessLevel> byPattern = result.get(rule.channel);
+            if (byPattern == null) {
+                byPattern = new LinkedHashMap<>();
+                result.put(rule.channel, byPattern);
+            }
+            byPattern.put(rule.pattern, rule.level);
+        }
+
+        return result;
+    }
+
+    public static BotAccessLevel max(BotAccessLevel a, BotAccessLevel b) {
+
+        if (a == null) {
+            return b;
+        }
+
+        return b == null || a.compareTo(b) >= 0 ? a : b;
+    }
+
+    private static BotAccessLevel highest(List<Rule> matched, String channel) {
+
+        BotAccessLevel level = null;
+
+        if (matched != null) {
+            for (Rule rule: matched) {
+                if (rule.appliesIn(channel)) {
+                    level = max(level, rule.level);
+                }
+            }
+        }
+
+        return level;
+    }
+
+    private static class Rule {
+
+        private final String channel;
+        private final String pattern;
+        private final BotAccessLevel level;
+        // For address ranges, the glob for the nick!user part
+        private final GlobAutomaton<Boolean> prefix;
+
+        Rule(String channel, String pattern, BotAccessLevel level) {
+
+            this.channel = channel == null ? null : channel.toLowerCase();
+            this.pattern = pattern.toLowerCase();
+            this.level = level;
+
+            int at = this.pattern.lastIndexOf('@');
+
+            if (isRange()) {
+                prefix = new GlobAutomaton<>();
+                prefix.add(this.pattern.substring(0, at), Boolean.TRUE);
+            } else {
+                prefix = null;
+            }
+        }
+
+        boolean isAccount() {
+            return pattern.indexOf('@') == -1 && pattern.indexOf('!') == -1;
+        }
+
+        boolean isRange() {
+            int at = pattern.lastIndexOf('@');
+            return at != -1 && pattern.indexOf('/', at) != -1;
+        }
+
+        String host() {
+            return pattern.substring(pattern.lastIndexOf('@') + 1);
+        }
+
+        boolean appliesIn(String channel) {
+            return this.channel == null || this.channel.equalsIgnoreCase(channel);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+
+            if (!(other instanceof Rule)) {
+                return false;
+            }
+
+            Rule rule = (Rule) other;
+            return pattern.equals(rule.pattern)
+                   && (channel == null ? rule.channel == null : channel.equals(rule.channel));
+        }
+
+        @Override
+        public int hashCode() {
+            return pattern.hashCode();
+        }
+    }
+
+    /**
+     * The rules, compiled for matching.
+     */
+    private static class Compiled {
+
+        private final Map<String, List<Rule>> accounts = new HashMap<>();
+        private final GlobAutomaton<Rule> masks = new GlobAutomaton<>();
+        private final CidrTrie<Rule> ranges = new CidrTrie<>();
+
+        Compiled(List<Rule> rules) {
+
+            for (Rule rule: rules) {
+
+                if (rule.isAccount()) {
+                    List<Rule> byAccount = accounts.get(rule.pattern);
+                    if (byAccount == null) {
+                        byAccount = new ArrayList<>(1);
+                        accounts.put(rule.pattern, byAccount);
+                    }
+                    byAccount.add(rule);
+                } else if (rule.isRange()) {
+                    ranges.add(rule.host(), rule);
+                } else {
+                    masks.add(rule.pattern, rule);
+                }
+            }
+        }
+    }
+}
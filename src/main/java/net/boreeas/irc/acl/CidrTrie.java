@@ -0,0 +1,146 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.acl;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Address ranges in CIDR notation, stored in a binary trie per address
+ * family. Looking up an address walks its bits once and collects the values
+ * of every range it lies in.
+ *
+ * @param <T> The value attached to each range
+ * @author Boreeas
+ */
+class CidrTrie<T> {
+
+    private final Node<T> ipv4 = new Node<>();
+    private final Node<T> ipv6 = new Node<>();
+    private int size;
+
+    /**
+     * Adds a range.
+     * @param cidr  The range, e.g. "10.0.0.0/8" or "2001:db8::/32"
+     * @param value The value to return for addresses in the range
+     * @throws IllegalArgumentException If the range is not valid
+     */
+    void add(String cidr, T value) {
+
+        int slash = cidr.indexOf('/');
+        byte[] address = parse(slash == -1 ? cidr : cidr.substring(0, slash));
+
+        if (address == null) {
+            throw new IllegalArgumentException("Not an address range: " + cidr);
+        }
+
+        int bits;
+        try {
+            bits = slash == -1 ? address.length * 8 : Integer.parseInt(cidr.substring(slash + 1));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Not an address range: " + cidr, ex);
+        }
+
+        if (bits < 0 || bits > address.length * 8) {
+            throw new IllegalArgumentException("Invalid prefix length in " + cidr);
+        }
+
+        Node<T> node = address.length == 4 ? ipv4 : ipv6;
+
+        for (int i = 0; i < bits; i++) {
+            int bit = bit(address, i);
+
+            if (node.children[bit] == null) {
+                node.children[bit] = new Node<>();
+            }
+            node = node.children[bit];
+        }
+
+        node.values.add(value);
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the values of all ranges the host lies in.
+     * @param host The host, matched only if it is an IP address
+     * @return The values, possibly empty
+     */
+    List<T> match(String host) {
+
+        byte[] address = size == 0 ? null : parse(host);
+
+        if (address == null) {
+            return Collections.emptyList();
+        }
+
+        List<T> matched = new ArrayList<>();
+        Node<T> node = address.length == 4 ? ipv4 : ipv6;
+
+        for (int i = 0; node != null; i++) {
+            matched.addAll(node.values);
+            node = i < address.length * 8 ? node.children[bit(address, i)] : null;
+        }
+
+        return matched;
+    }
+
+    private static int bit(byte[] address, int index) {
+        return (address[index / 8] >> (7 - index % 8)) & 1;
+    }
+
+    /**
+     * Parses an IP address literal, without resolving host names.
+     * @return The address, or <code>null</code> if it is not a literal
+     */
+    static byte[] parse(String host) {
+
+        if (host.isEmpty()) {
+            return null;
+        }
+
+        boolean colon = false;
+        boolean dot = false;
+
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+
+            if (c == ':') {
+                colon = true;
+            } else if (c == '.') {
+                dot = true;
+            } else if (Character.digit(c, 16) == -1) {
+                return null;
+            }
+        }
+
+        // Only dots and decimal digits for IPv4, cloaks like "dead.beef" aren't addresses
+        if (!colon && (!dot || !host.matches("[0-9.]+"))) {
+            return null;
+        }
+
+        try {
+            return InetAddress.getByName(host).getAddress();
+        } catch (UnknownHostException ex) {
+            return null;
+        }
+    }
+
+    private static class Node<T> {
+
+        private final Node<T>[] children = newChildren();
+        private final List<T> values = new ArrayList<>(1);
+
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newChildren() {
+            return (Node<T>[]) new Node<?>[2];
+        }
+    }
+}
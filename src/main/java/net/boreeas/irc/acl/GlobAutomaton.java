@@ -0,0 +1,130 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.acl;
+
+import java.util.*;
+
+/**
+ * Any number of case-insensitive glob patterns (<code>*</code> and
+ * <code>?</code>), compiled into one trie-shaped automaton. An input is
+ * matched against all patterns at once in a single pass, by following every
+ * path of the trie that the input can take.
+ *
+ * @param <T> The value attached to each pattern
+ * @author Boreeas
+ */
+class GlobAutomaton<T> {
+
+    private final Node<T> root = new Node<>();
+    private int size;
+
+    /**
+     * Adds a pattern to the automaton.
+     * @param pattern The pattern
+     * @param value   The value to return when the pattern matches
+     */
+    void add(String pattern, T value) {
+
+        Node<T> node = root;
+
+        for (char c: pattern.toLowerCase().toCharArray()) {
+            if (c == '*') {
+                if (!node.loop) {
+                    if (node.star == null) {
+                        node.star = new Node<>();
+                        node.star.loop = true;
+                    }
+                    node = node.star;
+                }
+            } else if (c == '?') {
+                if (node.any == null) {
+                    node.any = new Node<>();
+                }
+                node = node.any;
+            } else {
+                Node<T> next = node.next.get(c);
+                if (next == null) {
+                    next = new Node<>();
+                    node.next.put(c, next);
+                }
+                node = next;
+            }
+        }
+
+        node.values.add(value);
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the values of all patterns that match the whole input.
+     * @param input The input
+     * @return The values, possibly empty
+     */
+    List<T> match(String input) {
+
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+
+        Set<Node<T>> active = Collections.newSetFromMap(new IdentityHashMap<Node<T>, Boolean>());
+        enter(root, active);
+
+        for (int i = 0; i < input.length() && !active.isEmpty(); i++) {
+
+            char c = Character.toLowerCase(input.charAt(i));
+            Set<Node<T>> next = Collections.newSetFromMap(new IdentityHashMap<Node<T>, Boolean>());
+
+            for (Node<T> node: active) {
+                if (node.loop) {
+                    next.add(node);
+                }
+
+                Node<T> exact = node.next.get(c);
+                if (exact != null) {
+                    enter(exact, next);
+                }
+
+                if (node.any != null) {
+                    enter(node.any, next);
+                }
+            }
+
+            active = next;
+        }
+
+        List<T> matched = new ArrayList<>();
+
+        for (Node<T> node: active) {
+            matched.addAll(node.values);
+        }
+
+        return matched;
+    }
+
+    /**
+     * Activates a node and, since a star may match nothing, its star.
+     */
+    private static <T> void enter(Node<T> node, Set<Node<T>> active) {
+
+        active.add(node);
+
+        if (node.star != null) {
+            active.add(node.star);
+        }
+    }
+
+    private static class Node<T> {
+
+        private final Map<Character, Node<T>> next = new HashMap<>(4);
+        private Node<T> any;
+        private Node<T> star;
+        // Star nodes consume any character and stay active
+        private boolean loop;
+        private final List<T> values = new ArrayList<>(1);
+    }
+}
@@ -4,6 +4,7 @@
  */
 package net.boreeas.irc.events;
 
+import net.boreeas.irc.ModeChange;
 import net.boreeas.irc.User;
 
 import java.util.*;
@@ -38,6 +39,7 @@ public class ChannelModeChangeEvent extends Event {
     private String channel;
     private Map<Character, String> addedModes;
     private Map<Character, String> removedModes;
+    private List<ModeChange> changes;
 
     public ChannelModeChangeEvent(User user, String channel,
                                   Map<Character, String> added,
@@ -47,6 +49,15 @@ public class ChannelModeChangeEvent extends Event {
         this.channel = channel;
         this.addedModes = added;
         this.removedModes = removed;
+        this.changes = new ArrayList<ModeChange>(added.size() + removed.size());
+
+        for (Map.Entry<Character, String> entry: added.entrySet()) {
+            changes.add(new ModeChange(true, entry.getKey(), entry.getValue()));
+        }
+
+        for (Map.Entry<Character, String> entry: removed.entrySet()) {
+            changes.add(new ModeChange(false, entry.getKey(), entry.getValue()));
+        }
     }
 
     public ChannelModeChangeEvent(User user, String channel, String modes, String[] params) {
@@ -55,6 +66,7 @@ public class ChannelModeChangeEvent extends Event {
         this.channel = channel;
         this.addedModes = new HashMap<Character, String>();
         this.removedModes = new HashMap<Character, String>();
+        this.changes = new ArrayList<ModeChange>(modes.length());
 
         boolean adding = true;
         int paramIndex = 0;
@@ -74,12 +86,14 @@ public class ChannelModeChangeEvent extends Event {
                 (adding
                  ? addedModes
                  : removedModes).put(mode, params[paramIndex]);
+                changes.add(new ModeChange(adding, mode, params[paramIndex]));
                 paramIndex++;
             } else {
 
                 (adding
                  ? addedModes
                  : removedModes).put(mode, "");
+                changes.add(new ModeChange(adding, mode, ""));
             }
         }
     }
@@ -99,4 +113,14 @@ public class ChannelModeChangeEvent extends Event {
     public Map<Character, String> removedModes() {
         return Collections.unmodifiableMap(removedModes);
     }
+
+    /**
+     * Returns all mode changes in the order they were received. Unlike
+     * {@link #addedModes()} and {@link #removedModes()}, this contains every
+     * change to list modes such as +b.
+     * @return The mode changes
+     */
+    public List<ModeChange> changes() {
+        return Collections.unmodifiableList(changes);
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.events;
+
+import net.boreeas.irc.BotConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fired after the configuration file changed and was reloaded.
+ *
+ * @author Boreeas
+ */
+public class ConfigChangedEvent extends Event {
+
+    private final BotConfig previous;
+    private final BotConfig current;
+
+    public ConfigChangedEvent(BotConfig previous, BotConfig current) {
+        this.previous = previous;
+        this.current = current;
+    }
+
+    public BotConfig previous() {
+        return previous;
+    }
+
+    public BotConfig current() {
+        return current;
+    }
+
+    /**
+     * Returns the channels that were added to the configured channels.
+     * @return The channels
+     */
+    public List<String> channelsAdded() {
+        return missing(current.channels(), previous.channels());
+    }
+
+    /**
+     * Returns the channels that were removed from the configured channels.
+     * @return The channels
+     */
+    public List<String> channelsRemoved() {
+        return missing(previous.channels(), current.channels());
+    }
+
+    /**
+     * Returns whether any access list changed.
+     * @return <code>true</code> if access levels have to be reloaded
+     */
+    public boolean accessChanged() {
+        return !previous.access().equals(current.access());
+    }
+
+    private static List<String> missing(List<String> from, List<String> in) {
+
+        List<String> result = new ArrayList<>();
+
+        for (String channel: from) {
+            if (!containsIgnoreCase(in, channel)) {
+                result.add(channel);
+            }
+        }
+
+        return result;
+    }
+
+    private static boolean containsIgnoreCase(List<String> channels, String channel) {
+
+        for (String other: channels) {
+            if (other.equalsIgnoreCase(channel)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -13,6 +13,11 @@ public class Event {
 
     private boolean cancelled;
 
+    // Set for instances owned by an EventPool
+    boolean pooled;
+    // Set while a pooled instance is being dispatched
+    boolean acquired;
+
     public void setCancelled(boolean cancelled) {
         this.cancelled = cancelled;
     }
@@ -20,4 +25,27 @@ public class Event {
     public boolean isCancelled() {
         return cancelled;
     }
+
+    /**
+     * Returns whether this instance is reused for later events. Pooled events
+     * are only valid until the listener returns.
+     * @return <code>true</code> if this event is pooled
+     */
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    /**
+     * Returns an instance of this event that stays valid after dispatch.
+     * Listeners that keep a reference to an event must use this, since pooled
+     * events are overwritten with the next received line.
+     * @return This event, or a copy if this event is pooled
+     */
+    public Event retain() {
+        return this;
+    }
+
+    void recycle() {
+        cancelled = false;
+    }
 }
@@ -27,14 +27,18 @@ public class EventListener {
     public void onUserChangedNick(UserChangedNickEvent evt)  {}
     public void onChannelModeChange(ChannelModeChangeEvent evt)  {}
     public void onNamesReceived(NamesReceivedEvent evt) {}
+    public void onListModeEntry(ListModeEntryEvent evt) {}
+    public void onListModeEnd(ListModeEndEvent evt) {}
 
     public void onPingReceived(PingEvent evt)  {}
     public void onWelcomeReceived(WelcomeReceivedEvent evt)  {}
     public void onSupportListReceived(SupportListReceivedEvent evt)  {}
     public void onConnected(ConnectedEvent evt)  {}
     public void onConnectionInterrupted(ConnectionInterruptedEvent evt)  {}
+    public void onConfigChanged(ConfigChangedEvent evt)  {}
     public void onServerNotice(ServerNoticeEvent evt)  {}
     public void onCommandTriggered(CommandTriggeredEvent evt)  {}
+    public void onTriggerMatched(TriggerMatchedEvent evt)  {}
     public void onToggleMute(ToggleMuteEvent evt)  {}
     public void onAccessLevelChange(AccessLevelChangeEvent evt)  {}
 
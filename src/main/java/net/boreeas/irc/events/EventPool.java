@@ -0,0 +1,117 @@
+/*
+ * This file is public domain
+ */
+
+package net.boreeas.irc.events;
+
+/**
+ * Per-thread instances of the events that are fired for almost every
+ * received line. Instead of allocating a new event (and user) per line, the
+ * pooled instance is overwritten and dispatched again. If a pooled instance
+ * is still being dispatched further up the stack - for example because a
+ * listener read more lines while waiting for a reply - a fresh instance is
+ * returned instead.
+ * <p/>
+ * Listeners that keep a pooled event past dispatch must call
+ * {@link Event#retain()}.
+ *
+ * @author Boreeas
+ */
+public final class EventPool {
+
+    private static final ThreadLocal<EventPool> pools = ThreadLocal.withInitial(EventPool::new);
+
+    private final MessageReceivedEvent message = pooled(new MessageReceivedEvent(null, null, null));
+    private final MessageReceivedEvent notice = pooled(new MessageReceivedEvent(null, null, null));
+    private final UserJoinedChannelEvent join = pooled(new UserJoinedChannelEvent(null, null));
+    private final UserLeftChannelEvent part = pooled(new UserLeftChannelEvent(null, null));
+    private final UserQuitNetworkEvent quit = pooled(new UserQuitNetworkEvent(null, null));
+    private final PingEvent ping = pooled(new PingEvent(null));
+
+    private EventPool() {
+    }
+
+    /**
+     * Returns the pool of the calling thread.
+     * @return The pool
+     */
+    public static EventPool forCurrentThread() {
+        return pools.get();
+    }
+
+    public MessageReceivedEvent message(String hostmask, String target, String msg) {
+        return message(message, hostmask, target, msg);
+    }
+
+    public MessageReceivedEvent notice(String hostmask, String target, String msg) {
+        return message(notice, hostmask, target, msg);
+    }
+
+    private MessageReceivedEvent message(MessageReceivedEvent slot, String hostmask,
+                                         String target, String msg) {
+
+        MessageReceivedEvent evt = acquire(slot)
+                                   ? slot
+                                   : new MessageReceivedEvent(null, null, null);
+        evt.reset(hostmask, target, msg);
+        return evt;
+    }
+
+    public UserJoinedChannelEvent join(String hostmask, String channel) {
+
+        UserJoinedChannelEvent evt = acquire(join)
+                                     ? join
+                                     : new UserJoinedChannelEvent(null, null);
+        evt.reset(hostmask, channel);
+        return evt;
+    }
+
+    public UserLeftChannelEvent part(String hostmask, String channel, String reason) {
+
+        UserLeftChannelEvent evt = acquire(part)
+                                   ? part
+                                   : new UserLeftChannelEvent(null, null);
+        evt.reset(hostmask, channel, reason);
+        return evt;
+    }
+
+    public UserQuitNetworkEvent quit(String hostmask, String reason) {
+
+        UserQuitNetworkEvent evt = acquire(quit)
+                                   ? quit
+                                   : new UserQuitNetworkEvent(null, null);
+        evt.reset(hostmask, reason);
+        return evt;
+    }
+
+    public PingEvent ping(String code) {
+
+        PingEvent evt = acquire(ping) ? ping : new PingEvent(null);
+        evt.reset(code);
+        return evt;
+    }
+
+    /**
+     * Makes a pooled event available again. Must be called once the event has
+     * been dispatched.
+     * @param evt The event
+     */
+    public void release(Event evt) {
+        evt.acquired = false;
+    }
+
+    private static boolean acquire(Event slot) {
+
+        if (slot.acquired) {
+            return false;
+        }
+
+        slot.acquired = true;
+        return true;
+    }
+
+    private static <T extends Event> T pooled(T evt) {
+        evt.pooled = true;
+        return evt;
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * This file is public domain
+ */
+
+package net.boreeas.irc.events;
+
+/**
+ * Fired when the server has sent all entries of a channel list mode.
+ *
+ * @author Boreeas
+ */
+public class ListModeEndEvent extends Event {
+
+    private String channel;
+    private char mode;
+
+    public ListModeEndEvent(String channel, char mode) {
+        this.channel = channel;
+        this.mode = mode;
+    }
+
+    public String channel() {
+        return channel;
+    }
+
+    public char mode() {
+        return mode;
+    }
+}
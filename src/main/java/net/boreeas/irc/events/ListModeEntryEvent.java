@@ -0,0 +1,36 @@
+/*
+ * This file is public domain
+ */
+
+package net.boreeas.irc.events;
+
+/**
+ * Fired for each entry of a channel list mode (bans, ban exceptions, invite
+ * exceptions) the server sends in reply to a list request.
+ *
+ * @author Boreeas
+ */
+public class ListModeEntryEvent extends Event {
+
+    private String channel;
+    private char mode;
+    private String mask;
+
+    public ListModeEntryEvent(String channel, char mode, String mask) {
+        this.channel = channel;
+        this.mode = mode;
+        this.mask = mask;
+    }
+
+    public String channel() {
+        return channel;
+    }
+
+    public char mode() {
+        return mode;
+    }
+
+    public String mask() {
+        return mask;
+    }
+}
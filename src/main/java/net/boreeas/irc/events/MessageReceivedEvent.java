@@ -14,6 +14,8 @@ import net.boreeas.irc.User;
 public class MessageReceivedEvent extends Event {
 
     private User user;
+    // Parsed into user on first access
+    private String hostmask;
     private String target;
     private String message;
 
@@ -23,7 +25,20 @@ public class MessageReceivedEvent extends Event {
         this.message = message;
     }
 
+    void reset(String hostmask, String target, String message) {
+        recycle();
+        this.user = null;
+        this.hostmask = hostmask;
+        this.target = target;
+        this.message = message;
+    }
+
     public User user() {
+
+        if (user == null && hostmask != null) {
+            user = new User(hostmask);
+        }
+
         return user;
     }
 
@@ -34,4 +49,16 @@ public class MessageReceivedEvent extends Event {
     public String message() {
         return message;
     }
+
+    public MessageReceivedEvent copy() {
+
+        MessageReceivedEvent copy = new MessageReceivedEvent(user(), target, message);
+        copy.setCancelled(isCancelled());
+        return copy;
+    }
+
+    @Override
+    public MessageReceivedEvent retain() {
+        return isPooled() ? copy() : this;
+    }
 }
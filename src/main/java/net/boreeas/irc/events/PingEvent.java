@@ -17,7 +17,24 @@ public class PingEvent extends Event {
         this.code = code;
     }
 
+    void reset(String code) {
+        recycle();
+        this.code = code;
+    }
+
     public String code() {
         return code;
     }
+
+    public PingEvent copy() {
+
+        PingEvent copy = new PingEvent(code);
+        copy.setCancelled(isCancelled());
+        return copy;
+    }
+
+    @Override
+    public PingEvent retain() {
+        return isPooled() ? copy() : this;
+    }
 }
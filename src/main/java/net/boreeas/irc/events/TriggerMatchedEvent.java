@@ -0,0 +1,73 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.events;
+
+import net.boreeas.irc.User;
+import net.boreeas.irc.plugins.Plugin;
+import net.boreeas.irc.triggers.Trigger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.MatchResult;
+
+/**
+ * Fired when a message contains triggers a plugin registered. Only the
+ * listeners of that plugin receive it.
+ *
+ * @author Boreeas
+ */
+public class TriggerMatchedEvent extends Event {
+
+    private final Plugin plugin;
+    private final User user;
+    private final String target;
+    private final String message;
+    private final Map<Trigger, MatchResult> matches;
+
+    public TriggerMatchedEvent(Plugin plugin, User user, String target, String message,
+                               Map<Trigger, MatchResult> matches) {
+        this.plugin = plugin;
+        this.user = user;
+        this.target = target;
+        this.message = message;
+        this.matches = matches;
+    }
+
+    /**
+     * @return The plugin whose triggers matched
+     */
+    public Plugin plugin() {
+        return plugin;
+    }
+
+    public User user() {
+        return user;
+    }
+
+    public String target() {
+        return target;
+    }
+
+    public String message() {
+        return message;
+    }
+
+    /**
+     * @return The triggers of the plugin that matched
+     */
+    public List<Trigger> triggers() {
+        return new ArrayList<>(matches.keySet());
+    }
+
+    /**
+     * Returns where a trigger matched first. For regular expressions, the
+     * result includes the groups.
+     * @param trigger The trigger
+     * @return The match, or <code>null</code> if the trigger didn't match
+     */
+    public MatchResult match(Trigger trigger) {
+        return matches.get(trigger);
+    }
+}
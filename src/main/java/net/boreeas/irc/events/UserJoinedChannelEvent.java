@@ -14,6 +14,8 @@ import net.boreeas.irc.User;
 public class UserJoinedChannelEvent extends Event {
 
     private User user;
+    // Parsed into user on first access
+    private String hostmask;
     private String channel;
 
     public UserJoinedChannelEvent(User user, String channel) {
@@ -21,11 +23,35 @@ public class UserJoinedChannelEvent extends Event {
         this.channel = channel;
     }
 
+    void reset(String hostmask, String channel) {
+        recycle();
+        this.user = null;
+        this.hostmask = hostmask;
+        this.channel = channel;
+    }
+
     public User getName() {
+
+        if (user == null && hostmask != null) {
+            user = new User(hostmask);
+        }
+
         return user;
     }
 
     public String getChannel() {
         return channel;
     }
+
+    public UserJoinedChannelEvent copy() {
+
+        UserJoinedChannelEvent copy = new UserJoinedChannelEvent(getName(), channel);
+        copy.setCancelled(isCancelled());
+        return copy;
+    }
+
+    @Override
+    public UserJoinedChannelEvent retain() {
+        return isPooled() ? copy() : this;
+    }
 }
@@ -14,6 +14,8 @@ import net.boreeas.irc.User;
 public class UserLeftChannelEvent extends Event {
 
     private User user;
+    // Parsed into user on first access
+    private String hostmask;
     private String channel;
     private String reason = "";
 
@@ -27,7 +29,20 @@ public class UserLeftChannelEvent extends Event {
         this.reason = reason;
     }
 
+    void reset(String hostmask, String channel, String reason) {
+        recycle();
+        this.user = null;
+        this.hostmask = hostmask;
+        this.channel = channel;
+        this.reason = reason;
+    }
+
     public User getUser() {
+
+        if (user == null && hostmask != null) {
+            user = new User(hostmask);
+        }
+
         return user;
     }
 
@@ -38,4 +53,16 @@ public class UserLeftChannelEvent extends Event {
     public String getReason() {
         return reason;
     }
+
+    public UserLeftChannelEvent copy() {
+
+        UserLeftChannelEvent copy = new UserLeftChannelEvent(getUser(), channel, reason);
+        copy.setCancelled(isCancelled());
+        return copy;
+    }
+
+    @Override
+    public UserLeftChannelEvent retain() {
+        return isPooled() ? copy() : this;
+    }
 }
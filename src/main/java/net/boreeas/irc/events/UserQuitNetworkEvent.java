@@ -14,6 +14,8 @@ import net.boreeas.irc.User;
 public class UserQuitNetworkEvent extends Event {
 
     private User user;
+    // Parsed into user on first access
+    private String hostmask;
     private String reason;
 
     public UserQuitNetworkEvent(User user, String reason) {
@@ -21,11 +23,35 @@ public class UserQuitNetworkEvent extends Event {
         this.reason = reason;
     }
 
+    void reset(String hostmask, String reason) {
+        recycle();
+        this.user = null;
+        this.hostmask = hostmask;
+        this.reason = reason;
+    }
+
     public User user() {
+
+        if (user == null && hostmask != null) {
+            user = new User(hostmask);
+        }
+
         return user;
     }
 
     public String reason() {
         return reason;
     }
+
+    public UserQuitNetworkEvent copy() {
+
+        UserQuitNetworkEvent copy = new UserQuitNetworkEvent(user(), reason);
+        copy.setCancelled(isCancelled());
+        return copy;
+    }
+
+    @Override
+    public UserQuitNetworkEvent retain() {
+        return isPooled() ? copy() : this;
+    }
 }
@@ -0,0 +1,14 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.metrics;
+
+/**
+ * A value that is sampled whenever the metrics are read.
+ *
+ * @author Boreeas
+ */
+public interface Gauge {
+
+    long value();
+}
@@ -0,0 +1,123 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values, usually durations in nanoseconds.
+ * <p/>
+ * Values are counted in log-linear buckets in the style of HdrHistogram:
+ * every power of two is split into {@value #SUB_BUCKETS} equally wide
+ * buckets, so percentiles are accurate to about 12%, and recording is a
+ * single lock-free increment.
+ *
+ * @author Boreeas
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Values below SUB_BUCKETS get a bucket each, then SUB_BUCKETS per power of two
+    private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+
+        if (value < 0) {
+            value = 0;
+        }
+
+        buckets.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) {
+                break;
+            }
+        }
+    }
+
+    static int bucket(long value) {
+
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);       // >= SUB_BUCKET_BITS
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    // The largest value that falls into the bucket
+    static long upperBound(int bucket) {
+
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + subBucket) << shift;
+
+        return lower + (1L << shift) - 1;
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = count();
+        return n == 0 ? 0 : (double) sum() / n;
+    }
+
+    /**
+     * Returns an upper bound for the value below which the given fraction of
+     * all recorded values fall.
+     * @param quantile The quantile, between 0 and 1
+     * @return The approximate value at that quantile
+     */
+    public long quantile(double quantile) {
+
+        long total = count();
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+
+            seen += buckets.get(i);
+
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBound(i), max());
+            }
+        }
+
+        return max();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.metrics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.TimerTask;
+
+/**
+ * Periodically writes the metrics to a file in the Prometheus text format,
+ * e.g. for the textfile collector of the node exporter. The file is replaced
+ * atomically, so readers never see a partial export.
+ *
+ * @author Boreeas
+ */
+public class MetricsExporter extends TimerTask {
+
+    private static final Log logger = LogFactory.getLog("Metrics");
+
+    private final MetricsRegistry metrics;
+    private final File file;
+
+    public MetricsExporter(MetricsRegistry metrics, File file) {
+        this.metrics = metrics;
+        this.file = file;
+    }
+
+    @Override
+    public void run() {
+        try {
+            export();
+        } catch (IOException ex) {
+            logger.warn("Unable to export metrics to " + file, ex);
+        }
+    }
+
+    public void export() throws IOException {
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", dir);
+
+        try {
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+                metrics.writeText(out);
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the counters, histograms and gauges of one bot.
+ * <p/>
+ * Metrics are identified by a name and an optional tag, e.g. the time spent
+ * in the listeners of a plugin is recorded as
+ * <code>listener_time_ns{plugin="Core"}</code>. Asking for the same name and
+ * tag twice returns the same metric, so callers on hot paths should look
+ * their metrics up once and keep them.
+ *
+ * @author Boreeas
+ */
+public class MetricsRegistry {
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Formats a metric name with a tag.
+     * @param name     The name of the metric
+     * @param tagName  The name of the tag
+     * @param tagValue The value of the tag
+     * @return The tagged name
+     */
+    public static String tagged(String name, String tagName, String tagValue) {
+        return name + "{" + tagName + "=\"" + tagValue.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    }
+
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public void remove(String name) {
+        counters.remove(name);
+        histograms.remove(name);
+        gauges.remove(name);
+    }
+
+    /**
+     * Returns a one-line summary for every metric whose name contains the
+     * filter, sorted by name.
+     * @param filter The filter, or an empty string for all metrics
+     * @return The summaries
+     */
+    public List<String> describe(String filter) {
+
+        List<String> lines = new ArrayList<>();
+
+        for (Map.Entry<String, Counter> entry: counters.entrySet()) {
+            if (entry.getKey().contains(filter)) {
+                lines.add(entry.getKey() + " = " + entry.getValue().get());
+            }
+        }
+
+        for (Map.Entry<String, Gauge> entry: gauges.entrySet()) {
+            if (entry.getKey().contains(filter)) {
+                lines.add(entry.getKey() + " = " + entry.getValue().value());
+            }
+        }
+
+        for (Map.Entry<String, Histogram> entry: histograms.entrySet()) {
+            if (entry.getKey().contains(filter)) {
+                Histogram h = entry.getValue();
+                lines.add(entry.getKey() + ": n=" + h.count()
+                          + " mean=" + Math.round(h.mean())
+                          + " p50=" + h.quantile(0.5)
+                          + " p99=" + h.quantile(0.99)
+                          + " max=" + h.max());
+            }
+        }
+
+        Collections.sort(lines);
+        return lines;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format. Histograms are
+     * written as summaries with the 50th, 90th, 99th and 99.9th percentile.
+     * @param out The writer
+     * @throws IOException
+     */
+    public void writeText(Writer out) throws IOException {
+
+        for (Map.Entry<String, Counter> entry: counters.entrySet()) {
+            out.write(entry.getKey() + " " + entry.getValue().get() + "\n");
+        }
+
+        for (Map.Entry<String, Gauge> entry: gauges.entrySet()) {
+            out.write(entry.getKey() + " " + entry.getValue().value() + "\n");
+        }
+
+        for (Map.Entry<String, Histogram> entry: histograms.entrySet()) {
+
+            String name = entry.getKey();
+            Histogram h = entry.getValue();
+
+            for (double q: new double[]{0.5, 0.9, 0.99, 0.999}) {
+                out.write(withQuantile(name, q) + " " + h.quantile(q) + "\n");
+            }
+
+            out.write(suffixed(name, "_count") + " " + h.count() + "\n");
+            out.write(suffixed(name, "_sum") + " " + h.sum() + "\n");
+        }
+    }
+
+    private static String withQuantile(String name, double quantile) {
+
+        int tagStart = name.indexOf('{');
+
+        if (tagStart == -1) {
+            return name + "{quantile=\"" + quantile + "\"}";
+        }
+
+        return name.substring(0, name.length() - 1) + ",quantile=\"" + quantile + "\"}";
+    }
+
+    private static String suffixed(String name, String suffix) {
+
+        int tagStart = name.indexOf('{');
+
+        if (tagStart == -1) {
+            return name + suffix;
+        }
+
+        return name.substring(0, tagStart) + suffix + name.substring(tagStart);
+    }
+}
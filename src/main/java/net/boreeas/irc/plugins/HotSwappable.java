@@ -0,0 +1,34 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.plugins;
+
+/**
+ * Implemented by plugins that hand their in-memory state to their next
+ * version when they are hot-swapped with
+ * {@link PluginManager#hotSwap(String, java.io.File)}.
+ * <p/>
+ * This is separate from {@link Plugin}, so that plugins built against older
+ * versions of the bot still load.
+ *
+ * @author Boreeas
+ */
+public interface HotSwappable {
+
+    /**
+     * Called on the old version right before it is replaced, after the new
+     * version was enabled. Persistent data has already been saved with
+     * {@link Plugin#save()} at this point.
+     * @return The serialized state, or <code>null</code> if there is none
+     */
+    public byte[] saveState();
+
+    /**
+     * Called on the new version after it was enabled, but before it receives
+     * any events or commands, with the state the old version returned. The
+     * format is up to the plugin; new versions should accept the state of
+     * older versions.
+     * @param state The serialized state
+     */
+    public void restoreState(byte[] state);
+}
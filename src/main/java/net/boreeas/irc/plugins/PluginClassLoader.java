@@ -15,6 +15,7 @@ import java.net.URLClassLoader;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -24,6 +25,8 @@ public class PluginClassLoader extends URLClassLoader {
 
     private static final Log logger = LogFactory.getLog("Plugins");
 
+    private final AtomicInteger definedClasses = new AtomicInteger();
+
     public PluginClassLoader(URL[] urls) {
 
         super(urls);
@@ -35,9 +38,43 @@ public class PluginClassLoader extends URLClassLoader {
         return super.loadClass(className);
     }
 
+    @Override
+    protected Class<?> findClass(String className) throws ClassNotFoundException {
+
+        Class<?> c = super.findClass(className);
+        definedClasses.incrementAndGet();
+        return c;
+    }
+
+    /**
+     * Returns the number of classes this class loader defined, i.e. that were
+     * loaded from the plugin jar rather than the bot's class path.
+     * @return The number of classes
+     */
+    public int definedClasses() {
+        return definedClasses.get();
+    }
+
+    /**
+     * Returns whether a class was defined by this class loader.
+     * @param className The binary name of the class
+     * @return <code>true</code> if the class was loaded from the plugin jar
+     */
+    boolean defines(String className) {
+
+        Class<?> c = findLoadedClass(className);
+        return c != null && c.getClassLoader() == this;
+    }
+
     public Class<Plugin> loadPlugin(String classname) throws
             ClassNotFoundException {
 
+        return loadPlugin(classname, true);
+    }
+
+    public Class<Plugin> loadPlugin(String classname, boolean verify) throws
+            ClassNotFoundException {
+
         Class<?> c = loadClass(classname);
 
         if (!(Plugin.class.isAssignableFrom(c))) {
@@ -47,7 +84,10 @@ public class PluginClassLoader extends URLClassLoader {
         @SuppressWarnings("unchecked")
         Class<Plugin> plugin = (Class<Plugin>) c;
 
-        checkPluginVersion(plugin);
+        if (verify) {
+            checkPluginVersion(plugin);
+        }
+
         return plugin;
     }
 
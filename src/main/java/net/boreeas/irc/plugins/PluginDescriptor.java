@@ -0,0 +1,116 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * The contents of a plugin's <code>config.properties</code>:
+ * <ul>
+ * <li><code>main</code>: the class that implements {@link Plugin}</li>
+ * <li><code>depends</code>: optional, comma-separated names of the plugins
+ * that must be enabled first. Every plugin implicitly depends on Core, so
+ * Core is always enabled before all others.</li>
+ * <li><code>concurrent-enable</code>: optional, <code>true</code> if
+ * {@link Plugin#onEnable} may run in parallel with other plugins'</li>
+ * </ul>
+ *
+ * @author Boreeas
+ */
+public class PluginDescriptor {
+
+    public static final String CONFIG_FILE = "config.properties";
+    public static final String CORE = "Core";
+
+    private final File file;
+    private final String mainClass;
+    private final Set<String> depends;
+    private final boolean concurrentEnable;
+
+    PluginDescriptor(File file, Properties config) {
+
+        this.file = file;
+        this.mainClass = config.getProperty("main");
+
+        if (mainClass == null) {
+            throw new RuntimeException("Missing main class declaration");
+        }
+
+        Set<String> names = new LinkedHashSet<>();
+        for (String name: config.getProperty("depends", "").split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+
+        this.depends = Collections.unmodifiableSet(names);
+        this.concurrentEnable = Boolean.parseBoolean(config.getProperty("concurrent-enable", "false").trim());
+    }
+
+    /**
+     * Reads the descriptor of a plugin jar.
+     * @param pluginFile The jar
+     * @return The descriptor
+     * @throws IOException
+     */
+    public static PluginDescriptor read(File pluginFile) throws IOException {
+        return new PluginDescriptor(pluginFile, readConfig(pluginFile));
+    }
+
+    /**
+     * Reads the <code>config.properties</code> of a plugin jar.
+     * @param pluginFile The jar
+     * @return The properties
+     * @throws IOException
+     */
+    static Properties readConfig(File pluginFile) throws IOException {
+
+        try (JarFile pluginJar = new JarFile(pluginFile)) {
+
+            JarEntry config = pluginJar.getJarEntry(CONFIG_FILE);
+
+            if (config == null) {
+                throw new RuntimeException("Missing " + CONFIG_FILE);
+            }
+
+            Properties prop = new Properties();
+
+            try (InputStream in = pluginJar.getInputStream(config)) {
+                prop.load(in);
+            }
+
+            return prop;
+        }
+    }
+
+    public File file() {
+        return file;
+    }
+
+    public String mainClass() {
+        return mainClass;
+    }
+
+    /**
+     * Returns the names of the plugins this plugin declared it depends on.
+     * The implicit dependency on Core is not included; the plugin manager
+     * adds it when it orders the plugins.
+     * @return The names
+     */
+    public Set<String> depends() {
+        return depends;
+    }
+
+    public boolean concurrentEnable() {
+        return concurrentEnable;
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.plugins;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * A persisted index of the plugin jars in a directory, so that unchanged jars
+ * are neither reopened nor reverified on restart.
+ * <p/>
+ * For every jar, the index stores its size, modification time and SHA-256
+ * hash, the contents of its <code>config.properties</code>, the name and
+ * version of the plugin and whether the plugin class passed verification.
+ * A jar whose size and modification time are unchanged is trusted; otherwise
+ * it is hashed, and only a different hash invalidates the entry. All
+ * verification results are dropped when the plugin interface itself changes.
+ *
+ * @author Boreeas
+ */
+public class PluginIndex {
+
+    private static final Log logger = LogFactory.getLog("Plugins");
+
+    public static final String FILE_NAME = "plugin-index.properties";
+
+    private static final String API_KEY = "api";
+    private static final String CONFIG_PREFIX = ".config.";
+    // Every jar has a hash, so this key marks the entry of a jar
+    private static final String HASH_SUFFIX = ".sha256";
+
+    private final File dir;
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean dirty;
+    private int hits;
+
+    // Cached directory listing
+    private long listedAt = -1;
+    private String[] fileNames;
+
+    public PluginIndex(File dir) {
+
+        this.dir = dir;
+        this.file = new File(dir, FILE_NAME);
+
+        if (file.isFile()) {
+            try {
+                load();
+            } catch (IOException | RuntimeException ex) {
+                logger.warn("Ignoring unreadable plugin index " + file, ex);
+                entries.clear();
+            }
+        }
+    }
+
+    private void load() throws IOException {
+
+        Properties prop = new Properties();
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            prop.load(in);
+        }
+
+        boolean apiChanged = !apiFingerprint().equals(prop.getProperty(API_KEY));
+
+        for (String key: prop.stringPropertyNames()) {
+
+            if (!key.endsWith(HASH_SUFFIX) || isConfigKey(prop, key)) {
+                continue;
+            }
+
+            String jar = key.substring(0, key.length() - HASH_SUFFIX.length());
+            Entry entry = new Entry();
+            entry.size = Long.parseLong(prop.getProperty(jar + ".size"));
+            entry.mtime = Long.parseLong(prop.getProperty(jar + ".mtime"));
+            entry.hash = prop.getProperty(key);
+            entry.name = prop.getProperty(jar + ".name");
+            entry.version = prop.getProperty(jar + ".version");
+            entry.verified = !apiChanged && Boolean.parseBoolean(prop.getProperty(jar + ".verified"));
+
+            String prefix = jar + CONFIG_PREFIX;
+            for (String configKey: prop.stringPropertyNames()) {
+                if (configKey.startsWith(prefix)) {
+                    entry.config.setProperty(configKey.substring(prefix.length()), prop.getProperty(configKey));
+                }
+            }
+
+            entries.put(jar, entry);
+        }
+
+        dirty = apiChanged;
+    }
+
+    /**
+     * Returns whether a key holds a value of the <code>config.properties</code>
+     * of some jar, whose keys may end in anything.
+     */
+    private static boolean isConfigKey(Properties prop, String key) {
+
+        for (int i = key.indexOf(CONFIG_PREFIX); i != -1; i = key.indexOf(CONFIG_PREFIX, i + 1)) {
+            if (prop.getProperty(key.substring(0, i) + HASH_SUFFIX) != null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Writes the index, if it changed. The file is replaced atomically.
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+
+        if (!dirty) {
+            return;
+        }
+
+        Properties prop = new Properties();
+        prop.setProperty(API_KEY, apiFingerprint());
+
+        for (Map.Entry<String, Entry> mapEntry: entries.entrySet()) {
+
+            String jar = mapEntry.getKey();
+            Entry entry = mapEntry.getValue();
+
+            prop.setProperty(jar + ".size", Long.toString(entry.size));
+            prop.setProperty(jar + ".mtime", Long.toString(entry.mtime));
+            prop.setProperty(jar + HASH_SUFFIX, entry.hash);
+            prop.setProperty(jar + ".verified", Boolean.toString(entry.verified));
+
+            if (entry.name != null) {
+                prop.setProperty(jar + ".name", entry.name);
+                prop.setProperty(jar + ".version", String.valueOf(entry.version));
+            }
+
+            for (String configKey: entry.config.stringPropertyNames()) {
+                prop.setProperty(jar + CONFIG_PREFIX + configKey, entry.config.getProperty(configKey));
+            }
+        }
+
+        File temp = File.createTempFile(FILE_NAME, ".tmp", dir);
+
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+                prop.store(out, "Plugin metadata index, rebuilt automatically");
+            }
+
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+
+        dirty = false;
+    }
+
+    /**
+     * Returns the names of all files in the directory, except for the index
+     * itself. The listing is only refreshed when the directory's
+     * modification time changes.
+     * @return The file names
+     */
+    public synchronized String[] fileNames() {
+
+        long modified = dir.lastModified();
+
+        if (fileNames == null || modified != listedAt) {
+
+            String[] names = dir.list(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return !name.startsWith(FILE_NAME);
+                }
+            });
+
+            fileNames = names == null ? new String[0] : names;
+            listedAt = modified;
+        }
+
+        return fileNames.clone();
+    }
+
+    /**
+     * Returns the descriptor of a jar in the directory, from the index if the
+     * jar did not change.
+     * @param jar The jar
+     * @return The descriptor
+     * @throws IOException
+     */
+    public PluginDescriptor descriptor(File jar) throws IOException {
+
+        String key = jar.getName();
+        long size = jar.length();
+        long mtime = jar.lastModified();
+        Entry cached;
+
+        synchronized (this) {
+            cached = entries.get(key);
+
+            if (cached != null && cached.size == size && cached.mtime == mtime) {
+                hits++;
+                return new PluginDescriptor(jar, cached.config);
+            }
+        }
+
+        String hash = hash(jar);
+
+        synchronized (this) {
+
+            if (cached != null && cached == entries.get(key) && hash.equals(cached.hash)) {
+                // Touched, but not changed
+                cached.size = size;
+                cached.mtime = mtime;
+                dirty = true;
+                hits++;
+                return new PluginDescriptor(jar, cached.config);
+            }
+        }
+
+        logger.debug("Indexing plugin " + jar);
+
+        Entry entry = new Entry();
+        entry.size = size;
+        entry.mtime = mtime;
+        entry.hash = hash;
+        entry.config.putAll(PluginDescriptor.readConfig(jar));
+
+        PluginDescriptor descriptor = new PluginDescriptor(jar, entry.config);
+
+        synchronized (this) {
+            entries.put(key, entry);
+            dirty = true;
+        }
+
+        return descriptor;
+    }
+
+    /**
+     * Returns whether the plugin class of a jar is known to pass
+     * verification. Only valid after {@link #descriptor(File)} was called
+     * for the jar.
+     * @param jar The jar
+     * @return <code>true</code> if the plugin need not be verified again
+     */
+    public synchronized boolean isVerified(File jar) {
+
+        Entry entry = entries.get(jar.getName());
+        return entry != null && entry.verified;
+    }
+
+    /**
+     * Records that the plugin in a jar was loaded and verified.
+     * @param jar    The jar
+     * @param plugin The plugin
+     */
+    public synchronized void verified(File jar, Plugin plugin) {
+
+        Entry entry = entries.get(jar.getName());
+
+        if (entry == null) {
+            return;
+        }
+
+        String name = plugin.getPluginName();
+        String version = plugin.getVersion();
+
+        if (!entry.verified || !name.equals(entry.name) || !String.valueOf(version).equals(entry.version)) {
+            entry.verified = true;
+            entry.name = name;
+            entry.version = String.valueOf(version);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Returns the name of the plugin in a jar, as of its last successful
+     * load.
+     * @param jarName The file name of the jar
+     * @return The name, or <code>null</code> if unknown
+     */
+    public synchronized String pluginName(String jarName) {
+
+        Entry entry = entries.get(jarName);
+        return entry == null ? null : entry.name;
+    }
+
+    synchronized int hits() {
+        return hits;
+    }
+
+    static String hash(File jar) throws IOException {
+
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);    // Every JVM must support SHA-256
+        }
+
+        byte[] buffer = new byte[65536];
+
+        try (InputStream in = new FileInputStream(jar)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b: digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+
+        return hex.toString();
+    }
+
+    /**
+     * Identifies the plugin interface that verification checks against.
+     */
+    private static String apiFingerprint() {
+
+        List<String> methods = new ArrayList<>();
+
+        for (Method method: Plugin.class.getDeclaredMethods()) {
+            methods.add(method.toString());
+        }
+
+        Collections.sort(methods);
+        return Integer.toHexString(methods.hashCode());
+    }
+
+    private static class Entry {
+
+        private long size;
+        private long mtime;
+        private String hash;
+        private String name;
+        private String version;
+        private boolean verified;
+        private final Properties config = new Properties();
+    }
+}
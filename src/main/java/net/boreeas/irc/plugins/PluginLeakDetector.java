@@ -0,0 +1,349 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.plugins;
+
+import net.boreeas.irc.Command;
+import net.boreeas.irc.IrcBot;
+import net.boreeas.irc.events.EventListener;
+import net.boreeas.irc.metrics.Gauge;
+import net.boreeas.irc.metrics.MetricsRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the class loaders of unloaded plugins and reports those that
+ * are not garbage collected.
+ * <p/>
+ * A class loader is only collected once nothing references any of its
+ * classes. If it is still reachable some time after its plugin was unloaded,
+ * the detector forces a garbage collection and then logs what still holds on
+ * to it: listeners and commands that were never unregistered, and threads
+ * that were created by or are still running code of the plugin. Timers only
+ * show up while one of their tasks is running.
+ *
+ * @author Boreeas
+ */
+public class PluginLeakDetector {
+
+    private static final Log logger = LogFactory.getLog("Plugins");
+
+    private final IrcBot bot;
+    private final MetricsRegistry metrics;
+    private final long graceMillis;
+
+    private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<>();
+    private final Set<Unloaded> unloaded = Collections.newSetFromMap(new ConcurrentHashMap<Unloaded, Boolean>());
+    private Timer timer;
+
+    /**
+     * Creates a leak detector.
+     * @param bot         The bot whose listeners and commands are searched
+     *                    for retainers, or <code>null</code>
+     * @param metrics     The registry for the leak and memory metrics, or
+     *                    <code>null</code>
+     * @param graceMillis The time after which a class loader that was not
+     *                    collected counts as leaked
+     */
+    public PluginLeakDetector(IrcBot bot, MetricsRegistry metrics, long graceMillis) {
+
+        this.bot = bot;
+        this.metrics = metrics;
+        this.graceMillis = graceMillis;
+
+        if (metrics != null) {
+            metrics.gauge("plugin_loaders_unloaded", new Gauge() {
+                @Override
+                public long value() {
+                    return pending();
+                }
+            });
+            metrics.gauge("metaspace_used_bytes", new Gauge() {
+                @Override
+                public long value() {
+                    return metaspaceUsed();
+                }
+            });
+            metrics.gauge("open_file_descriptors", new Gauge() {
+                @Override
+                public long value() {
+                    return openFileDescriptors();
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts watching the class loader of an unloaded plugin. The class
+     * loader should already be closed.
+     * @param pluginName  The name of the plugin
+     * @param classLoader The class loader
+     */
+    public void track(String pluginName, ClassLoader classLoader) {
+
+        unloaded.add(new Unloaded(pluginName, classLoader, queue, System.nanoTime()));
+        schedule();
+    }
+
+    /**
+     * Returns the number of class loaders of unloaded plugins that have not
+     * been collected yet.
+     * @return The number of class loaders
+     */
+    public int pending() {
+        collect();
+        return unloaded.size();
+    }
+
+    private synchronized void schedule() {
+
+        if (timer != null) {
+            return;
+        }
+
+        timer = new Timer("Plugin leak check", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+
+                if (hasSuspects(now)) {
+                    System.gc();
+                }
+
+                check(now);
+                stopIfIdle();
+            }
+        }, graceMillis, graceMillis);
+    }
+
+    private synchronized void stopIfIdle() {
+
+        if (unloaded.isEmpty() && timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    private boolean hasSuspects(long now) {
+
+        collect();
+
+        for (Unloaded u: unloaded) {
+            if (!u.reported && now - u.unloadedAt >= TimeUnit.MILLISECONDS.toNanos(graceMillis)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Forgets all class loaders that have been collected.
+     * @return The number of class loaders that were collected
+     */
+    int collect() {
+
+        int collected = 0;
+        Reference<? extends ClassLoader> ref;
+
+        while ((ref = queue.poll()) != null) {
+
+            Unloaded u = (Unloaded) ref;
+
+            if (unloaded.remove(u)) {
+                collected++;
+
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Class loader of " + u.pluginName + " was collected "
+                                 + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - u.unloadedAt)
+                                 + "ms after unloading");
+                }
+            }
+        }
+
+        if (metrics != null && collected > 0) {
+            metrics.counter("plugin_loaders_collected_total").add(collected);
+        }
+
+        return collected;
+    }
+
+    /**
+     * Reports every class loader that is still reachable after the grace
+     * period. Each class loader is only reported once.
+     * @param now The current value of {@link System#nanoTime()}
+     * @return One report per leaked class loader
+     */
+    List<String> check(long now) {
+
+        collect();
+        List<String> reports = new ArrayList<>();
+
+        for (Unloaded u: unloaded) {
+
+            if (u.reported || now - u.unloadedAt < TimeUnit.MILLISECONDS.toNanos(graceMillis)) {
+                continue;
+            }
+
+            ClassLoader classLoader = u.get();
+
+            if (classLoader == null) {
+                unloaded.remove(u);     // Cleared, but not enqueued yet
+                continue;
+            }
+
+            u.reported = true;
+            List<String> retainers = retainers(classLoader);
+            String report = "Class loader of unloaded plugin " + u.pluginName + " has not been collected after "
+                            + TimeUnit.NANOSECONDS.toSeconds(now - u.unloadedAt) + "s"
+                            + (retainers.isEmpty() ? ", no known retainer" : ", retained by " + retainers);
+
+            logger.warn(report);
+            reports.add(report);
+
+            if (metrics != null) {
+                metrics.counter(MetricsRegistry.tagged("plugin_loaders_leaked_total", "plugin", u.pluginName)).inc();
+            }
+        }
+
+        return reports;
+    }
+
+    /**
+     * Finds listeners, commands and threads that keep a class loader alive.
+     * @param classLoader The class loader
+     * @return A description of each retainer
+     */
+    List<String> retainers(ClassLoader classLoader) {
+
+        List<String> retainers = new ArrayList<>();
+
+        if (bot != null) {
+            for (EventListener listener: bot.getEventPump().listenersLoadedBy(classLoader)) {
+                retainers.add("listener " + listener.getClass().getName());
+            }
+
+            for (Command command: bot.getCommandHandler().commandsLoadedBy(classLoader)) {
+                retainers.add("command " + command.getTrigger() + " (" + command.getClass().getName() + ")");
+            }
+        }
+
+        for (Map.Entry<Thread, StackTraceElement[]> entry: Thread.getAllStackTraces().entrySet()) {
+
+            Thread thread = entry.getKey();
+
+            if (thread.getClass().getClassLoader() == classLoader) {
+                retainers.add("thread " + thread.getName() + " (" + thread.getClass().getName() + ")");
+            } else if (thread.getContextClassLoader() == classLoader) {
+                retainers.add("thread " + thread.getName() + " (context class loader)");
+            } else if (classLoader instanceof PluginClassLoader) {
+                for (StackTraceElement frame: entry.getValue()) {
+                    if (((PluginClassLoader) classLoader).defines(frame.getClassName())) {
+                        retainers.add("thread " + thread.getName() + " at " + frame);
+                        break;
+                    }
+                }
+            }
+        }
+
+        return retainers;
+    }
+
+    /**
+     * Returns the number of file descriptors the process holds open on the
+     * jars of a class loader. Only supported on systems with
+     * <code>/proc/self/fd</code>.
+     * @param classLoader The class loader
+     * @return The number of file descriptors, or -1 if unknown
+     */
+    public static long openFiles(URLClassLoader classLoader) {
+
+        File fds = new File("/proc/self/fd");
+        String[] names = fds.list();
+
+        if (names == null) {
+            return -1;
+        }
+
+        Set<Path> jars = new HashSet<>();
+
+        for (URL url: classLoader.getURLs()) {
+            try {
+                jars.add(Paths.get(url.toURI()).toAbsolutePath());
+            } catch (URISyntaxException | IllegalArgumentException ex) {
+                // Not a file
+            }
+        }
+
+        long open = 0;
+
+        for (String name: names) {
+            try {
+                if (jars.contains(Files.readSymbolicLink(new File(fds, name).toPath()))) {
+                    open++;
+                }
+            } catch (IOException | UnsupportedOperationException ex) {
+                // Closed in the meantime
+            }
+        }
+
+        return open;
+    }
+
+    private static long metaspaceUsed() {
+
+        for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+            if ("Metaspace".equals(pool.getName())) {
+                return pool.getUsage().getUsed();
+            }
+        }
+
+        return -1;
+    }
+
+    private static long openFileDescriptors() {
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+            return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        }
+
+        return -1;
+    }
+
+    /**
+     * The class loader of an unloaded plugin.
+     */
+    private static final class Unloaded extends WeakReference<ClassLoader> {
+
+        private final String pluginName;
+        private final long unloadedAt;
+        private volatile boolean reported;
+
+        Unloaded(String pluginName, ClassLoader classLoader, ReferenceQueue<ClassLoader> queue, long unloadedAt) {
+            super(classLoader, queue);
+            this.pluginName = pluginName;
+            this.unloadedAt = unloadedAt;
+        }
+    }
+}
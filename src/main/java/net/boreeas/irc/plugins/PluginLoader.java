@@ -5,11 +5,7 @@ import org.apache.commons.logging.LogFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
-import java.util.Properties;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
 
 /**
  *
@@ -19,15 +15,34 @@ public class PluginLoader {
 
     private static final Log logger = LogFactory.getLog("PluginLoader");
 
+    private PluginClassLoader classLoader;
+
     public Plugin loadPlugin(File pluginFile) throws IOException {
+        return loadPlugin(PluginDescriptor.read(pluginFile));
+    }
+
+    public Plugin loadPlugin(PluginDescriptor descriptor) throws IOException {
+        return loadPlugin(descriptor, true);
+    }
+
+    /**
+     * Loads and instantiates a plugin.
+     * @param descriptor The plugin's descriptor
+     * @param verify     <code>false</code> to skip checking the plugin
+     *                   class against the plugin interface, if it is already
+     *                   known to match
+     * @return The plugin, or <code>null</code> if it could not be
+     *         instantiated
+     * @throws IOException
+     */
+    public Plugin loadPlugin(PluginDescriptor descriptor, boolean verify) throws IOException {
 
         try {
 
-            String mainClass = getMainClass(pluginFile);
-            return loadPlugin(pluginFile.toURI().toURL(), mainClass);
+            return loadPlugin(descriptor.file().toURI().toURL(), descriptor.mainClass(), verify);
         } catch (ClassNotFoundException ex) {
 
-            logger.error("Can't load plugin " + pluginFile.getName()
+            logger.error("Can't load plugin " + descriptor.file().getName()
                          + ": Missing main class");
         } catch (IllegalAccessException ex) {
 
@@ -40,45 +55,24 @@ public class PluginLoader {
         return null;
     }
 
-    private String getMainClass(File pluginFile) throws IOException {
-
-        JarFile pluginJar = new JarFile(pluginFile);
-        JarEntry config = pluginJar.getJarEntry("config.properties");
-
-        if (config == null) {
-            throw new RuntimeException("Missing config.properties");
-        }
-
-        InputStream in = pluginJar.getInputStream(config);
-
-        try {
-
-            Properties prop = new Properties();
-            prop.load(in);
-
-            String mainClass = prop.getProperty("main");
-
-            if (mainClass == null) {
-                throw new RuntimeException("Missing main class declaration");
-            }
-
-            return mainClass;
-        } finally {
-
-            in.close();
-        }
+    /**
+     * Returns the class loader of the plugin that was loaded last.
+     * @return The class loader, or <code>null</code> if no plugin was loaded
+     */
+    public PluginClassLoader getClassLoader() {
+        return classLoader;
     }
 
-    private Plugin loadPlugin(URL target, String mainClass) throws
+    private Plugin loadPlugin(URL target, String mainClass, boolean verify) throws
             ClassNotFoundException,
             InstantiationException,
             IllegalAccessException {
 
-        PluginClassLoader classLoader = new PluginClassLoader(new URL[] {
+        classLoader = new PluginClassLoader(new URL[] {
                     target
                 });
 
-        Class<Plugin> plugClass = classLoader.loadPlugin(mainClass);
+        Class<Plugin> plugClass = classLoader.loadPlugin(mainClass, verify);
 
         Plugin plugin = plugClass.newInstance();
         return plugin;
@@ -1,18 +1,19 @@
 package net.boreeas.irc.plugins;
 
+import net.boreeas.irc.CommandHandler;
 import net.boreeas.irc.IrcBot;
+import net.boreeas.irc.metrics.Gauge;
+import net.boreeas.irc.metrics.MetricsRegistry;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -25,10 +26,19 @@ public class PluginManager {
     private final ArrayList<Plugin> loadedPlugins = new ArrayList<Plugin>();
     private final IrcBot loadRequester;
     private Set<Plugin> scheduledUnload = new HashSet<>();
+    // Plugins whose onEnable is running
+    private final Set<Plugin> enabling = new HashSet<>();
+    private final Map<File, PluginIndex> indexes = new ConcurrentHashMap<>();
+    private final Map<Plugin, PluginClassLoader> classLoaders = new ConcurrentHashMap<>();
+    private final PluginLeakDetector leaks;
+
+    // Time after which the class loader of an unloaded plugin should be gone
+    private static final long LEAK_GRACE_MILLIS = 60000;
 
     public PluginManager(Set<String> configuredFiles, IrcBot loader) {
         this.loadRequester = loader;
         this.files = configuredFiles;
+        this.leaks = new PluginLeakDetector(loader, loader == null ? null : loader.getMetrics(), LEAK_GRACE_MILLIS);
     }
 
     /**
@@ -72,25 +82,322 @@ public class PluginManager {
             dir.mkdirs();
         }
 
-        String[] pluginJarNames = dir.list(new FilenameFilter() {
+        final PluginIndex index = index(dir);
+        List<String> matching = new ArrayList<>();
 
-            @Override
-            public boolean accept(File dir, String name) {
+        for (String name: index.fileNames()) {
+            if (files.contains(name) || files.contains(stripFiletypeSuffix(name))) {
+                matching.add(name);
+            }
+        }
+
+        String[] pluginJarNames = matching.toArray(new String[0]);
+
+        logger.debug("The following files passed the filter: " + Arrays.toString(pluginJarNames));
+
+        if (pluginJarNames == null || pluginJarNames.length == 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.min(pluginJarNames.length, Runtime.getRuntime().availableProcessors()), new LoaderThreadFactory());
+
+        try {
+            List<Loaded> loaded = loadInParallel(index, dir, pluginJarNames, pool);
+            enableInOrder(loaded, pool);
+        } finally {
+            pool.shutdown();
+            saveIndex(index);
+        }
+
+        logger.info("Loaded " + loadedPlugins().length + " plugins in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+
+    /**
+     * Reads, verifies and instantiates all plugins in parallel.
+     */
+    private List<Loaded> loadInParallel(final PluginIndex index, final File dir, String[] fileNames,
+                                        ExecutorService pool) {
+
+        Map<String, Future<Loaded>> futures = new LinkedHashMap<>();
+
+        for (final String fileName: fileNames) {
+            futures.put(fileName, pool.submit(new Callable<Loaded>() {
+                @Override
+                public Loaded call() throws Exception {
+                    return load(index, new File(dir, fileName));
+                }
+            }));
+        }
+
+        List<Loaded> loaded = new ArrayList<>();
 
-                return files.contains(name)
-                       || files.contains(stripFiletypeSuffix(name));
+        for (Map.Entry<String, Future<Loaded>> entry: futures.entrySet()) {
+            try {
+                loaded.add(entry.getValue().get());
+            } catch (ExecutionException ex) {
+                logger.error("Unable to load plugin " + entry.getKey(), ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                logger.error("Interrupted while loading plugin " + entry.getKey());
+            }
+        }
+
+        return loaded;
+    }
+
+    private Loaded load(PluginIndex index, File pluginFile) throws IOException, PluginLoadException {
+
+        logger.info("Loading plugin " + pluginFile);
+
+        long start = System.nanoTime();
+        PluginDescriptor descriptor = index.descriptor(pluginFile);
+        PluginLoader loader = new PluginLoader();
+        Plugin plugin;
+
+        try {
+            plugin = loader.loadPlugin(descriptor, !index.isVerified(pluginFile));
+        } catch (IOException | RuntimeException ex) {
+            close(loader.getClassLoader());
+            throw ex;
+        }
+
+        if (plugin == null) {
+            close(loader.getClassLoader());
+            throw new PluginLoadException("Unable to instantiate plugin " + pluginFile.getName());
+        }
+
+        classLoaders.put(plugin, loader.getClassLoader());
+        index.verified(pluginFile, plugin);
+        registerGauges(plugin.getPluginName());
+        return new Loaded(descriptor, plugin, System.nanoTime() - start);
+    }
+
+    /**
+     * Exposes the number of classes and open files of the currently loaded
+     * version of a plugin.
+     */
+    private void registerGauges(final String pluginName) {
+
+        if (loadRequester == null) {
+            return;
+        }
+
+        MetricsRegistry metrics = loadRequester.getMetrics();
+
+        metrics.gauge(MetricsRegistry.tagged("plugin_classes", "plugin", pluginName), new Gauge() {
+            @Override
+            public long value() {
+                PluginClassLoader classLoader = classLoader(pluginName);
+                return classLoader == null ? 0 : classLoader.definedClasses();
+            }
+        });
+        metrics.gauge(MetricsRegistry.tagged("plugin_open_files", "plugin", pluginName), new Gauge() {
+            @Override
+            public long value() {
+                PluginClassLoader classLoader = classLoader(pluginName);
+                return classLoader == null ? 0 : PluginLeakDetector.openFiles(classLoader);
             }
         });
+    }
 
-        logger.debug("The following files passed the filter: " + Arrays.toString(pluginJarNames));
+    private PluginClassLoader classLoader(String pluginName) {
+
+        Plugin plugin = getPlugin(pluginName);
+        return plugin == null ? null : classLoaders.get(plugin);
+    }
+
+    /**
+     * Returns the metadata index of a plugin directory.
+     * @param dir The directory
+     * @return The index
+     */
+    public PluginIndex index(File dir) {
+
+        File key = dir.getAbsoluteFile();
+        PluginIndex index = indexes.get(key);
 
-        for (String fileName: pluginJarNames) {
+        if (index == null) {
+            indexes.putIfAbsent(key, new PluginIndex(key));
+            index = indexes.get(key);
+        }
+
+        return index;
+    }
+
+    private void saveIndex(PluginIndex index) {
+        try {
+            index.save();
+        } catch (IOException ex) {
+            logger.warn("Unable to save plugin index", ex);
+        }
+    }
+
+    /**
+     * Enables the plugins in waves: a plugin is enabled once all plugins it
+     * depends on have been enabled successfully. Within a wave, plugins that
+     * allow it are enabled concurrently.
+     */
+    private void enableInOrder(List<Loaded> loaded, ExecutorService pool) {
+
+        Set<String> enabled = new HashSet<>();
+        for (String name: loadedPlugins()) {
+            enabled.add(name.toLowerCase());
+        }
+
+        Set<String> pending = new HashSet<>();
+        for (Loaded l: loaded) {
+            pending.add(l.plugin.getPluginName().toLowerCase());
+        }
+
+        List<Loaded> remaining = new ArrayList<>(loaded);
+
+        while (!remaining.isEmpty()) {
+
+            List<Loaded> wave = new ArrayList<>();
+            boolean dropped = false;
+
+            for (Iterator<Loaded> it = remaining.iterator(); it.hasNext();) {
+
+                Loaded next = it.next();
+                String missing = missingDependency(next, enabled, pending);
+
+                if (missing != null) {
+                    logger.error("Unable to load plugin " + next.plugin.getPluginName()
+                                 + ": Dependency " + missing + " is not available");
+                    pending.remove(next.plugin.getPluginName().toLowerCase());
+                    release(next.plugin);
+                    it.remove();
+                    dropped = true;
+                } else if (dependenciesEnabled(next, enabled)) {
+                    wave.add(next);
+                    it.remove();
+                }
+            }
+
+            if (wave.isEmpty()) {
+
+                if (dropped) {
+                    continue;   // Plugins that depended on the dropped ones are dropped next
+                }
+
+                for (Loaded l: remaining) {
+                    logger.error("Unable to load plugin " + l.plugin.getPluginName()
+                                 + ": Circular dependency among " + pending);
+                    release(l.plugin);
+                }
+                break;
+            }
+
+            for (Loaded l: enableWave(wave, pool)) {
+                enabled.add(l.plugin.getPluginName().toLowerCase());
+            }
+
+            for (Loaded l: wave) {
+                pending.remove(l.plugin.getPluginName().toLowerCase());
+            }
+        }
+    }
+
+    private static Set<String> dependencies(Loaded loaded) {
+
+        Set<String> deps = new HashSet<>();
+
+        for (String dep: loaded.descriptor.depends()) {
+            deps.add(dep.toLowerCase());
+        }
+
+        if (!loaded.plugin.getPluginName().equalsIgnoreCase(PluginDescriptor.CORE)) {
+            deps.add(PluginDescriptor.CORE.toLowerCase());
+        }
+
+        return deps;
+    }
+
+    private static String missingDependency(Loaded loaded, Set<String> enabled, Set<String> pending) {
+
+        for (String dep: dependencies(loaded)) {
+            if (!enabled.contains(dep) && !pending.contains(dep)) {
+                return dep;
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean dependenciesEnabled(Loaded loaded, Set<String> enabled) {
+        return enabled.containsAll(dependencies(loaded));
+    }
+
+    /**
+     * Enables one wave of plugins.
+     * @return The plugins that were enabled successfully
+     */
+    private List<Loaded> enableWave(List<Loaded> wave, ExecutorService pool) {
+
+        Map<Loaded, Future<Boolean>> concurrent = new LinkedHashMap<>();
+        List<Loaded> succeeded = new ArrayList<>();
+
+        for (final Loaded l: wave) {
+            if (l.descriptor.concurrentEnable()) {
+                concurrent.put(l, pool.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return enableLoaded(l);
+                    }
+                }));
+            }
+        }
+
+        for (Loaded l: wave) {
+            if (!l.descriptor.concurrentEnable() && enableLoaded(l)) {
+                succeeded.add(l);
+            }
+        }
+
+        for (Map.Entry<Loaded, Future<Boolean>> entry: concurrent.entrySet()) {
             try {
-                loadPlugin(new File(dir, fileName));
-            } catch (IOException | PluginLoadException ex) {
-                logger.error("Unable to load plugin " + fileName, ex);
+                if (entry.getValue().get()) {
+                    succeeded.add(entry.getKey());
+                }
+            } catch (ExecutionException ex) {
+                logger.error("Unable to enable plugin " + entry.getKey().plugin.getPluginName(), ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                logger.error("Interrupted while enabling plugin " + entry.getKey().plugin.getPluginName());
             }
         }
+
+        return succeeded;
+    }
+
+    private boolean enableLoaded(Loaded loaded) {
+
+        String name = loaded.plugin.getPluginName();
+        long start = System.nanoTime();
+
+        try {
+            enable(loaded.plugin);
+        } catch (PluginLoadException ex) {
+            logger.error("Unable to load plugin " + loaded.descriptor.file().getName(), ex);
+            return false;
+        }
+
+        long enableTime = System.nanoTime() - start;
+
+        logger.info("Enabled " + name + " " + loaded.plugin.getVersion() + " (load "
+                    + TimeUnit.NANOSECONDS.toMillis(loaded.loadTime) + "ms, enable "
+                    + TimeUnit.NANOSECONDS.toMillis(enableTime) + "ms)");
+
+        if (loadRequester != null) {
+            MetricsRegistry metrics = loadRequester.getMetrics();
+            metrics.histogram(MetricsRegistry.tagged("plugin_load_time_ns", "plugin", name)).record(loaded.loadTime);
+            metrics.histogram(MetricsRegistry.tagged("plugin_enable_time_ns", "plugin", name)).record(enableTime);
+        }
+
+        return true;
     }
 
     /**
@@ -125,7 +432,8 @@ public class PluginManager {
      * @throws java.io.IOException           If an IOException occurs while loading the
      *                               plugin
      * @throws PluginLoadException   If an exception occurs while enabling the
-     *                               plugin
+     *                               plugin, or a plugin it depends on is not
+     *                               loaded
      */
     public Plugin loadPlugin(File pluginFile) throws IOException,
                                                      PluginLoadException {
@@ -136,26 +444,53 @@ public class PluginManager {
             throw new FileNotFoundException(pluginFile.getName());
         }
 
-        PluginLoader loader = new PluginLoader();
-        Plugin loadedPlugin = null;
+        PluginIndex index = index(pluginFile.getAbsoluteFile().getParentFile());
+        Loaded loaded;
+
+        try {
+            loaded = load(index, pluginFile);
+        } catch (RuntimeException ex) {
+            throw new PluginLoadException(ex);
+        } finally {
+            saveIndex(index);
+        }
+
+        for (String dep: loaded.descriptor.depends()) {
+            if (getPlugin(dep) == null) {
+                release(loaded.plugin);
+                throw new PluginLoadException("Dependency " + dep + " of " + loaded.plugin.getPluginName()
+                                              + " is not loaded");
+            }
+        }
+
+        return enable(loaded.plugin);
+    }
+
+    private Plugin enable(Plugin loadedPlugin) throws PluginLoadException {
 
+        synchronized (this) {
+            enabling.add(loadedPlugin);
+        }
 
         try {
 
-            loadedPlugin = loader.loadPlugin(pluginFile);
             loadedPlugin.onEnable(loadRequester);
         } catch (Exception ex) {
 
-            if (loadedPlugin != null) {
-                // Unregister any commands the plugin may have registered
-                loadRequester.getCommandHandler().unregisterPlugin(loadedPlugin);
+            synchronized (this) {
+                enabling.remove(loadedPlugin);
+                scheduledUnload.remove(loadedPlugin);
             }
 
+            // Unregister anything the plugin registered before it failed
+            discard(loadedPlugin);
             throw new PluginLoadException(ex);
         }
 
         synchronized (this) {
-            if (scheduledUnload.contains(loadedPlugin)) {
+            enabling.remove(loadedPlugin);
+
+            if (scheduledUnload.remove(loadedPlugin)) {
                 disablePlugin(loadedPlugin);
                 throw new PluginLoadException("Fatal error during load - immediate unload occured");
             } else {
@@ -166,6 +501,198 @@ public class PluginManager {
         return loadedPlugin;
     }
 
+    /**
+     * Replaces a running plugin with the version in
+     * WORKING_DIR/plugins/{@link Plugin#reloadTarget()}.
+     * <p/>
+     * @param pluginName The name of the plugin
+     * <p/>
+     * @return The new version of the plugin
+     * <p/>
+     * @throws IOException         If an IOException occurs while loading the
+     *                             new version
+     * @throws PluginLoadException If the new version could not be enabled;
+     *                             the old version keeps running
+     * @see #hotSwap(String, File)
+     */
+    public Plugin hotSwap(String pluginName) throws IOException, PluginLoadException {
+
+        Plugin old = getPlugin(pluginName);
+
+        if (old == null) {
+            throw new PluginLoadException("No plugin named " + pluginName + " is loaded");
+        }
+
+        return hotSwap(pluginName, new File(new File(System.getProperty("user.dir"), "plugins"), old.reloadTarget()));
+    }
+
+    /**
+     * Replaces a running plugin with a new version without losing events.
+     * <p/>
+     * The new version is loaded into a fresh class loader and enabled while
+     * the old version keeps handling events and commands; its registrations
+     * are held back. If both versions implement {@link HotSwappable}, the new
+     * one then receives the old one's state, and its registrations replace
+     * the old version's in one step. Only then is the old version disabled
+     * and its class loader closed.
+     * <p/>
+     * Events that the old version handles between handing off its state and
+     * the swap are not part of the state. When the swap is done on the bot
+     * thread, that is only events fired on other threads.
+     * <p/>
+     * @param pluginName The name of the running plugin
+     * @param pluginFile The jar that contains the new version
+     * <p/>
+     * @return The new version of the plugin
+     * <p/>
+     * @throws IOException         If an IOException occurs while loading the
+     *                             new version
+     * @throws PluginLoadException If the new version could not be loaded or
+     *                             enabled; the old version keeps running
+     */
+    public Plugin hotSwap(String pluginName, File pluginFile) throws IOException, PluginLoadException {
+
+        Plugin old = getPlugin(pluginName);
+
+        if (old == null) {
+            throw new PluginLoadException("No plugin named " + pluginName + " is loaded");
+        }
+
+        if (!pluginFile.exists()) {
+            throw new FileNotFoundException(pluginFile.getName());
+        }
+
+        long start = System.nanoTime();
+        PluginIndex index = index(pluginFile.getAbsoluteFile().getParentFile());
+        Plugin replacement;
+
+        try {
+            replacement = load(index, pluginFile).plugin;
+        } catch (RuntimeException ex) {
+            throw new PluginLoadException(ex);
+        } finally {
+            saveIndex(index);
+        }
+
+        CommandHandler commands = loadRequester.getCommandHandler();
+
+        try {
+            if (!replacement.getPluginName().equalsIgnoreCase(old.getPluginName())) {
+                throw new PluginLoadException(pluginFile.getName() + " contains " + replacement.getPluginName()
+                                              + ", not " + old.getPluginName());
+            }
+
+            if (!commands.isPrefixAvailable(replacement, old)) {
+                throw new PluginLoadException("Command prefix " + replacement.getCommandPrefix()
+                                              + " is used by another plugin");
+            }
+
+            old.save();
+
+            commands.stage(replacement);
+            loadRequester.stageEventListeners(replacement);
+            replacement.onEnable(loadRequester);
+
+            // Last, so that the state includes what the old version handled while the new one was enabled
+            if (old instanceof HotSwappable && replacement instanceof HotSwappable) {
+                byte[] state = ((HotSwappable) old).saveState();
+
+                if (state != null) {
+                    ((HotSwappable) replacement).restoreState(state);
+                }
+            }
+        } catch (PluginLoadException ex) {
+            discard(replacement);
+            throw ex;
+        } catch (Exception ex) {
+            discard(replacement);
+            throw new PluginLoadException("Unable to enable new version of " + pluginName
+                                          + ", keeping the old one", ex);
+        }
+
+        synchronized (this) {
+            commands.swap(old, replacement);
+            loadRequester.swapEventListeners(old, replacement);
+
+            int position = loadedPlugins.indexOf(old);
+            if (position == -1) {
+                loadedPlugins.add(replacement);
+            } else {
+                loadedPlugins.set(position, replacement);
+            }
+        }
+
+        try {
+            old.onDisable();
+        } catch (RuntimeException ex) {
+            logger.warn("Error while disabling old version of " + pluginName, ex);
+        }
+
+        release(old);
+
+        logger.info("Swapped " + pluginName + " " + old.getVersion() + " for " + replacement.getVersion() + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        return replacement;
+    }
+
+    /**
+     * Drops a plugin that failed to be enabled or swapped in, along with the
+     * commands, listeners and triggers it registered, staged or not.
+     */
+    private void discard(Plugin plugin) {
+
+        if (loadRequester != null) {
+            loadRequester.getCommandHandler().unregisterPlugin(plugin);
+            loadRequester.unregisterAllEventListeners(plugin);
+        }
+
+        release(plugin);
+    }
+
+    /**
+     * Closes the class loader of a plugin that is no longer used, and watches
+     * it for leaks.
+     */
+    private void release(Plugin plugin) {
+
+        if (loadRequester != null) {
+            loadRequester.getPluginResources().shutdown(plugin);
+
+            if (loadRequester.getWatchdog() != null) {
+                loadRequester.getWatchdog().forget(plugin);
+            }
+        }
+
+        PluginClassLoader classLoader = classLoaders.remove(plugin);
+
+        if (classLoader != null) {
+            close(classLoader);
+            leaks.track(plugin.getPluginName(), classLoader);
+        }
+    }
+
+    /**
+     * Returns the detector that watches the class loaders of unloaded
+     * plugins.
+     * @return The leak detector
+     */
+    public PluginLeakDetector getLeakDetector() {
+        return leaks;
+    }
+
+    private static void close(PluginClassLoader classLoader) {
+
+        if (classLoader == null) {
+            return;
+        }
+
+        try {
+            classLoader.close();
+        } catch (IOException ex) {
+            logger.warn("Unable to close class loader " + classLoader, ex);
+        }
+    }
+
     /**
      * In case a fatal error occurred during plugin loading, a plugin
      * can be scheduled to be immediately unloaded after the loading
@@ -176,9 +703,17 @@ public class PluginManager {
      * process. If an error occurs any later, @see #disablePlugin(Plugin) should
      * be called instead.
      * @param plugin The plugin that should be unloaded
+     * @return <code>false</code> if the plugin is not being loaded, in which
+     *         case nothing is scheduled
      */
-    public void scheduleImmediateUnload(Plugin plugin) {
+    public synchronized boolean scheduleImmediateUnload(Plugin plugin) {
+
+        if (!enabling.contains(plugin)) {
+            return false;
+        }
+
         scheduledUnload.add(plugin);
+        return true;
     }
 
     /**
@@ -211,6 +746,7 @@ public class PluginManager {
         loadedPlugins.remove(plugin);
         loadRequester.getCommandHandler().unregisterPlugin(plugin);
         loadRequester.unregisterAllEventListeners(plugin);
+        release(plugin);
     }
 
     /**
@@ -224,6 +760,7 @@ public class PluginManager {
             plugin.onDisable();
             loadRequester.getCommandHandler().unregisterPlugin(plugin);
             loadRequester.unregisterAllEventListeners(plugin);
+            release(plugin);
         }
 
         loadedPlugins.clear();
@@ -244,15 +781,16 @@ public class PluginManager {
      * @return The names
      */
     public String[] loadedPlugins() {
-        String[] names = new String[loadedPlugins.size()];
 
         synchronized (this) {
+            String[] names = new String[loadedPlugins.size()];
+
             for (int i = 0; i < loadedPlugins.size(); i++) {
                 names[i] = loadedPlugins.get(i).getPluginName();
             }
-        }
 
-        return names;
+            return names;
+        }
     }
 
     /**
@@ -274,13 +812,15 @@ public class PluginManager {
      */
     public String[] availablePlugins(File pluginDir) {
 
-        return pluginDir.list(new FilenameFilter() {
+        List<String> jars = new ArrayList<>();
 
-            @Override
-            public boolean accept(File dir, String name) {
-                return name.endsWith(".jar");
+        for (String name: index(pluginDir).fileNames()) {
+            if (name.endsWith(".jar")) {
+                jars.add(name);
             }
-        });
+        }
+
+        return jars.toArray(new String[0]);
     }
 
     /**
@@ -301,4 +841,32 @@ public class PluginManager {
 
         return null;
     }
+
+    /**
+     * A plugin that was instantiated but not enabled yet.
+     */
+    private static class Loaded {
+
+        private final PluginDescriptor descriptor;
+        private final Plugin plugin;
+        private final long loadTime;
+
+        Loaded(PluginDescriptor descriptor, Plugin plugin, long loadTime) {
+            this.descriptor = descriptor;
+            this.plugin = plugin;
+            this.loadTime = loadTime;
+        }
+    }
+
+    private static class LoaderThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "PluginLoader-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
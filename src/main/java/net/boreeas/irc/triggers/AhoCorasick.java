@@ -0,0 +1,186 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.triggers;
+
+import java.util.*;
+
+/**
+ * An Aho-Corasick automaton: finds all occurrences of any number of keywords
+ * in a text in a single pass over it. Matching ignores case.
+ * <p/>
+ * Keywords are added first, then {@link #build()} links the automaton. It
+ * can't be changed afterwards, but is safe for concurrent matching.
+ *
+ * @param <T> The value attached to each keyword
+ * @author Boreeas
+ */
+class AhoCorasick<T> {
+
+    private final Node<T> root = new Node<>(0);
+    private int size;
+    private boolean built;
+
+    /**
+     * Receives the keyword occurrences found by {@link #match}.
+     */
+    interface Hit<T> {
+
+        /**
+         * @param value The value of the keyword
+         * @param start The index of the first char of the occurrence
+         * @param end   The index after the last char of the occurrence
+         */
+        void hit(T value, int start, int end);
+    }
+
+    /**
+     * Adds a keyword.
+     * @param keyword The keyword, must not be empty
+     * @param value   The value to report for occurrences of it
+     */
+    void add(String keyword, T value) {
+
+        if (built) {
+            throw new IllegalStateException("Automaton already built");
+        }
+        if (keyword.isEmpty()) {
+            throw new IllegalArgumentException("Empty keyword");
+        }
+
+        Node<T> node = root;
+
+        for (int i = 0; i < keyword.length(); i++) {
+            char c = fold(keyword.charAt(i));
+            Node<T> next = node.building.get(c);
+
+            if (next == null) {
+                next = new Node<>(node.depth + 1);
+                node.building.put(c, next);
+            }
+            node = next;
+        }
+
+        node.values.add(value);
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Computes the failure links. Must be called once after all keywords
+     * were added.
+     */
+    void build() {
+
+        Deque<Node<T>> queue = new ArrayDeque<>();
+        root.freeze();
+        queue.add(root);
+
+        while (!queue.isEmpty()) {
+            Node<T> node = queue.poll();
+
+            for (int i = 0; i < node.keys.length; i++) {
+                char c = node.keys[i];
+                Node<T> child = node.next[i];
+                child.freeze();
+
+                if (node == root) {
+                    child.fail = root;
+                } else {
+                    Node<T> fail = node.fail;
+                    while (fail != root && fail.child(c) == null) {
+                        fail = fail.fail;
+                    }
+
+                    Node<T> target = fail.child(c);
+                    child.fail = target == null ? root : target;
+                }
+
+                // The closest suffix that is a keyword itself
+                child.output = child.fail.values.isEmpty() ? child.fail.output : child.fail;
+                queue.add(child);
+            }
+        }
+
+        built = true;
+    }
+
+    /**
+     * Reports every occurrence of every keyword in the text, overlapping
+     * ones included, ordered by where they end.
+     * @param text The text
+     * @param hit  Receives the occurrences
+     */
+    void match(CharSequence text, Hit<T> hit) {
+
+        if (!built) {
+            throw new IllegalStateException("Automaton not built");
+        }
+
+        Node<T> node = root;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = fold(text.charAt(i));
+            Node<T> next;
+
+            while ((next = node.child(c)) == null && node != root) {
+                node = node.fail;
+            }
+            node = next == null ? root : next;
+
+            for (Node<T> found = node.values.isEmpty() ? node.output : node; found != null; found = found.output) {
+                for (T value: found.values) {
+                    hit.hit(value, i + 1 - found.depth, i + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Folds the case of a char the way case insensitive regular expressions
+     * with {@link java.util.regex.Pattern#UNICODE_CASE} do.
+     */
+    static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    private static class Node<T> {
+
+        private final int depth;
+        private final List<T> values = new ArrayList<>(1);
+        // Children while keywords are added, then sorted into keys and next
+        private Map<Character, Node<T>> building = new TreeMap<>();
+        private char[] keys;
+        private Node<T>[] next;
+        private Node<T> fail;
+        private Node<T> output;
+
+        Node(int depth) {
+            this.depth = depth;
+        }
+
+        @SuppressWarnings("unchecked")
+        void freeze() {
+
+            keys = new char[building.size()];
+            next = (Node<T>[]) new Node<?>[building.size()];
+
+            int i = 0;
+            for (Map.Entry<Character, Node<T>> entry: building.entrySet()) {
+                keys[i] = entry.getKey();
+                next[i] = entry.getValue();
+                i++;
+            }
+
+            building = null;
+        }
+
+        Node<T> child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : next[index];
+        }
+    }
+}
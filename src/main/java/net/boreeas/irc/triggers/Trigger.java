@@ -0,0 +1,123 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.triggers;
+
+import net.boreeas.irc.plugins.Plugin;
+
+import java.util.regex.Pattern;
+
+/**
+ * A keyword or regular expression a plugin wants to be notified about when
+ * it appears in a message. Created by {@link TriggerRegistry}.
+ *
+ * @author Boreeas
+ */
+public final class Trigger {
+
+    private final Plugin plugin;
+    private final String channel;
+    private final String literal;
+    private final Pattern pattern;
+    // For patterns, a literal every match has to contain, or null
+    private final String required;
+
+    Trigger(Plugin plugin, String channel, String literal, Pattern pattern) {
+        this.plugin = plugin;
+        this.channel = channel;
+        this.literal = literal;
+        this.pattern = pattern;
+        this.required = pattern == null ? null : requiredLiteral(pattern);
+    }
+
+    public Plugin plugin() {
+        return plugin;
+    }
+
+    /**
+     * @return The channel the trigger is limited to, or <code>null</code>
+     */
+    public String channel() {
+        return channel;
+    }
+
+    /**
+     * @return The keyword, or <code>null</code> for a regular expression
+     */
+    public String literal() {
+        return literal;
+    }
+
+    /**
+     * @return The regular expression, or <code>null</code> for a keyword
+     */
+    public Pattern pattern() {
+        return pattern;
+    }
+
+    public boolean isRegex() {
+        return pattern != null;
+    }
+
+    boolean appliesIn(String target) {
+        return channel == null || channel.equalsIgnoreCase(target);
+    }
+
+    /**
+     * Returns the keyword the automaton looks for: the keyword itself, or the
+     * literal every match of the pattern contains.
+     */
+    String keyword() {
+        return pattern == null ? literal : required;
+    }
+
+    /**
+     * Finds the literal text a pattern starts with, e.g. "!seen" for
+     * <code>!seen\s+(\S+)</code>. A message that doesn't contain it can't
+     * match, so the pattern only has to run when the automaton finds it.
+     * Gives up on anything that could make the prefix optional.
+     *
+     * @return The literal, or <code>null</code> if there is none
+     */
+    static String requiredLiteral(Pattern pattern) {
+
+        if ((pattern.flags() & (Pattern.COMMENTS | Pattern.CANON_EQ)) != 0) {
+            return null;
+        }
+
+        String regex = pattern.pattern();
+
+        if ((pattern.flags() & Pattern.LITERAL) != 0) {
+            return regex.isEmpty() ? null : regex;
+        }
+
+        // An alternative could do without the prefix
+        if (regex.indexOf('|') != -1) {
+            return null;
+        }
+
+        StringBuilder prefix = new StringBuilder();
+
+        for (int i = regex.startsWith("^") ? 1 : 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+
+            if ("\\^$.|?*+()[]{}".indexOf(c) != -1) {
+                // These make the char before them optional
+                if ((c == '?' || c == '*' || c == '{') && prefix.length() > 0) {
+                    int last = prefix.length() - 1;
+                    prefix.setLength(last > 0 && Character.isLowSurrogate(prefix.charAt(last)) ? last - 1 : last);
+                }
+                break;
+            }
+
+            prefix.append(c);
+        }
+
+        return prefix.length() == 0 ? null : prefix.toString();
+    }
+
+    @Override
+    public String toString() {
+        return (pattern == null ? literal : "/" + pattern + "/") + (channel == null ? "" : " in " + channel);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.triggers;
+
+import net.boreeas.irc.metrics.Counter;
+import net.boreeas.irc.metrics.Gauge;
+import net.boreeas.irc.metrics.Histogram;
+import net.boreeas.irc.metrics.MetricsRegistry;
+import net.boreeas.irc.plugins.Plugin;
+
+import java.util.*;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The keywords and regular expressions plugins react to. Instead of every
+ * plugin checking every message for each of its keywords, the registry scans
+ * a message once for all of them and tells only the plugins whose triggers
+ * matched, with a {@link net.boreeas.irc.events.TriggerMatchedEvent}.
+ * <p/>
+ * Keywords, and the literal prefixes of regular expressions, are compiled
+ * into one Aho-Corasick automaton. A regular expression only runs when its
+ * prefix was found; those without a literal prefix run on every message.
+ * Matching ignores the case of keywords and prefixes.
+ * <p/>
+ * The registry is safe for concurrent use. Changes are compiled on the next
+ * scan, so registering many triggers at once is cheap.
+ *
+ * @author Boreeas
+ */
+public class TriggerRegistry {
+
+    private final List<Trigger> triggers = new ArrayList<>();
+    // null when the triggers changed since they were last compiled
+    private volatile Compiled compiled = new Compiled(Collections.<Trigger>emptyList());
+
+    private final Histogram scanTime;
+    private final Counter matched;
+
+    public TriggerRegistry(MetricsRegistry metrics) {
+
+        this.scanTime = metrics.histogram("trigger_scan_time_ns");
+        this.matched = metrics.counter("triggers_matched_total");
+
+        metrics.gauge("triggers_registered", new Gauge() {
+            @Override
+            public long value() {
+                synchronized (TriggerRegistry.this) {
+                    return triggers.size();
+                }
+            }
+        });
+    }
+
+    /**
+     * Registers a keyword. It matches anywhere in a message, ignoring case.
+     *
+     * @param plugin  The plugin to notify
+     * @param channel The channel to look in, or <code>null</code> for all
+     *                channels and private messages
+     * @param keyword The keyword
+     * @return The trigger, to unregister it with
+     * @throws IllegalArgumentException If the keyword is empty
+     */
+    public synchronized Trigger addKeyword(Plugin plugin, String channel, String keyword) {
+
+        if (keyword.isEmpty()) {
+            throw new IllegalArgumentException("Empty keyword");
+        }
+
+        return add(new Trigger(plugin, channel, keyword, null));
+    }
+
+    /**
+     * Registers a regular expression. It matches if it is found anywhere in
+     * a message, as with {@link Matcher#find()}.
+     *
+     * @param plugin  The plugin to notify
+     * @param channel The channel to look in, or <code>null</code> for all
+     *                channels and private messages
+     * @param pattern The regular expression
+     * @return The trigger, to unregister it with
+     */
+    public synchronized Trigger addPattern(Plugin plugin, String channel, Pattern pattern) {
+        return add(new Trigger(plugin, channel, null, pattern));
+    }
+
+    private Trigger add(Trigger trigger) {
+        triggers.add(trigger);
+        compiled = null;
+        return trigger;
+    }
+
+    public synchronized boolean remove(Trigger trigger) {
+
+        if (!triggers.remove(trigger)) {
+            return false;
+        }
+
+        compiled = null;
+        return true;
+    }
+
+    /**
+     * Unregisters all triggers of a plugin.
+     * @param plugin The plugin
+     */
+    public synchronized void removeAll(Plugin plugin) {
+
+        for (Iterator<Trigger> it = triggers.iterator(); it.hasNext();) {
+            if (it.next().plugin() == plugin) {
+                it.remove();
+                compiled = null;
+            }
+        }
+    }
+
+    public synchronized List<Trigger> getTriggers() {
+        return new ArrayList<>(triggers);
+    }
+
+    /**
+     * Scans a message for all triggers.
+     *
+     * @param target  The channel or nick the message was sent to
+     * @param message The message
+     * @return For each plugin with matching triggers, the matched triggers
+     *         and where they matched first. Empty if nothing matched.
+     */
+    public Map<Plugin, Map<Trigger, MatchResult>> match(String target, String message) {
+
+        Compiled current = compiled;
+        if (current == null) {
+            current = compile();
+        }
+
+        if (current.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        long scanStart = System.nanoTime();
+
+        final Map<Trigger, MatchResult> results = new LinkedHashMap<>();
+        final Set<Trigger> candidates = new LinkedHashSet<>();
+
+        for (Trigger trigger: current.unfiltered) {
+            if (trigger.appliesIn(target)) {
+                candidates.add(trigger);
+            }
+        }
+
+        current.keywords.match(message, new AhoCorasick.Hit<Trigger>() {
+            @Override
+            public void hit(Trigger trigger, int start, int end) {
+                if (!trigger.appliesIn(target)) {
+                    return;
+                }
+
+                if (trigger.isRegex()) {
+                    candidates.add(trigger);
+                } else if (!results.containsKey(trigger)) {
+                    results.put(trigger, new KeywordMatch(message, start, end));
+                }
+            }
+        });
+
+        for (Trigger trigger: candidates) {
+            Matcher matcher = trigger.pattern().matcher(message);
+
+            if (matcher.find()) {
+                results.put(trigger, matcher.toMatchResult());
+            }
+        }
+
+        Map<Plugin, Map<Trigger, MatchResult>> byPlugin = new LinkedHashMap<>();
+
+        for (Map.Entry<Trigger, MatchResult> entry: results.entrySet()) {
+            Trigger trigger = entry.getKey();
+            Map<Trigger, MatchResult> forPlugin = byPlugin.get(trigger.plugin());
+            if (forPlugin == null) {
+                forPlugin = new LinkedHashMap<>();
+                byPlugin.put(trigger.plugin(), forPlugin);
+            }
+            forPlugin.put(trigger, entry.getValue());
+            matched.inc();
+        }
+
+        scanTime.record(System.nanoTime() - scanStart);
+        return byPlugin;
+    }
+
+    private synchronized Compiled compile() {
+
+        if (compiled == null) {
+            compiled = new Compiled(triggers);
+        }
+
+        return compiled;
+    }
+
+    /**
+     * The triggers, compiled for matching.
+     */
+    private static class Compiled {
+
+        private final AhoCorasick<Trigger> keywords = new AhoCorasick<>();
+        // Patterns without a literal to look for
+        private final List<Trigger> unfiltered = new ArrayList<>();
+
+        Compiled(List<Trigger> triggers) {
+
+            for (Trigger trigger: triggers) {
+                String keyword = trigger.keyword();
+
+                if (keyword == null) {
+                    unfiltered.add(trigger);
+                } else {
+                    keywords.add(keyword, trigger);
+                }
+            }
+
+            keywords.build();
+        }
+
+        boolean isEmpty() {
+            return keywords.size() == 0 && unfiltered.isEmpty();
+        }
+    }
+
+    /**
+     * Where a keyword was found.
+     */
+    private static class KeywordMatch implements MatchResult {
+
+        private final String message;
+        private final int start;
+        private final int end;
+
+        KeywordMatch(String message, int start, int end) {
+            this.message = message;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int start() {
+            return start;
+        }
+
+        @Override
+        public int start(int group) {
+            checkGroup(group);
+            return start;
+        }
+
+        @Override
+        public int end() {
+            return end;
+        }
+
+        @Override
+        public int end(int group) {
+            checkGroup(group);
+            return end;
+        }
+
+        @Override
+        public String group() {
+            return message.substring(start, end);
+        }
+
+        @Override
+        public String group(int group) {
+            checkGroup(group);
+            return group();
+        }
+
+        @Override
+        public int groupCount() {
+            return 0;
+        }
+
+        private static void checkGroup(int group) {
+            if (group != 0) {
+                throw new IndexOutOfBoundsException("No group " + group);
+            }
+        }
+    }
+}
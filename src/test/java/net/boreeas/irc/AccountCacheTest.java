@@ -0,0 +1,84 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import junit.framework.TestCase;
+import net.boreeas.irc.metrics.MetricsRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class AccountCacheTest extends TestCase {
+
+    private MetricsRegistry metrics;
+    private AccountCache cache;
+
+    public AccountCacheTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        metrics = new MetricsRegistry();
+        cache = new AccountCache(metrics, 5, 60);
+    }
+
+    public void testHitsAndMisses() {
+
+        assertNull(cache.get("alice", "a@a.host"));
+        cache.put("Alice", "a@a.host", "aliceacc");
+        assertEquals("aliceacc", cache.get("ALICE", "a@a.host"));
+        assertEquals("aliceacc", cache.get("alice", "A@A.HOST"));
+
+        assertEquals(2, metrics.counter("account_cache_hits_total").get());
+        assertEquals(1, metrics.counter("account_cache_misses_total").get());
+
+        cache.invalidate("alice");
+        assertNull(cache.get("alice", "a@a.host"));
+    }
+
+    /**
+     * A client that takes over a nick unnoticed must not inherit the account
+     * cached for the previous owner.
+     */
+    public void testNickTakenOver() {
+
+        cache.put("alice", "a@a.host", "aliceacc");
+        cache.get("alice", "a@a.host");     // In the protected segment now
+
+        assertNull(cache.get("alice", "mallory@evil.host"));
+        assertEquals("Dropped on mismatch", 0, cache.size());
+        assertNull(cache.get("alice", "a@a.host"));
+    }
+
+    public void testExpiry() {
+
+        long now = System.nanoTime();
+        cache.put("alice", "a@a.host", "aliceacc", now);
+
+        assertEquals("aliceacc", cache.get("alice", "a@a.host", now + TimeUnit.SECONDS.toNanos(59)));
+        assertNull(cache.get("alice", "a@a.host", now + TimeUnit.SECONDS.toNanos(60)));
+        assertEquals(0, cache.size());
+    }
+
+    public void testFrequentUsersSurviveScans() {
+
+        cache.put("regular", "r@r.host", "regacc");
+        cache.get("regular", "r@r.host");   // Promoted on the first hit
+
+        for (int i = 0; i < 20; i++) {
+            cache.put("oneoff" + i, "o@o.host", AccountTracker.NOT_LOGGED_IN);
+        }
+
+        assertEquals(5, cache.size());
+        assertEquals(16, metrics.counter("account_cache_evictions_total").get());
+        assertEquals("regacc", cache.get("regular", "r@r.host"));
+        assertNull(cache.get("oneoff0", "o@o.host"));
+        assertEquals(AccountTracker.NOT_LOGGED_IN, cache.get("oneoff19", "o@o.host"));
+    }
+}
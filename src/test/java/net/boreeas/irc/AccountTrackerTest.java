@@ -0,0 +1,158 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class AccountTrackerTest extends TestCase {
+
+    private FakeIrcServer server;
+    private IrcBot bot;
+    private AccountTracker accounts;
+
+    public AccountTrackerTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FakeIrcServer();
+        bot = new IrcBot(server.botConfig("testbot"));
+        bot.openReplay();
+        accounts = bot.getAccounts();
+
+        bot.process(":irc.test CAP testbot ACK :account-notify extended-join account-tag multi-prefix");
+        bot.process(":testbot!bot@host JOIN #chan * :Test bot");
+        bot.process(":irc.test 353 testbot = #chan :@+alice!a@a.host +bob!b@b.host testbot!bot@host");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        super.tearDown();
+    }
+
+    public void testExtendedJoinAndAccountNotify() {
+
+        assertTrue(bot.hasCapability("account-notify"));
+        assertNull("Unknown until the server tells", accounts.getAccount("alice"));
+
+        bot.process("@account=carolacc :carol!c@c.host JOIN #chan carolacc :Carol");
+        assertEquals("carolacc", accounts.getAccount("Carol"));
+
+        bot.process(":carol!c@c.host ACCOUNT *");
+        assertEquals(AccountTracker.NOT_LOGGED_IN, accounts.getAccount("carol"));
+
+        bot.process(":alice!a@a.host ACCOUNT aliceacc");
+        assertEquals("aliceacc", accounts.getAccount("alice"));
+
+        bot.process("@account=aliceacc :alice!a@a.host NICK alicia");
+        assertNull(accounts.getAccount("alice"));
+        assertEquals("aliceacc", accounts.getAccount("alicia"));
+
+        bot.process("@account=aliceacc :alicia!a@a.host PART #chan");
+        assertNull("Forgotten when no channel is shared anymore", accounts.getAccount("alicia"));
+    }
+
+    public void testAccountTag() {
+
+        bot.process("@time=2020-01-01T00:00:00Z;account=bobacc :bob!b@b.host PRIVMSG #chan :hi");
+        assertEquals("bobacc", accounts.getAccount("bob"));
+
+        bot.process("@time=2020-01-01T00:00:01Z :bob!b@b.host PRIVMSG #chan :bye");
+        assertEquals(AccountTracker.NOT_LOGGED_IN, accounts.getAccount("bob"));
+
+        // Users outside of the bot's channels, e.g. in a private message, are not kept
+        bot.process("@account=dave :dave!d@d.host PRIVMSG testbot :help");
+        assertNull(accounts.getAccount("dave"));
+        assertNull(accounts.getAccount(new User("dave", "d", "d.host")));
+    }
+
+    public void testPrefixes() {
+
+        assertEquals(ChannelAccessLevel.OP, bot.getChanAccess("alice", "#chan"));
+        assertEquals(ChannelAccessLevel.VOICE, bot.getChanAccess("bob", "#chan"));
+        assertEquals(ChannelAccessLevel.NONE, bot.getChanAccess("testbot", "#chan"));
+
+        bot.process(":chanserv!s@services MODE #chan -o+o alice bob");
+        assertEquals(ChannelAccessLevel.VOICE, bot.getChanAccess("alice", "#chan"));
+        assertEquals(ChannelAccessLevel.OP, bot.getChanAccess("bob", "#chan"));
+
+        bot.process(":chanserv!s@services MODE #chan +lv 10 alice");
+        bot.process(":chanserv!s@services MODE #chan -v alice");
+        assertEquals(ChannelAccessLevel.NONE, bot.getChanAccess("alice", "#chan"));
+
+        assertTrue(bot.isUserInChannel("#chan", "alice"));
+    }
+
+    public void testAway() {
+
+        bot.process(":bob!b@b.host AWAY :lunch");
+        assertTrue(accounts.isAway("bob"));
+
+        bot.process(":bob!b@b.host AWAY");
+        assertFalse(accounts.isAway("bob"));
+    }
+
+    public void testLookupsAreCachedUntilInvalidated() {
+
+        // Without account-notify, lookups can't be kept up to date
+        bot.process(":irc.test CAP testbot ACK :-account-notify");
+        accounts.remember(new User("bob", "b", "b.host"), "bobacc");
+        accounts.remember(new User("erin", "e", "e.host"), "erinacc");
+        assertEquals("bobacc", accounts.getAccount("bob"));
+        assertNull("Not in a shared channel", accounts.getAccount("erin"));
+
+        bot.process(":bob!b@b.host PART #chan");
+        assertNull("Left the last shared channel", accounts.getAccount("bob"));
+
+        accounts.remember(new User("alice", "a", "a.host"), "aliceacc");
+        bot.process(":alice!a@a.host NICK erin");
+        assertNull("The nick changed hands", accounts.getAccount("alice"));
+        assertNull(accounts.getAccount("erin"));
+
+        accounts.remember(new User("erin", "a", "a.host"), "aliceacc");
+        bot.process(":erin!a@a.host QUIT :bye");
+        assertNull(accounts.getAccount("erin"));
+    }
+
+    /**
+     * Another client that shows up with the nick of a user whose account is
+     * cached, without the bot noticing the change, must not get the account.
+     */
+    public void testTakenOverNickIsNotTrusted() throws Exception {
+
+        bot.process(":irc.test CAP testbot ACK :-account-notify");
+        accounts.remember(new User("bob", "b", "b.host"), "bobacc");
+
+        assertEquals("bobacc", accounts.getAccount(new User("bob", "b", "b.host")));
+        assertNull(accounts.getAccount(new User("bob", "mallory", "evil.host")));
+        assertNull("Dropped once seen with another host", accounts.getAccount(new User("bob", "b", "b.host")));
+    }
+
+    public void testHostRulesNeedNoLookup() throws Exception {
+
+        bot.getAccessList().add("#chan", "*!*@a.host", BotAccessLevel.MOD);
+
+        // A lookup would fail, nothing is there to answer it
+        User alice = accounts.getUser("alice");
+        assertEquals("a", alice.user());
+        assertTrue(bot.hasAccessLevel(alice, "#chan", BotAccessLevel.MOD));
+        assertFalse("No account rule grants ADMIN", bot.hasAccessLevel(alice, "#chan", BotAccessLevel.ADMIN));
+        assertFalse("Scoped to #chan", bot.hasAccessLevel(alice, "#other", BotAccessLevel.MOD));
+    }
+
+    public void testTagValue() {
+
+        assertEquals("acc", IrcBot.tagValue("time=x;account=acc", "account"));
+        assertEquals("a;b c\\", IrcBot.tagValue("msg=a\\:b\\sc\\\\", "msg"));
+        assertEquals("", IrcBot.tagValue("draft/flag", "draft/flag"));
+        assertNull(IrcBot.tagValue("accounts=x", "account"));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class CommandParserTest extends TestCase {
+
+    private final TempDirs temp = new TempDirs();
+    private Preferences preferences;
+    private CommandParser parser;
+
+    public CommandParserTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File dir = temp.create("command-parser");
+        preferences = new Preferences(new File(dir, "preferences").getPath());
+        parser = new CommandParser(preferences);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        temp.deleteAll();
+        super.tearDown();
+    }
+
+    public void testTokenize() {
+
+        assertEquals(Arrays.asList("a", "b c", "d\"e", "f\\g", "x y"),
+                     Arrays.asList(CommandParser.tokenize("  a \"b c\"  \"d\\\"e\" \"f\\\\g\" x\" y\"")));
+        assertEquals(Arrays.asList("", "unterminated rest"),
+                     Arrays.asList(CommandParser.tokenize("\"\" \"unterminated rest")));
+        assertEquals(0, CommandParser.tokenize("   ").length);
+    }
+
+    public void testParse() {
+
+        CommandLine line = parser.parse("#chan", "!core mute \"#chan\" 5m");
+        assertEquals("!", line.prefix());
+        assertEquals("core", line.pluginPrefix());
+        assertEquals("mute", line.command());
+        assertEquals(Arrays.asList("#chan", "5m"), Arrays.asList(line.args()));
+
+        line = parser.parse("#chan", "!help");
+        assertEquals("help", line.pluginPrefix());
+        assertNull(line.command());
+        assertEquals(0, line.args().length);
+
+        assertNull(parser.parse("#chan", "just chatting"));
+        assertNull(parser.parse("#chan", "! spaced"));
+        assertNull(parser.parse("#chan", "!"));
+    }
+
+    public void testPrefixFollowsPreferences() {
+
+        assertEquals("!", parser.prefix("#chan"));
+
+        preferences.setString("#chan", Preferences.CHANNEL_CMD_PREFIX, "$");
+        assertEquals("$", parser.prefix("#chan"));
+        assertNull(parser.parse("#chan", "!core mute"));
+        assertEquals("core", parser.parse("#chan", "$core mute").pluginPrefix());
+        assertEquals("!", parser.prefix("#other"));
+    }
+}
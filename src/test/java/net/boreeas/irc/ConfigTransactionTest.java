@@ -0,0 +1,134 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import junit.framework.TestCase;
+import net.boreeas.irc.metrics.MetricsRegistry;
+import org.apache.commons.configuration.plist.PropertyListConfiguration;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class ConfigTransactionTest extends TestCase {
+
+    private final TempDirs temp = new TempDirs();
+    private File file;
+    private PropertyListConfiguration config;
+    private MetricsRegistry metrics;
+    private ConfigWriter writer;
+
+    public ConfigTransactionTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        file = new File(temp.create("config-tx"), "bot.plist");
+        Files.write(file.toPath(), "{ nick = \"bot\"; access_mod = (\"a\", \"b\"); }".getBytes(StandardCharsets.UTF_8));
+
+        config = new PropertyListConfiguration(file);
+        config.setAutoSave(true);
+        metrics = new MetricsRegistry();
+        writer = new ConfigWriter(config, metrics);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        writer.flush();
+        temp.deleteAll();
+        super.tearDown();
+    }
+
+    public void testChangesAreWrittenOnce() throws Exception {
+
+        long modified = file.lastModified();
+        ConfigTransaction transaction = new ConfigTransaction(config, writer)
+                .set("nick", "other")
+                .removeFromList("access_mod", "a")
+                .addToList("access_mod", "c")
+                .addToList("access_mod", "b")
+                .addToList("access_admin", "d");
+
+        assertEquals("Nothing changes before commit", "bot", config.getString("nick"));
+        assertEquals(modified, file.lastModified());
+
+        transaction.commit().get();
+
+        assertEquals(1, metrics.counter("config_writes_total").get());
+        assertTrue("Auto save restored", config.isAutoSave());
+        assertTrue(writer.isOwnWrite());
+
+        PropertyListConfiguration saved = new PropertyListConfiguration(file);
+        assertEquals("other", saved.getString("nick"));
+        assertEquals(Arrays.asList("b", "c"), Arrays.asList(saved.getStringArray("access_mod")));
+        assertEquals(Arrays.asList("d"), Arrays.asList(saved.getStringArray("access_admin")));
+
+        new ConfigTransaction(config, writer).removeFromList("access_admin", "d").commit().get();
+        saved = new PropertyListConfiguration(file);
+        assertNotNull("Emptied lists are kept", saved.getProperty("access_admin"));
+        assertEquals(0, saved.getStringArray("access_admin").length);
+
+        try {
+            transaction.commit();
+            fail("Committed twice");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+    }
+
+    public void testBulkImport() throws Exception {
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            names.add("user" + i);
+        }
+
+        new ConfigTransaction(config, writer).addAllToList("access_mod", names).commit().get();
+
+        PropertyListConfiguration saved = new PropertyListConfiguration(file);
+        assertEquals(5002, saved.getStringArray("access_mod").length);
+        assertEquals(1, metrics.counter("config_writes_total").get());
+
+        // A foreign change to the file is not our own
+        Files.write(file.toPath(), "{ nick = \"edited\"; }".getBytes(StandardCharsets.UTF_8));
+        file.setLastModified(file.lastModified() + 2000);
+        assertFalse(writer.isOwnWrite());
+    }
+
+    /**
+     * An edit that keeps the length and modification time of the file, or
+     * comes in while a write is queued, must still be seen as foreign.
+     */
+    public void testForeignEditIsNotOwnWrite() throws Exception {
+
+        new ConfigTransaction(config, writer).set("nick", "bot2").commit().get();
+        assertTrue(writer.isOwnWrite());
+
+        byte[] written = Files.readAllBytes(file.toPath());
+        String content = new String(written, StandardCharsets.UTF_8);
+        assertTrue(content.contains("bot2"));
+
+        long modified = file.lastModified();
+        Files.write(file.toPath(), content.replace("bot2", "bot3").getBytes(StandardCharsets.UTF_8));
+        file.setLastModified(modified);
+        assertEquals(written.length, file.length());
+        assertFalse(writer.isOwnWrite());
+
+        synchronized (config) {
+            // The write can't finish while the lock is held
+            new ConfigTransaction(config, writer).set("nick", "bot4").commit();
+            assertFalse(writer.isOwnWrite());
+        }
+    }
+}
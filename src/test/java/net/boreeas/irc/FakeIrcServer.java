@@ -0,0 +1,493 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.plist.PropertyListConfiguration;
+
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process IRC server stub for integration and load tests. It accepts
+ * one client at a time on localhost, scripts the registration (001, 005,
+ * 376), answers pings, can flood the client with traffic from simulated
+ * users and records every line the client sends.
+ *
+ * @author Boreeas
+ */
+public class FakeIrcServer implements Closeable {
+
+    public static final String SERVER_NAME = "irc.test";
+
+    private final ServerSocket serverSocket;
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private final List<String> history = new ArrayList<>();
+    private final String[] supports;
+    private final TempDirs botDirs = new TempDirs();
+
+    private volatile Socket client;
+    private volatile Writer writer;
+    private volatile String clientNick = "*";
+    private volatile String[] capabilities;
+    private volatile String[] saslCredentials;
+    private volatile String clientCertificate;
+    private volatile boolean prefixedChallenge;
+    private String saslMechanism;
+    private Thread acceptThread;
+
+    /**
+     * Creates a server that advertises the given 005 tokens.
+     * @param supports The tokens, e.g. "TARGMAX=PRIVMSG:4"
+     * @throws IOException
+     */
+    public FakeIrcServer(String... supports) throws IOException {
+        this(null, supports);
+    }
+
+    /**
+     * Creates a server that accepts TLS connections and asks clients for a
+     * certificate, see {@link #tlsContext(String)}.
+     * @param tls The server's SSL context, or <code>null</code> for plaintext
+     * @param supports The 005 tokens
+     * @throws IOException
+     */
+    public FakeIrcServer(SSLContext tls, String... supports) throws IOException {
+
+        if (tls == null) {
+            this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        } else {
+            SSLServerSocket socket = (SSLServerSocket) tls.getServerSocketFactory()
+                    .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            socket.setWantClientAuth(true);
+            this.serverSocket = socket;
+        }
+
+        this.supports = supports;
+    }
+
+    /**
+     * Creates an SSL context from one of the test keystores in
+     * <code>/tls</code>: "server.jks" holds the server key for localhost and
+     * trusts the client, "client.jks" the other way round.
+     * @param keystore The keystore name
+     * @return The SSL context
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public static SSLContext tlsContext(String keystore) throws IOException, GeneralSecurityException {
+
+        KeyStore store = KeyStore.getInstance("JKS");
+        try (InputStream in = FakeIrcServer.class.getResourceAsStream("/tls/" + keystore)) {
+            store.load(in, "changeit".toCharArray());
+        }
+
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(store, "changeit".toCharArray());
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(store);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * Returns the path of a test keystore, for the bot configuration.
+     * @param keystore The keystore name
+     * @return The path
+     */
+    public static String tlsKeystore(String keystore) {
+        try {
+            return new File(FakeIrcServer.class.getResource("/tls/" + keystore).toURI()).getPath();
+        } catch (URISyntaxException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Makes the server support IRCv3 capability negotiation. Registration is
+     * then held back until the client sends CAP END, if it sent CAP LS.
+     * @param caps The capabilities to offer, e.g. "sasl=PLAIN"
+     * @return this
+     */
+    public FakeIrcServer withCapabilities(String... caps) {
+        this.capabilities = caps;
+        return this;
+    }
+
+    /**
+     * Makes the server accept SASL PLAIN with the given credentials. The
+     * "sasl" capability must be offered with {@link #withCapabilities}.
+     * SASL EXTERNAL is accepted from any TLS client with a certificate.
+     * @param account The account name
+     * @param password The password
+     * @return this
+     */
+    public FakeIrcServer withSasl(String account, String password) {
+        this.saslCredentials = new String[]{account, password};
+        return this;
+    }
+
+    /**
+     * Makes the server send its AUTHENTICATE challenge with a server prefix,
+     * as some servers do.
+     * @return this
+     */
+    public FakeIrcServer withPrefixedChallenge() {
+        this.prefixedChallenge = true;
+        return this;
+    }
+
+    /**
+     * Returns the subject of the certificate the current or last TLS client
+     * presented.
+     * @return The subject, e.g. "CN=testbot", or <code>null</code>
+     */
+    public String clientCertificate() {
+        return clientCertificate;
+    }
+
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts accepting clients in the background.
+     * @return this
+     */
+    public FakeIrcServer start() {
+
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "FakeIrcServer:" + port());
+
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return this;
+    }
+
+    private void acceptLoop() {
+
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                client = socket;
+
+                if (socket instanceof SSLSocket) {
+                    try {
+                        clientCertificate = ((SSLSocket) socket).getSession().getPeerPrincipal().getName();
+                    } catch (SSLPeerUnverifiedException ex) {
+                        clientCertificate = null;
+                    }
+                }
+
+                writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+                // IrcBot.connect() waits for four lines containing "***"
+                for (int i = 0; i < 4; i++) {
+                    send("NOTICE * :*** Fake server notice " + i);
+                }
+                flush();
+
+                readLoop(socket);
+            } catch (SocketException ex) {
+                // Closed
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) throws IOException {
+
+        BufferedReader reader =
+                       new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        boolean registered = false;
+        boolean user = false;
+        boolean negotiating = false;
+
+        while ((line = reader.readLine()) != null) {
+
+            synchronized (history) {
+                history.add(line);
+            }
+            received.add(line);
+
+            String[] caps = capabilities;
+
+            if (line.startsWith("NICK ")) {
+                clientNick = line.substring(5).trim();
+            } else if (line.startsWith("USER ")) {
+                user = true;
+            } else if (line.startsWith("CAP ") && caps != null) {
+                negotiating = !line.equals("CAP END");
+                negotiate(line.substring(4), caps);
+            } else if (line.startsWith("AUTHENTICATE ") && negotiating) {
+                authenticate(line.substring(13));
+            } else if (line.startsWith("PING ")) {
+                send(":" + SERVER_NAME + " PONG " + SERVER_NAME + " " + line.substring(5));
+                flush();
+            }
+
+            if (user && !negotiating && !registered) {
+                registered = true;
+                register();
+            }
+        }
+    }
+
+    private void negotiate(String command, String[] caps) throws IOException {
+
+        if (command.startsWith("LS")) {
+            send(":" + SERVER_NAME + " CAP " + clientNick + " LS :" + String.join(" ", caps));
+        } else if (command.startsWith("REQ :")) {
+
+            List<String> offered = new ArrayList<>();
+            for (String cap: caps) {
+                offered.add(cap.contains("=") ? cap.substring(0, cap.indexOf('=')) : cap);
+            }
+
+            String requested = command.substring(5);
+            boolean all = offered.containsAll(Arrays.asList(requested.split(" ")));
+            send(":" + SERVER_NAME + " CAP " + clientNick + (all ? " ACK :" : " NAK :") + requested);
+        }
+
+        flush();
+    }
+
+    private void authenticate(String data) throws IOException {
+
+        String[] credentials = saslCredentials;
+
+        if (data.equals("PLAIN") || data.equals("EXTERNAL")) {
+            saslMechanism = data;
+            send((prefixedChallenge ? ":" + SERVER_NAME + " " : "") + "AUTHENTICATE +");
+        } else if (!data.equals("*")) {
+
+            String account = null;
+
+            if (saslMechanism.equals("EXTERNAL")) {
+                // The account is named after the certificate's CN
+                account = clientCertificate == null ? null : clientCertificate.replaceFirst("^CN=([^,]*).*", "$1");
+            } else {
+                String[] fields = new String(Base64.getDecoder().decode(data.equals("+") ? "" : data),
+                                             StandardCharsets.UTF_8).split("\0", -1);
+
+                if (credentials != null && fields.length == 3
+                    && fields[1].equals(credentials[0]) && fields[2].equals(credentials[1])) {
+                    account = credentials[0];
+                }
+            }
+
+            if (account != null) {
+                send(":" + SERVER_NAME + " 900 " + clientNick + " " + clientNick + "!" + clientNick + "@fake.host "
+                     + account + " :You are now logged in as " + account);
+                send(":" + SERVER_NAME + " 903 " + clientNick + " :SASL authentication successful");
+            } else {
+                send(":" + SERVER_NAME + " 904 " + clientNick + " :SASL authentication failed");
+            }
+        }
+
+        flush();
+    }
+
+    private void register() throws IOException {
+
+        send(":" + SERVER_NAME + " 001 " + clientNick + " :Welcome to the fake network " + clientNick);
+
+        StringBuilder tokens = new StringBuilder();
+        for (String token: supports) {
+            tokens.append(' ').append(token);
+        }
+
+        send(":" + SERVER_NAME + " 005 " + clientNick + tokens + " :are supported by this server");
+        send(":" + SERVER_NAME + " 376 " + clientNick + " :End of /MOTD command.");
+        flush();
+    }
+
+    /**
+     * Sends a raw line to the connected client, without flushing.
+     * @param line The line, without CR LF
+     * @throws IOException
+     */
+    public void send(String line) throws IOException {
+        writer.write(line);
+        writer.write("\r\n");
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Waits until the client is connected and registered.
+     * @param timeout The timeout in milliseconds
+     * @return <code>true</code> if the client sent USER within the timeout
+     * @throws InterruptedException
+     */
+    public boolean awaitRegistration(long timeout) throws InterruptedException {
+        return awaitLine(Pattern.compile("USER .*"), timeout) != null;
+    }
+
+    /**
+     * Waits for the next line from the client that matches the pattern. Lines
+     * that don't match are skipped, but stay in {@link #history()}.
+     * @param pattern The pattern the whole line must match
+     * @param timeout The timeout in milliseconds
+     * @return The line, or <code>null</code> on timeout
+     * @throws InterruptedException
+     */
+    public String awaitLine(Pattern pattern, long timeout) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+
+            String line = received.poll(remaining, TimeUnit.MILLISECONDS);
+
+            if (line == null) {
+                return null;
+            }
+
+            if (pattern.matcher(line).matches()) {
+                return line;
+            }
+        }
+    }
+
+    /**
+     * Returns all lines the client has sent so far.
+     * @return The lines, in order
+     */
+    public List<String> history() {
+        synchronized (history) {
+            return new ArrayList<>(history);
+        }
+    }
+
+    /**
+     * Sends a mix of channel traffic from simulated users: mostly messages,
+     * plus joins, parts, voice changes and names replies.
+     * @param channel The channel the traffic is sent to
+     * @param users   The number of simulated users
+     * @param lines   The number of lines to send
+     * @param seed    The seed for the traffic mix
+     * @return The number of PRIVMSG lines that were sent
+     * @throws IOException
+     */
+    public int flood(String channel, int users, int lines, long seed) throws IOException {
+
+        Random random = new Random(seed);
+        int messages = 0;
+
+        for (int i = 0; i < lines; i++) {
+
+            int user = random.nextInt(users);
+            String mask = simulatedUser(user);
+            int kind = random.nextInt(100);
+
+            if (kind < 75) {
+                send(":" + mask + " PRIVMSG " + channel + " :message " + i + " from user " + user);
+                messages++;
+            } else if (kind < 85) {
+                send(":" + mask + " JOIN " + channel);
+            } else if (kind < 92) {
+                send(":" + mask + " PART " + channel + " :bye");
+            } else if (kind < 97) {
+                send(":" + simulatedUser(0) + " MODE " + channel + " +v " + "user" + user);
+            } else {
+                StringBuilder names = new StringBuilder();
+                for (int n = 0; n < 20; n++) {
+                    names.append(n == 0 ? "" : " ").append(n % 5 == 0 ? "@" : "").append("user").append(random.nextInt(users));
+                }
+                send(":" + SERVER_NAME + " 353 " + clientNick + " = " + channel + " :" + names);
+            }
+        }
+
+        flush();
+        return messages;
+    }
+
+    public static String simulatedUser(int index) {
+        return "user" + index + "!~u" + index + "@sim" + index + ".example.org";
+    }
+
+    /**
+     * Disconnects the current client, but keeps accepting new ones.
+     * @throws IOException
+     */
+    public void dropClient() throws IOException {
+        Socket current = client;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        dropClient();
+        botDirs.deleteAll();
+    }
+
+    /**
+     * Creates a configuration for a bot that connects to this server. The
+     * configuration and the bot's data are stored in a fresh temporary
+     * directory, which is deleted when the server is closed. Stop the bot
+     * first.
+     * @param nick The nick of the bot
+     * @return The configuration
+     * @throws IOException
+     * @throws ConfigurationException
+     */
+    public PropertyListConfiguration botConfig(String nick) throws IOException, ConfigurationException {
+
+        File dir = botDirs.create("fake-irc");
+        File file = new File(dir, "bot_test.plist");
+
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            out.write("{\n"
+                      + "    host = \"localhost\";\n"
+                      + "    port = " + port() + ";\n"
+                      + "    nick = \"" + nick + "\";\n"
+                      + "    user = \"" + nick + "\";\n"
+                      + "    desc = \"Test bot\";\n"
+                      + "    channels = ();\n"
+                      + "    access_mod = ();\n"
+                      + "    access_admin = ();\n"
+                      + "    access_owner = ();\n"
+                      + "    plugins = (\"Core\");\n"
+                      + "    plugin_dir = \"" + new File(dir, "plugins").getPath().replace("\\", "/") + "\";\n"
+                      + "}\n");
+        }
+
+        return new PropertyListConfiguration(file);
+    }
+}
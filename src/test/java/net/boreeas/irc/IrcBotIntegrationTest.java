@@ -0,0 +1,488 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import junit.framework.TestCase;
+import net.boreeas.irc.events.ConfigChangedEvent;
+import net.boreeas.irc.events.EventListener;
+import net.boreeas.irc.events.MessageReceivedEvent;
+import net.boreeas.irc.events.PingEvent;
+import net.boreeas.irc.events.TriggerMatchedEvent;
+import net.boreeas.irc.events.WelcomeReceivedEvent;
+import net.boreeas.irc.plugins.Plugin;
+import net.boreeas.irc.plugins.TestPlugins;
+import net.boreeas.irc.triggers.Trigger;
+import org.apache.commons.configuration.FileConfiguration;
+import org.apache.commons.configuration.plist.PropertyListConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end tests against {@link FakeIrcServer}.
+ *
+ * @author Boreeas
+ */
+public class IrcBotIntegrationTest extends TestCase {
+
+    private final List<IrcBot> bots = new ArrayList<>();
+    private FakeIrcServer server;
+    private IrcBot bot;
+
+    public IrcBotIntegrationTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FakeIrcServer("CHANTYPES=#", "MODES=4", "TARGMAX=PRIVMSG:3,NOTICE:3").start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+
+        for (IrcBot created: bots) {
+            if (created.isAlive()) {
+                created.disconnect();
+                created.join(5000);
+            }
+        }
+
+        server.close();
+        super.tearDown();
+    }
+
+    /**
+     * Creates the bot of a test. All bots are stopped in tearDown.
+     */
+    private void newBot(FileConfiguration config) {
+        bot = new IrcBot(config);
+        bots.add(bot);
+    }
+
+    private void newBot() throws Exception {
+        newBot(server.botConfig("testbot"));
+    }
+
+    private void connect() throws Exception {
+
+        final CountDownLatch welcome = new CountDownLatch(1);
+        bot.getEventPump().addPermanentEventListener(new EventListener() {
+            @Override
+            public void onWelcomeReceived(WelcomeReceivedEvent evt) {
+                welcome.countDown();
+            }
+        });
+
+        bot.connect();
+        bot.start();
+
+        assertTrue("Bot did not register", server.awaitRegistration(5000));
+        assertTrue("Bot did not receive 001", welcome.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testRegistration() throws Exception {
+
+        newBot();
+        connect();
+
+        assertTrue(server.history().contains("NICK testbot"));
+        assertTrue(server.history().contains("USER testbot * * :Test bot"));
+    }
+
+    /**
+     * The bot should only ask for the capabilities it wants among the offered
+     * ones, hold back registration until CAP END and then know accounts
+     * without asking.
+     */
+    public void testCapabilityNegotiation() throws Exception {
+
+        newBot();
+        server.withCapabilities("account-notify", "extended-join", "sasl=PLAIN", "server-time", "multi-prefix");
+        connect();
+
+        List<String> history = server.history();
+        assertTrue(history.toString(), history.contains("CAP REQ :account-notify extended-join multi-prefix"));
+        assertTrue(history.indexOf("CAP END") > history.indexOf("CAP REQ :account-notify extended-join multi-prefix"));
+        assertTrue(bot.hasCapability("extended-join"));
+        assertFalse(bot.hasCapability("server-time"));
+
+        server.send(":testbot!bot@host JOIN #chan * :Test bot");
+        server.send(":carol!c@c.host JOIN #chan carolacc :Carol");
+        server.flush();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bot.getAccounts().getAccount("carol") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("carolacc", bot.getAccounts().getAccount("carol"));
+
+        assertEquals(BotAccessLevel.NORMAL, bot.getAccessLevel("carol", true));
+        for (String line: server.history()) {
+            assertFalse("Account should be known without a query: " + line, line.startsWith("WHO"));
+        }
+    }
+
+    /**
+     * With SASL the bot should be identified before registration completes
+     * and join its channels right after 001.
+     */
+    public void testSaslAuthentication() throws Exception {
+
+        server.withCapabilities("account-notify", "sasl=PLAIN,EXTERNAL").withSasl("botacc", "secret");
+        newBot(saslConfig("secret"));
+        connect();
+
+        List<String> history = server.history();
+        assertTrue(history.toString(), history.contains("CAP REQ :account-notify sasl"));
+        assertTrue(history.indexOf("CAP END") > history.indexOf("AUTHENTICATE PLAIN"));
+        assertEquals("botacc", bot.getSaslAccount());
+        assertNotNull(server.awaitLine(Pattern.compile("JOIN #b"), 5000));
+    }
+
+    public void testSaslWithPrefixedChallenge() throws Exception {
+
+        server.withCapabilities("sasl=PLAIN").withSasl("botacc", "secret").withPrefixedChallenge();
+        newBot(saslConfig("secret"));
+        connect();
+
+        assertEquals("botacc", bot.getSaslAccount());
+    }
+
+    public void testSaslFailure() throws Exception {
+
+        server.withCapabilities("sasl").withSasl("botacc", "secret");
+        newBot(saslConfig("wrong"));
+        connect();
+
+        assertTrue(server.history().contains("CAP END"));
+        assertNull(bot.getSaslAccount());
+        for (String line: server.history()) {
+            assertFalse("Should not join unauthenticated: " + line, line.startsWith("JOIN"));
+        }
+    }
+
+    /**
+     * Over TLS the bot should present its client certificate, which the
+     * server accepts for SASL EXTERNAL.
+     */
+    public void testTlsWithSaslExternal() throws Exception {
+
+        server.close();
+        server = new FakeIrcServer(FakeIrcServer.tlsContext("server.jks")).withCapabilities("sasl=EXTERNAL").start();
+
+        FileConfiguration config = server.botConfig("testbot");
+        config.setProperty(ConfigKey.TLS.key(), "true");
+        config.setProperty(ConfigKey.TLS_TRUSTSTORE.key(), FakeIrcServer.tlsKeystore("client.jks"));
+        config.setProperty(ConfigKey.TLS_TRUSTSTORE_PASSWORD.key(), "changeit");
+        config.setProperty(ConfigKey.TLS_CLIENT_CERT.key(), FakeIrcServer.tlsKeystore("client.jks"));
+        config.setProperty(ConfigKey.TLS_CLIENT_CERT_PASSWORD.key(), "changeit");
+        config.setProperty(ConfigKey.SASL_MECHANISM.key(), "EXTERNAL");
+
+        newBot(config);
+        connect();
+
+        assertEquals("CN=testbot", server.clientCertificate());
+        assertEquals("testbot", bot.getSaslAccount());
+        assertEquals(1, bot.getMetrics().counter("tls_handshakes_total").get());
+    }
+
+    /**
+     * Joining a channel should fill in all members with a single WHOX query.
+     */
+    public void testWhoxSweep() throws Exception {
+
+        server.close();
+        server = new FakeIrcServer("WHOX", "PREFIX=(ov)@+").start();
+
+        FileConfiguration config = server.botConfig("testbot");
+        config.setProperty(ConfigKey.WHOX_SWEEP.key(), "true");
+        newBot(config);
+        connect();
+
+        server.send(":testbot!bot@host JOIN #chan");
+        server.flush();
+
+        String who = server.awaitLine(Pattern.compile("WHO #chan %tnuhaf,\\d+"), 5000);
+        assertNotNull(who);
+        String token = who.substring(who.indexOf(',') + 1);
+
+        server.send(":irc.test 354 testbot " + token + " a a.host alice H@ aliceacc");
+        server.send(":irc.test 354 testbot " + token + " b b.host bob G 0");
+        server.send(":irc.test 315 testbot #chan :End of /WHO list.");
+        server.flush();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bot.getMetrics().histogram("whox_sweep_time_ns").count() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("aliceacc", bot.getAccounts().getAccount("alice"));
+        assertEquals(AccountTracker.NOT_LOGGED_IN, bot.getAccounts().getAccount("bob"));
+        assertEquals("a.host", bot.getAccounts().getUser("alice").host());
+        assertTrue(bot.getAccounts().isAway("bob"));
+        assertEquals(ChannelAccessLevel.OP, bot.getChanAccess("alice", "#chan"));
+        assertEquals(2, bot.getMetrics().counter("whox_replies_total").get());
+    }
+
+    /**
+     * Editing the configuration file should take effect without a restart,
+     * and a broken file should leave the running configuration alone.
+     */
+    public void testConfigReload() throws Exception {
+
+        newBot();
+        connect();
+
+        final CountDownLatch changed = new CountDownLatch(1);
+        final AtomicReference<ConfigChangedEvent> event = new AtomicReference<>();
+        final AtomicReference<Thread> thread = new AtomicReference<>();
+        bot.getEventPump().addPermanentEventListener(new EventListener() {
+            @Override
+            public void onConfigChanged(ConfigChangedEvent evt) {
+                event.set(evt);
+                thread.set(Thread.currentThread());
+                changed.countDown();
+            }
+        });
+
+        File file = bot.config().getFile();
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        String edited = content.replaceFirst("channels = \\(\\s*\\);", "channels = (\"#new\");")
+                               .replaceFirst("access_mod = \\(\\s*\\);", "access_mod = (\"*!*@mod.host\");");
+        assertFalse(content.equals(edited));
+        Files.write(file.toPath(), edited.getBytes(StandardCharsets.UTF_8));
+
+        assertNotNull("Bot did not join the added channel", server.awaitLine(Pattern.compile("JOIN #new"), 5000));
+        assertTrue(changed.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("#new"), event.get().channelsAdded());
+        assertTrue(event.get().accessChanged());
+        assertSame("Event should be fired on the bot thread", bot, thread.get());
+        assertEquals(Arrays.asList("#new"), bot.botConfig().channels());
+        assertEquals(BotAccessLevel.MOD, bot.getAccessList().matchHost(new User("m", "m", "mod.host"), null));
+
+        BotConfig before = bot.botConfig();
+        Files.write(file.toPath(), "{ host = ".getBytes(StandardCharsets.UTF_8));
+        bot.reloadConfig();
+
+        assertSame(before, bot.botConfig());
+        assertEquals("localhost", bot.config().getString(ConfigKey.HOST.key()));
+    }
+
+    /**
+     * Access level changes should be written in one go, and leave the file
+     * loadable.
+     */
+    public void testImportAccessLevels() throws Exception {
+
+        newBot();
+        connect();
+
+        Map<String, BotAccessLevel> levels = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            levels.put("user" + i, i % 2 == 0 ? BotAccessLevel.MOD : BotAccessLevel.ADMIN);
+        }
+
+        bot.importAccessLevels(null, levels).get(5, TimeUnit.SECONDS);
+        bot.importAccessLevels("#chan", Collections.singletonMap("*!*@helper.host", BotAccessLevel.MOD))
+           .get(5, TimeUnit.SECONDS);
+
+        assertEquals(BotAccessLevel.ADMIN, bot.getAccessList().matchAccount("user1", null));
+        assertEquals(BotAccessLevel.MOD, bot.getAccessList().matchHost(new User("h", "h", "helper.host"), "#chan"));
+
+        FileConfiguration saved = new PropertyListConfiguration(bot.config().getFile());
+        assertEquals(1000, saved.getStringArray(ConfigKey.MODS.key()).length);
+        assertEquals(1000, saved.getStringArray(ConfigKey.ADMINS.key()).length);
+        assertEquals(2, bot.getMetrics().counter("config_writes_total").get());
+
+        bot.updateAccessLevel("User1", BotAccessLevel.MOD);
+        bot.updateAccessLevel("user0", BotAccessLevel.NORMAL);
+        bot.importAccessLevels(null, levels).get(5, TimeUnit.SECONDS);
+        assertEquals(BotAccessLevel.ADMIN, bot.getAccessList().matchAccount("user1", null));
+
+        saved = new PropertyListConfiguration(bot.config().getFile());
+        assertEquals(Arrays.asList("*!*@helper.host"),
+                     Arrays.asList(saved.getStringArray(ConfigKey.ACCESS_CHANNELS.key() + ".#chan." + ConfigKey.MODS.key())));
+        assertEquals(1000, saved.getStringArray(ConfigKey.ADMINS.key()).length);
+    }
+
+    /**
+     * A matched trigger should only be passed to the plugin that registered
+     * it.
+     */
+    public void testTriggerGoesToItsPlugin() throws Exception {
+
+        newBot();
+        connect();
+
+        Plugin alpha = new TestPlugins.Alpha();
+        Plugin beta = new TestPlugins.Beta();
+        final CountDownLatch matched = new CountDownLatch(1);
+        final AtomicReference<TriggerMatchedEvent> event = new AtomicReference<>();
+        final AtomicInteger misdelivered = new AtomicInteger();
+
+        bot.registerEventListener(alpha, new EventListener() {
+            @Override
+            public void onTriggerMatched(TriggerMatchedEvent evt) {
+                event.set(evt);
+                matched.countDown();
+            }
+        });
+        bot.registerEventListener(beta, new EventListener() {
+            @Override
+            public void onTriggerMatched(TriggerMatchedEvent evt) {
+                misdelivered.incrementAndGet();
+            }
+        });
+
+        Trigger trigger = bot.getTriggers().addKeyword(alpha, "#chan", "coffee");
+        bot.getTriggers().addKeyword(beta, null, "tea");
+
+        server.send(":alice!a@host PRIVMSG #chan :Coffee, anyone?");
+        server.flush();
+
+        assertTrue(matched.await(5, TimeUnit.SECONDS));
+        assertEquals("alice", event.get().user().nick());
+        assertEquals(Arrays.asList(trigger), event.get().triggers());
+        assertEquals(0, event.get().match(trigger).start());
+        assertEquals(0, misdelivered.get());
+
+        bot.unregisterAllEventListeners(alpha);
+        assertEquals(1, bot.getTriggers().getTriggers().size());
+    }
+
+    /**
+     * With route_commands, commands should be run by the bot itself, and
+     * other messages left alone.
+     */
+    public void testCommandRouting() throws Exception {
+
+        FileConfiguration config = server.botConfig("testbot");
+        config.setProperty(ConfigKey.ROUTE_COMMANDS.key(), "true");
+        newBot(config);
+
+        final CountDownLatch executed = new CountDownLatch(1);
+        final AtomicReference<String[]> received = new AtomicReference<>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        bot.getCommandHandler().registerCommand(new TestPlugins.Alpha(), new Command(bot) {
+            @Override
+            public String getTrigger() {
+                return "echo";
+            }
+
+            @Override
+            public void execute(User sender, String target, String[] args) {
+                calls.incrementAndGet();
+                received.set(args);
+                executed.countDown();
+            }
+
+            @Override
+            public String help() {
+                return "";
+            }
+        });
+
+        connect();
+
+        server.send(":alice!a@host PRIVMSG #chan :alpha is not a command");
+        server.send(":alice!a@host PRIVMSG #chan :!beta echo unknown plugin");
+        server.send(":alice!a@host PRIVMSG #chan :!ALPHA echo \"two words\" three");
+        server.flush();
+
+        assertTrue(executed.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("two words", "three"), Arrays.asList(received.get()));
+        assertEquals(1, calls.get());
+    }
+
+    private FileConfiguration saslConfig(String password) throws Exception {
+
+        FileConfiguration config = server.botConfig("testbot");
+        config.setProperty(ConfigKey.SASL_MECHANISM.key(), "PLAIN");
+        config.setProperty(ConfigKey.SASL_USER.key(), "botacc");
+        config.setProperty(ConfigKey.SASL_PASSWORD.key(), password);
+        config.setProperty(ConfigKey.CHANNELS.key(), Arrays.asList("#a", "#b"));
+        return config;
+    }
+
+    /**
+     * Multi-target messages should be batched by the advertised TARGMAX.
+     */
+    public void testMultiTargetMessage() throws Exception {
+
+        newBot();
+        connect();
+
+        // Wait until the 005 reply has been processed
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bot.getServerSupport().maxTargets("PRIVMSG") != 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        bot.sendMessage(Arrays.asList("#a", "#b", "#c", "#d", "#e"), "hello");
+
+        assertEquals("PRIVMSG #a,#b,#c :hello", server.awaitLine(Pattern.compile("PRIVMSG .*"), 5000));
+        assertEquals("PRIVMSG #d,#e :hello", server.awaitLine(Pattern.compile("PRIVMSG .*"), 5000));
+    }
+
+    /**
+     * Floods the bot with traffic from thousands of users. It must handle
+     * every line and keep answering pings afterwards.
+     */
+    public void testFlood() throws Exception {
+
+        newBot();
+        final int users = 5000;
+        final int lines = 50000;
+
+        final AtomicInteger messages = new AtomicInteger();
+        bot.getEventPump().addPermanentEventListener(new EventListener() {
+            @Override
+            public void onMessageReceived(MessageReceivedEvent evt) {
+                messages.incrementAndGet();
+            }
+
+            @Override
+            public void onPingReceived(PingEvent evt) {
+                try {
+                    bot.send("PONG :" + evt.code());
+                } catch (IOException ex) {
+                    fail(ex.toString());
+                }
+            }
+        });
+
+        connect();
+
+        int sent = server.flood("#load", users, lines, 42);
+        server.send("PING :flood-done");
+        server.flush();
+
+        assertNotNull("Bot did not catch up with the flood",
+                      server.awaitLine(Pattern.compile("PONG :flood-done"), 30000));
+        assertEquals(sent, messages.get());
+
+        for (int i = 0; i < 10; i++) {
+            server.send("PING :after-" + i);
+            server.flush();
+            assertNotNull(server.awaitLine(Pattern.compile("PONG :after-" + i), 5000));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.SocketTimeoutException;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class LineReaderTest extends TestCase {
+
+    public LineReaderTest(String testName) {
+        super(testName);
+    }
+
+    public void testLineTerminators() throws IOException {
+        LineReader reader = new LineReader(
+                new StringReader("a\r\nb\nc\rd\r\n\r\ne"));
+
+        assertEquals("a", reader.readLine());
+        assertEquals("b", reader.readLine());
+        assertEquals("c", reader.readLine());
+        assertEquals("d", reader.readLine());
+        assertEquals("", reader.readLine());
+        assertEquals("e", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    public void testTimeoutKeepsPartialLine() throws IOException {
+        LineReader reader = new LineReader(new TimingOutReader(
+                "PRIVMSG #chan :hel", "lo\r", "\nPING :x\r\n"));
+
+        assertTimesOut(reader);
+        assertTimesOut(reader);
+        assertEquals("PRIVMSG #chan :hello", reader.readLine());
+        assertTimesOut(reader);
+        assertEquals("PING :x", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    private static void assertTimesOut(LineReader reader) throws IOException {
+        try {
+            reader.readLine();
+            fail("Expected a timeout");
+        } catch (SocketTimeoutException expected) {
+        }
+    }
+
+    /**
+     * Returns one chunk per read and times out between chunks.
+     */
+    private static class TimingOutReader extends Reader {
+
+        private final String[] chunks;
+        private int next;
+        private boolean timeout;
+
+        TimingOutReader(String... chunks) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (next == chunks.length) {
+                return -1;
+            }
+
+            timeout = !timeout;
+            if (timeout) {
+                throw new SocketTimeoutException();
+            }
+
+            String chunk = chunks[next++];
+            chunk.getChars(0, chunk.length(), cbuf, off);
+            return chunk.length();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import junit.framework.TestCase;
+import net.boreeas.irc.events.EventListener;
+import net.boreeas.irc.events.SelfChangeChannelModeEvent;
+
+import java.util.*;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class ListModeTrackerTest extends TestCase {
+
+    private FakeIrcServer server;
+    private IrcBot bot;
+    private ListModeTracker tracker;
+
+    public ListModeTrackerTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FakeIrcServer();
+        bot = new IrcBot(server.botConfig("testbot"));
+        bot.openReplay();
+        tracker = bot.getListModes();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        super.tearDown();
+    }
+
+    private void receiveBans(String channel, String... masks) {
+
+        for (String mask: masks) {
+            bot.process(":irc.test 367 testbot " + channel + " " + mask + " op!o@host 1700000000");
+        }
+        bot.process(":irc.test 368 testbot " + channel + " :End of channel ban list");
+    }
+
+    private static Set<String> set(String... entries) {
+        return new LinkedHashSet<>(Arrays.asList(entries));
+    }
+
+    /**
+     * A list is only known once it was received completely.
+     */
+    public void testListIsKnownAfterEnd() {
+
+        assertNull(tracker.getList("#chan", 'b'));
+
+        bot.process(":irc.test 367 testbot #chan *!*@a op!o@host 1700000000");
+        assertNull("Incomplete list", tracker.getList("#chan", 'b'));
+
+        bot.process(":irc.test 367 testbot #chan *!*@b op!o@host 1700000000");
+        bot.process(":irc.test 368 testbot #chan :End of channel ban list");
+
+        assertEquals(set("*!*@a", "*!*@b"), tracker.getList("#CHAN", 'b'));
+        assertNull(tracker.getList("#chan", 'e'));
+
+        receiveBans("#empty");
+        assertEquals(set(), tracker.getList("#empty", 'b'));
+    }
+
+    /**
+     * MODE lines keep a received list up to date, but don't create lists
+     * that were never requested.
+     */
+    public void testModeChangesUpdateList() {
+
+        receiveBans("#chan", "*!*@a", "*!*@b");
+
+        bot.process(":op!o@host MODE #chan +b-b *!*@c *!*@a");
+        assertEquals(set("*!*@b", "*!*@c"), tracker.getList("#chan", 'b'));
+
+        bot.process(":op!o@host MODE #chan -b+e *!*@b *!*@x");
+        assertEquals(set("*!*@c"), tracker.getList("#chan", 'b'));
+        assertNull("Exception list was never received", tracker.getList("#chan", 'e'));
+
+        bot.process(":op!o@host MODE #other +b *!*@c");
+        assertNull(tracker.getList("#other", 'b'));
+    }
+
+    public void testLeavingForgetsLists() throws Exception {
+
+        receiveBans("#chan", "*!*@a");
+        bot.leaveChannel("#chan", "bye");
+
+        assertNull(tracker.getList("#chan", 'b'));
+    }
+
+    /**
+     * Syncing an unknown list waits for it, then sends only the difference.
+     */
+    public void testSyncWaitsForList() throws Exception {
+
+        final List<SelfChangeChannelModeEvent> sent = new ArrayList<>();
+        bot.getEventPump().addPermanentEventListener(new EventListener() {
+            @Override
+            public void onSelfChangeChannelMode(SelfChangeChannelModeEvent evt) {
+                sent.add(evt);
+            }
+        });
+
+        tracker.sync("#chan", 'b', Arrays.asList("*!*@a", "*!*@d"));
+        assertTrue("Nothing to diff against yet", sent.isEmpty());
+
+        receiveBans("#chan", "*!*@a", "*!*@b");
+
+        assertEquals(1, sent.size());
+        assertEquals("#chan", sent.get(0).target());
+        assertEquals(Collections.singletonMap('b', "*!*@d"), sent.get(0).getAddedModes());
+        assertEquals(Collections.singletonMap('b', "*!*@b"), sent.get(0).getRemovedModes());
+
+        // The server echoes the change; syncing again changes nothing
+        bot.process(":testbot!bot@host MODE #chan +b-b *!*@d *!*@b");
+        tracker.sync("#chan", 'b', Arrays.asList("*!*@a", "*!*@d"));
+        assertEquals(1, sent.size());
+
+        // Now the list is known, so changes are sent right away
+        tracker.sync("#chan", 'b', Arrays.asList("*!*@a"));
+        assertEquals(2, sent.size());
+        assertEquals(Collections.singletonMap('b', "*!*@d"), sent.get(1).getRemovedModes());
+    }
+
+    /**
+     * A refused request or a kick does not leave the sync waiting forever.
+     */
+    public void testFailedRequestIsRetried() throws Exception {
+
+        final List<String> requests = new ArrayList<>();
+        ListModeTracker counting = new ListModeTracker(bot) {
+            @Override
+            public void request(String channel, char mode) {
+                requests.add(channel + " +" + mode);
+            }
+        };
+        bot.getEventPump().addPermanentEventListener(counting);
+
+        counting.sync("#chan", 'b', Arrays.asList("*!*@a"));
+        counting.sync("#chan", 'b', Arrays.asList("*!*@a"));
+        assertEquals(Arrays.asList("#chan +b"), requests);
+
+        bot.process(":irc.test 482 testbot #chan :You're not channel operator");
+        counting.sync("#chan", 'b', Arrays.asList("*!*@a"));
+        assertEquals(2, requests.size());
+
+        // Someone else being kicked changes nothing
+        bot.process(":op!o@host KICK #chan other :bye");
+        counting.sync("#chan", 'b', Arrays.asList("*!*@a"));
+        assertEquals(2, requests.size());
+
+        bot.process(":op!o@host KICK #chan testbot :bye");
+        counting.sync("#chan", 'b', Arrays.asList("*!*@a"));
+        assertEquals(3, requests.size());
+    }
+
+    /**
+     * Test of diff method, of class ListModeTracker.
+     */
+    public void testDiff() {
+
+        List<String> current = Arrays.asList("*!*@a", "*!*@b", "*!*@c");
+        List<String> desired = Arrays.asList("*!*@b", "*!*@d", "*!*@e");
+
+        ModeChangeBuilder mcb = ListModeTracker.diff(current, desired, 'b');
+
+        assertEquals(Arrays.asList(new ModeChange(false, 'b', "*!*@a"),
+                                   new ModeChange(false, 'b', "*!*@c"),
+                                   new ModeChange(true, 'b', "*!*@d"),
+                                   new ModeChange(true, 'b', "*!*@e")),
+                     mcb.getChanges());
+        assertEquals(Arrays.asList("-bb+bb *!*@a *!*@c *!*@d *!*@e"), mcb.format());
+    }
+
+    public void testDiffUnchanged() {
+
+        List<String> current = Arrays.asList("*!*@a", "*!*@b");
+        assertTrue(ListModeTracker.diff(current, current, 'b').isEmpty());
+    }
+}
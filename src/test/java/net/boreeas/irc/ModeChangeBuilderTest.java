@@ -6,6 +6,7 @@ package net.boreeas.irc;
 
 import junit.framework.TestCase;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -100,4 +101,80 @@ public class ModeChangeBuilderTest extends TestCase {
                 assertTrue("Mode E set without param ASD", part.contains("ASD"));
         }
     }
+
+    /**
+     * Changes should be formatted in the order they were added.
+     */
+    public void testFormatKeepsOrder() {
+
+        ModeChangeBuilder mcb = new ModeChangeBuilder();
+        mcb.addMode('o', "alice");
+        mcb.removeMode('v', "bob");
+        mcb.addMode('v', "carol");
+
+        assertEquals(Arrays.asList("+o-v+v alice bob carol"), mcb.format());
+    }
+
+    /**
+     * List modes may be set several times with different parameters.
+     */
+    public void testListModes() {
+
+        ModeChangeBuilder mcb = new ModeChangeBuilder();
+        mcb.addMode('b', "*!*@a");
+        mcb.addMode('b', "*!*@b");
+        mcb.addMode('b', "*!*@a");   // Duplicate, dropped
+
+        assertEquals(2, mcb.getChanges().size());
+        assertEquals(Arrays.asList("+bb *!*@a *!*@b"), mcb.format());
+    }
+
+    /**
+     * Only adding modes should not produce an empty '-' line.
+     */
+    public void testNoStrayRemoveLine() {
+
+        ModeChangeBuilder mcb = new ModeChangeBuilder();
+        mcb.addMode('m');
+        mcb.addMode('n');
+
+        assertEquals(Arrays.asList("+mn"), mcb.format());
+        assertTrue(new ModeChangeBuilder().format().isEmpty());
+    }
+
+    /**
+     * Lines should respect both the mode limit and the length limit.
+     */
+    public void testFormatLimits() {
+
+        ModeChangeBuilder mcb = new ModeChangeBuilder();
+        for (int i = 0; i < 7; i++) {
+            mcb.addMode('b', "mask" + i);
+        }
+
+        List<String> result = mcb.format(3, 400);
+        assertEquals(Arrays.asList("+bbb mask0 mask1 mask2",
+                                   "+bbb mask3 mask4 mask5",
+                                   "+b mask6"), result);
+
+        // "+bb mask0 mask1" is 15 characters long
+        result = mcb.format(10, 15);
+        assertEquals(4, result.size());
+        for (String line: result) {
+            assertTrue(line + " is too long", line.length() <= 15);
+        }
+    }
+
+    /**
+     * A huge MODES limit must not break formatting.
+     */
+    public void testFormatHugeModeLimit() {
+
+        ModeChangeBuilder mcb = new ModeChangeBuilder();
+        mcb.addMode('b', "*!*@a");
+        mcb.removeMode('b', "*!*@b");
+
+        assertEquals(Arrays.asList("+b-b *!*@a *!*@b"), mcb.format(1073741824, 400));
+        assertEquals(Arrays.asList("+b-b *!*@a *!*@b"), mcb.format(Integer.MAX_VALUE, 400));
+    }
 }
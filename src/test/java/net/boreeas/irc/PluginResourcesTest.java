@@ -0,0 +1,122 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import junit.framework.TestCase;
+import net.boreeas.irc.metrics.MetricsRegistry;
+import net.boreeas.irc.plugins.Plugin;
+import net.boreeas.irc.plugins.TestPlugins;
+
+import java.util.concurrent.*;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class PluginResourcesTest extends TestCase {
+
+    public PluginResourcesTest(String testName) {
+        super(testName);
+    }
+
+    public void testQueueQuotaAndShutdown() throws Exception {
+
+        PluginResources resources = new PluginResources(new MetricsRegistry(), new PluginResources.Quota(1, 2, 0));
+        Plugin plugin = new TestPlugins.Alpha();
+        ScheduledExecutorService executor = resources.getExecutor(plugin);
+        assertSame(executor, resources.getExecutor(plugin));
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException ex) {
+                    interrupted.countDown();
+                }
+            }
+        });
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 1, TimeUnit.HOURS);
+
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail("Queue quota should be enforced");
+        } catch (RejectedExecutionException ex) {
+            // Expected
+        }
+
+        resources.shutdown(plugin);
+        assertTrue("Running task should be interrupted", interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(executor.isShutdown());
+
+        try {
+            resources.getExecutor(plugin);
+            fail("Released plugin should not get a new executor");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+
+        assertNotSame(executor, resources.getExecutor(new TestPlugins.Alpha()));
+        resources.shutdownAll();
+    }
+
+    public void testCpuQuota() throws Exception {
+
+        PluginResources resources = new PluginResources(new MetricsRegistry(), new PluginResources.Quota(1, 10, 1));
+        Plugin plugin = new TestPlugins.Beta();
+        ScheduledExecutorService executor = resources.getExecutor(plugin);
+
+        Long sum = executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                long sum = 0;
+                long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+                while (System.nanoTime() < end) {
+                    sum += new long[16].length;
+                }
+                return sum;
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        assertTrue(sum > 0);
+
+        if (resources.getCpuTime(plugin) == 0) {
+            return;     // The JVM does not measure thread CPU time
+        }
+
+        assertTrue(resources.getCpuTime(plugin) >= TimeUnit.MILLISECONDS.toNanos(1));
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail("CPU quota should be enforced");
+        } catch (RejectedExecutionException ex) {
+            // Expected
+        } finally {
+            resources.shutdownAll();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import junit.framework.TestCase;
+import net.boreeas.irc.metrics.MetricsRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class SendQueueTest extends TestCase {
+
+    public SendQueueTest(String testName) {
+        super(testName);
+    }
+
+    public void testBurstThenInterval() {
+
+        SendQueue queue = new SendQueue(null, new MetricsRegistry(), 3, 1000);
+        long now = System.nanoTime();
+        long second = TimeUnit.SECONDS.toNanos(1);
+
+        assertEquals(0, queue.delay(now));
+        assertEquals(0, queue.delay(now));
+        assertEquals(0, queue.delay(now));
+        assertEquals(second, queue.delay(now));
+        assertEquals(second, queue.delay(now + second));
+
+        // The allowance refills while idle
+        long later = now + 10 * second;
+        assertEquals(0, queue.delay(later));
+        assertEquals(0, queue.delay(later));
+        assertEquals(0, queue.delay(later));
+        assertEquals(second, queue.delay(later));
+    }
+
+    public void testStop() throws Exception {
+
+        MetricsRegistry metrics = new MetricsRegistry();
+        SendQueue queue = new SendQueue(null, metrics, 1, 1000);
+
+        // Use up the allowance, so that the thread waits with the line
+        for (int i = 0; i < 10; i++) {
+            queue.delay(System.nanoTime());
+        }
+
+        queue.offer("PRIVMSG #chan :later");
+        assertTrue(queue.isRunning());
+
+        long start = System.nanoTime();
+        queue.stop();
+
+        assertTrue("Should not wait for the line", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertFalse(queue.isRunning());
+        assertEquals(0, queue.size());
+        assertEquals(0, metrics.counter("send_queue_sent_total").get());
+
+        queue.stop();   // Stopping twice does nothing
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class ServerSupportTest extends TestCase {
+
+    public ServerSupportTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Test of maxTargets method, of class ServerSupport.
+     */
+    public void testMaxTargets() {
+
+        ServerSupport support = new ServerSupport();
+        assertEquals("No advertisement should allow a single target", 1, support.maxTargets("PRIVMSG"));
+
+        support.parse(new String[]{"CHANTYPES=#", "TARGMAX=NAMES:1,PRIVMSG:4,NOTICE:4,JOIN:"});
+        assertEquals(4, support.maxTargets("PRIVMSG"));
+        assertEquals(4, support.maxTargets("notice"));
+        assertEquals("Empty value should mean no limit", Integer.MAX_VALUE, support.maxTargets("JOIN"));
+        assertEquals(1, support.maxTargets("KICK"));
+    }
+
+    public void testMaxTargetsFallback() {
+
+        ServerSupport support = new ServerSupport();
+        support.parse(new String[]{"MAXTARGETS=3"});
+        assertEquals(3, support.maxTargets("PRIVMSG"));
+        assertEquals(3, support.maxTargets("NOTICE"));
+    }
+
+    public void testNegation() {
+
+        ServerSupport support = new ServerSupport();
+        support.parse(new String[]{"WHOX", "CHANTYPES=#&"});
+        assertTrue(support.supports("WHOX"));
+        assertEquals("", support.getString("WHOX"));
+        assertEquals("#&", support.getString("chantypes"));
+
+        support.parse(new String[]{"-WHOX"});
+        assertFalse(support.supports("WHOX"));
+        assertNull(support.getString("WHOX"));
+    }
+
+    public void testMaxModes() {
+
+        ServerSupport support = new ServerSupport();
+        assertEquals(3, support.maxModes());
+
+        support.parse(new String[]{"MODES=6"});
+        assertEquals(6, support.maxModes());
+
+        support.parse(new String[]{"MODES"});
+        assertEquals(Integer.MAX_VALUE, support.maxModes());
+    }
+}
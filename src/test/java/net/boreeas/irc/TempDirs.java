@@ -0,0 +1,76 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates temporary directories for a test and deletes them, with all their
+ * contents, afterwards.
+ *
+ * @author Boreeas
+ */
+public class TempDirs {
+
+    private final List<File> dirs = new ArrayList<>();
+
+    /**
+     * Creates a new temporary directory.
+     * @param prefix The prefix of the directory name
+     * @return The directory
+     * @throws IOException
+     */
+    public synchronized File create(String prefix) throws IOException {
+
+        File dir = Files.createTempDirectory(prefix).toFile();
+        dirs.add(dir);
+
+        return dir;
+    }
+
+    /**
+     * Deletes all directories created so far.
+     * @throws IOException
+     */
+    public synchronized void deleteAll() throws IOException {
+
+        for (File dir: dirs) {
+            delete(dir.toPath());
+        }
+
+        dirs.clear();
+    }
+
+    private static void delete(Path dir) throws IOException {
+
+        if (!Files.exists(dir)) {
+            return;
+        }
+
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                if (ex != null) {
+                    throw ex;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
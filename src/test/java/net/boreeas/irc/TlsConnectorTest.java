@@ -0,0 +1,77 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import junit.framework.TestCase;
+import net.boreeas.irc.metrics.MetricsRegistry;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class TlsConnectorTest extends TestCase {
+
+    private FakeIrcServer server;
+    private MetricsRegistry metrics;
+    private TlsConnector connector;
+
+    public TlsConnectorTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new FakeIrcServer(FakeIrcServer.tlsContext("server.jks")).start();
+        metrics = new MetricsRegistry();
+        connector = new TlsConnector(FakeIrcServer.tlsContext("client.jks"), metrics);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        super.tearDown();
+    }
+
+    public void testReconnectResumesSession() throws Exception {
+
+        connectAndRead();
+        assertEquals("CN=testbot", server.clientCertificate());
+        assertEquals(0, metrics.counter("tls_sessions_resumed_total").get());
+
+        connectAndRead();
+        assertEquals(2, metrics.counter("tls_handshakes_total").get());
+        assertEquals(2, metrics.histogram("tls_handshake_time_ns").count());
+        assertEquals(1, metrics.counter("tls_sessions_resumed_total").get());
+    }
+
+    public void testHostnameIsVerified() throws Exception {
+
+        try {
+            connector.connect("127.0.0.1", server.port()).close();
+            fail("Certificate is only valid for localhost");
+        } catch (SSLException ex) {
+            // Expected
+        }
+    }
+
+    private void connectAndRead() throws Exception {
+
+        try (SSLSocket socket = connector.connect("localhost", server.port())) {
+
+            // Session tickets arrive after the handshake, with the first data
+            BufferedReader reader =
+                           new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            assertTrue(reader.readLine().contains("***"));
+        }
+
+        server.dropClient();
+    }
+}
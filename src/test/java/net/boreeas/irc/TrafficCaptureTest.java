@@ -0,0 +1,136 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import junit.framework.TestCase;
+import net.boreeas.irc.events.EventListener;
+import net.boreeas.irc.events.MessageReceivedEvent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class TrafficCaptureTest extends TestCase {
+
+    private final TempDirs temp = new TempDirs();
+    private File dir;
+
+    public TrafficCaptureTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = temp.create("capture");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        temp.deleteAll();
+    }
+
+    public void testRoundTrip() throws Exception {
+
+        StringBuilder longLine = new StringBuilder(":a!b@c PRIVMSG #chan :");
+        for (int i = 0; i < 100; i++) {
+            longLine.append("long ");
+        }
+
+        String[] lines = {"PING :irc.test", ":a!b@c PRIVMSG #chan :grüße", longLine.toString()};
+
+        TrafficCapture capture = TrafficCapture.inDirectory(dir);
+        for (String line: lines) {
+            capture.record(line);
+        }
+        Thread.sleep(20);
+        capture.record("last");
+        capture.close();
+
+        try (TrafficReplay replay = new TrafficReplay(capture.file())) {
+
+            for (String line: lines) {
+                assertEquals(line, replay.nextLine());
+            }
+
+            assertEquals("last", replay.nextLine());
+            assertTrue("Delay was " + replay.delay(), replay.delay() >= 15000000);
+            assertNull(replay.nextLine());
+        }
+    }
+
+    public void testCapturesDoNotOverwriteEachOther() throws Exception {
+
+        TrafficCapture first = TrafficCapture.inDirectory(dir);
+        first.record("first");
+        first.close();
+
+        TrafficCapture second = TrafficCapture.inDirectory(dir);
+        TrafficCapture third = TrafficCapture.inDirectory(dir);
+        second.close();
+        third.close();
+
+        assertFalse(first.file().equals(second.file()));
+        assertFalse(second.file().equals(third.file()));
+
+        try (TrafficReplay replay = new TrafficReplay(first.file())) {
+            assertEquals("first", replay.nextLine());
+        }
+    }
+
+    public void testRejectsOtherFiles() throws Exception {
+
+        File file = new File(dir, "other.gz");
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+            out.write("PING :irc.test\r\n".getBytes("UTF-8"));
+        }
+
+        try {
+            new TrafficReplay(file).close();
+            fail("Accepted a file that is not a capture");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Captured lines must go through the same parsing and dispatch as lines
+     * read from the server.
+     */
+    public void testReplayThroughBot() throws Exception {
+
+        TrafficCapture capture = TrafficCapture.inDirectory(dir);
+        capture.record(":irc.test 001 ReplayBot :Welcome");
+        for (int i = 0; i < 100; i++) {
+            capture.record(":" + FakeIrcServer.simulatedUser(i) + " PRIVMSG #chan :line " + i);
+        }
+        capture.record("PING :irc.test");
+        capture.close();
+
+        try (FakeIrcServer server = new FakeIrcServer()) {
+
+            IrcBot bot = new IrcBot(server.botConfig("ReplayBot"));
+            bot.openReplay();
+
+            final int[] messages = new int[1];
+            bot.getEventPump().addPermanentEventListener(new EventListener() {
+                @Override
+                public void onMessageReceived(MessageReceivedEvent evt) {
+                    messages[0]++;
+                }
+            });
+
+            try (TrafficReplay replay = new TrafficReplay(capture.file())) {
+                assertEquals(102, replay.replay(bot, 0));
+            }
+
+            assertEquals(100, messages[0]);
+            assertEquals(102, bot.getMetrics().counter("lines_received_total").get());
+        }
+    }
+}
@@ -55,4 +55,19 @@ public class UserTest extends TestCase {
     public void testEquals() {
         assertEquals(user, user2);
     }
+
+    public void testIdentMarkerStripped() {
+        User ident = new User("nick!~user@some.host");
+        assertEquals("user", ident.user());
+        assertEquals("some.host", ident.host());
+    }
+
+    public void testInvalidHostmask() {
+        try {
+            new User("irc.example.org");
+            fail("Server names are not valid hostmasks");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
 }
@@ -0,0 +1,161 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc;
+
+import junit.framework.TestCase;
+import net.boreeas.irc.events.EventListener;
+import net.boreeas.irc.events.UnknownLineEvent;
+import net.boreeas.irc.metrics.MetricsRegistry;
+import net.boreeas.irc.plugins.Plugin;
+import net.boreeas.irc.plugins.TestPlugins.StubPlugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class WatchdogTest extends TestCase {
+
+    private final List<Plugin> quarantined = new ArrayList<>();
+    private MetricsRegistry metrics;
+    private Watchdog watchdog;
+    private EventPump pump;
+
+    public WatchdogTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() {
+
+        metrics = new MetricsRegistry();
+        watchdog = new Watchdog(null, metrics, 20, 2) {
+            @Override
+            void quarantine(Plugin plugin) {
+                quarantined.add(plugin);
+            }
+        };
+        pump = new EventPump(metrics, watchdog);
+    }
+
+    @Override
+    protected void tearDown() {
+        watchdog.stop();
+    }
+
+    public void testFastListener() {
+
+        Plugin plugin = new StubPlugin("Fast");
+        pump.addEventListener(plugin, new EventListener());
+
+        for (int i = 0; i < 100; i++) {
+            pump.onUnknownLine(new UnknownLineEvent(new String[]{"PING"}));
+        }
+
+        assertEquals(0, watchdog.violations(plugin));
+    }
+
+    public void testSlowListenerIsQuarantined() {
+
+        Plugin plugin = new StubPlugin("Slow");
+        pump.addEventListener(plugin, new EventListener() {
+            @Override
+            public void onUnknownLine(UnknownLineEvent evt) {
+                sleep(40);
+            }
+        });
+
+        pump.onUnknownLine(new UnknownLineEvent(new String[]{"PING"}));
+        assertEquals(1, watchdog.violations(plugin));
+
+        watchdog.quarantinePending();
+        assertTrue("Quarantined too early", quarantined.isEmpty());
+
+        pump.onUnknownLine(new UnknownLineEvent(new String[]{"PING"}));
+        watchdog.quarantinePending();
+
+        assertEquals(1, quarantined.size());
+        assertSame(plugin, quarantined.get(0));
+        assertEquals(2, metrics.counter(MetricsRegistry.tagged("watchdog_violations_total", "plugin", "Slow")).get());
+        assertEquals("Count starts over after quarantine", 0, watchdog.violations(plugin));
+
+        // Still registered, e.g. because it was still being enabled: quarantined again
+        pump.onUnknownLine(new UnknownLineEvent(new String[]{"PING"}));
+        pump.onUnknownLine(new UnknownLineEvent(new String[]{"PING"}));
+        pump.onUnknownLine(new UnknownLineEvent(new String[]{"PING"}));
+        assertEquals(3, watchdog.violations(plugin));
+        watchdog.quarantinePending();
+
+        assertEquals("Queued once", 2, quarantined.size());
+        assertEquals(0, watchdog.violations(plugin));
+    }
+
+    public void testPerPluginBudget() {
+
+        watchdog.setBudget("Patient", 1000);
+
+        Plugin plugin = new StubPlugin("Patient");
+        pump.addEventListener(plugin, new EventListener() {
+            @Override
+            public void onUnknownLine(UnknownLineEvent evt) {
+                sleep(40);
+            }
+        });
+
+        pump.onUnknownLine(new UnknownLineEvent(new String[]{"PING"}));
+        assertEquals(0, watchdog.violations(plugin));
+    }
+
+    /**
+     * A listener that never returns must be noticed while it is still running,
+     * and counted only once when it finally does.
+     */
+    public void testStuckListenerIsSampled() throws Exception {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        Plugin plugin = new StubPlugin("Stuck");
+        pump.addEventListener(plugin, new EventListener() {
+            @Override
+            public void onUnknownLine(UnknownLineEvent evt) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        watchdog.start();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pump.onUnknownLine(new UnknownLineEvent(new String[]{"PING"}));
+            }
+        });
+        reader.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (watchdog.violations(plugin) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("Monitor did not notice the stuck listener", 1, watchdog.violations(plugin));
+
+        release.countDown();
+        reader.join(5000);
+        assertEquals(1, watchdog.violations(plugin));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.acl;
+
+import junit.framework.TestCase;
+import net.boreeas.irc.BotAccessLevel;
+import net.boreeas.irc.User;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class AccessListTest extends TestCase {
+
+    private AccessList acl;
+
+    public AccessListTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        acl = new AccessList();
+    }
+
+    public void testGlobs() {
+
+        acl.add(null, "*!*@staff.example.net", BotAccessLevel.MOD);
+        acl.add(null, "Boss!*@*", BotAccessLevel.ADMIN);
+        acl.add(null, "b?ss!boss@*.example.net", BotAccessLevel.OWNER);
+
+        assertEquals(BotAccessLevel.MOD, acl.matchHost(new User("anyone", "u", "Staff.Example.Net"), null));
+        assertEquals(BotAccessLevel.ADMIN, acl.matchHost(new User("boss", "u", "elsewhere"), null));
+        assertEquals(BotAccessLevel.OWNER, acl.matchHost(new User("bass", "boss", "staff.example.net"), null));
+        assertNull(acl.matchHost(new User("anyone", "u", "staff.example.net.evil"), null));
+        assertNull(acl.matchHost(new User("bosses", "u", "elsewhere"), null));
+    }
+
+    public void testRanges() {
+
+        acl.add(null, "*!*@192.168.0.0/16", BotAccessLevel.MOD);
+        acl.add(null, "admin!*@192.168.1.0/24", BotAccessLevel.ADMIN);
+        acl.add(null, "*!*@2001:db8::/32", BotAccessLevel.MOD);
+
+        assertEquals(BotAccessLevel.MOD, acl.matchHost(new User("x", "u", "192.168.200.1"), null));
+        assertEquals(BotAccessLevel.ADMIN, acl.matchHost(new User("admin", "u", "192.168.1.7"), null));
+        assertEquals(BotAccessLevel.MOD, acl.matchHost(new User("other", "u", "192.168.1.7"), null));
+        assertNull(acl.matchHost(new User("x", "u", "192.169.0.1"), null));
+        assertEquals(BotAccessLevel.MOD, acl.matchHost(new User("x", "u", "2001:db8:0:1::5"), null));
+        assertNull(acl.matchHost(new User("x", "u", "dead.beef"), null));
+
+        try {
+            acl.add(null, "*!*@example.net/8", BotAccessLevel.MOD);
+            fail("Not an address range");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    public void testScopesAndAccounts() {
+
+        acl.add("#Chan", "*!*@helper.host", BotAccessLevel.MOD);
+        acl.add(null, "boreeas", BotAccessLevel.OWNER);
+        acl.add("#chan", "helper", BotAccessLevel.ADMIN);
+
+        User helper = new User("helper", "u", "helper.host");
+        assertEquals(BotAccessLevel.MOD, acl.matchHost(helper, "#chan"));
+        assertNull(acl.matchHost(helper, "#other"));
+        assertNull(acl.matchHost(helper, null));
+
+        assertEquals(BotAccessLevel.OWNER, acl.matchAccount("Boreeas", "#chan"));
+        assertEquals(BotAccessLevel.ADMIN, acl.matchAccount("helper", "#chan"));
+        assertNull(acl.matchAccount("helper", null));
+
+        assertTrue(acl.grantsByAccount(BotAccessLevel.ADMIN, "#chan"));
+        assertTrue(acl.grantsByAccount(BotAccessLevel.OWNER, null));
+        acl.remove(null, "boreeas");
+        assertFalse(acl.grantsByAccount(BotAccessLevel.ADMIN, null));
+    }
+
+    public void testUpdate() {
+
+        acl.add(null, "old", BotAccessLevel.MOD);
+        acl.add(null, "kept", BotAccessLevel.MOD);
+
+        Map<String, BotAccessLevel> levels = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            levels.put("user" + i, BotAccessLevel.MOD);
+        }
+        levels.put("kept", BotAccessLevel.ADMIN);
+        levels.put("old", null);
+
+        acl.update(null, levels);
+        assertEquals(BotAccessLevel.MOD, acl.matchAccount("user999", null));
+        assertEquals(BotAccessLevel.ADMIN, acl.matchAccount("kept", null));
+        assertNull(acl.matchAccount("old", null));
+        assertEquals(1001, acl.getRules().get(null).size());
+
+        try {
+            acl.update(null, Collections.singletonMap("*!*@10.0.0.0/99", BotAccessLevel.MOD));
+            fail("Invalid range accepted");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+        assertEquals("Rules unchanged", 1001, acl.getRules().get(null).size());
+    }
+}
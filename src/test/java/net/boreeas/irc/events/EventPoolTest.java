@@ -0,0 +1,72 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.events;
+
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class EventPoolTest extends TestCase {
+
+    public EventPoolTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Released events should be reused for the next line.
+     */
+    public void testReuse() {
+
+        EventPool pool = EventPool.forCurrentThread();
+
+        MessageReceivedEvent first = pool.message("a!b@c", "#chan", "hello");
+        first.setCancelled(true);
+        pool.release(first);
+
+        MessageReceivedEvent second = pool.message("d!e@f", "#other", "world");
+        assertSame(first, second);
+        assertTrue(second.isPooled());
+        assertFalse("Cancellation should be reset", second.isCancelled());
+        assertEquals("d", second.user().nick());
+        assertEquals("#other", second.target());
+        pool.release(second);
+    }
+
+    /**
+     * Events that are still being dispatched must not be overwritten.
+     */
+    public void testNestedDispatch() {
+
+        EventPool pool = EventPool.forCurrentThread();
+
+        MessageReceivedEvent outer = pool.message("a!b@c", "#chan", "outer");
+        MessageReceivedEvent inner = pool.message("d!e@f", "#chan", "inner");
+
+        assertNotSame(outer, inner);
+        assertFalse(inner.isPooled());
+        assertEquals("outer", outer.message());
+
+        pool.release(inner);
+        pool.release(outer);
+    }
+
+    public void testRetain() {
+
+        EventPool pool = EventPool.forCurrentThread();
+
+        MessageReceivedEvent evt = pool.message("a!b@c", "#chan", "hello");
+        MessageReceivedEvent retained = evt.retain();
+        pool.release(evt);
+
+        assertNotSame(evt, retained);
+        assertFalse(retained.isPooled());
+        assertSame(retained, retained.retain());
+
+        pool.release(pool.message("d!e@f", "#other", "world"));
+        assertEquals("a", retained.user().nick());
+        assertEquals("hello", retained.message());
+    }
+}
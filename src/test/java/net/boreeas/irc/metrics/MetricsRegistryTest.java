@@ -0,0 +1,101 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.metrics;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class MetricsRegistryTest extends TestCase {
+
+    public MetricsRegistryTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Every value must fall into a bucket whose upper bound is at least the
+     * value and at most 12.5% above it.
+     */
+    public void testBuckets() {
+
+        for (long value: new long[]{0, 1, 7, 8, 9, 15, 16, 17, 100, 1000, 123456789, Long.MAX_VALUE / 3}) {
+
+            long upper = Histogram.upperBound(Histogram.bucket(value));
+            assertTrue("Bound " + upper + " below " + value, upper >= value);
+            assertTrue("Bound " + upper + " too far above " + value, upper - value <= value / Histogram.SUB_BUCKETS);
+        }
+
+        assertTrue(Histogram.bucket(Long.MAX_VALUE) > Histogram.bucket(Long.MAX_VALUE / 2));
+    }
+
+    public void testQuantiles() {
+
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.quantile(0.5));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.count());
+        assertEquals(1000, histogram.max());
+        assertEquals(500.5, histogram.mean(), 0.001);
+
+        long median = histogram.quantile(0.5);
+        assertTrue("Median was " + median, median >= 500 && median <= 500 * 1.125);
+        assertEquals(1000, histogram.quantile(1));
+    }
+
+    public void testSameMetricIsReturned() {
+
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("a").inc();
+        metrics.counter("a").add(2);
+
+        assertEquals(3, metrics.counter("a").get());
+        assertSame(metrics.histogram("b"), metrics.histogram("b"));
+    }
+
+    public void testWriteText() throws Exception {
+
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("lines_total").add(5);
+        metrics.gauge("channels", new Gauge() {
+            @Override
+            public long value() {
+                return 3;
+            }
+        });
+        metrics.histogram(MetricsRegistry.tagged("time_ns", "plugin", "Co\"re")).record(42);
+
+        StringWriter out = new StringWriter();
+        metrics.writeText(out);
+        String text = out.toString();
+
+        assertTrue(text, text.contains("lines_total 5\n"));
+        assertTrue(text, text.contains("channels 3\n"));
+        assertTrue(text, text.contains("time_ns{plugin=\"Co\\\"re\",quantile=\"0.5\"} 42\n"));
+        assertTrue(text, text.contains("time_ns_count{plugin=\"Co\\\"re\"} 1\n"));
+        assertTrue(text, text.contains("time_ns_sum{plugin=\"Co\\\"re\"} 42\n"));
+    }
+
+    public void testDescribe() {
+
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("lines_received_total").inc();
+        metrics.counter("lines_sent_total").inc();
+        metrics.histogram("send_time_ns").record(10);
+
+        List<String> lines = metrics.describe("sent");
+        assertEquals(1, lines.size());
+        assertEquals("lines_sent_total = 1", lines.get(0));
+
+        assertEquals(3, metrics.describe("").size());
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.plugins;
+
+import junit.framework.TestCase;
+import net.boreeas.irc.Command;
+import net.boreeas.irc.FakeIrcServer;
+import net.boreeas.irc.IrcBot;
+import net.boreeas.irc.TempDirs;
+import net.boreeas.irc.User;
+import net.boreeas.irc.events.EventListener;
+import net.boreeas.irc.events.UnknownLineEvent;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class HotSwapTest extends TestCase {
+
+    private static final AtomicInteger V1_EVENTS = new AtomicInteger();
+    private static final AtomicInteger V2_EVENTS = new AtomicInteger();
+    private static final AtomicReference<String> RESTORED = new AtomicReference<>();
+
+    private final TempDirs temp = new TempDirs();
+
+    public HotSwapTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        V1_EVENTS.set(0);
+        V2_EVENTS.set(0);
+        RESTORED.set(null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        temp.deleteAll();
+        super.tearDown();
+    }
+
+    private static void writePlugin(File dir, String name, Class<?> main) throws Exception {
+        TestPlugins.writePlugin(dir, name, main, "");
+    }
+
+    /**
+     * Every event fired during the swap must be seen by exactly one of the two
+     * versions, and the new version must take over state and commands.
+     */
+    public void testSwapUnderLoad() throws Exception {
+
+        File dir = temp.create("plugins");
+        writePlugin(dir, "Core", TestPlugins.Core.class);
+        writePlugin(dir, "Swap", SwapV1.class);
+        File v2 = new File(temp.create("plugins-v2"), "Swap.jar");
+        writePlugin(v2.getParentFile(), "Swap", SwapV2.class);
+
+        try (FakeIrcServer server = new FakeIrcServer()) {
+
+            final IrcBot bot = new IrcBot(server.botConfig("Swapper"));
+            PluginManager manager = new PluginManager(new HashSet<String>(Arrays.asList("Core", "Swap")), bot);
+            manager.loadAllPlugins(dir.getPath());
+            assertTrue(manager.getPlugin("Swap") instanceof SwapV1);
+
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final AtomicInteger fired = new AtomicInteger();
+
+            Thread firing = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    UnknownLineEvent evt = new UnknownLineEvent(new String[]{"FOO", "bar"});
+                    while (running.get()) {
+                        bot.getEventPump().onUnknownLine(evt);
+                        fired.incrementAndGet();
+                    }
+                }
+            });
+
+            firing.start();
+            while (V1_EVENTS.get() < 1000) {
+                Thread.sleep(1);
+            }
+
+            int beforeSwap = V1_EVENTS.get();
+            Plugin swapped = manager.hotSwap("Swap", v2);
+
+            while (V2_EVENTS.get() < 1000) {
+                Thread.sleep(1);
+            }
+            running.set(false);
+            firing.join();
+
+            assertTrue(swapped instanceof SwapV2);
+            assertSame(swapped, manager.getPlugin("Swap"));
+            assertEquals(fired.get(), V1_EVENTS.get() + V2_EVENTS.get());
+
+            // Events on other threads may still reach v1 between the handoff and the swap
+            int handedOff = Integer.parseInt(RESTORED.get().replace("v1 state ", ""));
+            assertTrue(beforeSwap <= handedOff && handedOff <= V1_EVENTS.get());
+            assertEquals(Arrays.asList("v2"),
+                         Arrays.asList(bot.getCommandHandler().getRegisteredCommands("swap")));
+        }
+    }
+
+    /**
+     * The state must be handed off after the new version was enabled, so
+     * that it includes the events the old version handled meanwhile.
+     */
+    public void testStateIncludesEventsDuringEnable() throws Exception {
+
+        File dir = temp.create("plugins");
+        writePlugin(dir, "Core", TestPlugins.Core.class);
+        writePlugin(dir, "Swap", SwapV1.class);
+        File v2 = new File(temp.create("plugins-v2"), "Swap.jar");
+        writePlugin(v2.getParentFile(), "Swap", FiringSwapV2.class);
+
+        try (FakeIrcServer server = new FakeIrcServer()) {
+
+            IrcBot bot = new IrcBot(server.botConfig("Swapper"));
+            PluginManager manager = new PluginManager(new HashSet<String>(Arrays.asList("Core", "Swap")), bot);
+            manager.loadAllPlugins(dir.getPath());
+
+            for (int i = 0; i < 3; i++) {
+                bot.getEventPump().onUnknownLine(new UnknownLineEvent(new String[]{"FOO"}));
+            }
+
+            manager.hotSwap("Swap", v2);
+
+            assertEquals(4, V1_EVENTS.get());
+            assertEquals(0, V2_EVENTS.get());
+            assertEquals("v1 state 4", RESTORED.get());
+        }
+    }
+
+    /**
+     * A new version that fails to enable must leave the old one in place.
+     */
+    public void testFailedSwapKeepsOldVersion() throws Exception {
+
+        File dir = temp.create("plugins");
+        writePlugin(dir, "Core", TestPlugins.Core.class);
+        writePlugin(dir, "Swap", SwapV1.class);
+        File broken = new File(temp.create("plugins-broken"), "Swap.jar");
+        writePlugin(broken.getParentFile(), "Swap", BrokenSwap.class);
+
+        try (FakeIrcServer server = new FakeIrcServer()) {
+
+            IrcBot bot = new IrcBot(server.botConfig("Swapper"));
+            PluginManager manager = new PluginManager(new HashSet<String>(Arrays.asList("Core", "Swap")), bot);
+            manager.loadAllPlugins(dir.getPath());
+            Plugin old = manager.getPlugin("Swap");
+
+            try {
+                manager.hotSwap("Swap", broken);
+                fail("Broken version should not be swapped in");
+            } catch (PluginLoadException ex) {
+                // Expected
+            }
+
+            assertSame(old, manager.getPlugin("Swap"));
+            assertEquals(Arrays.asList("v1"),
+                         Arrays.asList(bot.getCommandHandler().getRegisteredCommands("swap")));
+
+            int before = V1_EVENTS.get();
+            bot.getEventPump().onUnknownLine(new UnknownLineEvent(new String[]{"FOO"}));
+            assertEquals(before + 1, V1_EVENTS.get());
+        }
+    }
+
+    public abstract static class SwapPlugin extends TestPlugins.StubPlugin implements HotSwappable {
+
+        private final String version;
+        private final AtomicInteger counter;
+
+        protected SwapPlugin(String version, AtomicInteger counter) {
+            super("Swap");
+            this.version = version;
+            this.counter = counter;
+        }
+
+        @Override
+        public void onEnable(final IrcBot bot) {
+
+            bot.registerEventListener(this, new EventListener() {
+                @Override
+                public void onUnknownLine(UnknownLineEvent evt) {
+                    counter.incrementAndGet();
+                }
+            });
+
+            bot.getCommandHandler().registerCommand(this, new Command(bot) {
+                @Override
+                public String getTrigger() {
+                    return version;
+                }
+
+                @Override
+                public void execute(User sender, String target, String[] args) {
+                }
+
+                @Override
+                public String help() {
+                    return version;
+                }
+            });
+        }
+
+        @Override
+        public String getVersion() {
+            return version;
+        }
+
+        @Override
+        public byte[] saveState() {
+            return (version + " state " + counter.get()).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void restoreState(byte[] state) {
+            RESTORED.set(new String(state, StandardCharsets.UTF_8));
+        }
+    }
+
+    public static class SwapV1 extends SwapPlugin {
+        public SwapV1() {
+            super("v1", V1_EVENTS);
+        }
+    }
+
+    public static class SwapV2 extends SwapPlugin {
+        public SwapV2() {
+            super("v2", V2_EVENTS);
+        }
+    }
+
+    /**
+     * Fires an event while it is being enabled, which the old version
+     * handles.
+     */
+    public static class FiringSwapV2 extends SwapPlugin {
+
+        public FiringSwapV2() {
+            super("v2", V2_EVENTS);
+        }
+
+        @Override
+        public void onEnable(IrcBot bot) {
+            super.onEnable(bot);
+            bot.getEventPump().onUnknownLine(new UnknownLineEvent(new String[]{"FOO"}));
+        }
+    }
+
+    public static class BrokenSwap extends SwapPlugin {
+
+        public BrokenSwap() {
+            super("broken", new AtomicInteger());
+        }
+
+        @Override
+        public void onEnable(IrcBot bot) {
+            super.onEnable(bot);
+            throw new IllegalStateException("Broken on purpose");
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.plugins;
+
+import junit.framework.TestCase;
+import net.boreeas.irc.TempDirs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class PluginIndexTest extends TestCase {
+
+    private final TempDirs temp = new TempDirs();
+    private File dir;
+    private File jar;
+
+    public PluginIndexTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = temp.create("plugin-index");
+        jar = new File(dir, "Test.jar");
+        writeJar("main=some.Plugin\ndepends=Other\n");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        temp.deleteAll();
+    }
+
+    private void writeJar(String config) throws Exception {
+
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            out.putNextEntry(new ZipEntry(PluginDescriptor.CONFIG_FILE));
+            out.write(config.getBytes("ISO-8859-1"));
+            out.closeEntry();
+        }
+    }
+
+    private PluginIndex indexWithVerifiedJar() throws Exception {
+
+        PluginIndex index = new PluginIndex(dir);
+        index.descriptor(jar);
+        index.verified(jar, new TestPlugins.Core());
+        index.save();
+
+        return new PluginIndex(dir);
+    }
+
+    public void testUnchangedJarIsNotReread() throws Exception {
+
+        PluginIndex index = indexWithVerifiedJar();
+        PluginDescriptor descriptor = index.descriptor(jar);
+
+        assertEquals(1, index.hits());
+        assertEquals("some.Plugin", descriptor.mainClass());
+        assertTrue(descriptor.depends().contains("Other"));
+        assertTrue(index.isVerified(jar));
+        assertEquals("Core", index.pluginName("Test.jar"));
+    }
+
+    public void testTouchedJarKeepsEntry() throws Exception {
+
+        PluginIndex index = indexWithVerifiedJar();
+        jar.setLastModified(jar.lastModified() - 60000);
+
+        index.descriptor(jar);
+        assertEquals("Same hash should count as a hit", 1, index.hits());
+        assertTrue(index.isVerified(jar));
+    }
+
+    public void testChangedJarInvalidatesEntry() throws Exception {
+
+        PluginIndex index = indexWithVerifiedJar();
+        writeJar("main=other.Plugin\n");
+        jar.setLastModified(jar.lastModified() + 60000);
+
+        PluginDescriptor descriptor = index.descriptor(jar);
+        assertEquals(0, index.hits());
+        assertEquals("other.Plugin", descriptor.mainClass());
+        assertFalse(index.isVerified(jar));
+    }
+
+    public void testConfigKeysLikeIndexKeys() throws Exception {
+
+        writeJar("main=some.Plugin\ndepends=Other\ncache.size=100\ncache.sha256=abc\nmy.config.x=1\n");
+
+        PluginIndex index = indexWithVerifiedJar();
+        PluginDescriptor descriptor = index.descriptor(jar);
+
+        assertEquals("Index should survive the round trip", 1, index.hits());
+        assertTrue(index.isVerified(jar));
+        assertEquals("some.Plugin", descriptor.mainClass());
+        assertTrue(descriptor.depends().contains("Other"));
+    }
+
+    public void testListingSkipsIndex() throws Exception {
+
+        indexWithVerifiedJar();
+        String[] names = new PluginIndex(dir).fileNames();
+
+        assertEquals(1, names.length);
+        assertEquals("Test.jar", names[0]);
+    }
+}
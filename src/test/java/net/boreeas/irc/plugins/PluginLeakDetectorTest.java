@@ -0,0 +1,116 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.plugins;
+
+import junit.framework.TestCase;
+import net.boreeas.irc.TempDirs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class PluginLeakDetectorTest extends TestCase {
+
+    private static final long GRACE = 60000;
+
+    private final TempDirs temp = new TempDirs();
+
+    public PluginLeakDetectorTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        temp.deleteAll();
+        super.tearDown();
+    }
+
+    public void testCollectedLoaderIsForgotten() throws Exception {
+
+        PluginLeakDetector detector = new PluginLeakDetector(null, null, GRACE);
+        detector.track("Gone", new URLClassLoader(new URL[0]));
+
+        for (int i = 0; i < 50 && detector.pending() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, detector.pending());
+        assertTrue(detector.check(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GRACE)).isEmpty());
+    }
+
+    public void testLeakIsReportedWithRetainingThread() throws Exception {
+
+        final URLClassLoader loader = new URLClassLoader(new URL[0]);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    // Done
+                }
+            }
+        }, "LeakyPluginThread");
+
+        thread.setContextClassLoader(loader);
+        thread.start();
+
+        try {
+            PluginLeakDetector detector = new PluginLeakDetector(null, null, GRACE);
+            detector.track("Leaky", loader);
+            loader.close();
+
+            assertTrue("Not leaked before the grace period", detector.check(System.nanoTime()).isEmpty());
+
+            long later = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(GRACE);
+            List<String> reports = detector.check(later);
+
+            assertEquals(1, reports.size());
+            assertTrue(reports.get(0), reports.get(0).contains("Leaky"));
+            assertTrue(reports.get(0), reports.get(0).contains("LeakyPluginThread"));
+            assertTrue("Reported only once", detector.check(later).isEmpty());
+            assertEquals(1, detector.pending());
+        } finally {
+            release.countDown();
+            thread.join();
+        }
+    }
+
+    public void testClosingReleasesJar() throws Exception {
+
+        File jar = new File(temp.create("plugins"), "Open.jar");
+
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            out.putNextEntry(new ZipEntry("resource.txt"));
+            out.write(1);
+            out.closeEntry();
+        }
+
+        URLClassLoader loader = new URLClassLoader(new URL[]{jar.toURI().toURL()});
+        assertNotNull(loader.findResource("resource.txt"));
+
+        long open = PluginLeakDetector.openFiles(loader);
+
+        if (open == -1) {
+            return;     // No /proc/self/fd on this system
+        }
+
+        assertTrue("Jar should be open while the loader is in use", open > 0);
+        loader.close();
+        assertEquals(0, PluginLeakDetector.openFiles(loader));
+    }
+}
@@ -5,8 +5,19 @@
 package net.boreeas.irc.plugins;
 
 import junit.framework.TestCase;
+import net.boreeas.irc.FakeIrcServer;
+import net.boreeas.irc.IrcBot;
+import net.boreeas.irc.TempDirs;
+import net.boreeas.irc.events.EventListener;
+import net.boreeas.irc.events.UnknownLineEvent;
+import net.boreeas.irc.plugins.TestPlugins.*;
 
-import java.util.HashSet;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.boreeas.irc.plugins.TestPlugins.ENABLED;
+import static net.boreeas.irc.plugins.TestPlugins.writePlugin;
 
 /**
  *
@@ -14,6 +25,8 @@ import java.util.HashSet;
  */
 public class PluginManagerTest extends TestCase {
 
+    private final TempDirs temp = new TempDirs();
+
     public PluginManagerTest(String testName) {
         super(testName);
     }
@@ -25,6 +38,7 @@ public class PluginManagerTest extends TestCase {
 
     @Override
     protected void tearDown() throws Exception {
+        temp.deleteAll();
         super.tearDown();
     }
 
@@ -60,4 +74,163 @@ public class PluginManagerTest extends TestCase {
         result = instance.stripFiletypeSuffix(filename);
         assertEquals(expResult, result);
     }
+
+    /**
+     * Core must be enabled first, and every plugin only after the plugins it
+     * depends on. Plugins with missing or circular dependencies are skipped.
+     */
+    public void testDependencyOrder() throws Exception {
+
+        File dir = temp.create("plugins");
+        writePlugin(dir, "Alpha", Alpha.class, "depends=Beta\nconcurrent-enable=true\n");
+        writePlugin(dir, "Beta", Beta.class, "concurrent-enable=true\n");
+        writePlugin(dir, "Core", Core.class, "");
+        writePlugin(dir, "Gamma", Gamma.class, "depends=Missing\n");
+        writePlugin(dir, "Delta", Delta.class, "depends=Epsilon\n");
+        writePlugin(dir, "Epsilon", Epsilon.class, "depends=Delta\n");
+
+        ENABLED.clear();
+        PluginManager manager = new PluginManager(
+                new HashSet<String>(Arrays.asList("Alpha", "Beta", "Core", "Gamma", "Delta", "Epsilon")), null);
+        manager.loadAllPlugins(dir.getPath());
+
+        Set<String> loaded = new HashSet<String>(Arrays.asList(manager.loadedPlugins()));
+        assertEquals(new HashSet<String>(Arrays.asList("Core", "Alpha", "Beta")), loaded);
+
+        assertEquals("Core", ENABLED.get(0));
+        assertTrue(ENABLED.toString(), ENABLED.indexOf("Beta") < ENABLED.indexOf("Alpha"));
+    }
+
+    /**
+     * Plugins without declared dependencies still wait for Core, even if
+     * they come first and may be enabled concurrently.
+     */
+    public void testCoreIsEnabledFirst() throws Exception {
+
+        File dir = temp.create("plugins");
+        writePlugin(dir, "Alpha", Alpha.class, "concurrent-enable=true\n");
+        writePlugin(dir, "Beta", Beta.class, "");
+        writePlugin(dir, "Core", SlowCore.class, "");
+
+        ENABLED.clear();
+        PluginManager manager = new PluginManager(new HashSet<String>(Arrays.asList("Alpha", "Beta", "Core")), null);
+        manager.loadAllPlugins(dir.getPath());
+
+        assertEquals(3, manager.loadedPlugins().length);
+        assertEquals(ENABLED.toString(), "Core", ENABLED.get(0));
+    }
+
+    /**
+     * A single plugin is only loaded if the plugins it depends on are.
+     */
+    public void testLoadPluginChecksDependencies() throws Exception {
+
+        File dir = temp.create("plugins");
+        writePlugin(dir, "Alpha", Alpha.class, "depends=Beta\n");
+        writePlugin(dir, "Beta", Beta.class, "");
+
+        PluginManager manager = new PluginManager(new HashSet<String>(), null);
+
+        try {
+            manager.loadPlugin(new File(dir, "Alpha.jar"));
+            fail("Alpha should not load without Beta");
+        } catch (PluginLoadException ex) {
+            // Expected
+        }
+
+        assertNull(manager.getPlugin("Alpha"));
+
+        manager.loadPlugin(new File(dir, "Beta.jar"));
+        manager.loadPlugin(new File(dir, "Alpha.jar"));
+        assertNotNull(manager.getPlugin("Alpha"));
+    }
+
+    /**
+     * Only plugins that are being enabled can be scheduled for unloading;
+     * anything else would stay in the schedule forever.
+     */
+    public void testScheduleUnloadOfPluginNotBeingLoaded() {
+
+        PluginManager manager = new PluginManager(new HashSet<String>(), null);
+        assertFalse(manager.scheduleImmediateUnload(new Alpha()));
+    }
+
+    /**
+     * A plugin that fails to enable must not leave listeners, triggers or
+     * commands behind.
+     */
+    public void testFailedEnableUnregistersEverything() throws Exception {
+
+        File dir = temp.create("plugins");
+        writePlugin(dir, "Failing", Failing.class, "");
+
+        try (FakeIrcServer server = new FakeIrcServer()) {
+
+            IrcBot bot = new IrcBot(server.botConfig("Failer"));
+            PluginManager manager = new PluginManager(new HashSet<String>(), bot);
+
+            try {
+                manager.loadPlugin(new File(dir, "Failing.jar"));
+                fail("Plugin should fail to enable");
+            } catch (PluginLoadException ex) {
+                // Expected
+            }
+
+            FAILING_EVENTS.set(0);
+            bot.getEventPump().onUnknownLine(new UnknownLineEvent(new String[]{"FOO"}));
+
+            assertEquals(0, FAILING_EVENTS.get());
+            assertTrue(bot.getTriggers().getTriggers().isEmpty());
+            assertEquals(0, bot.getCommandHandler().getRegisteredCommands("failing").length);
+            assertNull(manager.getPlugin("Failing"));
+        }
+
+        // Without a bot, the failure must still be reported as such
+        try {
+            new PluginManager(new HashSet<String>(), null).loadPlugin(new File(dir, "Failing.jar"));
+            fail("Plugin should fail to enable");
+        } catch (PluginLoadException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Takes a while to enable, so that anything enabled alongside it
+     * finishes first.
+     */
+    public static class SlowCore extends Core {
+
+        @Override
+        public void onEnable(IrcBot bot) {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            super.onEnable(bot);
+        }
+    }
+
+    private static final AtomicInteger FAILING_EVENTS = new AtomicInteger();
+
+    public static class Failing extends StubPlugin {
+
+        public Failing() {
+            super("Failing");
+        }
+
+        @Override
+        public void onEnable(IrcBot bot) {
+
+            bot.registerEventListener(this, new EventListener() {
+                @Override
+                public void onUnknownLine(UnknownLineEvent evt) {
+                    FAILING_EVENTS.incrementAndGet();
+                }
+            });
+            bot.getTriggers().addKeyword(this, null, "fail");
+
+            throw new IllegalStateException("Broken on purpose");
+        }
+    }
 }
@@ -0,0 +1,139 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.plugins;
+
+import net.boreeas.irc.IrcBot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Stub plugins shared by the tests, and a way to package them as plugin jars.
+ *
+ * @author Boreeas
+ */
+public final class TestPlugins {
+
+    /**
+     * The names of the stub plugins, in the order they were enabled.
+     */
+    public static final List<String> ENABLED = Collections.synchronizedList(new ArrayList<String>());
+
+    private TestPlugins() {
+    }
+
+    /**
+     * Writes a plugin jar that contains only its <code>config.properties</code>.
+     * The main class is loaded from the test class path.
+     * @param dir    The directory to write the jar to
+     * @param name   The name of the jar, without <code>.jar</code>
+     * @param main   The plugin class
+     * @param config Further lines of the <code>config.properties</code>
+     * @return The jar
+     * @throws Exception
+     */
+    public static File writePlugin(File dir, String name, Class<?> main, String config) throws Exception {
+
+        File file = new File(dir, name + ".jar");
+
+        try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(file))) {
+            jar.putNextEntry(new ZipEntry(PluginDescriptor.CONFIG_FILE));
+            jar.write(("main=" + main.getName() + "\n" + config).getBytes("ISO-8859-1"));
+            jar.closeEntry();
+        }
+
+        return file;
+    }
+
+    /**
+     * A plugin that does nothing but record that it was enabled.
+     */
+    public static class StubPlugin implements Plugin {
+
+        private final String name;
+
+        public StubPlugin(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void onEnable(IrcBot bot) {
+            ENABLED.add(name);
+        }
+
+        @Override
+        public void onDisable() {
+        }
+
+        @Override
+        public void save() {
+        }
+
+        @Override
+        public String getPluginName() {
+            return name;
+        }
+
+        @Override
+        public String getCommandPrefix() {
+            return name.toLowerCase();
+        }
+
+        @Override
+        public String getDescription() {
+            return "Test stub";
+        }
+
+        @Override
+        public String getVersion() {
+            return "1.0";
+        }
+
+        @Override
+        public String reloadTarget() {
+            return name + ".jar";
+        }
+    }
+
+    public static class Core extends StubPlugin {
+        public Core() {
+            super("Core");
+        }
+    }
+
+    public static class Alpha extends StubPlugin {
+        public Alpha() {
+            super("Alpha");
+        }
+    }
+
+    public static class Beta extends StubPlugin {
+        public Beta() {
+            super("Beta");
+        }
+    }
+
+    public static class Gamma extends StubPlugin {
+        public Gamma() {
+            super("Gamma");
+        }
+    }
+
+    public static class Delta extends StubPlugin {
+        public Delta() {
+            super("Delta");
+        }
+    }
+
+    public static class Epsilon extends StubPlugin {
+        public Epsilon() {
+            super("Epsilon");
+        }
+    }
+}
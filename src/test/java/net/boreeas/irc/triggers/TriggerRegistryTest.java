@@ -0,0 +1,104 @@
+/*
+ * This file is public domain
+ */
+package net.boreeas.irc.triggers;
+
+import junit.framework.TestCase;
+import net.boreeas.irc.metrics.MetricsRegistry;
+import net.boreeas.irc.plugins.Plugin;
+import net.boreeas.irc.plugins.TestPlugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+
+/**
+ *
+ * @author Boreeas
+ */
+public class TriggerRegistryTest extends TestCase {
+
+    private final Plugin alpha = new TestPlugins.Alpha();
+    private final Plugin beta = new TestPlugins.Beta();
+    private TriggerRegistry registry;
+
+    public TriggerRegistryTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        registry = new TriggerRegistry(new MetricsRegistry());
+    }
+
+    public void testAutomatonFindsOverlappingKeywords() {
+
+        AhoCorasick<String> automaton = new AhoCorasick<>();
+        for (String keyword: new String[]{"he", "she", "his", "hers"}) {
+            automaton.add(keyword, keyword);
+        }
+        automaton.build();
+
+        final List<String> found = new ArrayList<>();
+        automaton.match("uSHErs", new AhoCorasick.Hit<String>() {
+            @Override
+            public void hit(String value, int start, int end) {
+                found.add(value + "@" + start + "-" + end);
+            }
+        });
+
+        assertEquals(Arrays.asList("she@1-4", "he@2-4", "hers@2-6"), found);
+    }
+
+    public void testRequiredLiteral() {
+
+        assertEquals("!seen", Trigger.requiredLiteral(Pattern.compile("!seen\\s+(\\S+)")));
+        assertEquals("hello", Trigger.requiredLiteral(Pattern.compile("^hello")));
+        assertEquals("colo", Trigger.requiredLiteral(Pattern.compile("colou?r")));
+        assertEquals("a+b", Trigger.requiredLiteral(Pattern.compile("a+b", Pattern.LITERAL)));
+        assertNull(Trigger.requiredLiteral(Pattern.compile("cat|dog")));
+        assertNull(Trigger.requiredLiteral(Pattern.compile("(?i)x")));
+        assertNull(Trigger.requiredLiteral(Pattern.compile("a*")));
+        assertNull(Trigger.requiredLiteral(Pattern.compile("abc", Pattern.COMMENTS)));
+    }
+
+    public void testMatchesAreGroupedByPlugin() {
+
+        Trigger coffee = registry.addKeyword(alpha, null, "coffee");
+        Trigger seen = registry.addPattern(alpha, null, Pattern.compile("!seen\\s+(\\S+)"));
+        Trigger any = registry.addPattern(beta, null, Pattern.compile("\\d{3,}"));
+        registry.addKeyword(beta, "#other", "coffee");
+
+        Map<Plugin, Map<Trigger, MatchResult>> matched = registry.match("#chan", "COFFEE? !seen boreeas");
+        assertEquals(Arrays.asList(alpha), new ArrayList<>(matched.keySet()));
+        assertEquals("COFFEE", matched.get(alpha).get(coffee).group());
+        assertEquals("boreeas", matched.get(alpha).get(seen).group(1));
+
+        matched = registry.match("#Other", "coffee at 1100");
+        assertEquals(Arrays.asList(coffee), new ArrayList<>(matched.get(alpha).keySet()));
+        assertEquals(2, matched.get(beta).size());
+        assertEquals("1100", matched.get(beta).get(any).group());
+
+        assertTrue(registry.match("#chan", "tea").isEmpty());
+        assertTrue("Prefix found, but the pattern doesn't match", registry.match("#chan", "!seen").isEmpty());
+    }
+
+    public void testRemove() {
+
+        Trigger coffee = registry.addKeyword(alpha, null, "coffee");
+        registry.addKeyword(beta, null, "coffee");
+        assertEquals(2, registry.match("#chan", "coffee").size());
+
+        assertTrue(registry.remove(coffee));
+        assertFalse(registry.remove(coffee));
+        assertEquals(Arrays.asList(beta), new ArrayList<>(registry.match("#chan", "coffee").keySet()));
+
+        registry.removeAll(beta);
+        assertTrue(registry.match("#chan", "coffee").isEmpty());
+        assertTrue(registry.getTriggers().isEmpty());
+    }
+}